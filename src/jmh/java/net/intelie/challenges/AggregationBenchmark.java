@@ -0,0 +1,98 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting the events of a time window of a type, and splitting them in
+ * buckets: the aggregations of the stores against a query whose events are
+ * counted one by one.
+ *
+ * <p>
+ * The window is the middle half of the type. With {@code history} set, the
+ * older half of the type was moved to the history blocks first, so the window
+ * spans both tiers.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+
+	@Param({ "concurrent", "columnar" })
+	public String implementation;
+
+	@Param({ "false", "true" })
+	public boolean history;
+
+	@Param({ "100000" })
+	public int eventsPerType;
+
+	private EventStore store;
+	private String type;
+	private long startTime;
+	private long endTime;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		type = BenchmarkData.types(1)[0];
+		if (history && implementation.equals("concurrent")) {
+			ConcurrentEventStore concurrent = new ConcurrentEventStore(eventsPerType / 2);
+			BenchmarkData.populate(concurrent, new String[] { type }, eventsPerType);
+			concurrent.encodeAndMoveToHistory(type);
+			store = concurrent;
+		} else {
+			store = BenchmarkData.newStore(implementation);
+			BenchmarkData.populate(store, new String[] { type }, eventsPerType);
+		}
+		startTime = eventsPerType / 4;
+		endTime = eventsPerType * 3 / 4;
+	}
+
+	@Benchmark
+	public long count() {
+		return store.count(type, startTime, endTime);
+	}
+
+	@Benchmark
+	public long queryCount() {
+		EventIterator it = store.query(type, startTime, endTime);
+		long count = 0;
+		while (it.moveNext()) {
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public long[] histogram() {
+		return store.histogram(type, startTime, endTime, 1000);
+	}
+
+	@Benchmark
+	public long[] queryHistogram() {
+		long[] counts = new long[(int) ((endTime - startTime + 999) / 1000)];
+		EventIterator it = store.query(type, startTime, endTime);
+		while (it.moveNext()) {
+			counts[(int) ((it.current().timestamp() - startTime) / 1000)]++;
+		}
+		return counts;
+	}
+}
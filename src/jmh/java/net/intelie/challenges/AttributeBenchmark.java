@@ -0,0 +1,97 @@
+package net.intelie.challenges;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Events with a few attributes (a host name, a counter and a ratio), either
+ * inserted with their attributes, which the store keeps off the heap, or
+ * inserted bare with the attributes in a side map keyed by timestamp.
+ *
+ * <p>
+ * The heap retained per event is printed once the store is filled, as
+ * {@link FootprintBenchmark} does; the score is the time to scan a range of
+ * the type summing one of the attributes.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class AttributeBenchmark {
+
+	@Param({ "offHeap", "sideMap" })
+	public String layout;
+
+	@Param({ "1000000" })
+	public int eventsPerType;
+
+	private ConcurrentEventStore store;
+	private Map<Long, Map<String, Object>> sideMap;
+	private String type;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		long before = usedHeap();
+		type = BenchmarkData.types(1)[0];
+		store = new ConcurrentEventStore();
+		sideMap = new ConcurrentHashMap<>();
+		for (long i = 0; i < eventsPerType; i++) {
+			Map<String, Object> attributes = new HashMap<>();
+			attributes.put("host", "host-" + (i % 64));
+			attributes.put("bytes", i);
+			attributes.put("ratio", i / (double) eventsPerType);
+			if (layout.equals("offHeap")) {
+				store.insert(new Event(type, i, attributes));
+			} else {
+				store.insert(new Event(type, i));
+				sideMap.put(i, attributes);
+			}
+		}
+		long retained = usedHeap() - before;
+		System.out.printf("%n%s: %.1f heap bytes/event%n", layout, (double) retained / eventsPerType);
+	}
+
+	@Benchmark
+	public long scan() {
+		long sum = 0;
+		EventIterator it = store.query(type, 0, eventsPerType);
+		if (layout.equals("offHeap")) {
+			while (it.moveNext()) {
+				sum += it.current().attributes().getLong("bytes", 0);
+			}
+		} else {
+			while (it.moveNext()) {
+				sum += (Long) sideMap.get(it.current().timestamp()).get("bytes");
+			}
+		}
+		return sum;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
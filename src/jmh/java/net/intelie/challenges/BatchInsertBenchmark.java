@@ -0,0 +1,93 @@
+package net.intelie.challenges;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ingest throughput of {@code insertAll} against a loop of {@code insert}
+ * over the same batch.
+ *
+ * <p>
+ * Every invocation inserts a batch of {@code batchSize} events spread over
+ * {@code typeCount} types. In-order batches continue the timestamps of the
+ * previous one, as a stream would; unordered batches draw random timestamps
+ * over a wide range. The store is recreated before each iteration, so its size
+ * stays comparable between the two ways of inserting. Scores are batches per
+ * second.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchInsertBenchmark {
+
+	@Param({ "concurrent", "columnar", "append" })
+	public String implementation;
+
+	@Param({ "10000" })
+	public int batchSize;
+
+	@Param({ "1", "16" })
+	public int typeCount;
+
+	@Param({ "true", "false" })
+	public boolean ordered;
+
+	private EventStore store;
+	private String[] types;
+	private Random random;
+	private long nextTimestamp;
+
+	@Setup(Level.Iteration)
+	public void createStore() {
+		store = BenchmarkData.newStore(implementation);
+		types = BenchmarkData.types(typeCount);
+		random = new Random(42);
+		nextTimestamp = 0;
+	}
+
+	@Benchmark
+	public EventStore insertLoop() {
+		for (Event event : nextBatch()) {
+			store.insert(event);
+		}
+		return store;
+	}
+
+	@Benchmark
+	public EventStore insertAll() {
+		store.insertAll(nextBatch());
+		return store;
+	}
+
+	/**
+	 * Builds the next batch. Building it is part of the measured time, but it
+	 * is the same for both benchmarks.
+	 */
+	private Event[] nextBatch() {
+		Event[] batch = new Event[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			long timestamp = ordered ? nextTimestamp++ : random.nextInt(Integer.MAX_VALUE);
+			batch[i] = new Event(types[i % types.length], timestamp);
+		}
+		return batch;
+	}
+}
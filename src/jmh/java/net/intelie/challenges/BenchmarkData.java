@@ -0,0 +1,63 @@
+package net.intelie.challenges;
+
+/**
+ * Shared fixtures of the benchmarks.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class BenchmarkData {
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Creates an empty store of the given implementation.
+	 *
+	 * @param implementation {@code concurrent}, {@code columnar} or
+	 * {@code append}
+	 * @return the store
+	 */
+	static EventStore newStore(String implementation) {
+		switch (implementation) {
+		case "concurrent":
+			return new ConcurrentEventStore();
+		case "columnar":
+			return new ColumnarEventStore();
+		case "append":
+			return new AppendOnlyEventStore();
+		default:
+			throw new IllegalArgumentException("unknown implementation: " + implementation);
+		}
+	}
+
+	/**
+	 * Returns {@code count} distinct type names.
+	 *
+	 * @param count the number of types
+	 * @return the type names
+	 */
+	static String[] types(int count) {
+		String[] types = new String[count];
+		for (int i = 0; i < count; i++) {
+			types[i] = "type-" + i;
+		}
+		return types;
+	}
+
+	/**
+	 * Inserts {@code eventsPerType} events with timestamps
+	 * {@code 0..eventsPerType-1} for each of the given types.
+	 *
+	 * @param store the store to be populated
+	 * @param types the types of the events
+	 * @param eventsPerType the number of events of each type
+	 */
+	static void populate(EventStore store, String[] types, int eventsPerType) {
+		for (String type : types) {
+			for (long timestamp = 0; timestamp < eventsPerType; timestamp++) {
+				store.insert(new Event(type, timestamp));
+			}
+		}
+	}
+}
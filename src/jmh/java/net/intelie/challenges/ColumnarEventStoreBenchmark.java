@@ -0,0 +1,93 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The operations of {@link ConcurrentEventStoreBenchmark}, with the same
+ * parameters, run against {@link ColumnarEventStore}.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColumnarEventStoreBenchmark {
+
+	@Param({ "1", "32" })
+	public int typeCount;
+
+	@Param({ "10000", "100000" })
+	public int eventsPerType;
+
+	@Param({ "100", "10000" })
+	public int windowWidth;
+
+	private ColumnarEventStore store;
+	private String[] types;
+
+	@Setup
+	public void populate() {
+		store = new ColumnarEventStore();
+		types = BenchmarkData.types(typeCount);
+		BenchmarkData.populate(store, types, eventsPerType);
+	}
+
+	@Benchmark
+	public void insert() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String type = types[random.nextInt(types.length)];
+		store.insert(new Event(type, random.nextLong(2L * eventsPerType)));
+	}
+
+	@Benchmark
+	public long queryAndDrain() throws Exception {
+		return drainRandomWindow();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public long mixedQuery() throws Exception {
+		return drainRandomWindow();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedInsert() {
+		insert();
+	}
+
+	private long drainRandomWindow() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String type = types[random.nextInt(types.length)];
+		long start = random.nextLong(Math.max(1, eventsPerType - windowWidth));
+
+		long sum = 0;
+		try (EventIterator it = store.query(type, start, start + windowWidth)) {
+			while (it.moveNext()) {
+				sum += it.current().timestamp();
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,116 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the hot operations of {@link ConcurrentEventStore}.
+ *
+ * <p>
+ * The store is populated once per trial with {@code typeCount} types holding
+ * {@code eventsPerType} events each, with timestamps {@code 0..eventsPerType-1}.
+ * Inserts pick a random type and a timestamp in {@code [0, 2 * eventsPerType)},
+ * so the store grows at most twofold during a trial and the measured cost does
+ * not drift with the iteration count.
+ *
+ * <p>
+ * Both modes are reported: {@code thrpt} gives ops/us (multiply by 10^6 for
+ * ops/s) and {@code sample} gives the latency distribution, including p0.99.
+ * Run with {@code -prof gc} (the profile default) for {@code gc.alloc.rate.norm},
+ * the allocated bytes per operation.
+ *
+ * <p>
+ * The {@code mixed} group runs readers and writers against the same store at
+ * the same time, which is the usage pattern the store is meant for.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentEventStoreBenchmark {
+
+	@Param({ "1", "32" })
+	public int typeCount;
+
+	@Param({ "10000", "100000" })
+	public int eventsPerType;
+
+	@Param({ "100", "10000" })
+	public int windowWidth;
+
+	private ConcurrentEventStore store;
+	private String[] types;
+
+	@Setup
+	public void populate() {
+		store = new ConcurrentEventStore();
+		types = BenchmarkData.types(typeCount);
+		BenchmarkData.populate(store, types, eventsPerType);
+	}
+
+	@Benchmark
+	public void insert() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String type = types[random.nextInt(types.length)];
+		store.insert(new Event(type, random.nextLong(2L * eventsPerType)));
+	}
+
+	@Benchmark
+	public long queryAndDrain() throws Exception {
+		return drainRandomWindow();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public long mixedQuery() throws Exception {
+		return drainRandomWindow();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedInsert() {
+		insert();
+	}
+
+	/**
+	 * Queries a window of {@code windowWidth} milliseconds at a random position
+	 * of a random type and walks every event of it.
+	 *
+	 * @return the sum of the visited timestamps, so the JIT can not drop the
+	 * iteration
+	 */
+	private long drainRandomWindow() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String type = types[random.nextInt(types.length)];
+		long start = random.nextLong(Math.max(1, eventsPerType - windowWidth));
+
+		long sum = 0;
+		try (EventIterator it = store.query(type, start, start + windowWidth)) {
+			while (it.moveNext()) {
+				sum += it.current().timestamp();
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,71 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the whole-type operations of {@link ConcurrentEventStore}:
+ * {@code removeAll} and {@code encodeAndMoveToHistory}.
+ *
+ * <p>
+ * Both operations consume the data they work on, so a fresh store is built
+ * before every iteration and each iteration is a single shot over all the
+ * types. The reported time is per iteration, that is, per
+ * {@code typeCount} calls.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ConcurrentEventStoreMaintenanceBenchmark {
+
+	@Param({ "1", "32" })
+	public int typeCount;
+
+	@Param({ "10000", "100000" })
+	public int eventsPerType;
+
+	private ConcurrentEventStore store;
+	private String[] types;
+
+	@Setup(Level.Iteration)
+	public void populate() {
+		// half of every type is older than the history limit
+		store = new ConcurrentEventStore(eventsPerType / 2);
+		types = BenchmarkData.types(typeCount);
+		BenchmarkData.populate(store, types, eventsPerType);
+	}
+
+	@Benchmark
+	public ConcurrentEventStore removeAll() {
+		for (String type : types) {
+			store.removeAll(type);
+		}
+		return store;
+	}
+
+	@Benchmark
+	public ConcurrentEventStore encodeAndMoveToHistory() {
+		for (String type : types) {
+			store.encodeAndMoveToHistory(type);
+		}
+		return store;
+	}
+}
@@ -0,0 +1,86 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of keeping duplicated timestamps in {@link ConcurrentEventStore},
+ * against the default mode where an event replaces the one with the same
+ * timestamp.
+ *
+ * <p>
+ * The store holds {@code timestamps} distinct timestamps, each one with
+ * {@code eventsPerTimestamp} events. With a single event per timestamp the
+ * duplicates mode stores exactly what the default mode does, so the difference
+ * is the cost of {@code merge} over {@code put}. With more events per
+ * timestamp the default mode keeps one of them, while the duplicates mode
+ * walks the buckets.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DuplicateTimestampBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean keepDuplicates;
+
+	@Param({ "1", "4" })
+	public int eventsPerTimestamp;
+
+	@Param({ "100000" })
+	public int timestamps;
+
+	@Param({ "100" })
+	public int windowWidth;
+
+	private ConcurrentEventStore store;
+
+	@Setup
+	public void populate() {
+		store = new ConcurrentEventStore(10, keepDuplicates);
+		for (long timestamp = 0; timestamp < timestamps; timestamp++) {
+			for (int i = 0; i < eventsPerTimestamp; i++) {
+				store.insert(new Event("type", timestamp));
+			}
+		}
+	}
+
+	/**
+	 * Inserts over the existing timestamps. In the duplicates mode the
+	 * buckets grow during the trial, as they would under a burst.
+	 */
+	@Benchmark
+	public void insert() {
+		store.insert(new Event("type", ThreadLocalRandom.current().nextLong(timestamps)));
+	}
+
+	@Benchmark
+	public long queryAndDrain() throws Exception {
+		long start = ThreadLocalRandom.current().nextLong(timestamps - windowWidth);
+		long sum = 0;
+		try (EventIterator it = store.query("type", start, start + windowWidth)) {
+			while (it.moveNext()) {
+				sum += it.current().timestamp();
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,86 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a window of a type through a new iterator against a reused cursor.
+ * Run it with {@code -prof gc} to see the allocation of each: the cursor
+ * should allocate the same few bytes for the views of the maps whatever the
+ * size of the window, and nothing for the events of the history.
+ *
+ * <p>
+ * With {@code history} set, the older half of the type was moved to the
+ * history blocks first, and the window spans both tiers.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventCursorBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean history;
+
+	@Param({ "100000" })
+	public int eventsPerType;
+
+	@Param({ "1000", "10000" })
+	public int window;
+
+	private ConcurrentEventStore store;
+	private EventCursor cursor;
+	private String type;
+	private long startTime;
+	private long endTime;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		type = BenchmarkData.types(1)[0];
+		store = new ConcurrentEventStore(history ? eventsPerType / 2 : 0);
+		BenchmarkData.populate(store, new String[] { type }, eventsPerType);
+		if (history) {
+			store.encodeAndMoveToHistory(type);
+		}
+		cursor = store.cursor();
+		startTime = (eventsPerType - window) / 2;
+		endTime = startTime + window;
+	}
+
+	@Benchmark
+	public long iterator() {
+		EventIterator it = store.query(type, startTime, endTime);
+		long sum = 0;
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long cursor() {
+		cursor.reset(type, startTime, endTime);
+		long sum = 0;
+		while (cursor.moveNext()) {
+			sum += cursor.timestamp();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,74 @@
+package net.intelie.challenges;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A range query filtered by the host of the events, out of {@code hosts}
+ * hosts spread evenly: through the index of the attribute, or by testing
+ * every event of the range, as an unindexed store does.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class FilteredQueryBenchmark {
+
+	@Param({ "10", "1000" })
+	public int hosts;
+
+	@Param({ "false", "true" })
+	public boolean indexed;
+
+	@Param({ "1000000" })
+	public int eventsPerType;
+
+	private ConcurrentEventStore store;
+	private String type;
+	private AttributeFilter filter;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		type = BenchmarkData.types(1)[0];
+		store = new ConcurrentEventStore();
+		if (indexed) {
+			store.createIndex(type, "host");
+		}
+		for (long i = 0; i < eventsPerType; i++) {
+			Map<String, Object> attributes = new HashMap<>();
+			attributes.put("host", "host-" + (i % hosts));
+			attributes.put("bytes", i);
+			store.insert(new Event(type, i, attributes));
+		}
+		filter = new AttributeFilter("host", "host-7");
+	}
+
+	@Benchmark
+	public long query() {
+		long sum = 0;
+		EventIterator it = store.query(type, eventsPerType / 4, eventsPerType / 4 * 3, filter);
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,69 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap retained per event by each store implementation.
+ *
+ * <p>
+ * Each invocation fills a new store and the used heap is measured, after a
+ * full collection, while the store is still reachable. The bytes per event
+ * are printed at the end of each iteration; the benchmark score itself is the
+ * time to fill the store.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class FootprintBenchmark {
+
+	@Param({ "concurrent", "columnar", "append" })
+	public String implementation;
+
+	@Param({ "1000000" })
+	public int eventsPerType;
+
+	private EventStore store;
+	private long before;
+
+	@Benchmark
+	public EventStore fill() {
+		before = usedHeap();
+		store = BenchmarkData.newStore(implementation);
+		BenchmarkData.populate(store, BenchmarkData.types(1), eventsPerType);
+		return store;
+	}
+
+	@TearDown(Level.Iteration)
+	public void report() {
+		long retained = usedHeap() - before;
+		System.out.printf("%n%s: %.1f bytes/event%n", implementation, (double) retained / eventsPerType);
+		store = null;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
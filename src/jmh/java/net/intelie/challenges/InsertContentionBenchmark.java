@@ -0,0 +1,81 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many writers inserting events of one single type.
+ *
+ * <p>
+ * {@code insert} goes through {@link ConcurrentEventStore#insert}, which
+ * looks up the skip list of the type without locking. {@code computeBaseline}
+ * reproduces the previous insertion path, where every event ran inside
+ * {@code ConcurrentHashMap.compute} and all writers of the type queued on the
+ * lock of its hash bin. Both write to a skip list pre-filled with
+ * {@code eventsPerType} events.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class InsertContentionBenchmark {
+
+	private static final String TYPE = "hot";
+
+	@Param({ "100000" })
+	public int eventsPerType;
+
+	private ConcurrentEventStore store;
+	private ConcurrentHashMap<String, ConcurrentSkipListMap<Long, Event>> baseline;
+
+	@Setup
+	public void populate() {
+		store = new ConcurrentEventStore();
+		baseline = new ConcurrentHashMap<>();
+		ConcurrentSkipListMap<Long, Event> events = new ConcurrentSkipListMap<>();
+		for (long timestamp = 0; timestamp < eventsPerType; timestamp++) {
+			Event event = new Event(TYPE, timestamp);
+			store.insert(event);
+			events.put(timestamp, event);
+		}
+		baseline.put(TYPE, events);
+	}
+
+	@Benchmark
+	public void insert() {
+		store.insert(new Event(TYPE, ThreadLocalRandom.current().nextLong(2L * eventsPerType)));
+	}
+
+	@Benchmark
+	public void computeBaseline() {
+		Event event = new Event(TYPE, ThreadLocalRandom.current().nextLong(2L * eventsPerType));
+		baseline.compute(event.type(), (key, value) -> {
+			if (value == null) {
+				value = new ConcurrentSkipListMap<>();
+			}
+			value.put(event.timestamp(), event);
+			return value;
+		});
+	}
+}
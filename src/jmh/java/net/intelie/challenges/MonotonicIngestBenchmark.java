@@ -0,0 +1,84 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ingestion of a telemetry-like stream, whose timestamps never decrease, and
+ * scans of its most recent events, for each store implementation.
+ *
+ * <p>
+ * The store is recreated before every iteration, as the stream grows without
+ * bounds. {@code tail} scans the last {@code windowWidth} milliseconds of the
+ * stream while it is being written, which is how dashboards follow it.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" })
+public class MonotonicIngestBenchmark {
+
+	@Param({ "concurrent", "columnar", "append" })
+	public String implementation;
+
+	@Param({ "1000" })
+	public int windowWidth;
+
+	private EventStore store;
+	private final AtomicLong clock = new AtomicLong();
+
+	@Setup(Level.Iteration)
+	public void createStore() {
+		store = BenchmarkData.newStore(implementation);
+		clock.set(0);
+		store.insert(new Event("type", 0));
+	}
+
+	@Benchmark
+	@Group("ingest")
+	@GroupThreads(1)
+	public void append() {
+		store.insert(new Event("type", clock.incrementAndGet()));
+	}
+
+	@Benchmark
+	@Group("ingestAndTail")
+	@GroupThreads(1)
+	public void appendWhileTailed() {
+		append();
+	}
+
+	@Benchmark
+	@Group("ingestAndTail")
+	@GroupThreads(1)
+	public long tail() throws Exception {
+		long end = clock.get() + 1;
+		long sum = 0;
+		try (EventIterator it = store.query("type", Math.max(0, end - windowWidth), end)) {
+			while (it.moveNext()) {
+				sum += it.current().timestamp();
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,84 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reducing the events of a large range of a type: an iterator read by one
+ * thread against the stream of the range, sequential and parallel. The
+ * parallel stream reads the halves of the range with the common fork-join
+ * pool, so its speedup is bound by the number of cores.
+ *
+ * <p>
+ * With {@code history} set, the older half of the type was moved to the
+ * history blocks first, so the range spans both tiers.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryStreamBenchmark {
+
+	@Param({ "concurrent", "columnar" })
+	public String implementation;
+
+	@Param({ "false", "true" })
+	public boolean history;
+
+	@Param({ "1000000" })
+	public int eventsPerType;
+
+	private EventStore store;
+	private String type;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		type = BenchmarkData.types(1)[0];
+		if (history && implementation.equals("concurrent")) {
+			ConcurrentEventStore concurrent = new ConcurrentEventStore(eventsPerType / 2);
+			BenchmarkData.populate(concurrent, new String[] { type }, eventsPerType);
+			concurrent.encodeAndMoveToHistory(type);
+			store = concurrent;
+		} else {
+			store = BenchmarkData.newStore(implementation);
+			BenchmarkData.populate(store, new String[] { type }, eventsPerType);
+		}
+	}
+
+	@Benchmark
+	public long iterator() {
+		EventIterator it = store.query(type, 0, eventsPerType);
+		long sum = 0;
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long stream() {
+		return store.queryStream(type, 0, eventsPerType).mapToLong(Event::timestamp).sum();
+	}
+
+	@Benchmark
+	public long parallelStream() {
+		return store.queryStream(type, 0, eventsPerType).parallel().mapToLong(Event::timestamp).sum();
+	}
+}
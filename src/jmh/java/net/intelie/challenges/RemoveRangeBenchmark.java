@@ -0,0 +1,80 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deletion of a time window of a type: {@code removeRange} against a query
+ * whose events are removed one by one through the iterator.
+ *
+ * <p>
+ * The deletion consumes the data it works on, so a fresh store is built before
+ * every iteration and each iteration is a single shot that removes the middle
+ * half of the type. With {@code history} set, the older half of the type was
+ * moved to the history blocks first, so the window spans both tiers.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class RemoveRangeBenchmark {
+
+	@Param({ "concurrent", "columnar" })
+	public String implementation;
+
+	@Param({ "false", "true" })
+	public boolean history;
+
+	@Param({ "100000" })
+	public int eventsPerType;
+
+	private EventStore store;
+	private String type;
+
+	@Setup(Level.Iteration)
+	public void populate() {
+		type = BenchmarkData.types(1)[0];
+		if (history && implementation.equals("concurrent")) {
+			ConcurrentEventStore concurrent = new ConcurrentEventStore(eventsPerType / 2);
+			BenchmarkData.populate(concurrent, new String[] { type }, eventsPerType);
+			concurrent.encodeAndMoveToHistory(type);
+			store = concurrent;
+		} else {
+			store = BenchmarkData.newStore(implementation);
+			BenchmarkData.populate(store, new String[] { type }, eventsPerType);
+		}
+	}
+
+	@Benchmark
+	public long removeRange() {
+		return store.removeRange(type, eventsPerType / 4, eventsPerType * 3 / 4);
+	}
+
+	@Benchmark
+	public long iteratorRemove() {
+		EventIterator it = store.query(type, eventsPerType / 4, eventsPerType * 3 / 4);
+		long removed = 0;
+		while (it.moveNext()) {
+			it.remove();
+			removed++;
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,81 @@
+package net.intelie.challenges;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to rebuild a {@link ConcurrentEventStore} after a restart: restoring a
+ * snapshot against inserting the same events again, one by one, as a
+ * re-ingestion from upstream would. {@code snapshot} measures the writing of
+ * the snapshot itself.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	@Param({ "32" })
+	public int typeCount;
+
+	@Param({ "100000" })
+	public int eventsPerType;
+
+	private ConcurrentEventStore store;
+	private String[] types;
+	private Path file;
+
+	@Setup
+	public void populate() throws IOException {
+		store = new ConcurrentEventStore();
+		types = BenchmarkData.types(typeCount);
+		BenchmarkData.populate(store, types, eventsPerType);
+		file = Files.createTempFile("snapshot-benchmark", ".snapshot");
+		store.snapshot(file);
+	}
+
+	@TearDown
+	public void deleteSnapshot() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public ConcurrentEventStore snapshot() {
+		store.snapshot(file);
+		return store;
+	}
+
+	@Benchmark
+	public ConcurrentEventStore restore() {
+		ConcurrentEventStore restored = new ConcurrentEventStore();
+		restored.restore(file);
+		return restored;
+	}
+
+	@Benchmark
+	public ConcurrentEventStore reinsert() {
+		ConcurrentEventStore restored = new ConcurrentEventStore();
+		BenchmarkData.populate(restored, types, eventsPerType);
+		return restored;
+	}
+}
@@ -0,0 +1,94 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full scans of a type by a weakly consistent query and by a snapshot query
+ * (see {@link ConcurrentEventStore#querySnapshot}), and inserts into a type
+ * with and without a snapshot open on it, which makes them record the values
+ * they replace. The inserts replace stored events, so the store keeps its
+ * size; the open snapshot is renewed every iteration, so its log is dropped.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotQueryBenchmark {
+
+	@Param({ "100000" })
+	public int eventCount;
+
+	private ConcurrentEventStore store;
+	private EventIterator open;
+	private long timestamp;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		store = new ConcurrentEventStore(Long.MIN_VALUE);
+		for (long t = 0; t < eventCount; t++) {
+			store.insert(new Event("scanned", t));
+			store.insert(new Event("snapshotted", t));
+			store.insert(new Event("plain", t));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void openSnapshot() {
+		open = store.querySnapshot("snapshotted", 0, 1);
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeSnapshot() throws Exception {
+		open.close();
+	}
+
+	@Benchmark
+	public long scan() {
+		return sum(store.query("scanned", 0, eventCount));
+	}
+
+	@Benchmark
+	public long scanSnapshot() throws Exception {
+		EventIterator it = store.querySnapshot("scanned", 0, eventCount);
+		long sum = sum(it);
+		it.close();
+		return sum;
+	}
+
+	@Benchmark
+	public void insert() {
+		store.insert(new Event("plain", timestamp++ % eventCount));
+	}
+
+	@Benchmark
+	public void insertWithSnapshotOpen() {
+		store.insert(new Event("snapshotted", timestamp++ % eventCount));
+	}
+
+	private static long sum(EventIterator it) {
+		long sum = 0;
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,101 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Following the new events of a type: each operation inserts one event and
+ * reads the events inserted since the previous operation, either from a
+ * subscription or by polling the store with a query from the last timestamp
+ * read.
+ *
+ * <p>
+ * {@code insert} measures the cost the subscriptions add to an insert, with
+ * {@code subscribers} consumers whose buffers are kept drained.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionBenchmark {
+
+	@Param({ "0", "1", "4" })
+	public int subscribers;
+
+	@Param({ "100000" })
+	public int eventsPerType;
+
+	private ConcurrentEventStore store;
+	private String type;
+	private EventSubscription[] subscriptions;
+	private long timestamp;
+	private long polled;
+
+	@Setup(Level.Iteration)
+	public void populate() {
+		type = BenchmarkData.types(1)[0];
+		store = new ConcurrentEventStore();
+		BenchmarkData.populate(store, new String[] { type }, eventsPerType);
+		timestamp = eventsPerType;
+		polled = timestamp;
+		subscriptions = new EventSubscription[subscribers];
+		for (int i = 0; i < subscribers; i++) {
+			subscriptions[i] = store.subscribe(type, timestamp, 1 << 20);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() {
+		for (EventSubscription subscription : subscriptions) {
+			subscription.close();
+		}
+	}
+
+	@Benchmark
+	public long insert() {
+		store.insert(new Event(type, timestamp++));
+		long sum = 0;
+		for (EventSubscription subscription : subscriptions) {
+			sum += drain(subscription);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long poll() {
+		store.insert(new Event(type, timestamp++));
+		long sum = 0;
+		EventIterator it = store.query(type, polled, Long.MAX_VALUE);
+		while (it.moveNext()) {
+			polled = it.current().timestamp() + 1;
+			sum += polled;
+		}
+		return sum;
+	}
+
+	private static long drain(EventIterator it) {
+		long sum = 0;
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,100 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the latest events of a type: a descending query with a limit
+ * against an ascending query read to its end, keeping the last events.
+ *
+ * <p>
+ * With {@code history} set, the older half of the type was moved to the
+ * history blocks first, and {@code historyTail} reads the latest events of
+ * that half, which are all in the blocks.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TailQueryBenchmark {
+
+	@Param({ "concurrent", "columnar" })
+	public String implementation;
+
+	@Param({ "false", "true" })
+	public boolean history;
+
+	@Param({ "100000" })
+	public int eventsPerType;
+
+	@Param({ "100" })
+	public int limit;
+
+	private EventStore store;
+	private String type;
+	private long[] tail;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		type = BenchmarkData.types(1)[0];
+		if (history && implementation.equals("concurrent")) {
+			ConcurrentEventStore concurrent = new ConcurrentEventStore(eventsPerType / 2);
+			BenchmarkData.populate(concurrent, new String[] { type }, eventsPerType);
+			concurrent.encodeAndMoveToHistory(type);
+			store = concurrent;
+		} else {
+			store = BenchmarkData.newStore(implementation);
+			BenchmarkData.populate(store, new String[] { type }, eventsPerType);
+		}
+		tail = new long[limit];
+	}
+
+	@Benchmark
+	public long descending() {
+		return sum(store.queryDescending(type, 0, eventsPerType, limit));
+	}
+
+	@Benchmark
+	public long historyTail() {
+		return sum(store.queryDescending(type, 0, eventsPerType / 2, limit));
+	}
+
+	@Benchmark
+	public long ascendingTail() {
+		EventIterator it = store.query(type, 0, eventsPerType);
+		int count = 0;
+		while (it.moveNext()) {
+			tail[count++ % limit] = it.current().timestamp();
+		}
+		long sum = 0;
+		for (long timestamp : tail) {
+			sum += timestamp;
+		}
+		return sum;
+	}
+
+	private static long sum(EventIterator it) {
+		long sum = 0;
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+}
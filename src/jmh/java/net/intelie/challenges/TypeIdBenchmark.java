@@ -0,0 +1,97 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inserts and short queries over {@code typeCount} types, addressed by the
+ * name of the type or by the id the store gave it (see
+ * {@link ConcurrentEventStore#typeId}). The names are copies of the stored
+ * ones, as they arrive from a parser, so looking them up hashes and compares
+ * them. The inserts replace stored events, so the store keeps its size.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypeIdBenchmark {
+
+	@Param({ "1000" })
+	public int typeCount;
+
+	@Param({ "1000" })
+	public int eventsPerType;
+
+	private ConcurrentEventStore store;
+	private String[] names;
+	private int[] ids;
+	private int next;
+	private long timestamp;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		store = new ConcurrentEventStore(Long.MIN_VALUE);
+		String[] types = BenchmarkData.types(typeCount);
+		names = new String[typeCount];
+		ids = new int[typeCount];
+		for (int i = 0; i < typeCount; i++) {
+			names[i] = new String(types[i].toCharArray());
+			ids[i] = store.typeId(types[i]);
+			for (long t = 0; t < eventsPerType; t++) {
+				store.insert(new Event(types[i], t));
+			}
+		}
+	}
+
+	private int nextType() {
+		next = (next + 1) % typeCount;
+		return next;
+	}
+
+	@Benchmark
+	public void insertByName() {
+		store.insert(new Event(names[nextType()], timestamp++ % eventsPerType));
+	}
+
+	@Benchmark
+	public void insertById() {
+		store.insert(ids[nextType()], timestamp++ % eventsPerType);
+	}
+
+	@Benchmark
+	public long queryByName() {
+		EventIterator it = store.query(names[nextType()], 100, 104);
+		long sum = 0;
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long queryById() {
+		EventIterator it = store.query(ids[nextType()], 100, 104);
+		long sum = 0;
+		while (it.moveNext()) {
+			sum += it.current().timestamp();
+		}
+		return sum;
+	}
+}
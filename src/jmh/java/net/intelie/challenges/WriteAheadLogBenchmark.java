@@ -0,0 +1,96 @@
+package net.intelie.challenges;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Insert throughput of {@link ConcurrentEventStore} behind a
+ * {@link WriteAheadLog}, at each sync policy.
+ *
+ * <p>
+ * {@code none} runs without a log, as the baseline. {@code every-record} syncs
+ * each insert before it returns, sharing the sync only between concurrent
+ * writers; {@code every-256-records} and {@code every-10-ms} are group
+ * commits by number of records and by time. A new log file is created for
+ * each iteration in the temporary directory, which should be on the disk
+ * being evaluated ({@code -Djava.io.tmpdir}).
+ *
+ * @author Felipe Nogueira
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class WriteAheadLogBenchmark {
+
+	@Param({ "none", "every-record", "every-256-records", "every-10-ms" })
+	public String policy;
+
+	@Param({ "16" })
+	public int typeCount;
+
+	private String[] types;
+	private Path directory;
+	private WriteAheadLog log;
+	private ConcurrentEventStore store;
+
+	@Setup(Level.Iteration)
+	public void createStore() throws IOException {
+		types = BenchmarkData.types(typeCount);
+		directory = Files.createTempDirectory("wal-benchmark");
+		switch (policy) {
+		case "none":
+			log = null;
+			break;
+		case "every-record":
+			log = new WriteAheadLog(directory.resolve("log"), 1, 0);
+			break;
+		case "every-256-records":
+			log = new WriteAheadLog(directory.resolve("log"), 256, 0);
+			break;
+		case "every-10-ms":
+			log = new WriteAheadLog(directory.resolve("log"), 0, 10);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown policy: " + policy);
+		}
+		store = new ConcurrentEventStore(0, false, null, log);
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteLog() throws IOException {
+		if (log != null) {
+			log.close();
+			Files.deleteIfExists(directory.resolve("log"));
+		}
+		Files.delete(directory);
+	}
+
+	@Benchmark
+	public void insert() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		store.insert(new Event(types[random.nextInt(types.length)], random.nextLong(1L << 40)));
+	}
+}
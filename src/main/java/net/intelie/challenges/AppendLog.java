@@ -0,0 +1,464 @@
+package net.intelie.challenges;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * The timestamps of a single event type, for streams whose timestamps are
+ * mostly non-decreasing.
+ *
+ * <p>
+ * In-order timestamps are appended to a tail array and published by a volatile
+ * write of the tail size, so an append is a CAS, a store and a volatile write.
+ * Full tails are sealed into a directory of chunks that are never written again.
+ * Timestamps lower than the last one go to a small sorted side buffer, which
+ * is merged into the chunks when it fills up or when {@link #merge()} is
+ * called by a periodic job.
+ *
+ * <p>
+ * An append takes no lock: the writer reserves the next slot of the tail with a
+ * CAS on the reservation index of the state, which only succeeds once the
+ * previous slot is published, so the appends land in the order of their
+ * timestamps. Every other change (growing or sealing a tail, buffering an
+ * out-of-order timestamp, a batch, a merge, a removal or the retirement of the
+ * log) runs under the monitor of the log, and first closes the reservation of
+ * the current state, so no append lands in a tail being copied or replaced.
+ * The appends that find the reservation closed take the monitor as well.
+ * Readers take no lock at all: everything they need
+ * is reached from an immutable {@link State}, and every change other than an
+ * append (sealing a tail, buffering an out-of-order timestamp, a merge or a
+ * removal) publishes a new state. An iterator keeps the state it started with,
+ * so it walks a consistent image of the sealed chunks and of the side buffer,
+ * and still sees the appends made to its tail afterwards.
+ *
+ * <p>
+ * Equal timestamps are all kept. As only timestamps are stored, two equal
+ * ones can not be told apart, and removing either has the same effect.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class AppendLog {
+
+	/** number of timestamps of a sealed chunk **/
+	static final int CHUNK_CAPACITY = 1024;
+
+	/** number of out-of-order timestamps that triggers a merge **/
+	static final int SIDE_CAPACITY = 256;
+
+	private static final int INITIAL_TAIL_LENGTH = 16;
+
+	private static final long[] EMPTY = new long[0];
+
+	/** reservation index of a state replaced, or being changed, under the
+	 * monitor **/
+	private static final int CLOSED = -1;
+
+	private static final AtomicIntegerFieldUpdater<State> RESERVED = AtomicIntegerFieldUpdater
+			.newUpdater(State.class, "reserved");
+
+	private volatile State state = open(new State(new long[4][], 0, new long[INITIAL_TAIL_LENGTH], 0, EMPTY));
+
+	/** set when the log is detached from its store; guarded by this **/
+	private boolean retired;
+
+	/**
+	 * Appends the timestamp, or buffers it if it is lower than the last one.
+	 *
+	 * @param timestamp the timestamp to be inserted
+	 * @return {@code false} if the log was retired and nothing was inserted
+	 */
+	boolean insert(long timestamp) {
+		while (true) {
+			State current = state;
+			int size = current.tailSize;
+			if (size == current.tail.length || (size > 0 || current.sealedCount > 0) && timestamp < current.last()) {
+				break;
+			}
+			if (RESERVED.compareAndSet(current, size, size + 1)) {
+				current.tail[size] = timestamp;
+				// publishes the timestamp written above, and lets the next
+				// append reserve its slot
+				current.tailSize = size + 1;
+				return true;
+			}
+			if (current.reserved == CLOSED) {
+				break;
+			}
+			// another append is publishing its slot
+		}
+		return insertLocked(timestamp);
+	}
+
+	/**
+	 * Inserts a timestamp that can not be appended without a lock: it is
+	 * lower than the last one, the tail is full, or the state is being
+	 * replaced.
+	 */
+	private synchronized boolean insertLocked(long timestamp) {
+		if (retired) {
+			return false;
+		}
+		State current = claim();
+		try {
+			if (current.isEmpty() || timestamp >= current.last()) {
+				append(current, timestamp);
+			} else {
+				buffer(current, timestamp);
+			}
+		} finally {
+			open(state);
+		}
+		return true;
+	}
+
+	/**
+	 * Inserts sorted timestamps. The part of the run that is not lower than
+	 * the last timestamp is copied straight to the tail.
+	 *
+	 * @param timestamps the timestamps, in ascending order
+	 * @param length the number of timestamps to be inserted
+	 * @return {@code false} if the log was retired and nothing was inserted
+	 */
+	synchronized boolean insertAll(long[] timestamps, int length) {
+		if (retired) {
+			return false;
+		}
+		claim();
+		try {
+			int i = 0;
+			while (i < length && !state.isEmpty() && timestamps[i] < state.last()) {
+				buffer(state, timestamps[i++]);
+			}
+			while (i < length) {
+				State current = state;
+				int room = current.tail.length - current.tailSize;
+				if (room == 0) {
+					append(current, timestamps[i++]);
+					continue;
+				}
+				int count = Math.min(room, length - i);
+				System.arraycopy(timestamps, i, current.tail, current.tailSize, count);
+				current.tailSize += count;
+				i += count;
+			}
+		} finally {
+			open(state);
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the reservation of the current state, waiting for the append
+	 * that holds a slot, if any, to publish it. Called under the monitor,
+	 * before the state is changed or replaced; the states built meanwhile
+	 * are closed until {@link #open(State)} is called on the last one.
+	 *
+	 * @return the current state
+	 */
+	private State claim() {
+		State current = state;
+		while (current.reserved != CLOSED && !RESERVED.compareAndSet(current, current.tailSize, CLOSED)) {
+			// an append is publishing its slot
+		}
+		return current;
+	}
+
+	/**
+	 * Opens the reservation of a state to the appends, after its tail was
+	 * last changed under the monitor.
+	 *
+	 * @return the given state
+	 */
+	private static State open(State current) {
+		current.reserved = current.tailSize;
+		return current;
+	}
+
+	private void append(State current, long timestamp) {
+		int size = current.tailSize;
+		if (size < current.tail.length) {
+			current.tail[size] = timestamp;
+			// publishes the timestamp written above
+			current.tailSize = size + 1;
+			return;
+		}
+		if (size < CHUNK_CAPACITY) {
+			// the tail grows until it reaches the chunk capacity
+			long[] tail = Arrays.copyOf(current.tail, Math.min(size * 2, CHUNK_CAPACITY));
+			tail[size] = timestamp;
+			state = new State(current.sealed, current.sealedCount, tail, size + 1, current.side);
+			return;
+		}
+		long[][] sealed = current.sealed;
+		if (current.sealedCount == sealed.length) {
+			sealed = Arrays.copyOf(sealed, sealed.length * 2);
+		}
+		// states that share the directory never read past their own count
+		sealed[current.sealedCount] = current.tail;
+		long[] tail = new long[CHUNK_CAPACITY];
+		tail[0] = timestamp;
+		state = new State(sealed, current.sealedCount + 1, tail, 1, current.side);
+	}
+
+	private void buffer(State current, long timestamp) {
+		long[] side = current.side;
+		int offset = upperBound(side, side.length, timestamp);
+		long[] buffered = new long[side.length + 1];
+		System.arraycopy(side, 0, buffered, 0, offset);
+		buffered[offset] = timestamp;
+		System.arraycopy(side, offset, buffered, offset + 1, side.length - offset);
+		state = new State(current.sealed, current.sealedCount, current.tail, current.tailSize, buffered);
+		if (buffered.length >= SIDE_CAPACITY) {
+			mergeClaimed();
+		}
+	}
+
+	/**
+	 * Merges the side buffer into the chunks. Only the chunks from the first
+	 * one that overlaps the buffered timestamps onwards are rewritten, which is
+	 * cheap for the usual late events, close to the tail.
+	 */
+	synchronized void merge() {
+		if (retired) {
+			return;
+		}
+		claim();
+		try {
+			mergeClaimed();
+		} finally {
+			open(state);
+		}
+	}
+
+	private void mergeClaimed() {
+		State current = state;
+		long[] side = current.side;
+		if (side.length == 0) {
+			return;
+		}
+		int first = current.sealedCount;
+		while (first > 0 && current.sealed[first - 1][current.sealed[first - 1].length - 1] > side[0]) {
+			first--;
+		}
+
+		int count = current.tailSize + side.length;
+		for (int i = first; i < current.sealedCount; i++) {
+			count += current.sealed[i].length;
+		}
+		long[] merged = new long[count];
+		int m = 0;
+		int s = 0;
+		for (int i = first; i <= current.sealedCount; i++) {
+			long[] chunk = i < current.sealedCount ? current.sealed[i] : current.tail;
+			int length = i < current.sealedCount ? chunk.length : current.tailSize;
+			for (int j = 0; j < length; j++) {
+				while (s < side.length && side[s] < chunk[j]) {
+					merged[m++] = side[s++];
+				}
+				merged[m++] = chunk[j];
+			}
+		}
+		while (s < side.length) {
+			merged[m++] = side[s++];
+		}
+
+		int fullChunks = (count - 1) / CHUNK_CAPACITY;
+		long[][] sealed = new long[Math.max(4, Integer.highestOneBit(first + fullChunks) * 2)][];
+		System.arraycopy(current.sealed, 0, sealed, 0, first);
+		for (int i = 0; i < fullChunks; i++) {
+			sealed[first + i] = Arrays.copyOfRange(merged, i * CHUNK_CAPACITY, (i + 1) * CHUNK_CAPACITY);
+		}
+		int tailSize = count - fullChunks * CHUNK_CAPACITY;
+		long[] tail = new long[CHUNK_CAPACITY];
+		System.arraycopy(merged, fullChunks * CHUNK_CAPACITY, tail, 0, tailSize);
+		state = new State(sealed, first + fullChunks, tail, tailSize, EMPTY);
+	}
+
+	/**
+	 * Removes one occurrence of the timestamp.
+	 *
+	 * @param timestamp the timestamp to be removed
+	 * @return {@code true} if a timestamp was removed
+	 */
+	synchronized boolean remove(long timestamp) {
+		if (retired) {
+			return false;
+		}
+		State current = claim();
+		try {
+			return remove(current, timestamp);
+		} finally {
+			open(state);
+		}
+	}
+
+	private boolean remove(State current, long timestamp) {
+		long[] side = current.side;
+		int offset = lowerBound(side, side.length, timestamp);
+		if (offset < side.length && side[offset] == timestamp) {
+			long[] remaining = new long[side.length - 1];
+			System.arraycopy(side, 0, remaining, 0, offset);
+			System.arraycopy(side, offset + 1, remaining, offset, remaining.length - offset);
+			state = new State(current.sealed, current.sealedCount, current.tail, current.tailSize, remaining);
+			return true;
+		}
+
+		int chunk = current.chunkFor(timestamp);
+		if (chunk < current.sealedCount) {
+			long[] values = current.sealed[chunk];
+			offset = lowerBound(values, values.length, timestamp);
+			if (offset == values.length || values[offset] != timestamp) {
+				return false;
+			}
+			// sealed chunks are shared with readers, so the directory is copied
+			long[][] sealed = Arrays.copyOf(current.sealed, current.sealed.length);
+			int sealedCount = current.sealedCount;
+			if (values.length == 1) {
+				System.arraycopy(sealed, chunk + 1, sealed, chunk, sealedCount - chunk - 1);
+				sealed[--sealedCount] = null;
+			} else {
+				sealed[chunk] = without(values, values.length, offset, values.length - 1);
+			}
+			state = new State(sealed, sealedCount, current.tail, current.tailSize, side);
+			return true;
+		}
+
+		offset = lowerBound(current.tail, current.tailSize, timestamp);
+		if (offset == current.tailSize || current.tail[offset] != timestamp) {
+			return false;
+		}
+		long[] tail = without(current.tail, current.tailSize, offset, current.tail.length);
+		state = new State(current.sealed, current.sealedCount, tail, current.tailSize - 1, side);
+		return true;
+	}
+
+	/**
+	 * Marks the log as detached from its store: later inserts are refused,
+	 * so they can be redirected to the log that replaced it.
+	 */
+	synchronized void retire() {
+		retired = true;
+		// the reservation is left closed, so the appends take the monitor
+		// and find the log retired
+		claim();
+	}
+
+	/**
+	 * @return the current state, for readers
+	 */
+	State state() {
+		return state;
+	}
+
+	/**
+	 * @return the number of timestamps in the log
+	 */
+	long size() {
+		State current = state;
+		long size = (long) current.tailSize + current.side.length;
+		for (int i = 0; i < current.sealedCount; i++) {
+			size += current.sealed[i].length;
+		}
+		return size;
+	}
+
+	private static long[] without(long[] values, int size, int offset, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(values, 0, copy, 0, offset);
+		System.arraycopy(values, offset + 1, copy, offset, size - offset - 1);
+		return copy;
+	}
+
+	/** index of the first value equal or greater than the given one **/
+	static int lowerBound(long[] values, int size, long value) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** index of the first value greater than the given one **/
+	static int upperBound(long[] values, int size, long value) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] <= value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * An image of the log. Everything but the tail size and its reservation
+	 * is immutable once the state is published: sealed chunks are never
+	 * written, the side buffer is replaced rather than changed, and the tail
+	 * is only written past the published size.
+	 */
+	static final class State {
+		/** sealed chunks; slots past {@code sealedCount} belong to later states **/
+		final long[][] sealed;
+		final int sealedCount;
+		final long[] tail;
+		/** number of published timestamps of the tail **/
+		volatile int tailSize;
+		/** sorted out-of-order timestamps, not yet merged **/
+		final long[] side;
+		/** number of reserved timestamps of the tail, one past the published
+		 * ones while an append writes its slot, or {@link #CLOSED} **/
+		volatile int reserved = CLOSED;
+
+		State(long[][] sealed, int sealedCount, long[] tail, int tailSize, long[] side) {
+			this.sealed = sealed;
+			this.sealedCount = sealedCount;
+			this.tail = tail;
+			this.tailSize = tailSize;
+			this.side = side;
+		}
+
+		boolean isEmpty() {
+			return sealedCount == 0 && tailSize == 0;
+		}
+
+		/** last timestamp of the chunks, the side buffer is always lower **/
+		long last() {
+			int size = tailSize;
+			if (size > 0) {
+				return tail[size - 1];
+			}
+			long[] chunk = sealed[sealedCount - 1];
+			return chunk[chunk.length - 1];
+		}
+
+		/**
+		 * Returns the index of the first chunk that may hold a timestamp equal
+		 * or greater than the given one: a sealed chunk, or {@code sealedCount}
+		 * for the tail.
+		 */
+		int chunkFor(long timestamp) {
+			int low = 0;
+			int high = sealedCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				long[] chunk = sealed[mid];
+				if (chunk[chunk.length - 1] < timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package net.intelie.challenges;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A concurrent implementation of the EventStore interface optimized for
+ * streams whose timestamps are non-decreasing per type, such as telemetry.
+ *
+ * <p>
+ * The events of each type are kept in an {@link AppendLog}. An in-order event
+ * is appended to a tail array and published with a single volatile write, so
+ * ingestion is close to a memory copy and scans walk contiguous
+ * {@code long[]} chunks. Late events are kept in a small sorted side buffer
+ * and merged into the chunks in bulk. A store created with a merge interval
+ * merges them in the background, on a daemon thread of its own, as
+ * {@link HistoryMigrator} moves the history of a {@link ConcurrentEventStore};
+ * without one, {@link #mergeOutOfOrder()} is left to the caller. Either way,
+ * a writer that fills up the buffer before the next merge merges it itself.
+ *
+ * <p>
+ * Queries binary search the chunks and the side buffer, in O(log n), and
+ * never lock: writers publish immutable states of the log, and the iterator
+ * walks the state it was created with. An in-order append takes no lock
+ * either: it reserves its slot of the tail with a CAS on the index of the
+ * log, so the writers of a same type only wait for each other for the store
+ * of a timestamp. Late events, batches and removals take the monitor of the
+ * log; writers of different types do not contend.
+ *
+ * <p>
+ * Like {@link ColumnarEventStore}, only the type and the timestamp of the
+ * events are stored, at about 8 bytes per event, so events with attributes
+ * are rejected, and events with the same type and timestamp are all kept.
+ * The cost of this layout is paid by the operations this store does not
+ * favor: a merge rewrites the chunks from the oldest buffered timestamp
+ * onwards, and a removal copies the chunk it touches and the directory of
+ * chunks.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public class AppendOnlyEventStore implements EventStore, AutoCloseable {
+
+	/** Logs of timestamps indexed by the type of their events **/
+	private final ConcurrentHashMap<String, AppendLog> logs = new ConcurrentHashMap<>();
+
+	/** runs the background merges, null if there are none **/
+	private final ScheduledExecutorService merger;
+
+	/** failure of the last background merge, null if it succeeded **/
+	private volatile RuntimeException mergeFailure;
+
+	/**
+	 * Creates a store whose out-of-order events are merged when their buffer
+	 * fills up or by {@link #mergeOutOfOrder()}.
+	 */
+	public AppendOnlyEventStore() {
+		this(0);
+	}
+
+	/**
+	 * Creates a store whose out-of-order events are also merged in the
+	 * background, so late events do not wait for their buffer to fill up.
+	 *
+	 * @param mergeIntervalMillis interval between background merges, or zero
+	 * for none
+	 * @throws IllegalArgumentException if the interval is negative
+	 */
+	public AppendOnlyEventStore(long mergeIntervalMillis) {
+		if (mergeIntervalMillis < 0) {
+			throw new IllegalArgumentException("invalid merge interval: " + mergeIntervalMillis);
+		}
+		if (mergeIntervalMillis > 0) {
+			merger = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "out-of-order-merger");
+				thread.setDaemon(true);
+				return thread;
+			});
+			merger.scheduleWithFixedDelay(this::backgroundMerge, mergeIntervalMillis, mergeIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		} else {
+			merger = null;
+		}
+	}
+
+	/**
+	 * Inserts the event, appending it in constant time if its timestamp is not
+	 * lower than the last one of its type, or buffering it otherwise.
+	 *
+	 * @param event the event to be inserted
+	 * @throws NullPointerException if the specified event is null
+	 * @throws IllegalArgumentException if the event has attributes, which
+	 * this store does not keep
+	 */
+
+	@Override
+	public void insert(Event event) {
+		checkNotNull(event);
+		checkNoAttributes(event);
+		String type = event.type();
+		while (true) {
+			AppendLog log = logs.computeIfAbsent(type, key -> new AppendLog());
+			if (log.insert(event.timestamp())) {
+				return;
+			}
+			// the log was detached by removeAll, a new one must be used
+			logs.remove(type, log);
+		}
+	}
+
+	/**
+	 * Inserts a batch of events. See {@link #insertAll(Event[])}.
+	 *
+	 * @param events the events to be inserted
+	 * @throws NullPointerException if the batch or any of its events is null
+	 * @throws IllegalArgumentException if any of the events has attributes
+	 */
+
+	@Override
+	public void insertAll(Collection<Event> events) {
+		checkNotNull(events);
+		insertAll(events.toArray(new Event[events.size()]));
+	}
+
+	/**
+	 * Inserts a batch of events. The batch is grouped by type and sorted, and
+	 * each group is copied to the tail of its log with a single lock
+	 * acquisition.
+	 *
+	 * @param events the events to be inserted
+	 * @throws NullPointerException if the batch or any of its events is null
+	 * @throws IllegalArgumentException if any of the events has attributes,
+	 * in which case none is inserted
+	 */
+
+	@Override
+	public void insertAll(Event[] events) {
+		checkNotNull(events);
+		for (Event event : events) {
+			checkNotNull(event);
+			checkNoAttributes(event);
+		}
+		for (Map.Entry<String, List<Event>> group : EventBatch.groupByType(events).entrySet()) {
+			String type = group.getKey();
+			List<Event> run = group.getValue();
+			long[] timestamps = new long[run.size()];
+			for (int i = 0; i < timestamps.length; i++) {
+				timestamps[i] = run.get(i).timestamp();
+			}
+			while (true) {
+				AppendLog log = logs.computeIfAbsent(type, key -> new AppendLog());
+				if (log.insertAll(timestamps, timestamps.length)) {
+					break;
+				}
+				logs.remove(type, log);
+			}
+		}
+	}
+
+	/**
+	 * Removes all events of a given type in constant time, by detaching
+	 * its log.
+	 *
+	 * @param type the type of events to be removed.
+	 * @throws NullPointerException if the given type is null
+	 */
+
+	@Override
+	public void removeAll(String type) {
+		checkNotNull(type);
+		AppendLog log = logs.remove(type);
+		if (log != null) {
+			log.retire();
+		}
+	}
+
+	/**
+	 * Returns an iterator for the events of a given type and whose timestamps
+	 * range from {@code startTime}, inclusive, to {@code endTime}, exclusive.
+	 * Locating the start of the range costs O(log n).
+	 *
+	 * @param type      The type we are querying for.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return An iterator where all its events have same type as {@code type} and
+	 *         timestamp between {@code startTime} (inclusive) and {@code endTime}
+	 *         (exclusive).
+	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or
+	 * equal to {@code endTime}, or if there is no events with {@code type}
+	 * queried for.
+	 */
+
+	@Override
+	public EventIterator query(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		AppendLog log = logs.get(type);
+		if (log == null) {
+			throw new IllegalArgumentException("no events of given type");
+		}
+		return new AppendOnlyEventStoreIterator(log, type, startTime, endTime);
+	}
+
+	/**
+	 * Merges the buffered out-of-order events of every type into their
+	 * chunks. Called by the background merges, if the store has them, or by
+	 * a periodic job of the caller, so late events do not wait for the buffer
+	 * to fill up.
+	 */
+
+	public void mergeOutOfOrder() {
+		for (AppendLog log : logs.values()) {
+			log.merge();
+		}
+	}
+
+	private void backgroundMerge() {
+		try {
+			mergeOutOfOrder();
+			mergeFailure = null;
+		} catch (RuntimeException e) {
+			// a failed merge must not cancel the next ones
+			mergeFailure = e;
+		}
+	}
+
+	/**
+	 * @return the failure of the last background merge, or null if it
+	 * succeeded
+	 */
+
+	public RuntimeException getMergeFailure() {
+		return mergeFailure;
+	}
+
+	/**
+	 * Stops the background merges, waiting for the current one to finish.
+	 * The store can still be used, merging as a store created without them.
+	 */
+
+	@Override
+	public void close() {
+		if (merger != null) {
+			merger.shutdown();
+			try {
+				merger.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of events of the given type.
+	 *
+	 * @param type the type of the events
+	 * @return the number of events, zero if there is none
+	 */
+
+	public long size(String type) {
+		checkNotNull(type);
+		AppendLog log = logs.get(type);
+		return log == null ? 0 : log.size();
+	}
+
+	/**
+	 * @return the number of out-of-order events of the given type not merged
+	 * into the chunks yet
+	 */
+
+	int buffered(String type) {
+		AppendLog log = logs.get(type);
+		return log == null ? 0 : log.state().side.length;
+	}
+
+	/**
+	 * Throws NullPointerException if argument is null.
+	 *
+	 * @param object the argument
+	 */
+
+	private static void checkNotNull(Object object) {
+		if (object == null)
+			throw new NullPointerException();
+	}
+
+	/**
+	 * Throws IllegalArgumentException if the event has attributes, as only
+	 * the timestamps are stored.
+	 *
+	 * @param event the event to be inserted
+	 */
+
+	private static void checkNoAttributes(Event event) {
+		if (event.encodedAttributes() != null) {
+			throw new IllegalArgumentException("attributes are not stored: " + event.type() + " : "
+					+ event.timestamp());
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package net.intelie.challenges;
+
+/**
+ * Iterator over a time range of an {@link AppendLog}.
+ *
+ * <p>
+ * The iterator keeps the state of the log it was created with and walks its
+ * chunks and its side buffer at the same time, returning the lower timestamp
+ * of the two at each step. It takes no lock. Appends made to the tail of that
+ * state after the iterator was created are also seen; any other change is
+ * not, so the iterator never fails nor returns an event twice because of
+ * concurrent changes.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public class AppendOnlyEventStoreIterator implements EventIterator {
+
+	private final String type;
+	private final long endTime;
+
+	private AppendLog log;
+	private AppendLog.State state;
+
+	/** position in the chunks; {@code chunk == sealedCount} is the tail **/
+	private int chunk;
+	private int offset;
+
+	/** position in the side buffer **/
+	private int sideOffset;
+
+	private boolean hasCurrent;
+	private boolean currentRemoved;
+	private long currentTimestamp;
+
+	AppendOnlyEventStoreIterator(AppendLog log, String type, long startTime, long endTime) {
+		this.log = log;
+		this.state = log.state();
+		this.type = type;
+		this.endTime = endTime;
+
+		chunk = state.chunkFor(startTime);
+		if (chunk < state.sealedCount) {
+			long[] values = state.sealed[chunk];
+			offset = AppendLog.lowerBound(values, values.length, startTime);
+		} else {
+			offset = AppendLog.lowerBound(state.tail, state.tailSize, startTime);
+		}
+		sideOffset = AppendLog.lowerBound(state.side, state.side.length, startTime);
+	}
+
+	/**
+	 * Move the iterator to the next event, if there is one.
+	 *
+	 * @return {@code true} if the iterator was moved to the next event,
+	 * {@code false} otherwise
+	 */
+
+	@Override
+	public boolean moveNext() {
+		if (state == null) {
+			return false;
+		}
+		boolean hasMain = seekMain();
+		boolean hasSide = sideOffset < state.side.length;
+
+		long timestamp;
+		if (hasMain && (!hasSide || mainValue() <= state.side[sideOffset])) {
+			timestamp = mainValue();
+			if (timestamp < endTime) {
+				offset++;
+			}
+		} else if (hasSide) {
+			timestamp = state.side[sideOffset];
+			if (timestamp < endTime) {
+				sideOffset++;
+			}
+		} else {
+			hasCurrent = false;
+			return false;
+		}
+
+		if (timestamp >= endTime) {
+			hasCurrent = false;
+			return false;
+		}
+		currentTimestamp = timestamp;
+		currentRemoved = false;
+		hasCurrent = true;
+		return true;
+	}
+
+	/**
+	 * Moves past exhausted sealed chunks.
+	 *
+	 * @return whether there is a timestamp at the current main position
+	 */
+	private boolean seekMain() {
+		while (chunk < state.sealedCount && offset == state.sealed[chunk].length) {
+			chunk++;
+			offset = 0;
+		}
+		if (chunk < state.sealedCount) {
+			return true;
+		}
+		return offset < state.tailSize;
+	}
+
+	private long mainValue() {
+		return chunk < state.sealedCount ? state.sealed[chunk][offset] : state.tail[offset];
+	}
+
+	/**
+	 * Returns the current event of the iteration. A new {@link Event} is
+	 * created on each call, as the store only keeps the timestamps.
+	 *
+	 * @return the current event
+	 * @throws IllegalStateException if {@link #moveNext} was never called
+	 *                               or its last result was {@code false}.
+	 */
+
+	@Override
+	public Event current() {
+		if (!hasCurrent) {
+			throw new IllegalStateException();
+		}
+		return new Event(type, currentTimestamp);
+	}
+
+	/**
+	 * Removes the current event of the iteration from the store.
+	 *
+	 * @throws IllegalStateException if {@link #moveNext} was never called,
+	 *                               its last result was {@code false} or the
+	 *                               current event was already removed.
+	 */
+
+	@Override
+	public void remove() {
+		if (!hasCurrent || currentRemoved) {
+			throw new IllegalStateException();
+		}
+		log.remove(currentTimestamp);
+		currentRemoved = true;
+	}
+
+	@Override
+	public void close() throws Exception {
+		log = null;
+		state = null;
+		hasCurrent = false;
+	}
+}
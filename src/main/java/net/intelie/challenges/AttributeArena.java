@@ -0,0 +1,79 @@
+package net.intelie.challenges;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Off-heap storage of the {@link Attributes} of the events of a type, in
+ * direct byte buffers allocated as slabs.
+ *
+ * <p>
+ * A record is copied to the current slab at an offset reserved with an atomic
+ * add, so concurrent inserts copy their records in parallel and only take a
+ * lock when the slab is full and a new one is allocated. The slabs start small
+ * and double up to {@link #MAX_SLAB_SIZE}, so a type with few events does not
+ * hold a large buffer; a record larger than that gets a slab of its own.
+ *
+ * <p>
+ * The arena only references its current slab. A stored event references its
+ * record through a view holding the slab and the offset, so a slab is
+ * reclaimed, with its direct memory, once the events copied to it were all
+ * removed and are no longer referenced by the application: there is no
+ * bookkeeping on removal, and a view read after its event was removed still
+ * reads valid memory. The space of a removed record is not reused, so a slab
+ * with a single event left is kept whole.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class AttributeArena {
+
+	static final int MIN_SLAB_SIZE = 1 << 16;
+	static final int MAX_SLAB_SIZE = 1 << 20;
+
+	private volatile Slab current = new Slab(MIN_SLAB_SIZE);
+
+	/**
+	 * Copies the attributes to the arena.
+	 *
+	 * @param attributes the attributes to be copied
+	 * @return a view of the copy
+	 */
+	Attributes copy(Attributes attributes) {
+		int length = attributes.encodedSize();
+		while (true) {
+			Slab slab = current;
+			int offset = slab.reserve(length);
+			if (offset >= 0) {
+				ByteBuffer target = slab.buffer.duplicate();
+				target.position(offset);
+				attributes.copyTo(target);
+				return new Attributes(slab.buffer, offset);
+			}
+			synchronized (this) {
+				if (current == slab) {
+					current = new Slab(Math.max(length, Math.min(slab.buffer.capacity() * 2, MAX_SLAB_SIZE)));
+				}
+			}
+		}
+	}
+
+	private static final class Slab {
+
+		final ByteBuffer buffer;
+		final AtomicInteger used = new AtomicInteger();
+
+		Slab(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		/** @return the offset of the reserved bytes, or -1 if they do not fit **/
+		int reserve(int length) {
+			if (used.get() > buffer.capacity() - length) {
+				return -1;
+			}
+			int offset = used.getAndAdd(length);
+			return offset <= buffer.capacity() - length ? offset : -1;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package net.intelie.challenges;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * A filter of events by the values of their attributes: an event passes if
+ * each of the named attributes equals the given value, such as
+ * {@code new AttributeFilter("host", "h1").and("status", 500)}.
+ *
+ * <p>
+ * As a {@link Predicate}, it can be given to any
+ * {@link EventStore#query(String, long, long, Predicate)}; a
+ * {@link ConcurrentEventStore} answers it through the indexes of the
+ * attributes, when the type has any (see
+ * {@link ConcurrentEventStore#createIndex}). Numbers are compared as the
+ * attributes keep them: integers as {@code Long} and floating point numbers as
+ * {@code Double}.
+ *
+ * <p>
+ * Filters are immutable.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public final class AttributeFilter implements Predicate<Event> {
+
+	private final String[] names;
+	private final Object[] values;
+
+	/**
+	 * Creates a filter of the events whose attribute equals the given value.
+	 *
+	 * @param name the name of the attribute
+	 * @param value the value, a number or a string
+	 * @throws IllegalArgumentException if the name is null or the value is not
+	 * a number or a string
+	 */
+	public AttributeFilter(String name, Object value) {
+		this(new String[] { name }, new Object[] { normalize(name, value) });
+	}
+
+	private AttributeFilter(String[] names, Object[] values) {
+		this.names = names;
+		this.values = values;
+	}
+
+	/**
+	 * Returns a filter of the events that also have the given attribute value.
+	 *
+	 * @param name the name of the attribute
+	 * @param value the value, a number or a string
+	 * @return the new filter
+	 * @throws IllegalArgumentException if the name is null or the value is not
+	 * a number or a string
+	 */
+	public AttributeFilter and(String name, Object value) {
+		String[] andNames = Arrays.copyOf(names, names.length + 1);
+		Object[] andValues = Arrays.copyOf(values, values.length + 1);
+		andNames[names.length] = name;
+		andValues[values.length] = normalize(name, value);
+		return new AttributeFilter(andNames, andValues);
+	}
+
+	private static Object normalize(String name, Object value) {
+		if (name == null) {
+			throw new IllegalArgumentException("null attribute name");
+		}
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Float) {
+			return ((Float) value).doubleValue();
+		}
+		if (value instanceof Long || value instanceof Double || value instanceof String) {
+			return value;
+		}
+		throw new IllegalArgumentException("invalid attribute value: " + name + " : " + value);
+	}
+
+	@Override
+	public boolean test(Event event) {
+		Attributes attributes = event.attributes();
+		for (int i = 0; i < names.length; i++) {
+			if (!values[i].equals(attributes.get(names[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of attributes compared
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * @return the name of the attribute at the given position
+	 */
+	String name(int index) {
+		return names[index];
+	}
+
+	/**
+	 * @return the value of the attribute at the given position
+	 */
+	Object value(int index) {
+		return values[index];
+	}
+}
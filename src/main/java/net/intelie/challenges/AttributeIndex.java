@@ -0,0 +1,126 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A secondary index of an attribute of the events of a type: for each value
+ * of the attribute, a bitmap of the timestamps of the events holding it.
+ *
+ * <p>
+ * The timestamps are split in chunks of {@link #CHUNK_SIZE} consecutive
+ * timestamps, and a value only has a bitmap for the chunks where it appears,
+ * kept in a skip list by chunk. A chunk is {@code CHUNK_SIZE / 64} words set
+ * with atomic ORs, so indexing an event is lock-free. A range query on a value
+ * walks the chunks of the value in the range, and a query on several indexed
+ * values ANDs their bitmaps word by word, before any event is read.
+ *
+ * <p>
+ * The index is a superset: a bit only says that an event with that value was
+ * inserted at that timestamp. Removing or replacing an event does not clear
+ * its bit, so the events found through the index are checked against the
+ * filter. Removing a range of timestamps drops the chunks inside it, so a
+ * retention policy also bounds the index.
+ *
+ * <p>
+ * Dense timestamps suit the index best: a chunk costs about two hundred
+ * bytes, whatever the number of its events.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class AttributeIndex {
+
+	static final int CHUNK_BITS = 10;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int WORDS = CHUNK_SIZE / 64;
+
+	private final String attribute;
+
+	/** chunks of the timestamps indexed by value, then by chunk **/
+	private final ConcurrentHashMap<Object, ConcurrentSkipListMap<Long, AtomicLongArray>> values =
+			new ConcurrentHashMap<>();
+
+	/**
+	 * @param attribute the name of the indexed attribute
+	 */
+	AttributeIndex(String attribute) {
+		this.attribute = attribute;
+	}
+
+	/**
+	 * @return the name of the indexed attribute
+	 */
+	String attribute() {
+		return attribute;
+	}
+
+	/**
+	 * Indexes the event, if it has the attribute.
+	 */
+	void add(Event event) {
+		Object value = event.attributes().get(attribute);
+		if (value == null) {
+			return;
+		}
+		ConcurrentSkipListMap<Long, AtomicLongArray> chunks = values.get(value);
+		if (chunks == null) {
+			chunks = values.computeIfAbsent(value, key -> new ConcurrentSkipListMap<>());
+		}
+		long timestamp = event.timestamp();
+		Long key = chunk(timestamp);
+		AtomicLongArray chunk = chunks.get(key);
+		if (chunk == null) {
+			chunk = chunks.computeIfAbsent(key, k -> new AtomicLongArray(WORDS));
+		}
+		int bit = (int) (timestamp & (CHUNK_SIZE - 1));
+		long mask = 1L << bit;
+		int word = bit >>> 6;
+		if ((chunk.get(word) & mask) == 0) {
+			chunk.accumulateAndGet(word, mask, (current, added) -> current | added);
+		}
+	}
+
+	/**
+	 * Returns the chunks of the given value overlapping the given range.
+	 *
+	 * @return the chunks by their number, empty if the value is not indexed
+	 */
+	ConcurrentNavigableMap<Long, AtomicLongArray> chunks(Object value, long startTime, long endTime) {
+		ConcurrentSkipListMap<Long, AtomicLongArray> chunks = values.get(value);
+		if (chunks == null) {
+			return new ConcurrentSkipListMap<>();
+		}
+		return chunks.subMap(chunk(startTime), true, chunk(endTime - 1), true);
+	}
+
+	/**
+	 * Drops the chunks of every value that are inside the given range.
+	 */
+	void removeRange(long startTime, long endTime) {
+		long first = chunk(startTime) + (chunkStart(chunk(startTime)) == startTime ? 0 : 1);
+		long last = chunk(endTime) - 1;
+		if (first > last) {
+			return;
+		}
+		for (ConcurrentSkipListMap<Long, AtomicLongArray> chunks : values.values()) {
+			chunks.subMap(first, true, last, true).clear();
+		}
+	}
+
+	/**
+	 * @return the number of the chunk of the given timestamp
+	 */
+	static long chunk(long timestamp) {
+		return timestamp >> CHUNK_BITS;
+	}
+
+	/**
+	 * @return the lowest timestamp of the given chunk
+	 */
+	static long chunkStart(long chunk) {
+		return chunk << CHUNK_BITS;
+	}
+}
@@ -0,0 +1,359 @@
+package net.intelie.challenges;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The attributes of an {@link Event}: a few named numbers and short strings,
+ * kept encoded in a byte buffer and decoded as they are read.
+ *
+ * <p>
+ * The encoding is the size of the record in 4 bytes and the number of
+ * attributes in 2, followed by the attributes: the length of the UTF-8 name in
+ * a byte, the name, a tag byte and the value, 8 bytes for a {@code long} or a
+ * {@code double}, or the length of the UTF-8 string in 2 bytes followed by the
+ * string. The attributes of an event created by the application are encoded
+ * in a heap array; a {@link ConcurrentEventStore} copies the record to an
+ * off-heap {@link AttributeArena} as it is inserted, and the view returned by
+ * its queries reads it from there.
+ *
+ * <p>
+ * A view never changes the state of its buffer, so it can be read by many
+ * threads. Looking up an attribute walks the record, which is meant to be
+ * small; a name made of ASCII characters is compared against the encoded
+ * bytes, without decoding them.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public final class Attributes {
+
+	/** attributes of the events created without any **/
+	public static final Attributes EMPTY = new Attributes(encode(Collections.emptyMap()), 0);
+
+	private static final byte LONG = 1;
+	private static final byte DOUBLE = 2;
+	private static final byte STRING = 3;
+
+	private static final int HEADER_SIZE = 6;
+	private static final int MAX_NAME_LENGTH = 0xFF;
+	private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+	private final ByteBuffer buffer;
+	private final int offset;
+
+	/**
+	 * @param buffer the buffer that holds the record
+	 * @param offset the position of the record in the buffer
+	 */
+	Attributes(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+	}
+
+	/**
+	 * Encodes the given attributes in a new heap buffer.
+	 *
+	 * @param attributes the values by name: {@code Long}, {@code Integer},
+	 * {@code Short} or {@code Byte} values are kept as {@code long},
+	 * {@code Double} or {@code Float} values as {@code double}, and
+	 * {@code String} values as strings
+	 * @return the buffer, holding the record at position zero
+	 * @throws IllegalArgumentException if a name or a value is null, a name is
+	 * longer than 255 bytes, a string is longer than 65535 bytes, a value is of
+	 * another class, or there are more than 65535 attributes
+	 */
+	static ByteBuffer encode(Map<String, ?> attributes) {
+		if (attributes.size() > MAX_STRING_LENGTH) {
+			throw new IllegalArgumentException("too many attributes: " + attributes.size());
+		}
+		int size = HEADER_SIZE;
+		byte[][] names = new byte[attributes.size()][];
+		byte[][] strings = new byte[attributes.size()][];
+		int index = 0;
+		for (Map.Entry<String, ?> attribute : attributes.entrySet()) {
+			if (attribute.getKey() == null) {
+				throw new IllegalArgumentException("null attribute name");
+			}
+			names[index] = attribute.getKey().getBytes(StandardCharsets.UTF_8);
+			if (names[index].length > MAX_NAME_LENGTH) {
+				throw new IllegalArgumentException("attribute name too long: " + attribute.getKey());
+			}
+			size += 1 + names[index].length + 1;
+			Object value = attribute.getValue();
+			if (value instanceof String) {
+				strings[index] = ((String) value).getBytes(StandardCharsets.UTF_8);
+				if (strings[index].length > MAX_STRING_LENGTH) {
+					throw new IllegalArgumentException("attribute value too long: " + attribute.getKey());
+				}
+				size += 2 + strings[index].length;
+			} else if (isLong(value) || isDouble(value)) {
+				size += 8;
+			} else {
+				throw new IllegalArgumentException("invalid attribute value: " + attribute.getKey() + " : " + value);
+			}
+			index++;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(size);
+		buffer.putShort((short) attributes.size());
+		index = 0;
+		for (Object value : attributes.values()) {
+			buffer.put((byte) names[index].length);
+			buffer.put(names[index]);
+			if (strings[index] != null) {
+				buffer.put(STRING);
+				buffer.putShort((short) strings[index].length);
+				buffer.put(strings[index]);
+			} else if (isLong(value)) {
+				buffer.put(LONG);
+				buffer.putLong(((Number) value).longValue());
+			} else {
+				buffer.put(DOUBLE);
+				buffer.putDouble(((Number) value).doubleValue());
+			}
+			index++;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static boolean isLong(Object value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+
+	private static boolean isDouble(Object value) {
+		return value instanceof Double || value instanceof Float;
+	}
+
+	/**
+	 * @return the number of bytes of the record
+	 */
+	int encodedSize() {
+		return buffer.getInt(offset);
+	}
+
+	/**
+	 * Copies the record to the given buffer, at its position, which is
+	 * advanced past it.
+	 */
+	void copyTo(ByteBuffer target) {
+		ByteBuffer source = buffer.duplicate();
+		source.limit(offset + encodedSize());
+		source.position(offset);
+		target.put(source);
+	}
+
+	/**
+	 * Reads a record written by {@link #copyTo} into a new heap array, from
+	 * the position of the given buffer, which is advanced past it.
+	 *
+	 * @throws IllegalStateException if the buffer does not hold a whole record
+	 */
+	static Attributes read(ByteBuffer source) {
+		int size = source.getInt(source.position());
+		if (size < HEADER_SIZE || size > source.remaining()) {
+			throw new IllegalStateException("invalid attributes record: " + size);
+		}
+		byte[] record = new byte[size];
+		source.get(record);
+		return new Attributes(ByteBuffer.wrap(record), 0);
+	}
+
+	/**
+	 * @return whether the given view holds the same record, byte by byte,
+	 * wherever it is kept
+	 */
+	boolean sameRecord(Attributes other) {
+		int size = encodedSize();
+		if (other.encodedSize() != size) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (buffer.get(offset + i) != other.buffer.get(other.offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the record is off the heap. Created only to help the
+	 * execution of unit tests.
+	 */
+	boolean isDirect() {
+		return buffer.isDirect();
+	}
+
+	/**
+	 * @return the number of attributes
+	 */
+	public int size() {
+		return buffer.getShort(offset + 4) & MAX_STRING_LENGTH;
+	}
+
+	/**
+	 * @param index the position of the attribute, in the order they were given
+	 * @return the name of the attribute
+	 * @throws IndexOutOfBoundsException if there is no such attribute
+	 */
+	public String name(int index) {
+		int position = position(index);
+		return decode(position + 1, buffer.get(position) & MAX_NAME_LENGTH);
+	}
+
+	/**
+	 * @param index the position of the attribute, in the order they were given
+	 * @return the value of the attribute, a {@code Long}, a {@code Double} or a
+	 * {@code String}
+	 * @throws IndexOutOfBoundsException if there is no such attribute
+	 */
+	public Object value(int index) {
+		return valueAt(tag(position(index)));
+	}
+
+	/**
+	 * @param name the name of the attribute
+	 * @return the value of the attribute, a {@code Long}, a {@code Double} or a
+	 * {@code String}, or null if there is no such attribute
+	 */
+	public Object get(String name) {
+		int tag = find(name);
+		return tag < 0 ? null : valueAt(tag);
+	}
+
+	/**
+	 * Reads a numeric attribute without boxing it.
+	 *
+	 * @param name the name of the attribute
+	 * @param defaultValue the value returned if there is no such attribute
+	 * @return the value of the attribute, truncated if it is a {@code double}
+	 * @throws IllegalStateException if the attribute is a string
+	 */
+	public long getLong(String name, long defaultValue) {
+		int tag = find(name);
+		if (tag < 0) {
+			return defaultValue;
+		}
+		switch (buffer.get(tag)) {
+		case LONG:
+			return buffer.getLong(tag + 1);
+		case DOUBLE:
+			return (long) buffer.getDouble(tag + 1);
+		default:
+			throw new IllegalStateException("not a numeric attribute: " + name);
+		}
+	}
+
+	/**
+	 * Reads a numeric attribute without boxing it.
+	 *
+	 * @param name the name of the attribute
+	 * @param defaultValue the value returned if there is no such attribute
+	 * @return the value of the attribute
+	 * @throws IllegalStateException if the attribute is a string
+	 */
+	public double getDouble(String name, double defaultValue) {
+		int tag = find(name);
+		if (tag < 0) {
+			return defaultValue;
+		}
+		switch (buffer.get(tag)) {
+		case LONG:
+			return buffer.getLong(tag + 1);
+		case DOUBLE:
+			return buffer.getDouble(tag + 1);
+		default:
+			throw new IllegalStateException("not a numeric attribute: " + name);
+		}
+	}
+
+	/**
+	 * @param name the name of the attribute
+	 * @return the value of the attribute as a string, or null if there is no
+	 * such attribute
+	 */
+	public String getString(String name) {
+		Object value = get(name);
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * @return the position of the name length byte of the attribute
+	 */
+	private int position(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("attribute " + index + " of " + size());
+		}
+		int position = offset + HEADER_SIZE;
+		for (int i = 0; i < index; i++) {
+			position = next(tag(position));
+		}
+		return position;
+	}
+
+	/** @return the position of the tag byte of the attribute at the given position **/
+	private int tag(int position) {
+		return position + 1 + (buffer.get(position) & MAX_NAME_LENGTH);
+	}
+
+	/** @return the position following the value whose tag is at the given position **/
+	private int next(int tag) {
+		return buffer.get(tag) == STRING ? tag + 3 + (buffer.getShort(tag + 1) & MAX_STRING_LENGTH) : tag + 9;
+	}
+
+	/** @return the position of the tag byte of the named attribute, or -1 **/
+	private int find(String name) {
+		int position = offset + HEADER_SIZE;
+		for (int i = size(); i > 0; i--) {
+			int tag = tag(position);
+			if (matches(position + 1, tag - position - 1, name)) {
+				return tag;
+			}
+			position = next(tag);
+		}
+		return -1;
+	}
+
+	private boolean matches(int position, int length, String name) {
+		if (length < name.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (i == name.length()) {
+				return false;
+			}
+			char c = name.charAt(i);
+			if (c >= 0x80) {
+				//not ASCII, compared decoded
+				return decode(position, length).equals(name);
+			}
+			if (buffer.get(position + i) != c) {
+				return false;
+			}
+		}
+		return length == name.length();
+	}
+
+	private Object valueAt(int tag) {
+		switch (buffer.get(tag)) {
+		case LONG:
+			return buffer.getLong(tag + 1);
+		case DOUBLE:
+			return buffer.getDouble(tag + 1);
+		default:
+			return decode(tag + 3, buffer.getShort(tag + 1) & MAX_STRING_LENGTH);
+		}
+	}
+
+	private String decode(int position, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(position + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,297 @@
+package net.intelie.challenges;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A memory-efficient, concurrent implementation of the EventStore interface.
+ *
+ * <p>
+ * The events of each type are kept in a {@link TimestampColumn}: sorted
+ * primitive {@code long[]} chunks of timestamps. The type is stored once per
+ * column rather than once per event, so an event costs about 8 bytes, against
+ * the boxed key, skip list node, index nodes and {@link Event} object (over
+ * 100 bytes) of {@link ConcurrentEventStore}. The columns are stored in a
+ * {@link ConcurrentHashMap} using the event's type as the key.
+ *
+ * <p>
+ * Only the type and the timestamp of an event are stored, and the
+ * {@link Event} objects are created again, lazily, by the iterator. An event
+ * with attributes is rejected rather than stored without them. Unlike
+ * {@link ConcurrentEventStore}, events with the same type and timestamp are
+ * all kept.
+ *
+ * <p>
+ * Insertion of in-order timestamps appends to the tail chunk of the column.
+ * Out-of-order insertion, removal and the start of a query binary search the
+ * chunks, costing O(log n) plus a shift inside a single chunk. The trade-off
+ * against the skip list is that the writers of a same type are serialized by
+ * the column lock; writers of different types do not contend.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public class ColumnarEventStore implements EventStore {
+
+	/** Columns of timestamps indexed by the type of their events **/
+	private final ConcurrentHashMap<String, TimestampColumn> columns = new ConcurrentHashMap<>();
+
+	/**
+	 * Inserts the event, appending it in constant time if its timestamp is
+	 * not lower than the last one of its type, or in O(log n) otherwise.
+	 *
+	 * @param event the event to be inserted
+	 * @throws NullPointerException if the specified event is null
+	 * @throws IllegalArgumentException if the event has attributes, which
+	 * this store does not keep
+	 */
+
+	@Override
+	public void insert(Event event) {
+		checkNotNull(event);
+		checkNoAttributes(event);
+		String type = event.type();
+		while (true) {
+			TimestampColumn column = columns.computeIfAbsent(type, key -> new TimestampColumn());
+			if (column.insert(event.timestamp())) {
+				return;
+			}
+			// the column was detached by removeAll, a new one must be used
+			columns.remove(type, column);
+		}
+	}
+
+	/**
+	 * Inserts a batch of events. See {@link #insertAll(Event[])}.
+	 *
+	 * @param events the events to be inserted
+	 * @throws NullPointerException if the batch or any of its events is null
+	 * @throws IllegalArgumentException if any of the events has attributes
+	 */
+
+	@Override
+	public void insertAll(Collection<Event> events) {
+		checkNotNull(events);
+		insertAll(events.toArray(new Event[events.size()]));
+	}
+
+	/**
+	 * Inserts a batch of events. The batch is grouped by type and sorted, then
+	 * each group is inserted in its column under a single lock acquisition.
+	 * A group that starts past the last timestamp of its column is appended
+	 * with array copies.
+	 *
+	 * @param events the events to be inserted
+	 * @throws NullPointerException if the batch or any of its events is null
+	 * @throws IllegalArgumentException if any of the events has attributes,
+	 * in which case none is inserted
+	 */
+
+	@Override
+	public void insertAll(Event[] events) {
+		checkNotNull(events);
+		for (Event event : events) {
+			checkNotNull(event);
+			checkNoAttributes(event);
+		}
+		for (Map.Entry<String, List<Event>> group : EventBatch.groupByType(events).entrySet()) {
+			String type = group.getKey();
+			List<Event> run = group.getValue();
+			long[] timestamps = new long[run.size()];
+			for (int i = 0; i < timestamps.length; i++) {
+				timestamps[i] = run.get(i).timestamp();
+			}
+			while (true) {
+				TimestampColumn column = columns.computeIfAbsent(type, key -> new TimestampColumn());
+				if (column.insertAll(timestamps, timestamps.length)) {
+					break;
+				}
+				columns.remove(type, column);
+			}
+		}
+	}
+
+	/**
+	 * Removes all events of a given type in constant time, by detaching
+	 * its column.
+	 *
+	 * @param type the type of events to be removed.
+	 * @throws NullPointerException if the given type is null
+	 */
+
+	@Override
+	public void removeAll(String type) {
+		checkNotNull(type);
+		TimestampColumn column = columns.remove(type);
+		if (column != null) {
+			column.retire();
+		}
+	}
+
+	/**
+	 * Removes the events of a given type whose timestamps range from
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive, under a
+	 * single acquisition of the column lock. The chunks inside the range are
+	 * dropped whole.
+	 *
+	 * @param type      The type of the events to be removed.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return the number of events removed, zero if there are no events of
+	 *         the type
+	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or
+	 * equal to {@code endTime}
+	 */
+
+	@Override
+	public long removeRange(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid range arguments: " + startTime + " : " + endTime);
+		}
+		TimestampColumn column = columns.get(type);
+		return column == null ? 0 : column.removeRange(startTime, endTime);
+	}
+
+	/**
+	 * Retrieves a stream of the events of a given type in the given range. The
+	 * parts the range is split into are sized by {@link #count}, which sums
+	 * the chunks of the column, so a parallel stream only splits the parts
+	 * with enough events.
+	 *
+	 * @param type      The type we are querying for.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return a sequential stream of the events, empty if there are no events of the type
+	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or
+	 * equal to {@code endTime}
+	 */
+
+	@Override
+	public Stream<Event> queryStream(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		return StreamSupport.stream(
+				new EventSpliterator(this, type, startTime, endTime, (from, to) -> count(type, from, to)), false);
+	}
+
+	/**
+	 * Counts the events of a given type whose timestamps range from
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive, without
+	 * creating them. The chunks inside the range are counted by their size.
+	 *
+	 * @param type      The type of the events to be counted.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return the number of events, zero if there are no events of the type
+	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or
+	 * equal to {@code endTime}
+	 */
+
+	@Override
+	public long count(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid count arguments: " + startTime + " : " + endTime);
+		}
+		TimestampColumn column = columns.get(type);
+		return column == null ? 0 : column.count(startTime, endTime);
+	}
+
+	/**
+	 * Counts the events of a given type in buckets of the given width,
+	 * straight from the chunks of its column. A chunk that falls in a single
+	 * bucket is counted by its size.
+	 *
+	 * @param type        The type of the events to be counted.
+	 * @param startTime   Start timestamp (inclusive).
+	 * @param endTime     End timestamp (exclusive).
+	 * @param bucketWidth The width of the buckets.
+	 * @return the number of events in each bucket, in time order
+	 * @throws IllegalArgumentException if {@code type} is null, if {@code startTime} is greater or
+	 * equal to {@code endTime}, if {@code bucketWidth} is not positive or if the range has more
+	 * buckets than an array holds
+	 */
+
+	@Override
+	public long[] histogram(String type, long startTime, long endTime, long bucketWidth) {
+		if (type == null) {
+			throw new IllegalArgumentException("invalid histogram arguments: null type");
+		}
+		TimestampHistogram histogram = new TimestampHistogram(startTime, endTime, bucketWidth);
+		TimestampColumn column = columns.get(type);
+		if (column != null) {
+			column.histogram(histogram);
+		}
+		return histogram.counts();
+	}
+
+	/**
+	 * Returns an iterator for the events of a given type and whose timestamps
+	 * range from {@code startTime}, inclusive, to {@code endTime}, exclusive.
+	 * Locating the start of the range costs O(log n).
+	 *
+	 * @param type      The type we are querying for.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return An iterator where all its events have same type as {@code type} and
+	 *         timestamp between {@code startTime} (inclusive) and {@code endTime}
+	 *         (exclusive).
+	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or
+	 * equal to {@code endTime}, or if there is no events with {@code type}
+	 * queried for.
+	 */
+
+	@Override
+	public EventIterator query(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		TimestampColumn column = columns.get(type);
+		if (column == null) {
+			throw new IllegalArgumentException("no events of given type");
+		}
+		return new ColumnarEventStoreIterator(column, type, startTime, endTime);
+	}
+
+	/**
+	 * Returns the number of events of the given type.
+	 *
+	 * @param type the type of the events
+	 * @return the number of events, zero if there is none
+	 */
+
+	public long size(String type) {
+		checkNotNull(type);
+		TimestampColumn column = columns.get(type);
+		return column == null ? 0 : column.size();
+	}
+
+	/**
+	 * Throws NullPointerException if argument is null.
+	 *
+	 * @param object the argument
+	 */
+
+	private static void checkNotNull(Object object) {
+		if (object == null)
+			throw new NullPointerException();
+	}
+
+	/**
+	 * Throws IllegalArgumentException if the event has attributes, as only
+	 * the timestamps are stored.
+	 *
+	 * @param event the event to be inserted
+	 */
+
+	private static void checkNoAttributes(Event event) {
+		if (event.encodedAttributes() != null) {
+			throw new IllegalArgumentException("attributes are not stored: " + event.type() + " : "
+					+ event.timestamp());
+		}
+	}
+}
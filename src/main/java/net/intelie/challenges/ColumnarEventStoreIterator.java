@@ -0,0 +1,118 @@
+package net.intelie.challenges;
+
+/**
+ * Iterator over a time range of a {@link TimestampColumn}.
+ *
+ * <p>
+ * Timestamps are copied from the column in small batches, one read lock per
+ * batch, and the {@link Event} objects are only created by {@link #current()}.
+ * The iterator is <i>weakly consistent</i>: it never fails because of
+ * concurrent changes and never returns an event twice, but it may or may not
+ * see changes made after it was created.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public class ColumnarEventStoreIterator implements EventIterator {
+
+	private static final int BATCH_SIZE = 64;
+
+	private final String type;
+	private final long endTime;
+
+	private TimestampColumn column;
+	private TimestampColumn.Position position;
+	private long[] batch = new long[BATCH_SIZE];
+	private int batchSize;
+	private int batchIndex;
+
+	private boolean hasCurrent;
+	private long currentTimestamp;
+	private int currentRank;
+	private boolean currentRemoved;
+
+	ColumnarEventStoreIterator(TimestampColumn column, String type, long startTime, long endTime) {
+		this.column = column;
+		this.type = type;
+		this.endTime = endTime;
+		this.position = new TimestampColumn.Position(startTime);
+	}
+
+	/**
+	 * Move the iterator to the next event, if there is one.
+	 *
+	 * @return {@code true} if the iterator was moved to the next event,
+	 * {@code false} otherwise
+	 */
+
+	@Override
+	public boolean moveNext() {
+		if (column == null) {
+			return false;
+		}
+		if (batchIndex == batchSize) {
+			batchSize = column.read(position, endTime, batch);
+			batchIndex = 0;
+			if (batchSize == 0) {
+				hasCurrent = false;
+				return false;
+			}
+		}
+		long timestamp = batch[batchIndex++];
+		// the rank tells equal timestamps apart when removing. a removed
+		// current event no longer precedes the equal ones that follow it
+		if (hasCurrent && timestamp == currentTimestamp) {
+			currentRank = currentRemoved ? currentRank : currentRank + 1;
+		} else {
+			currentRank = 0;
+		}
+		currentTimestamp = timestamp;
+		currentRemoved = false;
+		hasCurrent = true;
+		return true;
+	}
+
+	/**
+	 * Returns the current event of the iteration. A new {@link Event} is
+	 * created on each call, as the store only keeps the timestamps.
+	 *
+	 * @return the current event
+	 * @throws IllegalStateException if {@link #moveNext} was never called
+	 *                               or its last result was {@code false}.
+	 */
+
+	@Override
+	public Event current() {
+		if (!hasCurrent) {
+			throw new IllegalStateException();
+		}
+		return new Event(type, currentTimestamp);
+	}
+
+	/**
+	 * Removes the current event of the iteration from the store.
+	 *
+	 * @throws IllegalStateException if {@link #moveNext} was never called,
+	 *                               its last result was {@code false} or the
+	 *                               current event was already removed.
+	 */
+
+	@Override
+	public void remove() {
+		if (!hasCurrent || currentRemoved) {
+			throw new IllegalStateException();
+		}
+		if (column.remove(currentTimestamp, currentRank)) {
+			position.removed(currentTimestamp);
+		}
+		currentRemoved = true;
+	}
+
+	@Override
+	public void close() throws Exception {
+		column = null;
+		position = null;
+		batch = null;
+		hasCurrent = false;
+	}
+}
@@ -1,10 +1,35 @@
 package net.intelie.challenges;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * A concurrent implementation of the EventSource interface.
@@ -13,9 +38,10 @@ import java.util.concurrent.ConcurrentSkipListMap;
  * The events, according to their type, are stored in a separate
  * {@link ConcurrentSkipListMap} using the timestamp as the key. As such, two
  * distinct Event objects with the same type and timestamp are not allowed.
- * The events SkipListMap are stored in {@link ConcurrentHashMap} using the
- * event's type as the key. This provides access to each skipListMap with
- * constant time.
+ * The skip lists of a type, with the rest of its storage, are kept in a 
+ * {@link TypeState}, which the {@link TypeRegistry} finds in constant time by 
+ * the name of the type, or by the dense {@code int} id it gives each type 
+ * (see {@link #typeId}).
  * 
  * <p>
  * As {@link ConcurrentSkipListMap} implements a SkipList, it provides log(n)
@@ -29,13 +55,17 @@ import java.util.concurrent.ConcurrentSkipListMap;
  * concurrently by multiple threads. The iterator is 
  * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>. It does 
  * <em>not</em> throw {@link java.util.ConcurrentModificationException
- * ConcurrentModificationException}. 
- * 
+ * ConcurrentModificationException}. A scan that must be repeatable opens a
+ * snapshot query instead ({@link #querySnapshot}), which reads the events as
+ * they were when it was opened, without blocking the writers.
+ *
  * <p> Another feature of this implementation is that historical events might be
- *  kept in a different map. The method {@code encodeAndMoveToHistory} 
+ *  kept apart. The method {@code encodeAndMoveToHistory} 
  *  can be called by a job in order to move the events of the given type from 
- *  the main map to the historical one. In addition, also for space concerns, 
- *  the timestamps of the historical series are compressed. For simplicity, it 
+ *  the main map to the history. In addition, also for space concerns, 
+ *  the history only keeps the timestamps, compressed in blocks of 
+ *  variable-length delta-of-deltas ({@link HistoryBlocks}), which take a byte
+ *  or two per event instead of a skip list entry. For simplicity, it 
  *  was assumed that
  * "historical" data does not receives events to be inserted. 
  * The objective was to show that historical events can be stored 
@@ -43,15 +73,62 @@ import java.util.concurrent.ConcurrentSkipListMap;
  * in the main map and to save memory. As they do not tend do be 
  * searched (queried) so often, the gain in space due to compression outweighs
  * the overhead in processing of compressing and decompressing when they are 
- * queried. 
+ * queried. A query skips the blocks outside its range and only decodes the
+ * overlapping ones.
+ * 
+ * <p>
+ * If the store is created with a history directory, the history is not kept
+ * in the heap at all: {@code encodeAndMoveToHistory} seals the moved events
+ * into an immutable {@link HistorySegment} file, which is memory-mapped and
+ * read by the queries straight from the mapped pages. The segments found in
+ * the directory are mapped again when a store is created on it, so the 
+ * history survives a restart and costs no time to load. A query only opens
+ * cursors on the segments whose range overlaps its own, and the small 
+ * segments left by the moves are merged by {@link #compactSegments}.
  * 
  * <p>
- * Also for simplicity, it is assumed that events with the same type and
- * timestamp are the same event. If this is not the case and the EventStore 
- * should handle timestamp repetitions, the implementation must be adapted.
- * One way to do just that is to change the skip list, mapping the the timestamp
- * to an thread-safe list of events. In this case, the list will store more
- * than one element only when there is a timestamp repetition. 
+ * The store may also be given a {@link WriteAheadLog}. Insertions and 
+ * removals are then recorded in the log before they are applied, and the log
+ * is replayed when the store is created, so the events survive a crash, 
+ * within the durability allowed by the sync policy of the log. A change is 
+ * logged and applied under the lock of its timestamp, or of every timestamp
+ * of its type for a range (see {@link LogOrder}), so the log keeps the order
+ * in which the changes of a timestamp were applied, and the replay rebuilds
+ * the same events. A {@link #checkpoint} cuts the log, which is then replayed from a 
+ * snapshot of the store.
+ *
+ * <p>
+ * Each type also has a {@link TimeRollup}, the number of its events per
+ * second, minute and hour, updated as they are inserted and removed, so
+ * {@link #count} answers in O(buckets) instead of walking the events.
+ *
+ * <p>
+ * The attributes of the inserted events are copied off the heap, to an
+ * {@link AttributeArena} of their type, and the stored events keep a view of
+ * the copy, which the queries hand out as they are, without copying the
+ * attributes back. A type thus holds its payloads in direct memory, which the
+ * garbage collector does not walk. The history only keeps timestamps: moving
+ * a type to the history skips its events with attributes, which stay in the
+ * main map, where every query reads them. The write-ahead log and the
+ * snapshots record the encoded attributes, which are copied to the arena
+ * again as the events are replayed or restored.
+ *
+ * <p>
+ * An attribute of a type may be indexed with {@link #createIndex}, so the
+ * queries filtered by its value (see {@link AttributeFilter}) read the
+ * bitmaps of the value, chunk by chunk of time, instead of every event of
+ * the range (see {@link AttributeIndex}).
+ *
+ * <p>
+ * By default, it is assumed that events with the same type and
+ * timestamp are the same event, so a later one replaces the former.
+ * If the EventStore should handle timestamp repetitions, it can be created 
+ * with {@code keepDuplicates} set. In that mode the skip list maps the 
+ * timestamp to the event itself while it is unique, and to an immutable 
+ * {@link EventBucket} once another event arrives with the same timestamp. 
+ * Buckets are swapped with the atomic {@code merge} and {@code replace} of the 
+ * skip list, so the common single-event case costs the same memory as before 
+ * and queries keep their O(log n) cost. 
  * In fact, if there is a lot of event data, indexing by their timestamp alone 
  * will affect performance. It is possible to have group of events 
  * whose key is a function of the timestamp, for instance those that happened in 
@@ -73,64 +150,313 @@ import java.util.concurrent.ConcurrentSkipListMap;
 public class ConcurrentEventStore implements EventStore {
 
 		
-	/** Map of events indexed by their type 
+	/** The state of each type: its skip lists, history, rollup and arena, 
+	 * looked up once per operation by the name of the type or by its id.
 	 * 
 	 * if there is an estimate for the number of concurrent threads, we might
 	 * set the constructor parameters (initial size, load factor, 
-	 * and concurrency level) accordingly for better performance. 
+	 * and concurrency level) of its map accordingly for better performance. 
 	 * **/
 	
-	private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, Event>> 
-		eventMap = new ConcurrentHashMap<>();
-	
-	/** Map of historical events indexed by their type **/
-	private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, Event>> 
-		historyMap = new ConcurrentHashMap<>();
-	
-	/** Map the store the original non-enconded timestamps for each type
-	 *  only used when dealing with historical events **/
-	private final ConcurrentHashMap<String, Long> historicalTimestamps =
-			new ConcurrentHashMap<String, Long>();
+	private final TypeRegistry registry = new TypeRegistry();
 
 	/** timestamp limit of history data. an event can only be moved to the history 
-	 * if its timestamp is lower than this value.  **/ 
-	private final long historyTimestampLimit ;
+	 * if its timestamp is lower than this value. It only grows, and queries
+	 * starting below it also look in the history. **/ 
+	private final AtomicLong historyTimestampLimit;
+	
+	/** whether events with the same type and timestamp are all kept **/
+	private final boolean keepDuplicates;
+	
+	/** maximum number of events of a history segment **/
+	static final int SEGMENT_CAPACITY = 1 << 24;
+	
+	/** number of history segments of a size merged at once **/
+	static final int COMPACTION_FAN_IN = 4;
+	
+	/** directory of the history segments, null if the history is in the heap **/
+	private final Path historyDirectory;
+	
+	/** sequence of the names of the segment files **/
+	private final AtomicLong segmentSequence = new AtomicLong();
+	
+	/** tailing subscriptions indexed by the type of their events **/
+	private final ConcurrentHashMap<String, CopyOnWriteArrayList<EventSubscription>> 
+		subscriptions = new ConcurrentHashMap<>();
+	
+	/** whether there is any subscription, so inserts skip the lookup when 
+	 * there is none; written under the lock of {@code subscriptions} **/
+	private volatile boolean subscribed;
+	
+	/** log of the changes, null if they are not logged **/
+	private final WriteAheadLog log;
+	
+	/** locks under which the changes are logged and applied, null if they 
+	 * are not logged **/
+	private final LogOrder order;
+	
+	/** held shared by the moves to history and exclusively by a checkpoint **/
+	private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+	
+	/** Secondary indexes of attributes indexed by the type of their events; 
+	 * each list is immutable and replaced under the lock of the map **/
+	private final ConcurrentHashMap<String, List<AttributeIndex>> indexes = new ConcurrentHashMap<>();
+	
+	/** whether there is any index, so inserts skip the lookup when there is 
+	 * none; written under the lock of {@code indexes} **/
+	private volatile boolean indexed;
 	
 	
 	public ConcurrentEventStore() {
-		this.historyTimestampLimit = 10;
+		this(10);
 	}
 	
 	//used for testing the history
 	public ConcurrentEventStore(long limit) {
-		this.historyTimestampLimit = limit;
+		this(limit, false);
+	}
+	
+	/**
+	 * Creates a store that may keep events with the same type and timestamp.
+	 * 
+	 * @param limit timestamp limit of history data
+	 * @param keepDuplicates if {@code true}, an event does not replace the
+	 * stored one with the same type and timestamp, both are kept
+	 */
+	public ConcurrentEventStore(long limit, boolean keepDuplicates) {
+		this(limit, keepDuplicates, null);
+	}
+	
+	/**
+	 * Creates a store whose history is kept in memory-mapped segment files.
+	 * The segments already in the directory are mapped and become part of
+	 * the history of their types.
+	 * 
+	 * @param limit timestamp limit of history data
+	 * @param keepDuplicates if {@code true}, an event does not replace the
+	 * stored one with the same type and timestamp, both are kept
+	 * @param historyDirectory the directory of the segment files, created if
+	 * it does not exist, or null to keep the history in the heap
+	 * @throws UncheckedIOException if the directory can not be read
+	 */
+	public ConcurrentEventStore(long limit, boolean keepDuplicates, Path historyDirectory) {
+		this(limit, keepDuplicates, historyDirectory, null);
+	}
+	
+	/**
+	 * Creates a store whose changes are recorded in a write-ahead log. The
+	 * log is replayed first, rebuilding the events it holds; the skip lists 
+	 * of the types are built in parallel. Events the log records as moved to
+	 * history segments are left to the segments; the segments of a move that
+	 * was interrupted are deleted, and its events are replayed instead.
+	 * 
+	 * @param limit timestamp limit of history data
+	 * @param keepDuplicates if {@code true}, an event does not replace the
+	 * stored one with the same type and timestamp, both are kept
+	 * @param historyDirectory the directory of the segment files, created if
+	 * it does not exist, or null to keep the history in the heap
+	 * @param log the log of the changes, not replayed yet, or null
+	 * @throws UncheckedIOException if the directory or the log can not be read
+	 */
+	public ConcurrentEventStore(long limit, boolean keepDuplicates, Path historyDirectory, WriteAheadLog log) {
+		this.historyTimestampLimit = new AtomicLong(limit);
+		this.keepDuplicates = keepDuplicates;
+		this.historyDirectory = historyDirectory;
+		this.log = log;
+		this.order = (log == null) ? null : new LogOrder();
+		NavigableMap<Long, HistorySegment> segments = (historyDirectory == null) ? null : loadSegments();
+		if (log != null) {
+			LogReplay replay = new LogReplay(segments == null ? null : foundSegments(segments), keepDuplicates);
+			log.replay(replay);
+			for (long orphan : replay.orphans()) {
+				segments.remove(orphan).delete();
+			}
+			for (Map.Entry<String, ConcurrentSkipListMap<Long, Event>> built : replay.build()
+					.entrySet()) {
+				TypeState state = registry.state(built.getKey());
+				state.createMain(offHeap(state, built.getValue()));
+			}
+		}
+		if (segments != null) {
+			for (HistorySegment segment : segments.values()) {
+				registry.state(segment.type()).addSegments(Collections.singletonList(segment));
+			}
+		}
+		for (TypeState state : registry.states()) {
+			coverHistory(state.version());
+			rebuildRollup(state);
+		}
+	}
+	
+	/**
+	 * Raises the history limit above every event of the history of the given
+	 * tiers. The history loaded from segments or from a snapshot may have been
+	 * moved under a limit higher than the one the store was created with, and
+	 * the queries starting above the limit would skip it.
+	 */
+	
+	private void coverHistory(TypeVersion version) {
+		long last = Long.MIN_VALUE;
+		if (version.blocks != null) {
+			last = Math.max(last, version.blocks.last());
+		}
+		if (version.segments != null) {
+			for (HistorySegment segment : version.segments) {
+				last = Math.max(last, segment.last());
+			}
+		}
+		if (version.history != null && version.reference != null && !version.history.isEmpty()) {
+			last = Math.max(last, DeltaEncoderDecoder.decode(version.history.lastKey(), version.reference));
+		}
+		if (last != Long.MIN_VALUE) {
+			advanceHistoryTimestampLimit(last == Long.MAX_VALUE ? last : last + 1);
+		}
+	}
+	
+	/**
+	 * Maps the segment files of the history directory, and removes the 
+	 * temporary files of interrupted writes and the segments merged into 
+	 * another one that were not deleted yet.
+	 * 
+	 * @return the segments by sequence number, in the order they were 
+	 * written
+	 */
+	
+	private NavigableMap<Long, HistorySegment> loadSegments() {
+		List<Path> files = new ArrayList<>();
+		try {
+			Files.createDirectories(historyDirectory);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(historyDirectory)) {
+				for (Path file : stream) {
+					String name = file.getFileName().toString();
+					if (name.endsWith(HistorySegment.SUFFIX)) {
+						files.add(file);
+					} else if (name.endsWith(".tmp")) {
+						Files.delete(file);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		NavigableMap<Long, HistorySegment> segments = new TreeMap<>();
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			long sequence = Long.parseLong(name.substring(0, name.length() - HistorySegment.SUFFIX.length()));
+			segmentSequence.set(Math.max(segmentSequence.get(), sequence + 1));
+			segments.put(sequence, HistorySegment.open(file));
+		}
+		for (HistorySegment segment : new ArrayList<>(segments.values())) {
+			for (long source : segment.sources()) {
+				HistorySegment superseded = segments.remove(source);
+				if (superseded != null) {
+					superseded.delete();
+				}
+			}
+		}
+		return segments;
+	}
+	
+	/**
+	 * @return the sequence numbers of the given segments and of the segments
+	 * merged into them, whose events they hold
+	 */
+	
+	private static Set<Long> foundSegments(NavigableMap<Long, HistorySegment> segments) {
+		Set<Long> found = new HashSet<>(segments.keySet());
+		for (HistorySegment segment : segments.values()) {
+			for (long source : segment.sources()) {
+				found.add(source);
+			}
+		}
+		return found;
 	}
 	
 	/**
 	 * Returns the map of events.  
-	 * Created only to help the execution of unit tests.
+	 * Created only to help the execution of unit tests. If duplicated 
+	 * timestamps are kept, a value may be an {@link EventBucket}. 
 	 * 
-	 * @return the map of events indexed by events type
+	 * @return a new map of the skip lists of events indexed by events type
 	 */
 	
 	public Map<String, ConcurrentSkipListMap<Long, Event>> getEvents() {
-		return eventMap;
+		return tiers(versions(), version -> version.main);
 	}
 	
 	/**
 	 * Returns the map of history events.  
 	 * Created only to help the execution of unit tests.
 	 * 
-	 * @return the map of events indexed by events type
+	 * @return a new map of the skip lists of history events indexed by events 
+	 * type
 	 */
 	
 	public Map<String, ConcurrentSkipListMap<Long, Event>> getHistory() {
-		return historyMap;
+		return tiers(versions(), version -> version.history);
+	}
+	
+	/**
+	 * Returns the compressed history.  
+	 * Created only to help the execution of unit tests.
+	 * 
+	 * @return a new map of the history blocks indexed by events type
+	 */
+	
+	Map<String, HistoryBlocks> getHistoryBlocks() {
+		return tiers(versions(), version -> version.blocks);
+	}
+	
+	/**
+	 * Returns the history segments.  
+	 * Created only to help the execution of unit tests.
+	 * 
+	 * @return a new map of the history segments indexed by events type
+	 */
+	
+	Map<String, ? extends List<HistorySegment>> getSegments() {
+		return tiers(versions(), version -> version.segments);
+	}
+	
+	/**
+	 * @return a new map of the current version of every type
+	 */
+	
+	private Map<String, TypeVersion> versions() {
+		Map<String, TypeVersion> versions = new HashMap<>();
+		for (TypeState state : registry.states()) {
+			versions.put(state.type, state.version());
+		}
+		return versions;
+	}
+	
+	/**
+	 * Collects a tier of every type that has it.
+	 * 
+	 * @param versions the versions of the types
+	 * @param tier reads the tier from a version, null if the type has none
+	 * @return a new map of the tiers indexed by type
+	 */
+	
+	private static <T> Map<String, T> tiers(Map<String, TypeVersion> versions, Function<TypeVersion, T> tier) {
+		Map<String, T> tiers = new HashMap<>();
+		for (Map.Entry<String, TypeVersion> version : versions.entrySet()) {
+			T value = tier.apply(version.getValue());
+			if (value != null) {
+				tiers.put(version.getKey(), value);
+			}
+		}
+		return tiers;
 	}
 
 	/**
 	 * Insert the event in average log(n) time cost in the EventSource.
 	 * 
+	 * <p>No lock is taken when the type already exists: its state is read 
+	 * with a plain {@code get}, and the event is put in its skip list, both 
+	 * lock-free operations. Only the first event of a type registers it and
+	 * creates the skip list, under a lock. See {@link #insertInto}.
+	 * 
 	 * @param The event to inserted
 	 * @throws NullPointerException if the specified event is null
 	 */
@@ -138,233 +464,1970 @@ public class ConcurrentEventStore implements EventStore {
 	@Override
 	public void insert(Event event) {
 		checkNotNull(event);
-		// If there is no skipListMap for the event type, it has to be created.
-		// The event is inserted in the corresponding skipListMap.
-		// This is done within the compute operation, which is thread safe.
-		
-		eventMap.compute(event.type(), (key, value) -> {
-			if (value == null) {
-				value = new ConcurrentSkipListMap<>();
+		insert(registry.state(event.type()), event);
+	}
+	
+	/**
+	 * Inserts an event of the type with the given id, as 
+	 * {@link #insert(Event)} does, without looking the type up by its name.
+	 * 
+	 * @param typeId the id of the type, given by {@link #typeId}
+	 * @param timestamp the timestamp of the event
+	 * @throws IllegalArgumentException if there is no type with the given id
+	 */
+	
+	public void insert(int typeId, long timestamp) {
+		TypeState state = state(typeId);
+		insert(state, new Event(state.type, timestamp));
+	}
+	
+	private void insert(TypeState state, Event event) {
+		Event stored = offHeap(state, event);
+		//the event is stored and handed over to the subscriptions inside the
+		//gate of the inserts of the type, which a new subscription waits for
+		int parity = state.inserts.enter();
+		try {
+			boolean added;
+			if (log == null) {
+				added = insertInto(state, stored);
+			} else {
+				long locked = order.lock(event.type(), event.timestamp());
+				try {
+					log.insert(event);
+					added = insertInto(state, stored);
+				} finally {
+					order.unlock(locked);
+				}
+			}
+			if (added) {
+				state.rollup().add(event.timestamp(), 1);
+			}
+			if (indexed && stored.encodedAttributes() != null) {
+				index(stored);
 			}
-			value.put(event.timestamp(), event);
-			return value;
-		});
+			if (subscribed) {
+				publish(stored);
+			}
+		} finally {
+			state.inserts.exit(parity);
+		}
 	}
 	
-	/** Removes all events of a given type from the EventSource 
-	 *  in constant time cost. 
-	 *  
-	 *  @param type   The type of events to be removed.
-	 *  @throws NullPointerException if the given type is null or empty;
+	/**
+	 * Returns the id of the given type, which {@link #insert(int, long)} and
+	 * {@link #query(int, long, long)} take instead of its name. Ids are dense,
+	 * from zero, in the order the types are first used, and a type keeps its
+	 * id for the life of the store, even once its events are removed.
+	 * 
+	 * @param type the name of the type
+	 * @return the id of the type, given now if the type was never used
+	 * @throws IllegalArgumentException if {@code type} is null
 	 */
-
-	public void removeAll(String type) {
-		checkNotNull(type);
-		eventMap.remove(type);
-		historyMap.remove(type);
+	
+	public int typeId(String type) {
+		if (type == null) {
+			throw new IllegalArgumentException("invalid type: null");
+		}
+		return registry.state(type).id;
 	}
+	
+	/**
+	 * @return the state of the type with the given id
+	 * @throws IllegalArgumentException if there is no type with the given id
+	 */
 
+	TypeState state(int typeId) {
+		TypeState state = registry.get(typeId);
+		if (state == null) {
+			throw new IllegalArgumentException("invalid type id: " + typeId);
+		}
+		return state;
+	}
+	
 	/**
-	 * <p> Returns an iterator for the events of a given type and whose timestamps
-	 * range from {@code startTime}, inclusive, to {@code endTime}, 
-	 * exclusive.
-	 * <p> It runs in O(log n), as we can access the skipList of the given time in a
-	 * constant time and the search for startTime and endTime runs in about 
-	 * in O(log n) each.
+	 * Returns the event to be stored for the given one: the event itself if
+	 * it has no attributes, or a copy whose attributes are in the arena of 
+	 * its type.
+	 */
+	
+	private static Event offHeap(TypeState state, Event event) {
+		Attributes attributes = event.encodedAttributes();
+		if (attributes == null) {
+			return event;
+		}
+		return new Event(event.type(), event.timestamp(), state.arena().copy(attributes));
+	}
+	
+	/**
+	 * Copies the attributes of the events of a rebuilt skip list to the arena
+	 * of their type, in place, as they are replayed or restored with their
+	 * attributes in heap arrays.
 	 * 
-	 * <p>It looks for the events in the main map and also in the history map. 
-	 * As the history do not tend do be queried so often, its timestamps have
-	 * been delta-encoded to save memory space. As such, they are decoded 
-	 * during the iteration, only when needed.   	   
+	 * @return the given skip list, which may be null
+	 */
+	
+	private static ConcurrentSkipListMap<Long, Event> offHeap(TypeState state, 
+			ConcurrentSkipListMap<Long, Event> events) {
+		if (events != null) {
+			events.replaceAll((key, stored) -> {
+				if (!hasAttributes(stored)) {
+					return stored;
+				}
+				Event copied = null;
+				for (Event event : EventBucket.events(stored)) {
+					copied = (copied == null) ? offHeap(state, event) : EventBucket.merge(copied, offHeap(state, event));
+				}
+				return copied;
+			});
+		}
+		return events;
+	}
+	
+	/**
+	 * Inserts the event in the main skip list of its type, creating the skip
+	 * list if needed.
 	 * 
+	 * <p>Writers of a type used to run within {@code compute}, which holds the
+	 * lock of the hash bin of the type and serializes all of them, although 
+	 * the skip list is already thread-safe. Here the skip list is only read
+	 * from the state of the type. As {@link #removeAll} may detach it while the 
+	 * event is being put, the state is read again afterwards: if the skip list
+	 * is no longer the one of the type, the event is put again in the current
+	 * one (or a new one). The insertion then counts as happening after the 
+	 * removal, instead of being lost in a detached skip list.
 	 * 
-	 * @param type      The type we are querying for.
-	 * @param startTime Start timestamp (inclusive).
-	 * @param endTime   End timestamp (exclusive).
-	 * @return An iterator where all its events have same type as {@code type} and
-	 *         timestamp between {@code startTime} (inclusive) and {@code endTime}
-	 *         (exclusive). 
-	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or 
-	 * equal to {@code endTime}, or if there is no events with {@code type} 
-	 * queried for.
+	 * @param state the state of the type of the event
+	 * @param event the event to be inserted
+	 * @return {@code true} if the event was added, {@code false} if it 
+	 * replaced one with the same timestamp
 	 */
-
-	@Override
-	public EventIterator query(String type, long startTime, long endTime) {
-
-		if (type == null ||startTime >= endTime) {
-			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
-		}
-		
-		//events can always be in the main event map 
-		//regardless of their timestamp
-		ConcurrentSkipListMap<Long, Event> events = eventMap.get(type);
-		ConcurrentSkipListMap<Long, Event> history = historyMap.get(type);
-		
-		if (history == null && events == null) {
-			throw new IllegalArgumentException("no events of given type");
-		}
-		
-		//startTime must be lower than the max timestamp in history
-		//and history map must contain events
-		if (startTime < historyTimestampLimit && history != null) {
-			
-			//searching in history
-			long firstTimestamp = getFirstHistoricalTimestamp(type);
-			ConcurrentNavigableMap<Long, Event> subHistory = historySubMap(type, startTime, endTime);
+	
+	private boolean insertInto(TypeState state, Event event) {
+		ConcurrentSkipListMap<Long, Event> events = state.version().main;
+		while (true) {
 			if (events == null) {
-				//all events queried for are in history
-				return new ConcurrentEventStoreIterator(subHistory.values().iterator(), null, firstTimestamp);
+				events = state.main();
 			}
-			
-			//events in both history and main series
-			ConcurrentNavigableMap<Long, Event> subMap = events.subMap(startTime, endTime);
-			return new ConcurrentEventStoreIterator(subHistory.values().iterator(),
-					subMap.values().iterator(), firstTimestamp);
+			boolean added = state.put(events, event, keepDuplicates);
+			ConcurrentSkipListMap<Long, Event> current = state.version().main;
+			if (current == events) {
+				return added;
+			}
+			events = current;
 		}
-		
-		//only in the main map 
-		ConcurrentNavigableMap<Long, Event> subMap = events.subMap(startTime, endTime);
-		return new ConcurrentEventStoreIterator(subMap.values().iterator());
 	}
 	
 	/**
-	 * Returns the part of the historical events of the given type
-	 * whose keys range from  fromKey, inclusive, to toKey, exclusive. 
-	 * (If fromKey and toKey are equal, the returned map is empty.) 
-	 * 
-	 * As the historical series were created using compressed timestamps and
-	 * indexes, the search in the history must use compressed startTime and
-	 * compressed endTime
+	 * Counts the events of the given type again, in a new rollup, from all 
+	 * the tiers. Used when the events are loaded other than by insertion.
+	 */
+	
+	private void rebuildRollup(TypeState state) {
+		if (state.version().isEmpty()) {
+			state.replaceRollup(null);
+			return;
+		}
+		TimeRollup rollup = new TimeRollup();
+		EventIterator it = iterator(state, Long.MIN_VALUE, Long.MAX_VALUE, false);
+		while (it.moveNext()) {
+			rollup.add(it.current().timestamp(), 1);
+		}
+		state.replaceRollup(rollup);
+	}
+	
+	/**
+	 * Inserts a batch of events. See {@link #insertAll(Event[])}.
 	 * 
-	 * @param type the type of events
-	 * @param Start timestamp (inclusive).
-	 * @param endTime   End timestamp (exclusive).
-	 * @return the submap containing the historical series
+	 * @param events the events to be inserted
+	 * @throws NullPointerException if the batch or any of its events is null
 	 */
 	
-	private ConcurrentNavigableMap<Long, Event> historySubMap(String type, long startTime, long endTime ) {
-		long historicEndTime = Math.min(endTime, historyTimestampLimit);
-		
-		long first = getFirstHistoricalTimestamp(type);
-		
-		long compressedStart = DeltaEncoderDecoder.encode(startTime, first);
-		long compressedEnd = DeltaEncoderDecoder.encode(historicEndTime, first);
-		
-		ConcurrentSkipListMap<Long, Event> history = historyMap.get(type);
-		return history.subMap(compressedStart, compressedEnd);
-		
+	@Override
+	public void insertAll(Collection<Event> events) {
+		checkNotNull(events);
+		insertAll(events.toArray(new Event[events.size()]));
 	}
 	
 	/**
+	 * Inserts a batch of events. 
 	 * 
-	 * <p>Compress the timestamps of the events of the given type using 
-	 * delta-encoding. Only the first timestamp of the given type is kept and, for the
-	 * remaining ones, only the difference between them and the first timestamp 
-	 * are stored. It runs in O(n) time complexity, as n being the number
-	 * of events of the given type.
+	 * <p>The batch is grouped by type and each group is sorted by timestamp,
+	 * which is linear for groups already in order. The events of each 
+	 * timestamp of a group are then merged in one pass, as the replay of the
+	 * log does (see {@link EventBatch#toSortedMap}). The skip list of each type
+	 * is looked up once, without locking, and takes one put per timestamp, in
+	 * ascending order; a bucket of duplicates goes in at once. The gate of 
+	 * the writers of the type is entered, and its snapshot log read, once 
+	 * per group rather than once per event (see {@link TypeState#putAll}). A
+	 * type that did not exist yet is built in linear time straight from the 
+	 * merged group, instead of one O(log n) put per event. 
+	 * As in {@link #insertInto}, a group that raced with {@link #removeAll}
+	 * is inserted again in the skip list that replaced the detached one.
 	 * 
-	 * <p>This method can be called by a job that 
-	 * runs periodically checking which events might be compressed and migrated 
-	 * to the history map. In addition, not to have more concurrent operations
-	 * in the eventMap, a single-thread execution is encouraged. 
-	 * 
-	 * <p>As the Event class has a final timestamp attribute, it is not possible 
-	 * to update and just move the object from one map to the history map; 
-	 * a new event object needs to be created with the offset/delta as the timestamp 
-	 * 
-	 * As an example, if the timestamps begins with 111110, 111112, 111115, the 
-	 * result compressed series would be: 111110, 2, 5. 
-	 * As the first timestamp (111110) is stored in a secondary 
-	 * map, all historic series can be saved using compressed timestamps 
-	 * and indexes.  
-	 *
-	 * For simplicity, the firstTimestamp was not updated. 
-	 *
-	 * @param type type of the events to be moved to history
+	 * <p>A skip list has no bulk insert, so a group of distinct timestamps 
+	 * into an existing type still costs a descent per event, and the gain 
+	 * over a loop of {@link #insert(Event)} depends on the order of the 
+	 * batch. An unordered batch gains about three times: sorted, its events
+	 * reach the skip list and the rollup in order, and each put and count 
+	 * lands next to the previous one. A batch already in order gains little,
+	 * as the loop already appends at the end of the skip list, which a bare
+	 * loop of puts into a skip list only beats by a quarter. Streams whose 
+	 * timestamps only grow are appended without a skip list by 
+	 * {@link AppendOnlyEventStore} and {@link ColumnarEventStore}.
+	 * 
+	 * <p>The result is the same as inserting the events one by one in the 
+	 * order of the batch, including which of the events with the same 
+	 * timestamp is kept.
+	 * 
+	 * @param events the events to be inserted
+	 * @throws NullPointerException if the batch or any of its events is null
 	 */
 	
-	public void encodeAndMoveToHistory(String type) {
-		checkNotNull(type);
-		ConcurrentSkipListMap<Long, Event> events = eventMap.get(type);
-		if (events == null) {
+	@Override
+	public void insertAll(Event[] events) {
+		checkNotNull(events);
+		Map<String, List<Event>> groups = EventBatch.groupByType(events);
+		if (log == null) {
+			insertGroups(groups);
 			return;
 		}
-		Long firstKey = events.firstKey();
-		Long lastKey = Math.min(events.lastKey(), historyTimestampLimit);
-		ConcurrentNavigableMap<Long, Event>  subMap = events.subMap(firstKey, lastKey);
-
-		//if there is already this type in history, there is already a first non-encoded timestamp
-		Long firstTimestamp = getFirstHistoricalTimestamp(type);
-		Iterator<Event> iterator = subMap.values().iterator();
-		
-		while(iterator.hasNext()) {
-			Event event = iterator.next();
-			Event compressedEvent;
-			long originalTime =  event.timestamp();
-			
-			if (firstTimestamp == null) {
-				firstTimestamp = event.timestamp();
-				historicalTimestamps.put(type, firstTimestamp);
-			} 
-			compressedEvent = createCompressedEvent(event, firstTimestamp);
-			insertInHistory(compressedEvent, originalTime);
-			iterator.remove();
+		long locked = order.lock(events);
+		try {
+			log.insertAll(events);
+			insertGroups(groups);
+		} finally {
+			order.unlock(locked);
 		}
 	}
 	
 	/**
-	 * Returns the timestamp used as reference for delta-encoding  of the timestamps
-	 * of the events of the given type.
-	 * 
-	 * @param type of the event
-	 * @return reference timestamp used in delta encode of the history of th
-	 * events of the given type
+	 * Inserts the groups of a batch, each sorted by timestamp.
 	 */
 	
-	public Long getFirstHistoricalTimestamp(String type) {
-		checkNotNull(type);
-		Long originaltime = historicalTimestamps.get(type);
-	
-		return (originaltime == null) ? null : originaltime;
+	private void insertGroups(Map<String, List<Event>> groups) {
+		for (Map.Entry<String, List<Event>> group : groups.entrySet()) {
+			TypeState state = registry.state(group.getKey());
+			List<Event> run = group.getValue();
+			for (int i = 0; i < run.size(); i++) {
+				run.set(i, offHeap(state, run.get(i)));
+			}
+			//the events of a timestamp are resolved once, in a single pass, so
+			//the skip list takes one value per timestamp of the group
+			SortedMap<Long, Event> merged = EventBatch.toSortedMap(run, keepDuplicates);
+			int parity = state.inserts.enter();
+			try {
+				insertGroup(state, run, merged);
+			} finally {
+				state.inserts.exit(parity);
+			}
+		}
 	}
 	
-	/** Creates an new event with its timestamp delta-encoded based on the
-	 * {@code firstTimestamp}
+	/**
+	 * Inserts the sorted group of a type of a batch, and hands its events 
+	 * over to the subscriptions.
 	 * 
-	 * @param event
-	 * @param firstTimestamp
-	 * @return the compresed event
+	 * @param run the events of the group, in the order of the batch
+	 * @param merged the values of the group by timestamp
 	 */
 	
-	public Event createCompressedEvent(Event event, long firstTimestamp) {
-		
-		//the timestamp attribute of the Event class is final 
-		//we need to create another event and remove the original one 
-		//from the map. it not possible to just move the event object
-		long delta = DeltaEncoderDecoder.encode(event.timestamp(), firstTimestamp);
-		Event compressedEvent = new Event(event.type(), delta); 
-		
-		return compressedEvent;
+	private void insertGroup(TypeState state, List<Event> run, SortedMap<Long, Event> merged) {
+		ConcurrentSkipListMap<Long, Event> typeEvents = state.version().main;
+		while (true) {
+			if (typeEvents == null) {
+				ConcurrentSkipListMap<Long, Event> built = new ConcurrentSkipListMap<>(merged);
+				typeEvents = state.createMain(built);
+				if (typeEvents == built) {
+					TimeRollup rollup = state.rollup();
+					for (Event stored : built.values()) {
+						rollup.add(stored.timestamp(), EventBucket.count(stored));
+					}
+					indexAll(run);
+					publishAll(run);
+					return;
+				}
+			}
+			List<Event> added = new ArrayList<>(merged.size());
+			state.putAll(typeEvents, merged.values(), keepDuplicates, added);
+			ConcurrentSkipListMap<Long, Event> current = state.version().main;
+			if (current == typeEvents) {
+				TimeRollup rollup = state.rollup();
+				for (Event value : added) {
+					rollup.add(value.timestamp(), EventBucket.count(value));
+				}
+				indexAll(run);
+				publishAll(run);
+				return;
+			}
+			typeEvents = current;
+		}
 	}
 	
-
 	/**
-	 * Insert events in the history map
+	 * Indexes an attribute of the events of the given type, so the queries
+	 * filtered by its value with an {@link AttributeFilter} only read the
+	 * events that have it (see {@link #query(String, long, long, Predicate)}).
+	 * The events already stored are indexed before it returns. An index is 
+	 * kept until the store is discarded; {@link #removeAll} only empties it.
 	 * 
-	 * @param event event to be inserted
-	 * @throws NullPointerException is given event is null
+	 * <p>The index is registered before the stored events are indexed, and an
+	 * insert indexes its event after storing it, so every event is indexed
+	 * either by the insert or by this method.
+	 * 
+	 * @param type the type of the events
+	 * @param attribute the name of the attribute
+	 * @throws IllegalArgumentException if {@code type} or {@code attribute} is
+	 * null
+	 */
+	
+	public void createIndex(String type, String attribute) {
+		if (type == null || attribute == null) {
+			throw new IllegalArgumentException("invalid index arguments: " + type + " : " + attribute);
+		}
+		AttributeIndex index = new AttributeIndex(attribute);
+		synchronized (indexes) {
+			List<AttributeIndex> typeIndexes = indexes.getOrDefault(type, Collections.emptyList());
+			for (AttributeIndex existing : typeIndexes) {
+				if (existing.attribute().equals(attribute)) {
+					return;
+				}
+			}
+			List<AttributeIndex> updated = new ArrayList<>(typeIndexes);
+			updated.add(index);
+			indexes.put(type, Collections.unmodifiableList(updated));
+			indexed = true;
+		}
+		ConcurrentSkipListMap<Long, Event> events = registry.state(type).version().main;
+		if (events != null) {
+			for (Event stored : events.values()) {
+				for (Event event : EventBucket.events(stored)) {
+					index.add(event);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds a stored event to the indexes of its type. As in 
+	 * {@link #insertInto}, the indexes are read again afterwards, and the 
+	 * event is indexed again if {@link #removeAll} replaced them meanwhile.
+	 */
+	
+	private void index(Event stored) {
+		List<AttributeIndex> typeIndexes = indexes.get(stored.type());
+		while (typeIndexes != null) {
+			for (AttributeIndex index : typeIndexes) {
+				index.add(stored);
+			}
+			List<AttributeIndex> current = indexes.get(stored.type());
+			if (current == typeIndexes) {
+				return;
+			}
+			typeIndexes = current;
+		}
+	}
+	
+	private void indexAll(List<Event> run) {
+		if (indexed) {
+			for (Event stored : run) {
+				if (stored.encodedAttributes() != null) {
+					index(stored);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns a subscription to the events of the given type: it replays the
+	 * stored events from {@code fromTimestamp} on, in time order, and then
+	 * returns the events inserted since, in the order of insertion, so a
+	 * consumer follows a type without polling it with queries (see
+	 * {@link EventSubscription}).
+	 * 
+	 * <p>An insert hands the event over to the subscriptions of its type
+	 * through their bounded buffers, without blocking: the events that do not
+	 * fit in the buffer of a slow consumer are dropped and counted in its 
+	 * subscription. A batch is handed over per type, in time order. Events
+	 * inserted in the history and the events of the write-ahead log replayed
+	 * on start are not handed over.
+	 * 
+	 * <p>The subscription is registered, then the stored events are read from 
+	 * a snapshot query opened after it, and the inserts of the type in 
+	 * progress are waited for: every event the snapshot holds that was 
+	 * handed over too is in the buffer by then, and is returned by the replay
+	 * only. The events inserted after the snapshot are returned from the 
+	 * buffer only.
+	 * 
+	 * @param type the type of the events
+	 * @param fromTimestamp the lowest timestamp of the events returned
+	 * @param capacity the maximum number of inserted events kept until the
+	 * consumer reads them
+	 * @return the subscription, to be closed when it is no longer needed
+	 * @throws IllegalArgumentException if {@code type} is null or if
+	 * {@code capacity} is not positive
+	 */
+	
+	public EventSubscription subscribe(String type, long fromTimestamp, int capacity) {
+		if (type == null || capacity <= 0) {
+			throw new IllegalArgumentException("invalid subscription arguments: " + type + " : " + capacity);
+		}
+		EventSubscription subscription = new EventSubscription(this, type, fromTimestamp, capacity);
+		synchronized (subscriptions) {
+			subscriptions.computeIfAbsent(type, key -> new CopyOnWriteArrayList<>()).add(subscription);
+			subscribed = true;
+		}
+		// registered first, so the events inserted meanwhile are not missed
+		TypeState state = registry.get(type);
+		if (fromTimestamp < Long.MAX_VALUE && state != null) {
+			EventIterator replay;
+			try {
+				replay = querySnapshot(type, fromTimestamp, Long.MAX_VALUE);
+			} catch (IllegalArgumentException e) {
+				// no events of the type yet
+				return subscription;
+			}
+			state.inserts.await();
+			subscription.replay(replay);
+		}
+		return subscription;
+	}
+	
+	/**
+	 * Detaches a subscription, as it is closed.
+	 */
+	
+	void unsubscribe(EventSubscription subscription) {
+		synchronized (subscriptions) {
+			List<EventSubscription> typeSubscriptions = subscriptions.get(subscription.type());
+			if (typeSubscriptions != null) {
+				typeSubscriptions.remove(subscription);
+				if (typeSubscriptions.isEmpty()) {
+					subscriptions.remove(subscription.type());
+				}
+			}
+			subscribed = !subscriptions.isEmpty();
+		}
+	}
+	
+	private void publish(Event event) {
+		List<EventSubscription> typeSubscriptions = subscriptions.get(event.type());
+		if (typeSubscriptions != null) {
+			for (EventSubscription subscription : typeSubscriptions) {
+				subscription.offer(event);
+			}
+		}
+	}
+	
+	private void publishAll(List<Event> run) {
+		if (subscribed) {
+			for (Event event : run) {
+				publish(event);
+			}
+		}
+	}
+	
+	/** Removes all events of a given type from the EventSource. 
+	 *  
+	 *  <p>The tiers held in the heap are dropped at once, by publishing an 
+	 *  empty version of the type, and its indexes are replaced by empty ones; 
+	 *  the open snapshots keep reading the version they hold. The cost grows 
+	 *  with the history segments of the type, as the file of each one is 
+	 *  deleted, after the log is synced when there is one. With a 
+	 *  write-ahead log, a tombstone of the type is appended to it while the 
+	 *  log stripes of the type are held, so the logged inserts of the type 
+	 *  wait for the removal (see {@link LogOrder}). 
+	 *  
+	 *  @param type   The type of events to be removed.
+	 *  @throws NullPointerException if the given type is null or empty;
+	 */
+
+	public void removeAll(String type) {
+		checkNotNull(type);
+		List<HistorySegment> removed;
+		if (log == null) {
+			removed = clear(type);
+		} else {
+			long locked = order.lock(type);
+			try {
+				log.removeAll(type);
+				removed = clear(type);
+			} finally {
+				order.unlock(locked);
+			}
+		}
+		if (removed != null) {
+			dropSegments(removed);
+		}
+	}
+	
+	/**
+	 * Drops the tiers of the given type.
+	 * 
+	 * @return the segments that were dropped, to be deleted, or null
+	 */
+	
+	private List<HistorySegment> clear(String type) {
+		//the indexes are emptied first, so an event that survives the removal
+		//is indexed again by its insert
+		emptyIndexes(type);
+		TypeState state = registry.get(type);
+		return (state == null) ? null : state.clear();
+	}
+	
+	/**
+	 * Deletes the files of segments dropped from the history. With a 
+	 * write-ahead log, the log is synced first: the records of the removals 
+	 * the segments kept on their own must be durable before the segments are
+	 * gone, as the events of their moves are then replayed from the log.
+	 */
+	
+	private void dropSegments(List<HistorySegment> dropped) {
+		if (log != null) {
+			log.sync();
+		}
+		for (HistorySegment segment : dropped) {
+			segment.delete();
+		}
+	}
+	
+	/**
+	 * Replaces the indexes of the given type, if any, by empty ones on the
+	 * same attributes.
+	 */
+	
+	private void emptyIndexes(String type) {
+		synchronized (indexes) {
+			List<AttributeIndex> typeIndexes = indexes.get(type);
+			if (typeIndexes != null) {
+				List<AttributeIndex> emptied = new ArrayList<>();
+				for (AttributeIndex index : typeIndexes) {
+					emptied.add(new AttributeIndex(index.attribute()));
+				}
+				indexes.put(type, Collections.unmodifiableList(emptied));
+			}
+		}
+	}
+
+	/**
+	 * Removes the events of the given type older than the given timestamp, as
+	 * a retention policy would. 
+	 * 
+	 * <p>It is a {@link #removeRange} from the lowest timestamp, recorded in 
+	 * the write-ahead log as a truncation.
+	 * 
+	 * @param type the type of the events
+	 * @param timestamp the lowest timestamp kept
+	 * @return the number of events removed
+	 * @throws NullPointerException if the type is null
+	 * @throws UncheckedIOException if the removal of segment events can not 
+	 * be recorded
+	 */
+	
+	public long removeBefore(String type, long timestamp) {
+		checkNotNull(type);
+		if (timestamp == Long.MIN_VALUE) {
+			return 0;
+		}
+		if (log == null) {
+			return removeFromTiers(type, Long.MIN_VALUE, timestamp);
+		}
+		long locked = order.lock(type);
+		try {
+			log.removeBefore(type, timestamp);
+			return removeFromTiers(type, Long.MIN_VALUE, timestamp);
+		} finally {
+			order.unlock(locked);
+		}
+	}
+	
+	/**
+	 * Removes the events of the given type whose timestamps range from 
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive.
+	 * 
+	 * <p>The history is cut by chunks: the history blocks and segments inside
+	 * the range are dropped whole (a segment by deleting its file), and only
+	 * the blocks or segments at the ends of the range are changed. The main 
+	 * and history maps are cut by walking the entries of their range view 
+	 * once, each removed by key and value (see {@link #removeEntries}), the
+	 * bounds of the history map being delta-encoded as its keys. With a 
+	 * write-ahead log, the whole range is a single record.
+	 * 
+	 * @param type the type of the events
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return the number of events removed, zero if there are no events of
+	 * the type
+	 * @throws IllegalArgumentException if {@code type} is null or if 
+	 * {@code startTime} is greater or equal to {@code endTime}
+	 * @throws UncheckedIOException if the removal of segment events can not 
+	 * be recorded
+	 */
+	
+	@Override
+	public long removeRange(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid range arguments: " + startTime + " : " + endTime);
+		}
+		if (log == null) {
+			return removeFromTiers(type, startTime, endTime);
+		}
+		long locked = order.lock(type);
+		try {
+			log.removeRange(type, startTime, endTime);
+			return removeFromTiers(type, startTime, endTime);
+		} finally {
+			order.unlock(locked);
+		}
+	}
+	
+	private long removeFromTiers(String type, long startTime, long endTime) {
+		//the chunks of the range are dropped first, so an event that survives
+		//the removal was indexed again by its insert
+		List<AttributeIndex> typeIndexes = indexes.get(type);
+		if (typeIndexes != null) {
+			for (AttributeIndex index : typeIndexes) {
+				index.removeRange(startTime, endTime);
+			}
+		}
+		TypeState state = registry.get(type);
+		if (state == null) {
+			return 0;
+		}
+		TypeVersion version = state.version();
+		long removed = 0;
+		ConcurrentSkipListMap<Long, Event> events = version.main;
+		if (events != null) {
+			removed += removeEntries(state, events, events.subMap(startTime, endTime));
+		}
+		ConcurrentSkipListMap<Long, Event> history = version.history;
+		Long first = version.reference;
+		if (history != null && first != null) {
+			removed += removeEntries(state, history,
+					history.subMap(historyBound(startTime, first), historyBound(endTime, first)));
+		}
+		HistoryBlocks blocks = version.blocks;
+		if (blocks != null) {
+			removed += blocks.removeRange(startTime, endTime);
+		}
+		List<HistorySegment> typeSegments = version.segments;
+		if (typeSegments != null) {
+			for (HistorySegment segment : typeSegments) {
+				//a segment merged into another meanwhile is no longer in the
+				//history, and its removals go to the new one
+				if (segment.within(startTime, endTime) && state.removeSegment(segment)) {
+					removed += segment.size();
+					dropSegments(Collections.singletonList(segment));
+				} else {
+					removed += segment.removeRange(startTime, endTime);
+				}
+			}
+		}
+		TimeRollup rollup = state.existingRollup();
+		if (rollup != null && removed > 0) {
+			//the ends of the range are counted again under the lock a move 
+			//publishes its history and takes its events out of the main map 
+			//with, so the recount never finds a moved event in both tiers
+			synchronized (state) {
+				rollup.removeRange(startTime, endTime, (from, to) -> countTiers(state, from, to));
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * Delta-encodes a bound of a range of the history map, saturating it 
+	 * when the delta does not fit in a long, as for the lowest timestamp.
+	 */
+	
+	private static long historyBound(long timestamp, long first) {
+		long encoded = DeltaEncoderDecoder.encode(timestamp, first);
+		if (((timestamp ^ first) & (timestamp ^ encoded)) < 0) {
+			return timestamp < first ? Long.MIN_VALUE : Long.MAX_VALUE;
+		}
+		return encoded;
+	}
+	
+	/**
+	 * Removes the entries of the range view in a single pass, each by key and
+	 * value, so an event put meanwhile in place of a removed one is kept as 
+	 * inserted after the removal.
+	 * 
+	 * @param map the skip list the range is a view of
+	 * @return the number of events removed
+	 */
+	
+	private static long removeEntries(TypeState state, ConcurrentSkipListMap<Long, Event> map,
+			ConcurrentNavigableMap<Long, Event> range) {
+		long removed = 0;
+		for (Map.Entry<Long, Event> entry : range.entrySet()) {
+			Event stored = entry.getValue();
+			if (state.remove(map, entry.getKey(), stored)) {
+				removed += EventBucket.events(stored).length;
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * Returns the types with events in the main map or in the history.
+	 * 
+	 * @return a new set of the types
+	 */
+	
+	Set<String> types() {
+		Set<String> types = new HashSet<>();
+		for (TypeState state : registry.states()) {
+			if (!state.version().isEmpty()) {
+				types.add(state.type);
+			}
+		}
+		return types;
+	}
+
+	/**
+	 * Retrieves a stream of the events of a given type in the given range. The
+	 * parts the range is split into are sized by {@link #count}, from the
+	 * rollup of the type, so a parallel stream only splits the parts with
+	 * enough events, wherever the tiers put them. A stream that is not read
+	 * to its end keeps queries open until it is closed.
+	 *
+	 * @param type      The type we are querying for.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return a sequential stream of the events, empty if there are no events of the type
+	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or
+	 * equal to {@code endTime}
+	 */
+
+	@Override
+	public Stream<Event> queryStream(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		return EventSpliterator.stream(this, type, startTime, endTime, (from, to) -> count(type, from, to));
+	}
+
+	/**
+	 * Counts the events of the given type whose timestamps range from
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive, without
+	 * creating them.
+	 *
+	 * <p>The events are counted with the rollup of the type, which keeps the
+	 * number of events per second, minute and hour as they are inserted and
+	 * removed (see {@link TimeRollup}): the hours inside the range are summed,
+	 * then the minutes and seconds at its ends, in O(buckets). Only the parts
+	 * of the range that do not fill a second are counted from the storage,
+	 * with {@link #countTiers}. As the rollup counts a type across the tiers,
+	 * moving events to the history does not change it.
+	 *
+	 * @param type the type of the events
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return the number of events, zero if there are no events of the type
+	 * @throws IllegalArgumentException if {@code type} is null or if
+	 * {@code startTime} is greater or equal to {@code endTime}
+	 */
+
+	@Override
+	public long count(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid count arguments: " + startTime + " : " + endTime);
+		}
+		TypeState state = registry.get(type);
+		if (state == null) {
+			return 0;
+		}
+		TimeRollup rollup = state.existingRollup();
+		if (rollup == null) {
+			return countTiers(state, startTime, endTime);
+		}
+		return rollup.count(startTime, endTime, (from, to) -> countTiers(state, from, to));
+	}
+
+	/**
+	 * Counts the events of the given type whose timestamps range from
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive, from the
+	 * tiers that hold them.
+	 *
+	 * <p>It reads the same tiers as {@link #query}, but straight from their
+	 * storage: the main and history maps are walked through their range views
+	 * (a bucket of duplicated events counted by its size), the history blocks
+	 * inside the range are counted by their size and only the blocks at its
+	 * ends are decoded, and the segments are counted through their index and
+	 * tombstone bitmap. The history thus costs O(blocks) rather than
+	 * O(events).
+	 */
+
+	private long countTiers(TypeState state, long startTime, long endTime) {
+		TypeVersion version = state.version();
+		long count = 0;
+		ConcurrentSkipListMap<Long, Event> events = version.main;
+		if (events != null) {
+			for (Event stored : events.subMap(startTime, endTime).values()) {
+				count += EventBucket.count(stored);
+			}
+		}
+		long limit = historyTimestampLimit.get();
+		if (startTime >= limit) {
+			return count;
+		}
+		ConcurrentSkipListMap<Long, Event> history = version.history;
+		Long first = version.reference;
+		if (history != null && first != null) {
+			long historicEndTime = Math.min(endTime, limit);
+			for (Event stored : history.subMap(historyBound(startTime, first),
+					historyBound(historicEndTime, first)).values()) {
+				count += EventBucket.count(stored);
+			}
+		}
+		HistoryBlocks blocks = version.blocks;
+		if (blocks != null) {
+			count += blocks.count(startTime, endTime);
+		}
+		List<HistorySegment> typeSegments = version.segments;
+		if (typeSegments != null) {
+			for (HistorySegment segment : typeSegments) {
+				if (segment.overlaps(startTime, endTime)) {
+					count += segment.count(startTime, endTime);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the events of the given type in buckets of the given width,
+	 * without creating them. The first bucket starts at {@code startTime} and
+	 * the last one ends at {@code endTime}.
+	 *
+	 * <p>The tiers are read as in {@link #count}. A history block that falls
+	 * in a single bucket is counted by its size, and the segments are counted
+	 * by the ends of the buckets when these hold many events each.
+	 *
+	 * @param type the type of the events
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @param bucketWidth the width of the buckets
+	 * @return the number of events in each bucket, in time order
+	 * @throws IllegalArgumentException if {@code type} is null, if
+	 * {@code startTime} is greater or equal to {@code endTime}, if
+	 * {@code bucketWidth} is not positive or if the range has more buckets
+	 * than an array holds
+	 */
+
+	@Override
+	public long[] histogram(String type, long startTime, long endTime, long bucketWidth) {
+		if (type == null) {
+			throw new IllegalArgumentException("invalid histogram arguments: null type");
+		}
+		TimestampHistogram histogram = new TimestampHistogram(startTime, endTime, bucketWidth);
+		TypeState state = registry.get(type);
+		if (state == null) {
+			return histogram.counts();
+		}
+		TypeVersion version = state.version();
+		ConcurrentSkipListMap<Long, Event> events = version.main;
+		if (events != null) {
+			for (Event stored : events.subMap(startTime, endTime).values()) {
+				histogram.add(histogram.bucket(stored.timestamp()), EventBucket.count(stored));
+			}
+		}
+		long limit = historyTimestampLimit.get();
+		if (startTime >= limit) {
+			return histogram.counts();
+		}
+		ConcurrentSkipListMap<Long, Event> history = version.history;
+		Long first = version.reference;
+		if (history != null && first != null) {
+			long historicEndTime = Math.min(endTime, limit);
+			for (Event stored : history.subMap(historyBound(startTime, first),
+					historyBound(historicEndTime, first)).values()) {
+				long original = DeltaEncoderDecoder.decode(stored.timestamp(), first);
+				histogram.add(histogram.bucket(original), EventBucket.count(stored));
+			}
+		}
+		HistoryBlocks blocks = version.blocks;
+		if (blocks != null) {
+			blocks.histogram(histogram);
+		}
+		List<HistorySegment> typeSegments = version.segments;
+		if (typeSegments != null) {
+			for (HistorySegment segment : typeSegments) {
+				if (segment.overlaps(histogram.startTime(), histogram.endTime())) {
+					segment.histogram(histogram);
+				}
+			}
+		}
+		return histogram.counts();
+	}
+
+	/**
+	 * <p> Returns an iterator for the events of a given type and whose timestamps
+	 * range from {@code startTime}, inclusive, to {@code endTime}, 
+	 * exclusive.
+	 * <p> It runs in O(log n), as we can access the skipList of the given time in a
+	 * constant time and the search for startTime and endTime runs in about 
+	 * in O(log n) each.
+	 * 
+	 * <p>It looks for the events in the main map and also in the history map. 
+	 * As the history do not tend do be queried so often, its timestamps have
+	 * been delta-encoded to save memory space. As such, they are decoded 
+	 * during the iteration, only when needed. The history segments on disk,
+	 * if any, are merged in the same iteration.
+	 * 
+	 * <p>The tiers are taken from the {@link TypeVersion} of the type, read 
+	 * once: a migration that creates a tier, or a removal of the type, that
+	 * happens meanwhile is either entirely seen by the query or not at all.
+	 * 
+	 * 
+	 * @param type      The type we are querying for.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return An iterator where all its events have same type as {@code type} and
+	 *         timestamp between {@code startTime} (inclusive) and {@code endTime}
+	 *         (exclusive). 
+	 * @throws IllegalArgumentException if {@code type} is null or if {@code startTime} is greater or 
+	 * equal to {@code endTime}, or if there is no events with {@code type} 
+	 * queried for.
+	 */
+
+	@Override
+	public EventIterator query(String type, long startTime, long endTime) {
+
+		if (type == null ||startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		return iterator(registry.get(type), startTime, endTime, false);
+	}
+
+	/**
+	 * Returns an iterator for the events of the type with the given id, as
+	 * {@link #query(String, long, long)} does, without looking the type up by
+	 * its name.
+	 * 
+	 * @param typeId    The id of the type, given by {@link #typeId}.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @return an iterator over the events of the range, in time order
+	 * @throws IllegalArgumentException if there is no type with the given id,
+	 * if {@code startTime} is greater or equal to {@code endTime}, or if there
+	 * is no events of the type.
+	 */
+
+	public EventIterator query(int typeId, long startTime, long endTime) {
+		if (startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		return iterator(state(typeId), startTime, endTime, false);
+	}
+
+	/**
+	 * Returns an iterator for the events of a given type in the given range
+	 * that pass the given predicate.
+	 * 
+	 * <p>If the predicate is an {@link AttributeFilter} on attributes indexed
+	 * with {@link #createIndex}, the events are found through the bitmaps of 
+	 * the indexes, which are ANDed chunk by chunk before the skip list is read
+	 * (see {@link IndexedEventIterator}): a selective filter costs the 
+	 * matching events rather than the events of the range. The history tiers
+	 * hold no attributes, so they are not read. Other predicates, and types 
+	 * with events inserted in the history map, are answered by testing the 
+	 * events of {@link #query(String, long, long)}.
+	 *
+	 * @param type      The type we are querying for.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @param predicate The predicate the events must pass.
+	 * @return an iterator over the events that pass the predicate, in time order
+	 * @throws IllegalArgumentException if {@code type} or {@code predicate} is 
+	 * null, if {@code startTime} is greater or equal to {@code endTime}, or if 
+	 * there is no events with {@code type} queried for.
+	 */
+	
+	@Override
+	public EventIterator query(String type, long startTime, long endTime, Predicate<Event> predicate) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		if (predicate == null) {
+			throw new IllegalArgumentException("invalid query predicate: null");
+		}
+		List<AttributeIndex> typeIndexes = indexes.get(type);
+		TypeState state = registry.get(type);
+		TypeVersion version = (state == null) ? TypeVersion.EMPTY : state.version();
+		ConcurrentSkipListMap<Long, Event> events = version.main;
+		if (predicate instanceof AttributeFilter && typeIndexes != null && events != null 
+				&& version.history == null) {
+			AttributeFilter filter = (AttributeFilter) predicate;
+			List<ConcurrentNavigableMap<Long, AtomicLongArray>> chunks = new ArrayList<>();
+			for (int i = 0; i < filter.size(); i++) {
+				for (AttributeIndex index : typeIndexes) {
+					if (index.attribute().equals(filter.name(i))) {
+						chunks.add(index.chunks(filter.value(i), startTime, endTime));
+					}
+				}
+			}
+			if (!chunks.isEmpty()) {
+				return new IndexedEventIterator(this, events, chunks, filter, startTime, endTime);
+			}
+		}
+		return new FilteredEventIterator(query(type, startTime, endTime), predicate);
+	}
+
+	/**
+	 * Returns an iterator for the events of a given type in the given range,
+	 * from the latest one, such as the last events of a type. The tiers are
+	 * walked backwards: the skip lists through their descending views, and
+	 * the history blocks and segments by decoding a block at a time from the
+	 * end of the range. The iteration stops after {@code limit} events, so
+	 * reading the last N events costs O(log n + N), wherever they are. The
+	 * events come in the exact reverse order of {@link #query}.
+	 *
+	 * @param type      The type we are querying for.
+	 * @param startTime Start timestamp (inclusive).
+	 * @param endTime   End timestamp (exclusive).
+	 * @param limit     The maximum number of events.
+	 * @return an iterator over the latest events of the range, in descending
+	 *         order of timestamp
+	 * @throws IllegalArgumentException if {@code type} is null, if {@code startTime} is greater or
+	 * equal to {@code endTime}, if {@code limit} is negative, or if there is no events with
+	 * {@code type} queried for.
+	 */
+
+	@Override
+	public EventIterator queryDescending(String type, long startTime, long endTime, int limit) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		if (limit < 0) {
+			throw new IllegalArgumentException("invalid query limit: " + limit);
+		}
+		return new LimitedEventIterator(iterator(registry.get(type), startTime, endTime, true), limit);
+	}
+
+	/**
+	 * Opens a snapshot query: an iterator over the events of the given type
+	 * within the range, as they were when it was opened, however the store
+	 * changes while it is read. A scan of it is repeatable: inserts, removals
+	 * and migrations to the history made meanwhile are not seen, and an event
+	 * being moved to the history is read from one tier only.
+	 * 
+	 * <p>The iterator takes the current sequence number of the type, and the
+	 * writes made from then on record the values they replace in a
+	 * {@link SnapshotLog}, so the iterator reads the main map as of its
+	 * sequence number; writers are never blocked by it. The history blocks are
+	 * read from the copy the iterator starts with, as any query does. The
+	 * history map, filled by {@link #insertInHistory}, and the removals from
+	 * the history segments are still read weakly consistently.
+	 * 
+	 * <p>The iterator must be closed: the values replaced since it was opened
+	 * are kept until then, and the log of the type is dropped once its last
+	 * snapshot is closed. {@link EventIterator#remove} removes the current 
+	 * event from the store, not from the snapshot.
+	 * 
+	 * @param type the type of the events
+	 * @param startTime start timestamp (inclusive)
+	 * @param endTime end timestamp (exclusive)
+	 * @return an iterator over the events as of now, in ascending order
+	 * @throws IllegalArgumentException if {@code type} is null, if 
+	 * {@code startTime} is greater than or equal to {@code endTime}, or if 
+	 * there is no events with {@code type} queried for.
+	 */
+	
+	public EventIterator querySnapshot(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		TypeState state = registry.get(type);
+		if (state == null) {
+			throw new IllegalArgumentException("no events of given type");
+		}
+		//the tiers and the sequence number are taken under the lock a 
+		//migration publishes the history with
+		synchronized (state) {
+			long snapshot = state.openSnapshot();
+			try {
+				EventIterator it = iterator(state, state.version(), state.snapshotLog(), snapshot, startTime, 
+						endTime, false);
+				return new SnapshotEventIterator(it, state, snapshot);
+			} catch (RuntimeException e) {
+				state.closeSnapshot(snapshot);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Creates an iterator over the tiers that may hold events of the range,
+	 * in ascending or descending order.
+	 */
+
+	private EventIterator iterator(TypeState state, long startTime, long endTime, boolean descending) {
+		if (state == null) {
+			throw new IllegalArgumentException("no events of given type");
+		}
+		return iterator(state, state.version(), null, 0, startTime, endTime, descending);
+	}
+
+	/**
+	 * Creates an iterator over the tiers of the given version.
+	 * 
+	 * @param changes the log the main map is read through, as of the given
+	 * snapshot, or null to read it as it is
+	 * @param snapshot the sequence number of the snapshot
+	 */
+
+	private EventIterator iterator(TypeState state, TypeVersion version, SnapshotLog changes, long snapshot,
+			long startTime, long endTime, boolean descending) {
+		//events can always be in the main event map 
+		//regardless of their timestamp
+		ConcurrentSkipListMap<Long, Event> events = version.main;
+		ConcurrentSkipListMap<Long, Event> history = version.history;
+		HistoryBlocks blocks = version.blocks;
+		List<HistorySegment> typeSegments = version.segments;
+		
+		if (history == null && events == null && blocks == null && typeSegments == null) {
+			throw new IllegalArgumentException("no events of given type");
+		}
+		
+		List<TimestampCursor> cursors = new ArrayList<>();
+		ConcurrentNavigableMap<Long, Event> subHistory = null;
+		long firstTimestamp = 0;
+		//startTime must be lower than the max timestamp in history
+		//and history must contain events. The limit is read once, so a 
+		//migration raising it meanwhile does not split the query
+		long limit = historyTimestampLimit.get();
+		if (startTime < limit && (history != null || blocks != null || typeSegments != null)) {
+			
+			//searching in the history blocks and segments, skipping the 
+			//segments outside the range
+			if (blocks != null) {
+				cursors.add(descending ? blocks.descendingCursor(startTime, endTime)
+						: blocks.cursor(startTime, endTime));
+			}
+			if (typeSegments != null) {
+				for (HistorySegment segment : typeSegments) {
+					if (!segment.overlaps(startTime, endTime)) {
+						continue;
+					}
+					cursors.add(descending ? segment.descendingCursor(startTime, endTime)
+							: segment.cursor(startTime, endTime));
+				}
+			}
+			
+			//searching in history
+			if (history != null) {
+				firstTimestamp = version.reference;
+				subHistory = historySubMap(version, startTime, Math.min(endTime, limit));
+				if (descending) {
+					subHistory = subHistory.descendingMap();
+				}
+			}
+		}
+		
+		//events in the main series, if the type has any
+		Iterator<Event> mainValues = null;
+		if (events != null) {
+			mainValues = (changes != null) ? changes.values(events, startTime, endTime, snapshot)
+					: range(events, startTime, endTime, descending).values().iterator();
+		}
+		return new ConcurrentEventStoreIterator(cursors, subHistory, mainValues, state, events, firstTimestamp, 
+				log, order, state.existingRollup(), descending);
+	}
+
+	private static ConcurrentNavigableMap<Long, Event> range(ConcurrentSkipListMap<Long, Event> events,
+			long startTime, long endTime, boolean descending) {
+		ConcurrentNavigableMap<Long, Event> range = events.subMap(startTime, endTime);
+		return descending ? range.descendingMap() : range;
+	}
+	
+	/**
+	 * Creates a cursor that walks the tiers of this store without allocating
+	 * for the events: it reads timestamps rather than events, and reuses the
+	 * cursors of the history on each reset (see
+	 * {@link ConcurrentEventStoreCursor}).
+	 *
+	 * @return a new cursor, placed over no events
+	 */
+
+	@Override
+	public EventCursor cursor() {
+		return new ConcurrentEventStoreCursor(this);
+	}
+
+	/**
+	 * Places the cursor over the tiers of the type that may hold events of
+	 * the range, as {@link #query} does. The history limit is read once, and
+	 * the history cursors the cursor already has are placed again.
+	 */
+
+	void place(ConcurrentEventStoreCursor cursor, String type, long startTime, long endTime) {
+		TypeState state = registry.get(type);
+		if (state == null) {
+			return;
+		}
+		TypeVersion version = state.version();
+		long limit = historyTimestampLimit.get();
+		if (startTime < limit) {
+			int slot = 0;
+			HistoryBlocks blocks = version.blocks;
+			if (blocks != null) {
+				cursor.cursor(slot, blocks.cursor(startTime, endTime, cursor.cursor(slot)));
+				slot++;
+			}
+			List<HistorySegment> typeSegments = version.segments;
+			if (typeSegments != null) {
+				for (HistorySegment segment : typeSegments) {
+					if (segment.overlaps(startTime, endTime)) {
+						cursor.cursor(slot, segment.cursor(startTime, endTime, cursor.cursor(slot)));
+						slot++;
+					}
+				}
+			}
+			ConcurrentSkipListMap<Long, Event> history = version.history;
+			Long first = version.reference;
+			if (history != null && first != null) {
+				cursor.history(history.subMap(historyBound(startTime, first),
+						historyBound(Math.min(endTime, limit), first)), first);
+			}
+		}
+		ConcurrentSkipListMap<Long, Event> events = version.main;
+		if (events != null) {
+			cursor.main(events.subMap(startTime, endTime));
+		}
+	}
+	
+	/**
+	 * Returns the part of the historical events of the given type
+	 * whose keys range from  fromKey, inclusive, to toKey, exclusive. 
+	 * (If fromKey and toKey are equal, the returned map is empty.) 
+	 * 
+	 * As the historical series were created using compressed timestamps and
+	 * indexes, the search in the history must use compressed startTime and
+	 * compressed endTime
+	 * 
+	 * @param version the tiers of the type of events
+	 * @param Start timestamp (inclusive).
+	 * @param historicEndTime End timestamp (exclusive), not above the history limit.
+	 * @return the submap containing the historical series
+	 */
+	
+	private static ConcurrentNavigableMap<Long, Event> historySubMap(TypeVersion version, long startTime, 
+			long historicEndTime) {
+		long first = version.reference;
+		
+		long compressedStart = DeltaEncoderDecoder.encode(startTime, first);
+		long compressedEnd = DeltaEncoderDecoder.encode(historicEndTime, first);
+		
+		ConcurrentSkipListMap<Long, Event> history = version.history;
+		return history.subMap(compressedStart, compressedEnd);
+		
+	}
+	
+	/**
+	 * 
+	 * <p>Moves the events of the given type older than the history limit to 
+	 * the history, compressing their timestamps. The history blocks keep the 
+	 * first timestamp of each block and, for the remaining ones, the 
+	 * zigzag-encoded delta-of-delta as a variable-length number. It runs in 
+	 * O(n) time complexity, as n being the number of events moved, plus the 
+	 * last history block that is encoded again.
+	 * 
+	 * <p>This method can be called by a job that 
+	 * runs periodically checking which events might be compressed and migrated 
+	 * to the history, such as {@link HistoryMigrator}. In addition, not to 
+	 * have more concurrent operations in the eventMap, a single-thread 
+	 * execution is encouraged. 
+	 * 
+	 * <p>As an example, if the timestamps are 111110, 111112, 111114, 111117,
+	 * the deltas are 2, 2, 3 and the stored delta-of-deltas are 2, 0, 1: a 
+	 * byte each. If the store has a history directory, the timestamps are 
+	 * written to a new {@link HistorySegment} file instead. The events with
+	 * attributes are not moved, as the history does not keep them.
+	 * 
+	 * <p>The history is published before the events are removed from the main
+	 * map, so a concurrent query may see an event twice for a moment, but never
+	 * misses it. If the type was removed meanwhile, the moved history is 
+	 * dropped.
+	 *
+	 * @param type type of the events to be moved to history
+	 */
+	
+	public void encodeAndMoveToHistory(String type) {
+		checkNotNull(type);
+		moveToHistory(type, historyTimestampLimit.get(), Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Moves at most {@code maxEntries} of the oldest entries of the main map
+	 * of the given type, older than the given limit, to the history. The 
+	 * entries of a bucket of duplicated timestamps move together. See
+	 * {@link #encodeAndMoveToHistory}.
+	 * 
+	 * <p>Moving a long range in batches keeps each move short: the history 
+	 * blocks re-encode only their last block per batch, and a writer racing
+	 * with the move contends with one batch at a time.
+	 * 
+	 * @param type type of the events to be moved to history
+	 * @param limit the timestamp below which events are moved; not greater 
+	 * than the history limit of the store
+	 * @param maxEntries maximum number of entries of the main map to be moved
+	 * @return the number of entries moved, lower than {@code maxEntries} if 
+	 * no entry older than the limit is left
+	 */
+	
+	int moveToHistory(String type, long limit, int maxEntries) {
+		TypeState state = registry.get(type);
+		if (state == null) {
+			return 0;
+		}
+		if (log == null) {
+			return moveToHistory(state, limit, maxEntries);
+		}
+		//a checkpoint waits for the moves in progress, whose events may be
+		//neither in its snapshot nor in a segment yet
+		checkpointLock.readLock().lock();
+		try {
+			return moveToHistory(state, limit, maxEntries);
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+	}
+	
+	private int moveToHistory(TypeState state, long limit, int maxEntries) {
+		//with a write-ahead log, the events are read and the move is logged
+		//under the locks of every timestamp of the type, so each change of a
+		//moved event is logged either before the move, and read by it, or 
+		//after it
+		boolean logged = log != null && historyDirectory != null;
+		long locks = (log == null) ? 0 : LogOrder.mask(state.type);
+		ConcurrentSkipListMap<Long, Event> events;
+		List<Event> moved = new ArrayList<>();
+		long[] timestamps;
+		long sequence = 0;
+		if (logged) {
+			order.lock(locks);
+		}
+		try {
+			events = state.version().main;
+			if (events == null) {
+				return 0;
+			}
+			ConcurrentNavigableMap<Long, Event> range = events.headMap(limit);
+			timestamps = historyTimestamps(range, maxEntries, moved);
+			if (timestamps.length == 0) {
+				return 0;
+			}
+			//the events left behind the last one moved, if any, are not in the 
+			//history; the replay keeps those with attributes below it
+			long last = timestamps[timestamps.length - 1];
+			long moveLimit = range.higherKey(last) == null ? limit : last + 1;
+			if (historyDirectory != null) {
+				int count = (timestamps.length + SEGMENT_CAPACITY - 1) / SEGMENT_CAPACITY;
+				sequence = segmentSequence.getAndAdd(count);
+				if (logged) {
+					log.movedToHistory(state.type, moveLimit, sequence, count);
+				}
+			}
+		} finally {
+			if (logged) {
+				order.unlock(locks);
+			}
+		}
+		
+		//the move is logged, and synced, before its segments are written: a 
+		//crash in between replays the events from the log, without the 
+		//segments, and a crash after it loads the segments, without the events
+		if (logged) {
+			log.sync();
+		}
+		List<HistorySegment> written = (historyDirectory == null) ? null : writeSegments(state, timestamps, sequence);
+		//the history is published together with the removal of its events
+		//from the main map, under the lock a snapshot query is opened with, so
+		//the snapshot reads the events from one tier or the other. With a log,
+		//the locks of every timestamp of the type are held too, so the 
+		//removals of the iterators, which are logged, see the main map as the
+		//move leaves it
+		Runnable undo;
+		if (log != null) {
+			order.lock(locks);
+		}
+		try {
+			undo = publishMove(state, events, moved, timestamps, written);
+		} finally {
+			if (log != null) {
+				order.unlock(locks);
+			}
+		}
+		if (state.version().main != events) {
+			//the type was removed meanwhile
+			undo.run();
+		}
+		return moved.size();
+	}
+	
+	/**
+	 * Publishes the history of a move and removes the moved events from the
+	 * main map.
+	 * 
+	 * @return what drops the published history, if the type was removed
+	 * meanwhile
+	 */
+	
+	private static Runnable publishMove(TypeState state, ConcurrentSkipListMap<Long, Event> events, List<Event> moved,
+			long[] timestamps, List<HistorySegment> written) {
+		Runnable undo;
+		synchronized (state) {
+			HistoryBlocks blocks = null;
+			if (written != null) {
+				state.addSegments(written);
+				undo = () -> {
+					state.removeSegments(written);
+					for (HistorySegment segment : written) {
+						segment.delete();
+					}
+				};
+			} else {
+				HistoryBlocks typeBlocks = state.blocks();
+				typeBlocks.addAll(timestamps, timestamps.length);
+				undo = () -> state.removeBlocks(typeBlocks);
+				blocks = typeBlocks;
+			}
+			//a writer may have merged into, replaced or removed a moved value
+			//since it was read: the moved events still there are taken out one
+			//by one, and the copies of the others leave the history, so no 
+			//event is in both tiers
+			for (Event stored : moved) {
+				long timestamp = stored.timestamp();
+				if (state.remove(events, timestamp, stored)) {
+					continue;
+				}
+				for (Event event : EventBucket.events(stored)) {
+					if (!state.removeEvent(events, timestamp, event)) {
+						dropMoved(written, blocks, timestamp);
+					}
+				}
+			}
+		}
+		return undo;
+	}
+	
+	/**
+	 * Takes one occurrence of the given timestamp out of the history written 
+	 * by a move, for an event that left the main map before the move could
+	 * remove it. The events of a timestamp in the history are alike, so any 
+	 * occurrence will do.
+	 * 
+	 * @param written the segments written by the move, or null
+	 * @param blocks the blocks the move was added to, if it wrote no segment
+	 */
+	
+	private static void dropMoved(List<HistorySegment> written, HistoryBlocks blocks, long timestamp) {
+		if (written == null) {
+			blocks.remove(timestamp);
+			return;
+		}
+		for (HistorySegment segment : written) {
+			TimestampCursor cursor = segment.cursor(timestamp, timestamp + 1);
+			while (cursor.hasNext()) {
+				cursor.next();
+				if (cursor.remove()) {
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the timestamp limit of the history. Queries starting below it
+	 * also look in the history.
+	 * 
+	 * @return the timestamp limit of the history
+	 */
+	
+	public long getHistoryTimestampLimit() {
+		return historyTimestampLimit.get();
+	}
+	
+	/**
+	 * Raises the timestamp limit of the history, if the given one is greater.
+	 * It must be raised before events are moved below it: a query reads the
+	 * limit once, and any query that may need the moved events takes the
+	 * history into account from then on.
+	 * 
+	 * @param limit the new timestamp limit
+	 * @return the timestamp limit in effect
+	 */
+	
+	long advanceHistoryTimestampLimit(long limit) {
+		return historyTimestampLimit.accumulateAndGet(limit, Math::max);
+	}
+	
+	/**
+	 * Returns the timestamps of the first entries of the given range, in order,
+	 * and collects the values they were read from. The entries with 
+	 * attributes, which the history does not keep, are skipped and stay in 
+	 * the main map.
+	 * 
+	 * @param range the range of the main map to be moved
+	 * @param maxEntries maximum number of entries to be read
+	 * @param moved where the values of the range are collected
+	 * @return the timestamps, repeated for the events of a bucket
+	 */
+	
+	private static long[] historyTimestamps(ConcurrentNavigableMap<Long, Event> range, int maxEntries, 
+			List<Event> moved) {
+		long[] timestamps = new long[64];
+		int count = 0;
+		for (Event stored : range.values()) {
+			if (moved.size() == maxEntries) {
+				break;
+			}
+			if (hasAttributes(stored)) {
+				continue;
+			}
+			moved.add(stored);
+			//a bucket of duplicated timestamps moves event by event
+			for (Event event : EventBucket.events(stored)) {
+				if (count == timestamps.length) {
+					timestamps = Arrays.copyOf(timestamps, count * 2);
+				}
+				timestamps[count++] = event.timestamp();
+			}
+		}
+		return Arrays.copyOf(timestamps, count);
+	}
+	
+	static boolean hasAttributes(Event stored) {
+		for (Event event : EventBucket.events(stored)) {
+			if (event.encodedAttributes() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Seals the timestamps into new segment files, to be published. The 
+	 * segments written before one that fails are deleted, so they are not 
+	 * loaded as history once a checkpoint dropped the record of the move.
+	 * 
+	 * @param state the state of the type of the events moved to history
+	 * @param timestamps the timestamps, in ascending order
+	 * @param sequence the sequence number of the first segment, the others 
+	 * following it
+	 * @return the new segments
+	 */
+	
+	private List<HistorySegment> writeSegments(TypeState state, long[] timestamps, long sequence) {
+		List<HistorySegment> written = new ArrayList<>();
+		try {
+			for (int from = 0; from < timestamps.length; from += SEGMENT_CAPACITY) {
+				int length = Math.min(SEGMENT_CAPACITY, timestamps.length - from);
+				long[] part = (from == 0) ? timestamps : Arrays.copyOfRange(timestamps, from, from + length);
+				Path file = historyDirectory.resolve(
+						String.format("%019d%s", sequence++, HistorySegment.SUFFIX));
+				written.add(HistorySegment.write(file, state.type, part, length, 
+						timestamps.length > SEGMENT_CAPACITY, new long[0]));
+			}
+		} catch (RuntimeException e) {
+			for (HistorySegment segment : written) {
+				segment.delete();
+			}
+			throw e;
+		}
+		return written;
+	}
+	
+	/**
+	 * Merges the small history segments of the given type into larger ones. 
+	 * Each move writes a segment of its own, so moving in batches piles up
+	 * small segments, and a query opens a cursor on each of those its range
+	 * overlaps. The segments are grouped by size, in tiers each 
+	 * {@link #COMPACTION_FAN_IN} times larger than the previous one, and 
+	 * {@code COMPACTION_FAN_IN} segments of a tier, the oldest first, are 
+	 * merged into one of the next tier. The segments larger than a fraction 
+	 * of {@link #SEGMENT_CAPACITY}, and the ones a move split, are left alone.
+	 * 
+	 * <p>The merged segments are replaced in the history at once, and deleted;
+	 * the queries still reading them are not affected, and their removals are
+	 * forwarded to the new segment. With a write-ahead log, the merge is 
+	 * logged and synced before the new segment is written, so the removals
+	 * recorded against it are replayed if it is dropped later.
+	 * 
+	 * @param type type of the events
+	 * @return the number of segments merged
+	 * @throws UncheckedIOException if a segment can not be written
+	 */
+	
+	int compactSegments(String type) {
+		TypeState state = registry.get(type);
+		if (state == null || historyDirectory == null) {
+			return 0;
+		}
+		checkpointLock.readLock().lock();
+		try {
+			int merged = 0;
+			List<HistorySegment> group;
+			while ((group = compactionGroup(state.version().segments)) != null && mergeSegments(state, group)) {
+				merged += group.size();
+			}
+			return merged;
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the first {@link #COMPACTION_FAN_IN} segments found of a tier, 
+	 * or null if no tier has as many
+	 */
+	
+	private static List<HistorySegment> compactionGroup(List<HistorySegment> segments) {
+		if (segments == null || segments.size() < COMPACTION_FAN_IN) {
+			return null;
+		}
+		Map<Integer, List<HistorySegment>> tiers = new HashMap<>();
+		for (HistorySegment segment : segments) {
+			int size = segment.size();
+			if (segment.isSplit() || size > SEGMENT_CAPACITY / COMPACTION_FAN_IN) {
+				continue;
+			}
+			int tier = 0;
+			for (; size >= COMPACTION_FAN_IN; size /= COMPACTION_FAN_IN) {
+				tier++;
+			}
+			List<HistorySegment> group = tiers.computeIfAbsent(tier, t -> new ArrayList<>());
+			group.add(segment);
+			if (group.size() == COMPACTION_FAN_IN) {
+				return group;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Merges the given segments into a new one and puts it in their place.
+	 * The events are copied without holding any lock; the events removed
+	 * from the segments meanwhile are removed from the new one when it is
+	 * published, under the lock of the state.
+	 * 
+	 * @return whether the segments were replaced, or false if one of them 
+	 * was dropped meanwhile
+	 */
+	
+	private boolean mergeSegments(TypeState state, List<HistorySegment> group) {
+		long sequence = segmentSequence.getAndIncrement();
+		long[] sources = new long[group.size()];
+		for (int i = 0; i < sources.length; i++) {
+			sources[i] = group.get(i).sequence();
+		}
+		if (log != null) {
+			log.compactedSegments(state.type, sequence, sources);
+			log.sync();
+		}
+		HistorySegment merged = HistorySegment.merge(
+				historyDirectory.resolve(String.format("%019d%s", sequence, HistorySegment.SUFFIX)), group);
+		synchronized (state) {
+			if (!state.replaceSegments(group, merged)) {
+				merged.delete();
+				return false;
+			}
+			for (HistorySegment segment : group) {
+				segment.replaceBy(merged);
+			}
+		}
+		for (HistorySegment segment : group) {
+			segment.delete();
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes a snapshot of the events of the store (the main map, the history
+	 * map with its reference timestamps, and the history blocks) to the given
+	 * file.
+	 * 
+	 * <p>Writers are not stopped. Each type is read as of a single moment: 
+	 * its tiers are taken, and a snapshot query opened on its skip lists, 
+	 * under the lock a move to the history is published with, as a 
+	 * {@link #checkpoint} does, so an event being inserted, removed or moved
+	 * meanwhile is in the snapshot once, or not at all. The skip lists are 
+	 * read through the {@link SnapshotLog} of the type, and the history 
+	 * blocks are copied under the lock. The history segments, if any, are not
+	 * part of the snapshot, as they are already on disk. See 
+	 * {@link StoreSnapshot} for the format.
+	 * 
+	 * @param file the snapshot file, replaced if it exists
+	 * @throws NullPointerException if the file is null
+	 * @throws UncheckedIOException if the file can not be written
+	 */
+	
+	public void snapshot(Path file) {
+		checkNotNull(file);
+		Map<String, List<Event>> main = new HashMap<>();
+		Map<String, List<Event>> history = new HashMap<>();
+		Map<String, Long> references = new HashMap<>();
+		Map<String, long[]> blocks = new HashMap<>();
+		Map<TypeState, TypeVersion> versions = new HashMap<>();
+		Map<TypeState, Long> snapshots = new HashMap<>();
+		try {
+			for (TypeState state : registry.states()) {
+				synchronized (state) {
+					TypeVersion version = state.version();
+					if (version.blocks != null) {
+						blocks.put(state.type, version.blocks.timestamps());
+					}
+					if (version.main != null || version.history != null) {
+						snapshots.put(state, state.openSnapshot());
+						versions.put(state, version);
+					}
+				}
+			}
+			for (Map.Entry<TypeState, TypeVersion> entry : versions.entrySet()) {
+				TypeState state = entry.getKey();
+				TypeVersion version = entry.getValue();
+				long snapshot = snapshots.get(state);
+				if (version.main != null) {
+					main.put(state.type, snapshotEvents(state, version.main, snapshot));
+				}
+				if (version.history != null && version.reference != null) {
+					history.put(state.type, snapshotEvents(state, version.history, snapshot));
+					references.put(state.type, version.reference);
+				}
+			}
+		} finally {
+			for (Map.Entry<TypeState, Long> snapshot : snapshots.entrySet()) {
+				snapshot.getKey().closeSnapshot(snapshot.getValue());
+			}
+		}
+		StoreSnapshot.write(file, main, history, references, blocks);
+	}
+	
+	/**
+	 * @return the events of a skip list of the given type as of the given 
+	 * snapshot, in ascending order of key
+	 */
+	
+	private static List<Event> snapshotEvents(TypeState state, ConcurrentSkipListMap<Long, Event> map, 
+			long snapshot) {
+		List<Event> events = new ArrayList<>();
+		Iterator<Event> values = state.snapshotLog().values(map, snapshot);
+		while (values.hasNext()) {
+			events.addAll(Arrays.asList(EventBucket.events(values.next())));
+		}
+		return events;
+	}
+	
+	/**
+	 * Cuts the write-ahead log of the store, which would otherwise grow, and 
+	 * take longer to replay, for the life of the store. A snapshot of the 
+	 * events is written next to the log, and the log is replaced by one that
+	 * starts from the snapshot, followed by the records appended while the 
+	 * snapshot was written (see {@link WriteAheadLog}). A store created on the
+	 * log afterwards loads the snapshot and replays those records.
+	 * 
+	 * <p>The snapshot is taken, and the log marked, under the locks of every 
+	 * timestamp, so no logged change is halfway through, and the main map of
+	 * each type is read as of that moment through a snapshot query (see 
+	 * {@link #querySnapshot}); the writers only wait for the mark, not for the
+	 * snapshot to be written. The history blocks and map are copied, and go 
+	 * to the main column of the snapshot, as the log replays every event to 
+	 * the main map. The segments are not part of it, as they are durable on 
+	 * their own; a checkpoint waits for the moves to segments in progress.
+	 * 
+	 * @throws IllegalStateException if the store has no write-ahead log, or
+	 * if the log is closed
+	 * @throws UncheckedIOException if the snapshot or the log can not be 
+	 * written
+	 */
+	
+	public void checkpoint() {
+		if (log == null) {
+			throw new IllegalStateException("a store without a write-ahead log is saved with a snapshot");
+		}
+		checkpointLock.writeLock().lock();
+		try {
+			Map<String, List<Event>> runs = new HashMap<>();
+			Map<TypeState, TypeVersion> versions = new HashMap<>();
+			Map<TypeState, Long> snapshots = new HashMap<>();
+			Path file;
+			try {
+				order.lock(LogOrder.ALL);
+				try {
+					for (TypeState state : registry.states()) {
+						synchronized (state) {
+							TypeVersion version = state.version();
+							runs.put(state.type, historyEvents(state.type, version));
+							if (version.main != null) {
+								snapshots.put(state, state.openSnapshot());
+								versions.put(state, version);
+							}
+						}
+					}
+					file = log.mark();
+				} finally {
+					order.unlock(LogOrder.ALL);
+				}
+				for (Map.Entry<TypeState, TypeVersion> version : versions.entrySet()) {
+					TypeState state = version.getKey();
+					runs.get(state.type).addAll(snapshotEvents(state, version.getValue().main, snapshots.get(state)));
+				}
+			} finally {
+				for (Map.Entry<TypeState, Long> snapshot : snapshots.entrySet()) {
+					snapshot.getKey().closeSnapshot(snapshot.getValue());
+				}
+			}
+			for (List<Event> run : runs.values()) {
+				run.sort(Comparator.comparingLong(Event::timestamp));
+			}
+			StoreSnapshot.write(file, runs);
+			log.checkpoint();
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the events of the history blocks and map of the given version, 
+	 * with their original timestamps
+	 */
+	
+	private static List<Event> historyEvents(String type, TypeVersion version) {
+		List<Event> events = new ArrayList<>();
+		if (version.blocks != null) {
+			for (long timestamp : version.blocks.timestamps()) {
+				events.add(new Event(type, timestamp));
+			}
+		}
+		if (version.history != null && version.reference != null) {
+			for (Map.Entry<Long, Event> entry : version.history.entrySet()) {
+				long timestamp = DeltaEncoderDecoder.decode(entry.getKey(), version.reference);
+				for (Event event : EventBucket.events(entry.getValue())) {
+					events.add(new Event(type, timestamp, event.encodedAttributes()));
+				}
+			}
+		}
+		return events;
+	}
+	
+	/**
+	 * Loads a snapshot written by {@link #snapshot(Path)}. Each type of the 
+	 * snapshot replaces the events of that type in the store; the other types
+	 * are kept, and the history limit is raised above the loaded history. The
+	 * skip lists are built straight from the sorted snapshot 
+	 * data, in linear time, and the types are loaded in parallel. The 
+	 * attributes of the loaded events are copied to the arena of their type,
+	 * and the indexes of the type are rebuilt from them.
+	 * 
+	 * <p>The loaded events are not recorded in the write-ahead log, so a store
+	 * with a log can not be restored: it is rebuilt from its log instead, 
+	 * which a {@link #checkpoint} keeps short.
+	 * 
+	 * @param file the snapshot file
+	 * @throws NullPointerException if the file is null
+	 * @throws IllegalStateException if the store has a write-ahead log, or if
+	 * the file is not a valid snapshot
+	 * @throws UncheckedIOException if the file can not be read
+	 */
+	
+	public void restore(Path file) {
+		checkNotNull(file);
+		if (log != null) {
+			throw new IllegalStateException("a store with a write-ahead log is restored from its log");
+		}
+		for (StoreSnapshot.TypeImage image : StoreSnapshot.read(file, keepDuplicates)) {
+			TypeState state = registry.state(image.type);
+			emptyIndexes(image.type);
+			state.restore(offHeap(state, image.events), offHeap(state, image.history), image.reference, 
+					image.blocks);
+			if (indexed && image.events != null) {
+				for (Event stored : image.events.values()) {
+					for (Event event : EventBucket.events(stored)) {
+						if (event.encodedAttributes() != null) {
+							index(event);
+						}
+					}
+				}
+			}
+			coverHistory(state.version());
+			rebuildRollup(state);
+		}
+	}
+	
+	/**
+	 * Returns the timestamp used as reference for delta-encoding  of the timestamps
+	 * of the events of the given type.
+	 * 
+	 * @param type of the event
+	 * @return reference timestamp used in delta encode of the history of th
+	 * events of the given type
+	 */
+	
+	public Long getFirstHistoricalTimestamp(String type) {
+		checkNotNull(type);
+		TypeState state = registry.get(type);
+	
+		return (state == null) ? null : state.version().reference;
+	}
+	
+	/** Creates an new event with its timestamp delta-encoded based on the
+	 * {@code firstTimestamp}
+	 * 
+	 * @param event
+	 * @param firstTimestamp
+	 * @return the compresed event
+	 */
+	
+	public Event createCompressedEvent(Event event, long firstTimestamp) {
+		
+		//the timestamp attribute of the Event class is final 
+		//we need to create another event and remove the original one 
+		//from the map. it not possible to just move the event object
+		long delta = DeltaEncoderDecoder.encode(event.timestamp(), firstTimestamp);
+		Event compressedEvent = new Event(event.type(), delta, event.encodedAttributes()); 
+		
+		return compressedEvent;
+	}
+	
+
+	/**
+	 * Insert events in the history map.
+	 * 
+	 * <p>The first event of the history map of a type sets the reference 
+	 * timestamp its keys are delta-encoded against, the one the event was 
+	 * compressed with. An event compressed against another reference is 
+	 * encoded again against the one of the map. The history limit is raised
+	 * above the event, so the queries, counts and histograms starting below
+	 * it find it. As in {@link #insertInto}, an event that raced with 
+	 * {@link #removeAll} is inserted again in the map that replaced the 
+	 * detached one.
+	 * 
+	 * @param event event to be inserted, compressed with 
+	 * {@link #createCompressedEvent}
+	 * @param originalTimestamp the timestamp of the event before it was 
+	 * compressed
+	 * @throws NullPointerException is given event is null
 	 */
 	
 	public void insertInHistory (Event event, long originalTimestamp) {
 		checkNotNull(event);
-		historyMap.compute(event.type(), (key, value) -> {
-			if (value == null) {
-				value = new ConcurrentSkipListMap<>();
+		TypeState state = registry.state(event.type());
+		Event stored = offHeap(state, event);
+		advanceHistoryTimestampLimit(originalTimestamp == Long.MAX_VALUE ? originalTimestamp : originalTimestamp + 1);
+		while (true) {
+			TypeVersion version = state.history(originalTimestamp - event.timestamp());
+			long delta = DeltaEncoderDecoder.encode(originalTimestamp, version.reference);
+			Event compressed = (delta == stored.timestamp()) ? stored
+					: new Event(stored.type(), delta, stored.encodedAttributes());
+			boolean added = state.put(version.history, compressed, keepDuplicates);
+			if (state.version().history == version.history) {
+				if (added) {
+					state.rollup().add(originalTimestamp, 1);
+				}
+				return;
 			}
-			value.put(event.timestamp(), event);
-			return value;
-		});
+		}
 	}
 
 	/**
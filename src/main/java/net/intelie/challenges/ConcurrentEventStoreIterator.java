@@ -1,85 +1,273 @@
 package net.intelie.challenges;
 
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.Base64.Decoder;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * Iterator over the events of a type in {@link ConcurrentEventStore}.
+ *
+ * <p>The events may come from several tiers: the cursors of the history 
+ * (compressed blocks in the heap and segments on disk), the history map and
+ * the main map. Each tier is sorted, and the
+ * iterator merges them, always returning the event with the lowest timestamp
+ * among the next ones of each tier. In that way the events come in time order
+ * even if an event older than the history limit was inserted in the main map
+ * after the history was moved. The number of tiers is small, so the lowest
+ * one is found by a linear scan.
+ *
+ * <p>A descending iterator merges descending tiers the same way, taking the
+ * highest timestamp instead, so its events come in the reverse order of an
+ * ascending one over the same range, equal timestamps included.
+ *
+ * <p>The main map may also be read through an iterator of its values as of
+ * a snapshot (see {@link ConcurrentEventStore#querySnapshot}). The removals
+ * from the main map then go through the state of the type, which records
+ * them for the open snapshots.
+ */
 public class ConcurrentEventStoreIterator implements EventIterator {
-	
+
+	private static final int NONE = 0;
+	private static final int CURSOR = 1;
+	private static final int HISTORY = 2;
+	private static final int MAIN = 3;
+
+	private TimestampCursor[] cursors;
+	private ConcurrentNavigableMap<Long, Event> history;
+	private ConcurrentNavigableMap<Long, Event> main;
 	private Iterator<Event> historyIterator;
 	private Iterator<Event> mainIterator;
-	
+
+	/** next stored values of the maps, already taken from their iterators **/
+	private Event historyHead;
+	private Event mainHead;
+
+	/** state of the type, where the removals from the main map go; null if
+	 * they are made on {@code main} itself **/
+	private TypeState state;
+	/** the main skip list the values of the main map are read from **/
+	private ConcurrentSkipListMap<Long, Event> mainMap;
+
+	/** tier of the current event, {@code NONE} if there is no current event **/
+	private int source = NONE;
 	private Event current;
-	private boolean isHistorical;
+	private TimestampCursor currentCursor;
+	private long currentCursorTimestamp;
 	private long timestamp;
-	
-	public ConcurrentEventStoreIterator(Iterator<Event> iterator) {
-		if (iterator ==  null) {
+
+	/** where removals are recorded, null if they are not logged **/
+	private WriteAheadLog log;
+	/** locks under which the removals are logged and applied, or null **/
+	private LogOrder order;
+
+	/** counts of the type, updated on removals; null if there are none **/
+	private TimeRollup rollup;
+
+	/** whether the tiers are descending, and the highest timestamp comes first **/
+	private final boolean descending;
+
+	/** bucket of duplicated timestamps being walked, if any **/
+	private EventBucket bucket;
+	private int bucketIndex;
+
+	public ConcurrentEventStoreIterator(ConcurrentNavigableMap<Long, Event> main) {
+		this(Collections.emptyList(), null, main, 0, null, null, false);
+		if (main ==  null) {
 			throw new NullPointerException();
 		}
-		this.mainIterator = iterator;
 	}
-	
+
 	/**
-	 * It creates an iterator of events that can iterate in the 
-	 * historical event series and also in the main one. 
-	 * 
-	 * @param historyIt iterator of the history collection
-	 * @param mainIt iterator of the main collection
-	 * @throws NullPointerException if both given iterators are null
+	 * It creates an iterator of events that can iterate in the
+	 * historical event series and also in the main one.
+	 *
+	 * @param history the range of the history map to be iterated
+	 * @param main the range of the main map to be iterated
+	 * @param timestamp the reference timestamp of the history encoding
+	 * @throws NullPointerException if both given maps are null
 	 */
-	
-	public ConcurrentEventStoreIterator(Iterator<Event> historyIt, Iterator<Event> mainIt, long timestamp) {
-		if (historyIt == null && mainIt == null) {
+
+	public ConcurrentEventStoreIterator(ConcurrentNavigableMap<Long, Event> history,
+			ConcurrentNavigableMap<Long, Event> main, long timestamp) {
+		this(Collections.emptyList(), history, main, timestamp, null, null, false);
+		if (history == null && main == null) {
 			throw new NullPointerException();
 		}
-		this.historyIterator = historyIt;
-		this.mainIterator = mainIt;
+	}
+
+	/**
+	 * It creates an iterator that also merges cursors over the history.
+	 *
+	 * @param cursors cursors over the ranges of the history blocks and segments
+	 * @param history the range of the history map to be iterated, or null
+	 * @param main the range of the main map to be iterated, or null
+	 * @param timestamp the reference timestamp of the history map encoding
+	 * @param log where the removals of the maps are recorded, or null
+	 * @param rollup the counts of the type, updated on removals, or null
+	 * @param descending whether the cursors and the maps are in descending order
+	 */
+
+	ConcurrentEventStoreIterator(List<? extends TimestampCursor> cursors,
+			ConcurrentNavigableMap<Long, Event> history,
+			ConcurrentNavigableMap<Long, Event> main, long timestamp, WriteAheadLog log, TimeRollup rollup,
+			boolean descending) {
+		this(cursors, history, main == null ? null : main.values().iterator(), null, null, timestamp, log,
+				null, rollup, descending);
+		this.main = main;
+	}
+
+	/**
+	 * It creates an iterator whose removals from the main map go through the
+	 * state of the type.
+	 *
+	 * @param mainValues the values of the range of the main map, in the order
+	 * of the iteration, or null
+	 * @param state the state of the type
+	 * @param mainMap the main skip list of the values, or null
+	 * @param order the locks the removals are logged and applied under, or
+	 * null
+	 */
+
+	ConcurrentEventStoreIterator(List<? extends TimestampCursor> cursors,
+			ConcurrentNavigableMap<Long, Event> history, Iterator<Event> mainValues, TypeState state,
+			ConcurrentSkipListMap<Long, Event> mainMap, long timestamp, WriteAheadLog log, LogOrder order,
+			TimeRollup rollup, boolean descending) {
+		this.cursors = cursors.toArray(new TimestampCursor[cursors.size()]);
+		this.history = history;
+		this.historyIterator = history == null ? null : history.values().iterator();
+		this.mainIterator = mainValues;
+		this.state = state;
+		this.mainMap = mainMap;
 		this.timestamp = timestamp;
+		this.log = log;
+		this.order = order;
+		this.rollup = rollup;
+		this.descending = descending;
 	}
-		
+
 	/**
-	 * Move the iterator to the next event, if there is one. 
-	 * 
-	 * @return {@code true} if the iterator was moved to the next event, 
+	 * Move the iterator to the next event, if there is one.
+	 *
+	 * @return {@code true} if the iterator was moved to the next event,
 	 * {@code false} otherwise
-	 * @throws IllegalStateException if {@link #moveNext} was never called
-     *                               or its last result was {@code false}.
 	 */
-	
+
 	@Override
 	public boolean moveNext() {
-		
-		if (historyIterator != null && historyIterator.hasNext()) {
-			current = historyIterator.next();
-			isHistorical = true;
-			return true;
+
+		if (bucket != null) {
+			bucketIndex += descending ? -1 : 1;
+			if (bucketIndex >= 0 && bucketIndex < bucket.size()) {
+				current = bucket.get(bucketIndex);
+				return true;
+			}
+			bucket = null;
+		}
+
+		if (historyHead == null && historyIterator != null && historyIterator.hasNext()) {
+			historyHead = historyIterator.next();
 		}
-		
-		if (mainIterator != null && mainIterator.hasNext()) {
-			current = mainIterator.next();
-			isHistorical = false;
+		if (mainHead == null && mainIterator != null && mainIterator.hasNext()) {
+			mainHead = mainIterator.next();
+		}
+
+		//the tier with the lowest next timestamp wins, history on ties; the
+		//highest when descending, the main map on ties
+		int next = NONE;
+		long lowest = Long.MAX_VALUE;
+		TimestampCursor lowestCursor = null;
+		for (TimestampCursor cursor : cursors) {
+			if (cursor.hasNext() && (next == NONE || precedes(cursor.peek(), lowest))) {
+				next = CURSOR;
+				lowest = cursor.peek();
+				lowestCursor = cursor;
+			}
+		}
+		if (historyHead != null) {
+			long decoded = DeltaEncoderDecoder.decode(historyHead.timestamp(), timestamp);
+			if (next == NONE || precedes(decoded, lowest)) {
+				next = HISTORY;
+				lowest = decoded;
+			}
+		}
+		if (mainHead != null && (next == NONE || precedes(mainHead.timestamp(), lowest))) {
+			next = MAIN;
+		}
+
+		source = next;
+		switch (next) {
+		case CURSOR:
+			currentCursor = lowestCursor;
+			currentCursorTimestamp = lowestCursor.next();
+			return true;
+		case HISTORY:
+			setCurrent(historyHead);
+			historyHead = null;
+			return true;
+		case MAIN:
+			setCurrent(mainHead);
+			mainHead = null;
 			return true;
+		default:
+			current = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Whether the next timestamp of a tier comes before the one of the tiers
+	 * scanned before it. Ties go to the earlier tier when ascending and to the
+	 * later one when descending, so the order is exactly reversed.
+	 */
+
+	private boolean precedes(long timestamp, long other) {
+		return descending ? timestamp >= other : timestamp < other;
+	}
+
+	/**
+	 * Makes the given stored value the current one, descending into it if
+	 * it is a bucket of events with duplicated timestamps.
+	 */
+
+	private void setCurrent(Event stored) {
+		if (stored instanceof EventBucket) {
+			bucket = (EventBucket) stored;
+			bucketIndex = descending ? bucket.size() - 1 : 0;
+			current = bucket.get(bucketIndex);
+		} else {
+			current = stored;
 		}
-		
-		return false;
-		
 	}
 
 	@Override
 	public void close() throws Exception {
+		cursors = new TimestampCursor[0];
+		history = null;
+		main = null;
 		historyIterator = null;
 		mainIterator = null;
+		historyHead = null;
+		mainHead = null;
+		state = null;
+		mainMap = null;
+		source = NONE;
 		current = null;
-		
+		currentCursor = null;
+		bucket = null;
+		log = null;
+		rollup = null;
+
 	}
 
 	/**
-	 * Returns the current event of the iteration. 
-	 * If the event is historical, its timestamp is compressed, so 
+	 * Returns the current event of the iteration.
+	 * If the event is historical, its timestamp is compressed, so
 	 * it decompresses, creating a new event with its original noncompressed
 	 * timestamp. In that way, only when this method is called, the decompression
-	 * takes place.   
-	 * 
+	 * takes place. Events of the history cursors are also created here.
+	 *
 	 * @return the current event
 	 * @throws IllegalStateException if {@link #moveNext} was never called
      *                               or its last result was {@code false}.
@@ -87,42 +275,143 @@ public class ConcurrentEventStoreIterator implements EventIterator {
 
 	@Override
 	public Event current() {
-		if (current == null) {
-			throw new IllegalStateException();
-		}
-		
-		if (isHistorical) {
+		switch (source) {
+		case CURSOR:
+			return new Event(currentCursor.type(), currentCursorTimestamp);
+		case HISTORY:
 			//decompressing the timestamp of historical series
 			long original = DeltaEncoderDecoder.decode(current.timestamp(), timestamp);
-			
-			return new Event(current.type(), original);
+			return new Event(current.type(), original, current.encodedAttributes());
+		case MAIN:
+			return current;
+		default:
+			throw new IllegalStateException();
 		}
-		
-		return current;
 	}
 
 	/**
-	 * Removes the current event of the iteration
+	 * Removes the current event of the iteration.
+	 *
+	 * <p>The event is removed by identity: if the timestamp holds a bucket of
+	 * duplicated events, only the current one is taken out of it, and if the
+	 * event was replaced in the meantime the replacement is kept. Events of
+	 * the history segments are marked as removed in their segment, the others
+	 * are recorded in the write-ahead log of the store, if it has one. Events
+	 * of the history blocks are removed by timestamp. A removal is also
+	 * counted in the rollup of the type.
+	 *
+	 * <p>With a log, the removal is logged and applied under the lock of its
+	 * timestamp, so no other change of the timestamp comes in between. The
+	 * removal from a map is checked first, and logged before it is applied;
+	 * only the cursor of a tier of the history knows whether its event is
+	 * still there, so that removal is logged once the cursor made it.
 	 */
-	
+
 	@Override
 	public void remove() {
-		
-		if (current == null) {
+
+		if (source == NONE) {
 			throw new IllegalStateException();
 		}
-		
-		if (isHistorical) {
-			historyIterator.remove();
-		} 
-		
-		else {
-			mainIterator.remove();
+		long removedTimestamp = (source == CURSOR) ? currentCursorTimestamp
+				: (source == HISTORY) ? DeltaEncoderDecoder.decode(current.timestamp(), timestamp)
+						: current.timestamp();
+		boolean removed;
+		if (log == null) {
+			removed = (source == CURSOR) ? currentCursor.remove() : removeCurrent();
+		} else {
+			String type = (source == CURSOR) ? currentCursor.type() : current.type();
+			long locked = (order == null) ? 0 : order.lock(type, removedTimestamp);
+			try {
+				removed = (source == CURSOR) ? removeLogged(type) : removeCurrentLogged(removedTimestamp);
+			} finally {
+				if (order != null) {
+					order.unlock(locked);
+				}
+			}
+		}
+		if (removed && rollup != null) {
+			rollup.add(removedTimestamp, -1);
 		}
 	}
-	
 
-	
-	
+	/**
+	 * Removes the current event of a cursor and logs the removal.
+	 * Segments keep their removals on disk, the blocks in the heap do not;
+	 * the log still names the segment, in case it is dropped later.
+	 */
+
+	private boolean removeLogged(String type) {
+		if (!currentCursor.remove()) {
+			return false;
+		}
+		HistorySegment segment = (currentCursor instanceof HistorySegment.Cursor)
+				? ((HistorySegment.Cursor) currentCursor).segment()
+				: (currentCursor instanceof HistorySegment.DescendingCursor)
+						? ((HistorySegment.DescendingCursor) currentCursor).segment()
+						: null;
+		if (segment != null) {
+			log.removeFromSegment(type, currentCursorTimestamp, segment.sequence());
+		} else {
+			log.remove(type, currentCursorTimestamp, null);
+		}
+		return true;
+	}
+
+	/**
+	 * Logs the removal of the current event of a map, if it is still there,
+	 * and removes it. No other logged change of its timestamp can come in
+	 * between, as they are all made under the lock held by the caller.
+	 */
+
+	private boolean removeCurrentLogged(long original) {
+		Long key = current.timestamp();
+		ConcurrentNavigableMap<Long, Event> map = (source == HISTORY) ? history
+				: (state != null) ? mainMap : main;
+		Event stored = map.get(key);
+		if (stored == null || EventBucket.without(stored, current) == stored) {
+			return false;
+		}
+		log.remove(current.type(), original, current.encodedAttributes());
+		return removeCurrent();
+	}
+
+	/**
+	 * Removes the current event of a map.
+	 *
+	 * @return whether it was removed
+	 */
+
+	private boolean removeCurrent() {
+		Long key = current.timestamp();
+		return (source == MAIN && state != null)
+				? state.removeEvent(mainMap, key, current)
+				: removeFrom(source == HISTORY ? history : main, key);
+	}
+
+	/**
+	 * Takes the current event out of the value stored at the given key.
+	 *
+	 * @return whether it was removed
+	 */
+
+	private boolean removeFrom(ConcurrentNavigableMap<Long, Event> map, Long key) {
+		while (true) {
+			Event stored = map.get(key);
+			if (stored == null) {
+				return false;
+			}
+			Event remaining = EventBucket.without(stored, current);
+			if (remaining == stored) {
+				return false;
+			}
+			boolean swapped = (remaining == null)
+					? map.remove(key, stored)
+					: map.replace(key, stored, remaining);
+			if (swapped) {
+				return true;
+			}
+		}
+	}
 
 }
@@ -1,12 +1,18 @@
 package net.intelie.challenges;
+
+import java.nio.ByteBuffer;
+
 /**
  * Class that encodes long values using delta-encoding and 
  * decodes delta-encoded values. 
  * In Delta encoding, only the difference between two values are stored. 
  * In the following time series of 100000, 100000, 100001, 100005, the return
  * compressed would be 100000 (as the first is kept as reference), 0, 1, 5.
- * As long values are still being used, 
- * this is just to show the thought that we can compress historical timestamps
+ * A delta kept in a long saves nothing by itself; what saves space is 
+ * writing it with a variable number of bytes, as the history blocks and 
+ * segments do. Signed values, such as the delta-of-delta of regularly spaced
+ * timestamps, are zigzag-encoded first, so small negative values also take a
+ * single byte.
  * 
  * 
  * @author Felipe Nogueira
@@ -41,5 +47,76 @@ public class DeltaEncoderDecoder {
 		return timestamp + firstTimestamp;
 				
 	}
+	
+	/**
+	 * Writes a non-negative delta with a variable number of bytes: 7 bits 
+	 * per byte, the highest bit telling whether another byte follows. Deltas
+	 * between close timestamps take one or two bytes instead of eight.
+	 * 
+	 * @param buffer where the delta is written, at its position
+	 * @param delta the delta to be written, treated as unsigned
+	 */
+	public static void putVarLong(ByteBuffer buffer, long delta) {
+		while ((delta & ~0x7FL) != 0) {
+			buffer.put((byte) ((delta & 0x7F) | 0x80));
+			delta >>>= 7;
+		}
+		buffer.put((byte) delta);
+	}
+	
+	/**
+	 * Reads a delta written by {@link #putVarLong}, at the position of the
+	 * buffer.
+	 * 
+	 * @param buffer where the delta is read from
+	 * @return the delta
+	 */
+	public static long getVarLong(ByteBuffer buffer) {
+		long delta = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			delta |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return delta;
+	}
+	
+	/**
+	 * Maps a signed value to an unsigned one where values close to zero, 
+	 * negative or positive, are small: 0, -1, 1, -2, 2 become 0, 1, 2, 3, 4.
+	 * 
+	 * @param value the signed value
+	 * @return the zigzag-encoded value
+	 */
+	public static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	/**
+	 * Reverts {@link #zigZag}.
+	 * 
+	 * @param value the zigzag-encoded value
+	 * @return the signed value
+	 */
+	public static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Returns the number of bytes {@link #putVarLong} writes for the delta.
+	 * 
+	 * @param delta the delta, treated as unsigned
+	 * @return the number of bytes, from 1 to 10
+	 */
+	public static int varLongSize(long delta) {
+		int size = 1;
+		while ((delta & ~0x7FL) != 0) {
+			delta >>>= 7;
+			size++;
+		}
+		return size;
+	}
 
 }
@@ -1,17 +1,50 @@
 package net.intelie.challenges;
 
+import java.util.Map;
+
 /**
- * This is just an event stub, feel free to expand it if needed.
+ * An event: its type, its timestamp and, optionally, a few attributes.
+ *
+ * <p>
+ * The attributes are kept encoded (see {@link Attributes}). A
+ * {@link ConcurrentEventStore} keeps them off the heap, and the events of its
+ * queries read them from there, and its snapshots and write-ahead log record
+ * them. The history tiers of that store only keep timestamps, so it leaves
+ * the events with attributes in its main map. The other stores only keep
+ * timestamps too, and reject the events with attributes.
  */
 public class Event {
     private final String type;
     private final long timestamp;
-	
+    private final Attributes attributes;
+
     public Event(String type, long timestamp) {
+        this(type, timestamp, (Attributes) null);
+    }
+
+    /**
+     * Creates an event with attributes.
+     *
+     * @param type the type of the event
+     * @param timestamp the timestamp of the event
+     * @param attributes the values of the attributes by name, numbers or
+     * strings (see {@link Attributes#encode})
+     * @throws IllegalArgumentException if an attribute can not be encoded
+     */
+    public Event(String type, long timestamp, Map<String, ?> attributes) {
+        this(type, timestamp, attributes.isEmpty() ? null : new Attributes(Attributes.encode(attributes), 0));
+    }
+
+    /**
+     * Creates an event whose attributes are already encoded, such as a copy
+     * made by a store.
+     */
+    Event(String type, long timestamp, Attributes attributes) {
         this.type = type;
         this.timestamp = timestamp;
+        this.attributes = attributes;
     }
-    
+
     public String type() {
         return type;
     }
@@ -19,5 +52,20 @@ public class Event {
     public long timestamp() {
         return timestamp;
     }
-	
+
+    /**
+     * @return the attributes of the event, {@link Attributes#EMPTY} if it has
+     * none
+     */
+    public Attributes attributes() {
+        return attributes == null ? Attributes.EMPTY : attributes;
+    }
+
+    /**
+     * @return the attributes of the event, null if it has none
+     */
+    Attributes encodedAttributes() {
+        return attributes;
+    }
+
 }
@@ -0,0 +1,179 @@
+package net.intelie.challenges;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Helpers for the batch insertion of events.
+ * 
+ * <p>
+ * A batch is split in one run per type, sorted by timestamp, so a store can
+ * look up the structure of each type once and insert the run in order. The
+ * sort is stable and linear on runs that are already in order, which is the
+ * common case for event streams.
+ * 
+ * @author Felipe Nogueira
+ *
+ */
+final class EventBatch {
+
+	private static final Comparator<Event> BY_TIMESTAMP = Comparator.comparingLong(Event::timestamp);
+
+	private EventBatch() {
+	}
+
+	/**
+	 * Groups the events by type, each group sorted by timestamp. Events with 
+	 * the same timestamp keep their order in the batch.
+	 * 
+	 * @param events the events of the batch
+	 * @return the runs of events, indexed by type
+	 * @throws NullPointerException if any of the events is null
+	 */
+	
+	static Map<String, List<Event>> groupByType(Event[] events) {
+		Map<String, List<Event>> runs = new HashMap<>();
+		String lastType = null;
+		List<Event> lastRun = null;
+		for (Event event : events) {
+			String type = event.type();
+			//batches tend to have long stretches of a same type
+			if (type != lastType) {
+				lastRun = runs.computeIfAbsent(type, key -> new ArrayList<>());
+				lastType = type;
+			}
+			lastRun.add(event);
+		}
+		for (List<Event> run : runs.values()) {
+			run.sort(BY_TIMESTAMP);
+		}
+		return runs;
+	}
+
+	/**
+	 * Returns a sorted map view of a sorted run with one value per timestamp,
+	 * so a {@link java.util.concurrent.ConcurrentSkipListMap} can be built 
+	 * from it in linear time. Events with the same timestamp are resolved as
+	 * if they were inserted one by one: the last one wins, or all are merged
+	 * in an {@link EventBucket} if duplicates are kept.
+	 * 
+	 * <p>
+	 * The view only supports what is needed to copy it: iteration, size and
+	 * the (natural ordering) comparator.
+	 * 
+	 * @param run events of a same type sorted by timestamp
+	 * @param keepDuplicates whether events with the same timestamp are all kept
+	 * @return the sorted view
+	 */
+	
+	static SortedMap<Long, Event> toSortedMap(List<Event> run, boolean keepDuplicates) {
+		long[] keys = new long[run.size()];
+		Event[] values = new Event[run.size()];
+		int size = 0;
+		for (Event event : run) {
+			long timestamp = event.timestamp();
+			if (size > 0 && keys[size - 1] == timestamp) {
+				values[size - 1] = keepDuplicates ? EventBucket.merge(values[size - 1], event) : event;
+			} else {
+				keys[size] = timestamp;
+				values[size] = event;
+				size++;
+			}
+		}
+		return new SortedRun(keys, values, size);
+	}
+
+	/**
+	 * Read-only sorted map over parallel arrays of keys and values.
+	 */
+	
+	private static final class SortedRun extends AbstractMap<Long, Event> implements SortedMap<Long, Event> {
+
+		private final long[] keys;
+		private final Event[] values;
+		private final int size;
+
+		SortedRun(long[] keys, Event[] values, int size) {
+			this.keys = keys;
+			this.values = values;
+			this.size = size;
+		}
+
+		@Override
+		public Comparator<? super Long> comparator() {
+			return null;
+		}
+
+		@Override
+		public Long firstKey() {
+			if (size == 0) {
+				throw new NoSuchElementException();
+			}
+			return keys[0];
+		}
+
+		@Override
+		public Long lastKey() {
+			if (size == 0) {
+				throw new NoSuchElementException();
+			}
+			return keys[size - 1];
+		}
+
+		@Override
+		public SortedMap<Long, Event> subMap(Long fromKey, Long toKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SortedMap<Long, Event> headMap(Long toKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SortedMap<Long, Event> tailMap(Long fromKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Set<Map.Entry<Long, Event>> entrySet() {
+			return new AbstractSet<Map.Entry<Long, Event>>() {
+				@Override
+				public Iterator<Map.Entry<Long, Event>> iterator() {
+					return new Iterator<Map.Entry<Long, Event>>() {
+						private int index;
+
+						@Override
+						public boolean hasNext() {
+							return index < size;
+						}
+
+						@Override
+						public Map.Entry<Long, Event> next() {
+							if (index >= size) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<Long, Event> entry = new SimpleImmutableEntry<>(keys[index], values[index]);
+							index++;
+							return entry;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package net.intelie.challenges;
+
+import java.util.Arrays;
+
+/**
+ * Events of the same type that share a timestamp.
+ *
+ * <p>
+ * When a {@link ConcurrentEventStore} keeps duplicated timestamps, the skip
+ * list still maps a timestamp to a single value: the event itself in the
+ * common case, or a bucket once a second event arrives with the same
+ * timestamp. As the bucket is also an {@link Event} (with the shared type and
+ * timestamp), the single-event case costs nothing more than before.
+ *
+ * <p>
+ * Buckets are immutable. Adding or removing an event creates a new bucket,
+ * which is swapped in the map with an atomic replace, so readers never see a
+ * bucket being changed. Buckets are expected to be small, so copying them is
+ * cheap.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class EventBucket extends Event {
+
+	private final Event[] events;
+
+	private EventBucket(Event first, Event[] events) {
+		super(first.type(), first.timestamp());
+		this.events = events;
+	}
+
+	/**
+	 * Merges an event into the value stored for its timestamp.
+	 *
+	 * @param stored the value already stored, a single event or a bucket
+	 * @param added the event to be added, or a bucket of events
+	 * @return a bucket with the stored events followed by the added ones
+	 */
+	static Event merge(Event stored, Event added) {
+		if (added instanceof EventBucket) {
+			Event[] current = events(stored);
+			Event[] more = ((EventBucket) added).events;
+			Event[] events = Arrays.copyOf(current, current.length + more.length);
+			System.arraycopy(more, 0, events, current.length, more.length);
+			return new EventBucket(stored, events);
+		}
+		Event[] events;
+		if (stored instanceof EventBucket) {
+			Event[] current = ((EventBucket) stored).events;
+			events = Arrays.copyOf(current, current.length + 1);
+		} else {
+			events = new Event[] { stored, null };
+		}
+		events[events.length - 1] = added;
+		return new EventBucket(stored, events);
+	}
+
+	/**
+	 * Returns the value that should be stored after an event is removed from
+	 * the given one.
+	 *
+	 * @param stored the value stored, a single event or a bucket
+	 * @param removed the event to be removed, compared by identity
+	 * @return {@code stored} if it does not hold the event, {@code null} if
+	 * nothing is left, the remaining event if a single one is left, or a smaller
+	 * bucket otherwise
+	 */
+	static Event without(Event stored, Event removed) {
+		if (!(stored instanceof EventBucket)) {
+			return stored == removed ? null : stored;
+		}
+		Event[] events = ((EventBucket) stored).events;
+		for (int i = 0; i < events.length; i++) {
+			if (events[i] == removed) {
+				if (events.length == 2) {
+					return events[1 - i];
+				}
+				Event[] remaining = new Event[events.length - 1];
+				System.arraycopy(events, 0, remaining, 0, i);
+				System.arraycopy(events, i + 1, remaining, i, events.length - i - 1);
+				return new EventBucket(remaining[0], remaining);
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Returns the events of a stored value.
+	 *
+	 * @param stored a single event or a bucket
+	 * @return the events of the bucket, or the single event
+	 */
+	static Event[] events(Event stored) {
+		if (stored instanceof EventBucket) {
+			return ((EventBucket) stored).events;
+		}
+		return new Event[] { stored };
+	}
+
+	/**
+	 * Returns the number of events of a stored value, without copying them.
+	 *
+	 * @param stored a single event or a bucket
+	 * @return the size of the bucket, or one for a single event
+	 */
+	static int count(Event stored) {
+		return stored instanceof EventBucket ? ((EventBucket) stored).events.length : 1;
+	}
+
+	/**
+	 * @return the number of events in the bucket
+	 */
+	int size() {
+		return events.length;
+	}
+
+	/**
+	 * @param index the position of the event in the bucket
+	 * @return the event at the given position
+	 */
+	Event get(int index) {
+		return events[index];
+	}
+}
@@ -0,0 +1,50 @@
+package net.intelie.challenges;
+
+/**
+ * A reusable cursor over the events of a type in a time range. Unlike an
+ * {@link EventIterator}, it exposes the timestamp and the type of the current
+ * event instead of an {@link Event}, and is placed over another range by
+ * {@link #reset}, so a store can walk its events without allocating.
+ * <p>
+ * A cursor is meant to be used by a single thread.
+ */
+public interface EventCursor {
+    /**
+     * Places the cursor before the first event of specific type whose
+     * timestamp is between {@param startTime} (inclusive) and
+     * {@param endTime} (exclusive).
+     *
+     * @param type      The type we are querying for.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @throws IllegalArgumentException if {@code type} is null or if
+     *                                  {@code startTime} is greater or
+     *                                  equal to {@code endTime}.
+     */
+    void reset(String type, long startTime, long endTime);
+
+    /**
+     * Move the cursor to the next event, if any.
+     *
+     * @return false if the cursor has reached the end of its range, true
+     * otherwise.
+     */
+    boolean moveNext();
+
+    /**
+     * Gets the timestamp of the current event.
+     *
+     * @return the timestamp.
+     * @throws IllegalStateException if {@link #moveNext} was not called
+     *                               since the last reset or its last result
+     *                               was {@code false}.
+     */
+    long timestamp();
+
+    /**
+     * Gets the type of the events of the cursor.
+     *
+     * @return the type given to the last reset, null if there was none.
+     */
+    String type();
+}
@@ -0,0 +1,199 @@
+package net.intelie.challenges;
+
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.LongBinaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link Spliterator} over the events of a single type in a time range, as
+ * returned by {@link EventStore#queryStream}.
+ *
+ * <p>
+ * A split halves the time range, the prefix taking the older half, so each
+ * part is a query of its own and the parts are read in parallel without
+ * sharing anything. As the stores answer a query from all their tiers, the
+ * parts of a range that covers both the history and the main map of a
+ * {@link ConcurrentEventStore} split them as well. The query of a part is only
+ * made when it is first advanced, and a part that was advanced is not split
+ * again.
+ *
+ * <p>
+ * When the store counts the events of a range cheaply, the counter is given
+ * and the size of each part is estimated by counting it, so a fork-join
+ * framework stops splitting the parts of a range without events and keeps
+ * splitting the crowded ones. Otherwise the size is unknown at first and
+ * halved at each split, as {@link Spliterator#estimateSize()} allows.
+ *
+ * <p>
+ * The store may be modified while the events are read: each part sees the
+ * events its query sees.
+ *
+ * <p>
+ * The query of a part is closed once the part is read to its end. A stream
+ * cut short, as by {@code findFirst}, leaves the queries of its parts open
+ * until the stream is closed: the parts of a range share the queue of their
+ * open queries, which the stream closes (see {@link #stream}).
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class EventSpliterator implements Spliterator<Event> {
+
+	/** estimated number of events below which a range is not split **/
+	static final long MIN_SPLIT_SIZE = 1 << 10;
+
+	private final EventStore store;
+	private final String type;
+	private final LongBinaryOperator counter;
+
+	private long startTime;
+	private final long endTime;
+	private long estimate;
+
+	/** the query of the range, once it is advanced **/
+	private EventIterator iterator;
+	private boolean exhausted;
+
+	/** the parts of the whole range whose query is open **/
+	private final Queue<EventSpliterator> open;
+
+	/**
+	 * Returns a stream over the events of the range, which closes the
+	 * queries its parts left open when it is closed.
+	 *
+	 * @see #EventSpliterator(EventStore, String, long, long, LongBinaryOperator)
+	 */
+	static Stream<Event> stream(EventStore store, String type, long startTime, long endTime,
+			LongBinaryOperator counter) {
+		EventSpliterator spliterator = new EventSpliterator(store, type, startTime, endTime, counter);
+		return StreamSupport.stream(spliterator, false).onClose(spliterator::closeAll);
+	}
+
+	/**
+	 * @param store the store to be queried
+	 * @param type the type of the events
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @param counter counts the events of a range cheaply, or null if the store
+	 * does not
+	 */
+	EventSpliterator(EventStore store, String type, long startTime, long endTime, LongBinaryOperator counter) {
+		this(store, type, startTime, endTime, counter,
+				counter == null ? Long.MAX_VALUE : counter.applyAsLong(startTime, endTime),
+				new ConcurrentLinkedQueue<>());
+	}
+
+	private EventSpliterator(EventStore store, String type, long startTime, long endTime,
+			LongBinaryOperator counter, long estimate, Queue<EventSpliterator> open) {
+		this.store = store;
+		this.open = open;
+		this.type = type;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.counter = counter;
+		this.estimate = estimate;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Event> action) {
+		EventIterator it = open();
+		if (it == null) {
+			return false;
+		}
+		if (!it.moveNext()) {
+			close();
+			return false;
+		}
+		action.accept(it.current());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super Event> action) {
+		EventIterator it = open();
+		if (it == null) {
+			return;
+		}
+		try {
+			while (it.moveNext()) {
+				action.accept(it.current());
+			}
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public Spliterator<Event> trySplit() {
+		// the span is taken as unsigned, so ranges wider than Long.MAX_VALUE split too
+		long span = endTime - startTime;
+		if (iterator != null || exhausted || estimate < MIN_SPLIT_SIZE || span >= 0 && span < 2) {
+			return null;
+		}
+		long middle = startTime + (span >>> 1);
+		long prefixEstimate = counter == null ? estimate >>> 1 : counter.applyAsLong(startTime, middle);
+		EventSpliterator prefix = new EventSpliterator(store, type, startTime, middle, counter, prefixEstimate,
+				open);
+		startTime = middle;
+		estimate = counter == null ? estimate - prefixEstimate : counter.applyAsLong(middle, endTime);
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return exhausted ? 0 : estimate;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL | CONCURRENT;
+	}
+
+	/** queries the range on the first call, null once it is read **/
+	private EventIterator open() {
+		if (exhausted) {
+			return null;
+		}
+		if (iterator == null) {
+			try {
+				iterator = store.query(type, startTime, endTime);
+			} catch (IllegalArgumentException e) {
+				// no events of the type
+				exhausted = true;
+				return null;
+			}
+			open.add(this);
+		}
+		return iterator;
+	}
+
+	/** closes the query of the part, if it is open **/
+	private void close() {
+		exhausted = true;
+		EventIterator it = iterator;
+		if (it == null) {
+			return;
+		}
+		iterator = null;
+		open.remove(this);
+		try {
+			it.close();
+		} catch (Exception e) {
+			throw new IllegalStateException("could not close the query of " + type, e);
+		}
+	}
+
+	/**
+	 * Closes the queries left open by the parts of the range, as their
+	 * stream is closed.
+	 */
+	private void closeAll() {
+		for (EventSpliterator part = open.poll(); part != null; part = open.poll()) {
+			part.close();
+		}
+	}
+}
@@ -1,5 +1,13 @@
 package net.intelie.challenges;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
 /**
  * An abstraction of an event store.
  * <p>
@@ -10,11 +18,45 @@ package net.intelie.challenges;
 public interface EventStore {
     /**
      * Stores an event
+     * <p>
+     * A store that keeps only the type and the timestamp of the events, as
+     * {@link ColumnarEventStore} and {@link AppendOnlyEventStore}, rejects
+     * an event with attributes rather than dropping them silently.
      *
      * @param event
+     * @throws IllegalArgumentException if the event has attributes and the
+     *                                  store does not keep them
      */
     void insert(Event event);
 
+    /**
+     * Stores a batch of events, as if each one was given to
+     * {@link #insert}. Implementations may override it to take advantage
+     * of the batch; the ones that reject events with attributes check the
+     * whole batch first, so none of it is stored.
+     *
+     * @param events
+     * @throws IllegalArgumentException if an event has attributes and the
+     *                                  store does not keep them
+     */
+    default void insertAll(Collection<Event> events) {
+        for (Event event : events) {
+            insert(event);
+        }
+    }
+
+    /**
+     * Stores a batch of events, as if each one was given to
+     * {@link #insert}.
+     *
+     * @param events
+     * @throws IllegalArgumentException if an event has attributes and the
+     *                                  store does not keep them
+     */
+    default void insertAll(Event[] events) {
+        insertAll(Arrays.asList(events));
+    }
+
 
     /**
      * Removes all events of specific type.
@@ -23,6 +65,45 @@ public interface EventStore {
      */
     void removeAll(String type);
 
+    /**
+     * Removes the events of specific type whose timestamps are in the given
+     * range. Implementations may override it to remove the range in bulk;
+     * by default the events are queried and removed one by one.
+     *
+     * @param type      The type of the events to be removed.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @return the number of events removed, zero if there are no events of
+     * {@param type}.
+     * @throws IllegalArgumentException if {@code type} is null or if
+     *                                  {@code startTime} is greater or
+     *                                  equal to {@code endTime}.
+     */
+    default long removeRange(String type, long startTime, long endTime) {
+        if (type == null || startTime >= endTime) {
+            throw new IllegalArgumentException("invalid range arguments: " + startTime + " : " + endTime);
+        }
+        EventIterator query;
+        try {
+            query = query(type, startTime, endTime);
+        } catch (IllegalArgumentException e) {
+            // no events of the type
+            return 0;
+        }
+        try (EventIterator it = query) {
+            long removed = 0;
+            while (it.moveNext()) {
+                it.remove();
+                removed++;
+            }
+            return removed;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("could not close the query of " + type, e);
+        }
+    }
+
     /**
      * Retrieves an iterator for events based on their type and timestamp.
      *
@@ -34,4 +115,251 @@ public interface EventStore {
      * (inclusive) and {@param endTime} (exclusive).
      */
     EventIterator query(String type, long startTime, long endTime);
+
+    /**
+     * Retrieves an iterator for the first events of specific type in the
+     * given range, stopping after {@param limit} events.
+     *
+     * @param type      The type we are querying for.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @param limit     The maximum number of events.
+     * @return An iterator over at most {@param limit} events, as
+     * {@link #query(String, long, long)} returns them.
+     * @throws IllegalArgumentException if {@code limit} is negative, or as
+     *                                  {@link #query(String, long, long)}.
+     */
+    default EventIterator query(String type, long startTime, long endTime, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("invalid query limit: " + limit);
+        }
+        return new LimitedEventIterator(query(type, startTime, endTime), limit);
+    }
+
+    /**
+     * Retrieves an iterator for the events of specific type in the given
+     * range that pass the given predicate, such as an
+     * {@link AttributeFilter}. By default the events of a query are tested
+     * one by one; implementations may override it to skip the events that
+     * can not pass.
+     *
+     * @param type      The type we are querying for.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @param predicate The predicate the events must pass.
+     * @return An iterator over the events that pass the predicate, in the
+     * order of {@link #query(String, long, long)}.
+     * @throws IllegalArgumentException if {@code predicate} is null, or as
+     *                                  {@link #query(String, long, long)}.
+     */
+    default EventIterator query(String type, long startTime, long endTime, Predicate<Event> predicate) {
+        if (predicate == null) {
+            throw new IllegalArgumentException("invalid query predicate: null");
+        }
+        return new FilteredEventIterator(query(type, startTime, endTime), predicate);
+    }
+
+    /**
+     * Retrieves an iterator for the events of specific type in the given
+     * range, in descending order of timestamp.
+     *
+     * @param type      The type we are querying for.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @return An iterator over the events of
+     * {@link #query(String, long, long)}, in reverse order.
+     * @throws IllegalArgumentException as
+     *                                  {@link #query(String, long, long)}.
+     */
+    default EventIterator queryDescending(String type, long startTime, long endTime) {
+        return queryDescending(type, startTime, endTime, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves an iterator for the latest events of specific type in the
+     * given range, in descending order of timestamp, stopping after
+     * {@param limit} events. Implementations may override it to walk their
+     * events backwards; by default the events of a query are read to the
+     * end, keeping the last {@param limit} ones.
+     *
+     * @param type      The type we are querying for.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @param limit     The maximum number of events.
+     * @return An iterator over the last {@param limit} events of
+     * {@link #query(String, long, long)}, in reverse order.
+     * @throws IllegalArgumentException if {@code limit} is negative, or as
+     *                                  {@link #query(String, long, long)}.
+     */
+    default EventIterator queryDescending(String type, long startTime, long endTime, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("invalid query limit: " + limit);
+        }
+        return new ReversedEventIterator(this, query(type, startTime, endTime), limit);
+    }
+
+    /**
+     * Retrieves an iterator for the events of several types, in time order.
+     * The iterators of the types are merged as they are read, and types
+     * without events are skipped.
+     *
+     * @param types     The types we are querying for.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @return An iterator where all its events have one of the given types
+     * and timestamp between {@param startTime} (inclusive) and
+     * {@param endTime} (exclusive), in ascending order of timestamp.
+     * @throws IllegalArgumentException if {@code types} is null or has a
+     *                                  null type, or if {@code startTime} is
+     *                                  greater or equal to {@code endTime}.
+     *                                  The queries of the types before it are
+     *                                  closed.
+     */
+    default EventIterator query(Collection<String> types, long startTime, long endTime) {
+        if (types == null || startTime >= endTime) {
+            throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+        }
+        List<EventIterator> iterators = new ArrayList<>(types.size());
+        try {
+            for (String type : new LinkedHashSet<>(types)) {
+                if (type == null) {
+                    throw new IllegalArgumentException("invalid query arguments: null type");
+                }
+                try {
+                    iterators.add(query(type, startTime, endTime));
+                } catch (IllegalArgumentException e) {
+                    // no events of the type
+                }
+            }
+        } catch (RuntimeException e) {
+            // the queries already opened are closed before the failure is rethrown
+            for (EventIterator it : iterators) {
+                try {
+                    it.close();
+                } catch (Exception suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+        return new MergingEventIterator(iterators);
+    }
+
+    /**
+     * Creates a cursor over the events of this store, to be placed over a
+     * type and a range by {@link EventCursor#reset}. Implementations may
+     * override it to walk their storage without allocating; by default the
+     * cursor reads the iterators of {@link #query}.
+     *
+     * @return a new cursor, placed over no events.
+     */
+    default EventCursor cursor() {
+        return new QueryEventCursor(this);
+    }
+
+    /**
+     * Retrieves a stream of the events of specific type in the given range,
+     * in time order. The stream splits the range in halves, each part read by
+     * a query of its own, so a parallel stream reads the parts concurrently.
+     * Implementations that count events cheaply may override it to estimate
+     * the size of the parts; by default it is unknown. A stream that is not
+     * read to its end, as by {@link Stream#findFirst()}, keeps queries open
+     * until it is closed.
+     *
+     * @param type      The type we are querying for.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @return a sequential stream of the events, empty if there are no events
+     * of {@param type}; {@link Stream#parallel()} makes it parallel.
+     * @throws IllegalArgumentException if {@code type} is null or if
+     *                                  {@code startTime} is greater or
+     *                                  equal to {@code endTime}.
+     */
+    default Stream<Event> queryStream(String type, long startTime, long endTime) {
+        if (type == null || startTime >= endTime) {
+            throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+        }
+        return EventSpliterator.stream(this, type, startTime, endTime, null);
+    }
+
+    /**
+     * Counts the events of specific type whose timestamps are in the given
+     * range. Implementations may override it to count the stored timestamps
+     * directly; by default the events of a query are counted.
+     *
+     * @param type      The type of the events to be counted.
+     * @param startTime Start timestamp (inclusive).
+     * @param endTime   End timestamp (exclusive).
+     * @return the number of events, zero if there are no events of
+     * {@param type}.
+     * @throws IllegalArgumentException if {@code type} is null or if
+     *                                  {@code startTime} is greater or
+     *                                  equal to {@code endTime}.
+     */
+    default long count(String type, long startTime, long endTime) {
+        if (type == null || startTime >= endTime) {
+            throw new IllegalArgumentException("invalid count arguments: " + startTime + " : " + endTime);
+        }
+        EventIterator query;
+        try {
+            query = query(type, startTime, endTime);
+        } catch (IllegalArgumentException e) {
+            // no events of the type
+            return 0;
+        }
+        try (EventIterator it = query) {
+            long count = 0;
+            while (it.moveNext()) {
+                count++;
+            }
+            return count;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("could not close the query of " + type, e);
+        }
+    }
+
+    /**
+     * Counts the events of specific type in buckets of the given width. The
+     * first bucket starts at {@param startTime} and the last one ends at
+     * {@param endTime}, so it may be narrower than the others.
+     * Implementations may override it to count the stored timestamps
+     * directly; by default the events of a query are counted.
+     *
+     * @param type        The type of the events to be counted.
+     * @param startTime   Start timestamp (inclusive).
+     * @param endTime     End timestamp (exclusive).
+     * @param bucketWidth The width of the buckets.
+     * @return the number of events in each bucket, in time order.
+     * @throws IllegalArgumentException if {@code type} is null, if
+     *                                  {@code startTime} is greater or
+     *                                  equal to {@code endTime}, if
+     *                                  {@code bucketWidth} is not positive
+     *                                  or if the range has more buckets
+     *                                  than an array holds.
+     */
+    default long[] histogram(String type, long startTime, long endTime, long bucketWidth) {
+        if (type == null) {
+            throw new IllegalArgumentException("invalid histogram arguments: null type");
+        }
+        TimestampHistogram histogram = new TimestampHistogram(startTime, endTime, bucketWidth);
+        EventIterator query;
+        try {
+            query = query(type, startTime, endTime);
+        } catch (IllegalArgumentException e) {
+            // no events of the type
+            return histogram.counts();
+        }
+        try (EventIterator it = query) {
+            while (it.moveNext()) {
+                histogram.add(it.current().timestamp());
+            }
+            return histogram.counts();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("could not close the query of " + type, e);
+        }
+    }
 }
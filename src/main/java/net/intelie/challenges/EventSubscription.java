@@ -0,0 +1,305 @@
+package net.intelie.challenges;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A tailing iterator over the events of a type, as returned by
+ * {@link ConcurrentEventStore#subscribe}: it first replays the stored events
+ * from a given timestamp, in time order, and then returns the events inserted
+ * since it was created, in the order they were inserted.
+ *
+ * <p>
+ * {@link #moveNext()} never blocks: it returns {@code false} when there is no
+ * event yet, and the consumer waits for the next one with {@link #await},
+ * which parks the thread until an insert wakes it up. Inserted events are
+ * handed over through a lock-free queue bounded by the capacity of the
+ * subscription, so a slow consumer never blocks the inserting threads: once
+ * its buffer is full, the inserted events are dropped and counted by
+ * {@link #dropped()}, and the consumer may query the store for what it
+ * missed.
+ *
+ * <p>
+ * The subscription is registered before the replay starts, so no event is
+ * missed between the two. The replay reads a snapshot of the stored events,
+ * and the events buffered before it started, once the inserts in progress
+ * were done, are held apart: those the replay returns are dropped, and the
+ * others are returned after the replay, before the rest of the buffer. No
+ * event is thus returned twice. The replay is closed once it is over, or with
+ * the subscription, which also detaches it from the store.
+ *
+ * <p>
+ * A subscription is meant to be read by a single thread.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public final class EventSubscription implements EventIterator {
+
+	private final ConcurrentEventStore store;
+	private final String type;
+	private final long fromTimestamp;
+	private final int capacity;
+
+	private final ConcurrentLinkedQueue<Event> buffer = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger buffered = new AtomicInteger();
+	private final LongAdder dropped = new LongAdder();
+
+	/** the thread parked in {@link #await}, if any **/
+	private volatile Thread waiter;
+	private volatile boolean closed;
+
+	/** stored events being replayed, null once they are over **/
+	private EventIterator replay;
+	/** events buffered before the replay started, in order, and the ones
+	 * among them the replay did not return, by identity; null once they are
+	 * over **/
+	private ArrayDeque<Event> early;
+	private Set<Event> notReplayed;
+	private Event next;
+	private Event current;
+
+	EventSubscription(ConcurrentEventStore store, String type, long fromTimestamp, int capacity) {
+		this.store = store;
+		this.type = type;
+		this.fromTimestamp = fromTimestamp;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Starts the replay, once the subscription is registered and the
+	 * inserts of the events the replay holds were handed over. The events
+	 * buffered until now are held apart, as the replay may hold them.
+	 */
+	void replay(EventIterator replay) {
+		this.replay = replay;
+		early = new ArrayDeque<>();
+		notReplayed = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Event event = buffer.poll(); event != null; event = buffer.poll()) {
+			early.add(event);
+			notReplayed.add(event);
+		}
+	}
+
+	/**
+	 * Hands an inserted event over to the consumer, or drops it if the buffer
+	 * is full. Called by the inserting threads; it never blocks.
+	 */
+	void offer(Event event) {
+		if (event.timestamp() < fromTimestamp || closed) {
+			return;
+		}
+		if (buffered.incrementAndGet() > capacity) {
+			buffered.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+		buffer.offer(event);
+		Thread thread = waiter;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * @return the type of the events of the subscription
+	 */
+	public String type() {
+		return type;
+	}
+
+	/**
+	 * @return the number of inserted events dropped because the buffer was
+	 * full
+	 */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Waits until there is an event to be returned by {@link #moveNext()}.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return {@code true} if there is an event, {@code false} if the time
+	 * elapsed or the subscription was closed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		waiter = Thread.currentThread();
+		try {
+			while (!ready()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || closed) {
+					return false;
+				}
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+			return true;
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/** takes the next event from the replay or the buffer, if there is one **/
+	private boolean ready() {
+		if (next != null) {
+			return true;
+		}
+		if (replay != null) {
+			if (replay.moveNext()) {
+				next = replay.current();
+				notReplayed.remove(next);
+				return true;
+			}
+			closeReplay();
+		}
+		while (early != null) {
+			Event event = early.poll();
+			if (event == null) {
+				early = null;
+				notReplayed = null;
+				break;
+			}
+			buffered.decrementAndGet();
+			if (notReplayed.contains(event)) {
+				next = event;
+				return true;
+			}
+		}
+		next = buffer.poll();
+		if (next == null) {
+			return false;
+		}
+		buffered.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Moves to the next event, without waiting for one.
+	 *
+	 * @return {@code true} if the iterator was moved to the next event,
+	 * {@code false} if there is none yet
+	 */
+	@Override
+	public boolean moveNext() {
+		if (closed || !ready()) {
+			current = null;
+			return false;
+		}
+		current = next;
+		next = null;
+		return true;
+	}
+
+	@Override
+	public Event current() {
+		if (current == null) {
+			throw new IllegalStateException();
+		}
+		return current;
+	}
+
+	/**
+	 * Removes the current event from the store, by a query of its timestamp:
+	 * the event itself while it is stored as it was returned, or, if it has
+	 * no attributes, an event of the same timestamp without attributes, as
+	 * it becomes once moved to the history. Nothing is removed if no such
+	 * event is left.
+	 *
+	 * @throws IllegalStateException if there is no current event, or if a
+	 * query of its timestamp can not be closed
+	 */
+	@Override
+	public void remove() {
+		if (current == null) {
+			throw new IllegalStateException();
+		}
+		long timestamp = current.timestamp();
+		if (timestamp == Long.MAX_VALUE) {
+			// beyond the range of any query
+			return;
+		}
+		try {
+			if (!removeFrom(store.query(type, timestamp, timestamp + 1), true)
+					&& !ConcurrentEventStore.hasAttributes(current)) {
+				removeFrom(store.query(type, timestamp, timestamp + 1), false);
+			}
+		} catch (IllegalArgumentException e) {
+			// no events of the type left
+		}
+	}
+
+	/**
+	 * Removes the current event, or an event alike, from the events of a
+	 * query, and closes it.
+	 *
+	 * @param same whether only the current event itself is removed
+	 * @return whether an event was removed
+	 */
+	private boolean removeFrom(EventIterator query, boolean same) {
+		try (EventIterator it = query) {
+			while (it.moveNext()) {
+				Event event = it.current();
+				if (same ? event == current : !ConcurrentEventStore.hasAttributes(event)) {
+					it.remove();
+					return true;
+				}
+			}
+			return false;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("could not close the query of " + type, e);
+		}
+	}
+
+	/**
+	 * Closes the replay, which releases its snapshot.
+	 */
+	private void closeReplay() {
+		EventIterator closing = replay;
+		replay = null;
+		if (closing == null) {
+			// closed by the other side already
+			return;
+		}
+		try {
+			closing.close();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("could not close the replay of " + type, e);
+		}
+	}
+
+	/**
+	 * Detaches the subscription from the store and wakes up a waiting
+	 * consumer.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		store.unsubscribe(this);
+		buffer.clear();
+		Thread thread = waiter;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		closeReplay();
+	}
+}
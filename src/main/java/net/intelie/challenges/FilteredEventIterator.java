@@ -0,0 +1,59 @@
+package net.intelie.challenges;
+
+import java.util.function.Predicate;
+
+/**
+ * An iterator over the events of another one that pass a predicate, for the
+ * filtered queries answered without an index.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class FilteredEventIterator implements EventIterator {
+
+	private final EventIterator iterator;
+	private final Predicate<Event> predicate;
+	private boolean hasCurrent;
+
+	/**
+	 * @param iterator the iterator to be filtered
+	 * @param predicate the predicate the events must pass
+	 */
+	FilteredEventIterator(EventIterator iterator, Predicate<Event> predicate) {
+		this.iterator = iterator;
+		this.predicate = predicate;
+	}
+
+	@Override
+	public boolean moveNext() {
+		while (iterator.moveNext()) {
+			if (predicate.test(iterator.current())) {
+				hasCurrent = true;
+				return true;
+			}
+		}
+		hasCurrent = false;
+		return false;
+	}
+
+	@Override
+	public Event current() {
+		if (!hasCurrent) {
+			throw new IllegalStateException();
+		}
+		return iterator.current();
+	}
+
+	@Override
+	public void remove() {
+		if (!hasCurrent) {
+			throw new IllegalStateException();
+		}
+		iterator.remove();
+	}
+
+	@Override
+	public void close() throws Exception {
+		iterator.close();
+	}
+}
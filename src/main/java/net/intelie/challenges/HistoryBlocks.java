@@ -0,0 +1,546 @@
+package net.intelie.challenges;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The historical timestamps of a single type, compressed in {@code byte[]}
+ * blocks kept in the heap.
+ *
+ * <p>
+ * A block holds up to {@link #BLOCK_SIZE} sorted timestamps. Its lowest and
+ * highest timestamps and its size are kept as fields, and the data holds the
+ * other timestamps as the zigzag-encoded difference between consecutive
+ * deltas (the delta-of-delta), written as variable-length numbers. Regularly
+ * spaced timestamps cost one byte each, and irregular ones a few more, against
+ * the boxed key, {@link Event} and skip list node of the main map.
+ *
+ * <p>
+ * The blocks do not overlap and are kept in an array sorted by timestamp. A
+ * query binary searches the first block that may hold its start, skips the
+ * blocks outside its range and decodes the others whole, in a tight loop. The
+ * array is replaced, never changed, so a cursor walks the blocks that existed
+ * when it was created without any lock. Writers (moves to history and
+ * removals) are serialized by the monitor of the object and rebuild only the
+ * blocks they touch.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class HistoryBlocks {
+
+	/** maximum number of timestamps of a block **/
+	static final int BLOCK_SIZE = 1024;
+
+	private static final Block[] EMPTY = new Block[0];
+
+	private final String type;
+
+	private volatile Block[] blocks = EMPTY;
+
+	HistoryBlocks(String type) {
+		this.type = type;
+	}
+
+	/**
+	 * @return the type of the events
+	 */
+	String type() {
+		return type;
+	}
+
+	/**
+	 * Adds sorted timestamps. The blocks from the first one that overlaps the
+	 * new timestamps onwards are merged with them and encoded again, as is
+	 * the last block if it is not full; in the usual case, timestamps newer
+	 * than the whole history, only that last block is rewritten.
+	 *
+	 * @param timestamps the timestamps, in ascending order
+	 * @param count the number of timestamps
+	 */
+	synchronized void addAll(long[] timestamps, int count) {
+		if (count == 0) {
+			return;
+		}
+		Block[] current = blocks;
+		int first = firstEndingFrom(current, timestamps[0]);
+		if (first == current.length && first > 0 && current[first - 1].count < BLOCK_SIZE) {
+			first--;
+		}
+
+		int merging = count;
+		for (int i = first; i < current.length; i++) {
+			merging += current[i].count;
+		}
+		long[] merged = new long[merging];
+		long[] decoded = new long[BLOCK_SIZE];
+		int m = 0;
+		int t = 0;
+		for (int i = first; i < current.length; i++) {
+			int size = current[i].decode(decoded);
+			for (int j = 0; j < size; j++) {
+				while (t < count && timestamps[t] < decoded[j]) {
+					merged[m++] = timestamps[t++];
+				}
+				merged[m++] = decoded[j];
+			}
+		}
+		while (t < count) {
+			merged[m++] = timestamps[t++];
+		}
+
+		int rebuilt = (merging + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		Block[] next = Arrays.copyOf(current, first + rebuilt);
+		ByteBuffer scratch = ByteBuffer.allocate(BLOCK_SIZE * 10);
+		for (int i = 0; i < rebuilt; i++) {
+			int from = i * BLOCK_SIZE;
+			next[first + i] = Block.encode(merged, from, Math.min(from + BLOCK_SIZE, merging), scratch);
+		}
+		blocks = next;
+	}
+
+	/**
+	 * Removes one occurrence of the timestamp, encoding its block again.
+	 *
+	 * @param timestamp the timestamp to be removed
+	 * @return {@code true} if a timestamp was removed
+	 */
+	synchronized boolean remove(long timestamp) {
+		Block[] current = blocks;
+		int index = firstEndingFrom(current, timestamp);
+		if (index == current.length || current[index].min > timestamp) {
+			return false;
+		}
+		long[] decoded = new long[BLOCK_SIZE];
+		int size = current[index].decode(decoded);
+		int offset = AppendLog.lowerBound(decoded, size, timestamp);
+		if (offset == size || decoded[offset] != timestamp) {
+			return false;
+		}
+		System.arraycopy(decoded, offset + 1, decoded, offset, size - offset - 1);
+		size--;
+
+		Block[] next;
+		if (size == 0) {
+			next = new Block[current.length - 1];
+			System.arraycopy(current, 0, next, 0, index);
+			System.arraycopy(current, index + 1, next, index, next.length - index);
+		} else {
+			next = current.clone();
+			next[index] = Block.encode(decoded, 0, size, ByteBuffer.allocate(BLOCK_SIZE * 10));
+		}
+		blocks = next;
+		return true;
+	}
+
+	/**
+	 * Removes the timestamps from {@code startTime}, inclusive, to
+	 * {@code endTime}, exclusive. The blocks inside the range are dropped
+	 * whole, and only the blocks at its ends are encoded again.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the number of timestamps removed
+	 */
+	synchronized long removeRange(long startTime, long endTime) {
+		Block[] current = blocks;
+		int first = firstEndingFrom(current, startTime);
+		// blocks from first to last, exclusive, overlap the range
+		int last = first;
+		while (last < current.length && current[last].min < endTime) {
+			last++;
+		}
+		if (first == last) {
+			return 0;
+		}
+
+		long removed = 0;
+		long[] decoded = new long[BLOCK_SIZE];
+		ByteBuffer scratch = ByteBuffer.allocate(BLOCK_SIZE * 10);
+		Block[] kept = new Block[2];
+		int keptCount = 0;
+		for (int i = first; i < last; i++) {
+			Block block = current[i];
+			if (block.min >= startTime && block.max < endTime) {
+				removed += block.count;
+				continue;
+			}
+			// a block at an end of the range keeps its timestamps outside it
+			int size = block.decode(decoded);
+			int from = AppendLog.lowerBound(decoded, size, startTime);
+			int to = AppendLog.lowerBound(decoded, size, endTime);
+			removed += to - from;
+			if (from > 0 && to < size) {
+				System.arraycopy(decoded, to, decoded, from, size - to);
+			}
+			int remaining = size - (to - from);
+			if (from == 0) {
+				System.arraycopy(decoded, to, decoded, 0, remaining);
+			}
+			kept[keptCount++] = Block.encode(decoded, 0, remaining, scratch);
+		}
+		if (removed == 0) {
+			return 0;
+		}
+		Block[] next = new Block[current.length - (last - first) + keptCount];
+		System.arraycopy(current, 0, next, 0, first);
+		System.arraycopy(kept, 0, next, first, keptCount);
+		System.arraycopy(current, last, next, first + keptCount, current.length - last);
+		blocks = next;
+		return removed;
+	}
+
+	/**
+	 * @return the number of timestamps
+	 */
+	long size() {
+		long size = 0;
+		for (Block block : blocks) {
+			size += block.count;
+		}
+		return size;
+	}
+
+	/**
+	 * Counts the timestamps from {@code startTime}, inclusive, to
+	 * {@code endTime}, exclusive. The blocks inside the range are counted by
+	 * their size, and only the blocks at its ends are decoded.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the number of timestamps in the range
+	 */
+	long count(long startTime, long endTime) {
+		Block[] current = blocks;
+		long count = 0;
+		long[] decoded = null;
+		for (int i = firstEndingFrom(current, startTime); i < current.length && current[i].min < endTime; i++) {
+			Block block = current[i];
+			if (block.min >= startTime && block.max < endTime) {
+				count += block.count;
+				continue;
+			}
+			if (decoded == null) {
+				decoded = new long[BLOCK_SIZE];
+			}
+			int size = block.decode(decoded);
+			count += AppendLog.lowerBound(decoded, size, endTime) - AppendLog.lowerBound(decoded, size, startTime);
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the timestamps in the range of the histogram into its buckets. A
+	 * block that falls in a single bucket is counted by its size; the others
+	 * are decoded.
+	 *
+	 * @param histogram the histogram to be filled
+	 */
+	void histogram(TimestampHistogram histogram) {
+		Block[] current = blocks;
+		long startTime = histogram.startTime();
+		long endTime = histogram.endTime();
+		long[] decoded = null;
+		for (int i = firstEndingFrom(current, startTime); i < current.length && current[i].min < endTime; i++) {
+			Block block = current[i];
+			if (block.min >= startTime && block.max < endTime) {
+				int bucket = histogram.bucket(block.min);
+				if (bucket == histogram.bucket(block.max)) {
+					histogram.add(bucket, block.count);
+					continue;
+				}
+			}
+			if (decoded == null) {
+				decoded = new long[BLOCK_SIZE];
+			}
+			histogram.addSorted(decoded, block.decode(decoded));
+		}
+	}
+
+	/**
+	 * @return the highest timestamp, or {@code Long.MIN_VALUE} if there is none
+	 */
+	long last() {
+		Block[] current = blocks;
+		return current.length == 0 ? Long.MIN_VALUE : current[current.length - 1].max;
+	}
+
+	/**
+	 * @return the number of bytes of the encoded data, without the headers
+	 */
+	long encodedSize() {
+		long size = 0;
+		for (Block block : blocks) {
+			size += block.data.length;
+		}
+		return size;
+	}
+
+	/**
+	 * @return all the timestamps, in ascending order
+	 */
+	long[] timestamps() {
+		Block[] current = blocks;
+		long[] decoded = new long[BLOCK_SIZE];
+		long[] timestamps = new long[64];
+		int count = 0;
+		for (Block block : current) {
+			int size = block.decode(decoded);
+			if (count + size > timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, Math.max(timestamps.length * 2, count + size));
+			}
+			System.arraycopy(decoded, 0, timestamps, count, size);
+			count += size;
+		}
+		return Arrays.copyOf(timestamps, count);
+	}
+
+	/**
+	 * Returns a cursor over the timestamps from {@code startTime}, inclusive,
+	 * to {@code endTime}, exclusive.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the cursor, placed before its first timestamp
+	 */
+	TimestampCursor cursor(long startTime, long endTime) {
+		return cursor(startTime, endTime, null);
+	}
+
+	/**
+	 * Returns a cursor over the timestamps from {@code startTime}, inclusive,
+	 * to {@code endTime}, exclusive, placing the given one there if it is a
+	 * cursor of history blocks, of this type or not, so it is not allocated
+	 * again.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @param reuse a cursor that is no longer used, or null
+	 * @return the cursor, placed before its first timestamp
+	 */
+	TimestampCursor cursor(long startTime, long endTime, TimestampCursor reuse) {
+		Cursor cursor = reuse instanceof Cursor ? (Cursor) reuse : new Cursor();
+		cursor.reset(this, blocks, startTime, endTime);
+		return cursor;
+	}
+
+	/**
+	 * Returns a cursor over the timestamps from {@code startTime}, inclusive,
+	 * to {@code endTime}, exclusive, in descending order. It decodes the block
+	 * that holds the end of the range and walks back from there, so reading
+	 * the last timestamps of a long history costs a search and one block.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the cursor, placed before its highest timestamp
+	 */
+	TimestampCursor descendingCursor(long startTime, long endTime) {
+		return new DescendingCursor(this, blocks, startTime, endTime);
+	}
+
+	/** index of the first block whose highest timestamp is equal or greater than the given one **/
+	private static int firstEndingFrom(Block[] blocks, long timestamp) {
+		int low = 0;
+		int high = blocks.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (blocks[mid].max < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** index of the last block whose lowest timestamp is lower than the given one, -1 if none **/
+	private static int lastStartingBefore(Block[] blocks, long timestamp) {
+		int low = 0;
+		int high = blocks.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (blocks[mid].min < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low - 1;
+	}
+
+	/**
+	 * An immutable block of sorted timestamps.
+	 */
+	private static final class Block {
+		final long min;
+		final long max;
+		final int count;
+		final byte[] data;
+
+		private Block(long min, long max, int count, byte[] data) {
+			this.min = min;
+			this.max = max;
+			this.count = count;
+			this.data = data;
+		}
+
+		static Block encode(long[] timestamps, int from, int to, ByteBuffer scratch) {
+			scratch.clear();
+			long delta = 0;
+			for (int i = from + 1; i < to; i++) {
+				long next = timestamps[i] - timestamps[i - 1];
+				DeltaEncoderDecoder.putVarLong(scratch, DeltaEncoderDecoder.zigZag(next - delta));
+				delta = next;
+			}
+			return new Block(timestamps[from], timestamps[to - 1], to - from,
+					Arrays.copyOf(scratch.array(), scratch.position()));
+		}
+
+		/** decodes the timestamps into the given array, returning how many **/
+		int decode(long[] timestamps) {
+			byte[] bytes = data;
+			long timestamp = min;
+			long delta = 0;
+			int position = 0;
+			timestamps[0] = timestamp;
+			for (int i = 1; i < count; i++) {
+				long value = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = bytes[position++];
+					value |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				delta += DeltaEncoderDecoder.unZigZag(value);
+				timestamp += delta;
+				timestamps[i] = timestamp;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Walks the blocks that existed when it was placed, decoding those that
+	 * overlap its range. It can be placed again over other blocks, keeping
+	 * its decoding buffer.
+	 */
+	private static final class Cursor implements TimestampCursor {
+		private HistoryBlocks owner;
+		private Block[] blocks;
+		private long endTime;
+		private long[] decoded;
+		private int block;
+		private int index;
+		private int size;
+		private long current;
+
+		private void reset(HistoryBlocks owner, Block[] blocks, long startTime, long endTime) {
+			this.owner = owner;
+			this.blocks = blocks;
+			this.endTime = endTime;
+			this.block = firstEndingFrom(blocks, startTime);
+			load();
+			// the block ends at or after the start, so the start is inside it
+			index = AppendLog.lowerBound(decoded, size, startTime);
+		}
+
+		/** decodes the current block, or leaves the cursor empty if it is past the range **/
+		private void load() {
+			index = 0;
+			size = 0;
+			if (block < blocks.length && blocks[block].min < endTime) {
+				if (decoded == null) {
+					decoded = new long[BLOCK_SIZE];
+				}
+				size = blocks[block].decode(decoded);
+			}
+		}
+
+		@Override
+		public String type() {
+			return owner.type;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < size && decoded[index] < endTime;
+		}
+
+		@Override
+		public long peek() {
+			return decoded[index];
+		}
+
+		@Override
+		public long next() {
+			current = decoded[index++];
+			if (index == size) {
+				block++;
+				load();
+			}
+			return current;
+		}
+
+		@Override
+		public boolean remove() {
+			return owner.remove(current);
+		}
+	}
+
+	/**
+	 * Walks the blocks that existed when it was created backwards, from the
+	 * end of its range, decoding those that overlap it.
+	 */
+	private static final class DescendingCursor implements TimestampCursor {
+		private final HistoryBlocks owner;
+		private final Block[] blocks;
+		private final long startTime;
+		private final long[] decoded = new long[BLOCK_SIZE];
+		private int block;
+		/** position of the next timestamp in the decoded block, -1 if none **/
+		private int index = -1;
+		private long current;
+
+		private DescendingCursor(HistoryBlocks owner, Block[] blocks, long startTime, long endTime) {
+			this.owner = owner;
+			this.blocks = blocks;
+			this.startTime = startTime;
+			this.block = lastStartingBefore(blocks, endTime);
+			if (block >= 0) {
+				int size = blocks[block].decode(decoded);
+				index = AppendLog.lowerBound(decoded, size, endTime) - 1;
+			}
+		}
+
+		@Override
+		public String type() {
+			return owner.type;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index >= 0 && decoded[index] >= startTime;
+		}
+
+		@Override
+		public long peek() {
+			return decoded[index];
+		}
+
+		@Override
+		public long next() {
+			current = decoded[index--];
+			if (index < 0 && block > 0 && blocks[block - 1].max >= startTime) {
+				block--;
+				index = blocks[block].decode(decoded) - 1;
+			}
+			return current;
+		}
+
+		@Override
+		public boolean remove() {
+			return owner.remove(current);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package net.intelie.challenges;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A background service that moves the events of a
+ * {@link ConcurrentEventStore} to its history as they get old, so the main
+ * maps only keep the recent events.
+ *
+ * <p>
+ * Every {@code intervalMillis} the migrator computes a sliding cutoff, the
+ * current time minus the hot window, raises the history limit of the store to
+ * it and, for every type, moves the events older than the cutoff to the
+ * history. The limit is raised before any event is moved, so every query made
+ * from then on looks for the moved events in the history; a query made before
+ * may miss the events moved while it iterates, as it would miss events
+ * removed meanwhile. The events are moved in batches of at most
+ * {@code batchSize} entries, and the migrator yields between batches, so a
+ * long backlog does not hold the writers of a type for long. Each batch
+ * moved to disk writes a history segment of its own, so after the moves the
+ * small segments of the type are merged into larger ones (see
+ * {@link ConcurrentEventStore#compactSegments}).
+ *
+ * <p>
+ * The timestamps of the events are compared to the clock, which is
+ * {@link System#currentTimeMillis()} unless another one is given. The
+ * migrator keeps some metrics: the number of events moved and of runs, the
+ * duration of the last run, the segments merged and the failures. {@link #getLag()} tells how far
+ * the store is behind the cutoff.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public final class HistoryMigrator implements AutoCloseable {
+
+	private final ConcurrentEventStore store;
+	private final long hotWindow;
+	private final int batchSize;
+	private final LongSupplier clock;
+	private final ScheduledExecutorService scheduler;
+
+	/** serializes the runs, as the store encourages a single mover **/
+	private final Object runLock = new Object();
+
+	private volatile long cutoff = Long.MIN_VALUE;
+	private volatile long lastRunNanos;
+	private final LongAdder migratedEntries = new LongAdder();
+	private final LongAdder runs = new LongAdder();
+	private final LongAdder compactedSegments = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/** failure of the last run, null if it succeeded **/
+	private volatile RuntimeException failure;
+
+	/**
+	 * Starts migrating the events of the store older than the hot window,
+	 * measured against {@link System#currentTimeMillis()}.
+	 *
+	 * @param store the store whose events are migrated
+	 * @param hotWindow how long, in the unit of the timestamps, an event
+	 * stays in the main map
+	 * @param intervalMillis interval between runs, or zero to run only by
+	 * {@link #runOnce()}
+	 * @param batchSize maximum number of entries moved at once
+	 * @throws NullPointerException if the store is null
+	 * @throws IllegalArgumentException if a number is negative or the batch
+	 * size is zero
+	 */
+	public HistoryMigrator(ConcurrentEventStore store, long hotWindow, long intervalMillis, int batchSize) {
+		this(store, hotWindow, intervalMillis, batchSize, System::currentTimeMillis);
+	}
+
+	/**
+	 * Starts migrating the events of the store older than the hot window,
+	 * measured against the given clock.
+	 *
+	 * @param clock the current time, in the unit of the timestamps
+	 * @see #HistoryMigrator(ConcurrentEventStore, long, long, int)
+	 */
+	HistoryMigrator(ConcurrentEventStore store, long hotWindow, long intervalMillis, int batchSize,
+			LongSupplier clock) {
+		if (store == null || clock == null) {
+			throw new NullPointerException();
+		}
+		if (hotWindow < 0 || intervalMillis < 0 || batchSize <= 0) {
+			throw new IllegalArgumentException(
+					"invalid migration policy: " + hotWindow + " : " + intervalMillis + " : " + batchSize);
+		}
+		this.store = store;
+		this.hotWindow = hotWindow;
+		this.batchSize = batchSize;
+		this.clock = clock;
+		if (intervalMillis > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "history-migrator");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduler.scheduleWithFixedDelay(this::backgroundRun, intervalMillis, intervalMillis,
+					TimeUnit.MILLISECONDS);
+		} else {
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Advances the cutoff to the current time minus the hot window, moves
+	 * the events of every type older than it to the history and merges the
+	 * small history segments of the type.
+	 *
+	 * @return the number of entries of the main maps moved
+	 * @throws java.io.UncheckedIOException if a history segment can not be
+	 * written
+	 */
+	public long runOnce() {
+		synchronized (runLock) {
+			long start = System.nanoTime();
+			long now = clock.getAsLong();
+			// the window is not subtracted past the lowest timestamp
+			long next = (now < Long.MIN_VALUE + hotWindow) ? Long.MIN_VALUE : now - hotWindow;
+			long limit = store.advanceHistoryTimestampLimit(next);
+			cutoff = limit;
+
+			long moved = 0;
+			for (String type : store.getEvents().keySet()) {
+				int batch;
+				do {
+					batch = store.moveToHistory(type, limit, batchSize);
+					moved += batch;
+					migratedEntries.add(batch);
+					if (batch == batchSize) {
+						Thread.yield();
+					}
+				} while (batch == batchSize);
+				compactedSegments.add(store.compactSegments(type));
+			}
+			runs.increment();
+			lastRunNanos = System.nanoTime() - start;
+			return moved;
+		}
+	}
+
+	private void backgroundRun() {
+		try {
+			runOnce();
+			failure = null;
+		} catch (RuntimeException e) {
+			// a failed run must not cancel the next ones
+			failures.increment();
+			failure = e;
+		}
+	}
+
+	/**
+	 * @return the cutoff of the last run, or {@link Long#MIN_VALUE} if none
+	 * ran yet
+	 */
+	public long getCutoff() {
+		return cutoff;
+	}
+
+	/**
+	 * Returns how far the main maps are behind the cutoff of the last run:
+	 * the distance from the oldest event of the main maps to the cutoff, or
+	 * zero if no event older than the cutoff is left. It grows when events
+	 * arrive late, older than the cutoff, or when the runs do not keep up.
+	 * The events with attributes, which are never moved, do not count.
+	 *
+	 * @return the lag, in the unit of the timestamps
+	 */
+	public long getLag() {
+		long current = cutoff;
+		long lag = 0;
+		for (ConcurrentSkipListMap<Long, Event> events : store.getEvents().values()) {
+			for (Map.Entry<Long, Event> oldest : events.headMap(current).entrySet()) {
+				if (!ConcurrentEventStore.hasAttributes(oldest.getValue())) {
+					lag = Math.max(lag, current - oldest.getKey());
+					break;
+				}
+			}
+		}
+		return lag;
+	}
+
+	/**
+	 * @return the number of entries of the main maps moved to the history
+	 */
+	public long getMigratedEntries() {
+		return migratedEntries.sum();
+	}
+
+	/**
+	 * @return the number of history segments merged into larger ones
+	 */
+	public long getCompactedSegments() {
+		return compactedSegments.sum();
+	}
+
+	/**
+	 * @return the number of completed runs
+	 */
+	public long getRuns() {
+		return runs.sum();
+	}
+
+	/**
+	 * @return the duration of the last completed run, in nanoseconds
+	 */
+	public long getLastRunNanos() {
+		return lastRunNanos;
+	}
+
+	/**
+	 * @return the number of background runs that failed
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * @return the failure of the last background run, or null if it succeeded
+	 */
+	public RuntimeException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Stops the background runs, waiting for the current one to finish.
+	 */
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
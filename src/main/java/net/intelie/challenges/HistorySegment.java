@@ -0,0 +1,927 @@
+package net.intelie.challenges;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An immutable, sorted file of historical timestamps of a single type, read
+ * through a {@link MappedByteBuffer}.
+ *
+ * <p>
+ * The file starts with a header (magic number, version, type, number of
+ * events, flags and the sequence numbers of the segments it replaces)
+ * followed by a sparse index and the data. The timestamps are split
+ * in blocks of {@link #BLOCK_SIZE}; the index keeps the first timestamp of
+ * each block and where its data starts. Inside a block, each timestamp is
+ * delta-encoded against the previous one with {@link DeltaEncoderDecoder} and
+ * written as a variable-length number, so timestamps that are close to each
+ * other take one or two bytes.
+ *
+ * <p>
+ * A query binary searches the index for the first block that may hold its
+ * start and decodes forward from there, straight from the mapped pages: the
+ * history costs no heap and no garbage collection work, and is available again
+ * as soon as the file is mapped after a restart.
+ *
+ * <p>
+ * The file is never rewritten. A removed event is marked in a tombstone bitmap
+ * kept in memory and appended to a small {@code .del} file next to the
+ * segment, which is forced to disk before the removal returns, so removals
+ * also survive a crash. The {@code .del} file is opened on the first removal
+ * and kept open until the segment is deleted.
+ *
+ * <p>
+ * Small segments of a type are merged into a new one (see {@link #merge}),
+ * which names them, and the segments it names in turn, in its header: they
+ * are superseded, and deleted if they are still found next to it after a
+ * crash. A superseded segment forwards its removals to the segment that
+ * replaced it, for the readers that still walk it.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class HistorySegment {
+
+	/** suffix of the segment files **/
+	static final String SUFFIX = ".seg";
+
+	/** number of timestamps per indexed block **/
+	static final int BLOCK_SIZE = 128;
+
+	private static final int MAGIC = 0x45565347; // "EVSG"
+	private static final int VERSION = 2;
+	private static final int INDEX_ENTRY_SIZE = 12;
+
+	/** flag of a segment written with others by a single move **/
+	private static final int SPLIT = 1;
+	private static final long[] NO_SOURCES = new long[0];
+
+	private final Path path;
+	private final Path tombstonePath;
+	private final String type;
+	private final int count;
+	private final int blockCount;
+	private final int indexStart;
+	private final MappedByteBuffer buffer;
+	private final boolean split;
+	/** sequence numbers of the segments this one replaces **/
+	private final long[] sources;
+	/** lowest and highest timestamps written, removed or not **/
+	private final long first;
+	private final long last;
+
+	/** bitmap of removed events, created on the first removal **/
+	private volatile AtomicLongArray tombstones;
+	private int removedCount;
+	/** the open {@code .del} file, null before the first removal; guarded by this **/
+	private FileChannel tombstoneChannel;
+	/** whether the files were deleted; guarded by this **/
+	private boolean deleted;
+	/** the segment the events were merged into, null while there is none;
+	 * set under the lock of this **/
+	private volatile HistorySegment replacement;
+	/** the removed events when the segment was copied by a merge, and their
+	 * number; guarded by this **/
+	private long[] copied;
+	private int copiedRemovedCount;
+
+	private HistorySegment(Path path, MappedByteBuffer buffer) {
+		this.path = path;
+		this.tombstonePath = path.resolveSibling(path.getFileName() + ".del");
+		this.buffer = buffer;
+
+		int version = buffer.getInt(4);
+		if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+			throw new IllegalStateException("not a history segment: " + path);
+		}
+		int typeLength = buffer.getInt(8);
+		byte[] typeBytes = new byte[typeLength];
+		for (int i = 0; i < typeLength; i++) {
+			typeBytes[i] = buffer.get(12 + i);
+		}
+		this.type = new String(typeBytes, StandardCharsets.UTF_8);
+		this.count = buffer.getInt(12 + typeLength);
+		this.blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int position = 16 + typeLength;
+		if (version == 1) {
+			this.split = false;
+			this.sources = NO_SOURCES;
+		} else {
+			this.split = (buffer.getInt(position) & SPLIT) != 0;
+			this.sources = new long[buffer.getInt(position + 4)];
+			position += 8;
+			for (int i = 0; i < sources.length; i++, position += 8) {
+				sources[i] = buffer.getLong(position);
+			}
+		}
+		this.indexStart = position;
+		if (count == 0) {
+			this.first = Long.MAX_VALUE;
+			this.last = Long.MIN_VALUE;
+		} else {
+			long[] timestamps = new long[BLOCK_SIZE];
+			this.first = blockFirst(0);
+			this.last = timestamps[decode(blockCount - 1, timestamps) - 1];
+		}
+	}
+
+	/**
+	 * Writes the sorted timestamps to a new segment file and maps it.
+	 *
+	 * <p>
+	 * The file is written under a temporary name, forced to disk and then
+	 * renamed, so a crash never leaves a partial segment behind.
+	 *
+	 * @param path the file to be created
+	 * @param type the type of the events
+	 * @param timestamps the timestamps, in ascending order
+	 * @param count the number of timestamps
+	 * @return the mapped segment
+	 * @throws UncheckedIOException if the file can not be written
+	 */
+	static HistorySegment write(Path path, String type, long[] timestamps, int count) {
+		return write(path, type, timestamps, count, false, NO_SOURCES);
+	}
+
+	/**
+	 * Writes the sorted timestamps to a new segment file and maps it.
+	 *
+	 * @param split whether the segment is one of several written by a move
+	 * @param sources the sequence numbers of the segments it replaces
+	 * @see #write(Path, String, long[], int)
+	 */
+	static HistorySegment write(Path path, String type, long[] timestamps, int count, boolean split,
+			long[] sources) {
+		byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+		int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int headerSize = 24 + typeBytes.length + sources.length * 8;
+		long dataStart = (long) headerSize + (long) blocks * INDEX_ENTRY_SIZE;
+
+		long size = dataStart;
+		for (int i = 0; i < count; i++) {
+			if (i % BLOCK_SIZE != 0) {
+				size += DeltaEncoderDecoder.varLongSize(DeltaEncoderDecoder.encode(timestamps[i], timestamps[i - 1]));
+			}
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("segment too large: " + count + " events");
+		}
+
+		ByteBuffer out = ByteBuffer.allocate((int) size);
+		out.putInt(MAGIC).putInt(VERSION).putInt(typeBytes.length).put(typeBytes).putInt(count);
+		out.putInt(split ? SPLIT : 0).putInt(sources.length);
+		for (long source : sources) {
+			out.putLong(source);
+		}
+		int offset = (int) dataStart;
+		for (int block = 0; block < blocks; block++) {
+			int first = block * BLOCK_SIZE;
+			out.putLong(timestamps[first]).putInt(offset);
+			for (int i = first + 1; i < Math.min(first + BLOCK_SIZE, count); i++) {
+				offset += DeltaEncoderDecoder.varLongSize(DeltaEncoderDecoder.encode(timestamps[i], timestamps[i - 1]));
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (i % BLOCK_SIZE != 0) {
+				DeltaEncoderDecoder.putVarLong(out, DeltaEncoderDecoder.encode(timestamps[i], timestamps[i - 1]));
+			}
+		}
+		out.flip();
+
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+				channel.force(true);
+			}
+			Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return open(path);
+	}
+
+	/**
+	 * Maps an existing segment file, and reads its tombstones if it has any.
+	 *
+	 * @param path the segment file
+	 * @return the mapped segment
+	 * @throws UncheckedIOException if the file can not be read
+	 */
+	static HistorySegment open(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			HistorySegment segment = new HistorySegment(path, buffer);
+			segment.loadTombstones();
+			return segment;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void loadTombstones() throws IOException {
+		if (!Files.exists(tombstonePath)) {
+			return;
+		}
+		ByteBuffer ordinals = ByteBuffer.wrap(Files.readAllBytes(tombstonePath));
+		while (ordinals.remaining() >= 4) {
+			markRemoved(ordinals.getInt());
+		}
+	}
+
+	/**
+	 * @return the type of the events of the segment
+	 */
+	String type() {
+		return type;
+	}
+
+	/**
+	 * @return the sequence number of the segment, which names its file
+	 * @throws NumberFormatException if the file is not named by a number
+	 */
+	long sequence() {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * @return the sequence numbers of the segments this one replaces, and of
+	 * the ones they replaced
+	 */
+	long[] sources() {
+		return sources.clone();
+	}
+
+	/**
+	 * @return whether the segment is one of several written by a single
+	 * move, which are not merged
+	 */
+	boolean isSplit() {
+		return split;
+	}
+
+	/**
+	 * @return whether the events were merged into another segment, which
+	 * replaces this one
+	 */
+	boolean isReplaced() {
+		return replacement != null;
+	}
+
+	/**
+	 * @return the number of events of the segment that were not removed
+	 */
+	synchronized int size() {
+		return count - removedCount;
+	}
+
+	/**
+	 * Removes the event at the given position of the segment, or, if the
+	 * segment was replaced, an event with the same timestamp from the
+	 * segment that replaced it.
+	 *
+	 * @param ordinal the position of the event
+	 * @param timestamp the timestamp of the event
+	 * @return {@code true} if the event was removed by this call
+	 * @throws UncheckedIOException if the removal can not be recorded
+	 */
+	synchronized boolean remove(int ordinal, long timestamp) {
+		if (replacement != null) {
+			return replacement.removeTimestamp(timestamp);
+		}
+		if (!markRemoved(ordinal)) {
+			return false;
+		}
+		ByteBuffer record = ByteBuffer.allocate(4).putInt(ordinal);
+		record.flip();
+		appendTombstones(record);
+		return true;
+	}
+
+	/**
+	 * Removes the events of the segment from {@code startTime}, inclusive, to
+	 * {@code endTime}, exclusive, recording their tombstones with a single
+	 * write.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the number of events removed by this call
+	 * @throws UncheckedIOException if the removals can not be recorded
+	 */
+	synchronized int removeRange(long startTime, long endTime) {
+		if (replacement != null) {
+			return replacement.removeRange(startTime, endTime);
+		}
+		Cursor cursor = new Cursor(this, startTime, endTime);
+		ByteBuffer records = ByteBuffer.allocate(4 * 64);
+		int removed = 0;
+		while (cursor.hasNext()) {
+			cursor.next();
+			if (markRemoved(cursor.currentOrdinal)) {
+				if (!records.hasRemaining()) {
+					records.flip();
+					records = ByteBuffer.allocate(records.capacity() * 2).put(records);
+				}
+				records.putInt(cursor.currentOrdinal);
+				removed++;
+			}
+		}
+		if (removed == 0) {
+			return 0;
+		}
+		records.flip();
+		appendTombstones(records);
+		return removed;
+	}
+
+	/**
+	 * Removes an event with the given timestamp, the events of a timestamp
+	 * being alike, as a removal forwarded by a segment merged into this one.
+	 * No range reaches {@code Long.MAX_VALUE}, so no such event is removed.
+	 */
+	private synchronized boolean removeTimestamp(long timestamp) {
+		if (timestamp == Long.MAX_VALUE) {
+			return false;
+		}
+		Cursor cursor = new Cursor(this, timestamp, timestamp + 1);
+		return cursor.hasNext() && remove(cursor.ordinal, timestamp);
+	}
+
+	/**
+	 * Appends tombstone records to the {@code .del} file, opening it if
+	 * needed, and forces them to disk; holds this. A record torn by a crash
+	 * is cut from the end of the file as it is opened, as it was ignored when
+	 * the tombstones were loaded.
+	 */
+	private void appendTombstones(ByteBuffer records) {
+		if (deleted) {
+			return;
+		}
+		try {
+			if (tombstoneChannel == null) {
+				FileChannel channel = FileChannel.open(tombstonePath, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				channel.truncate(channel.size() & ~3L);
+				channel.position(channel.size());
+				tombstoneChannel = channel;
+			}
+			while (records.hasRemaining()) {
+				tombstoneChannel.write(records);
+			}
+			tombstoneChannel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return whether every event left in the segment is in the given range
+	 */
+	boolean within(long startTime, long endTime) {
+		return !new Cursor(this, Long.MIN_VALUE, startTime).hasNext() && !new Cursor(this, endTime, Long.MAX_VALUE).hasNext();
+	}
+
+	/**
+	 * @return the highest timestamp written to the segment, removed or not,
+	 * or {@code Long.MIN_VALUE} if it is empty
+	 */
+	long last() {
+		return last;
+	}
+
+	/**
+	 * Tells whether the segment may hold events of the given range, from the
+	 * lowest and highest timestamps written to it, so a query does not walk
+	 * the segments outside its range.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return whether the range of the segment overlaps the given one
+	 */
+	boolean overlaps(long startTime, long endTime) {
+		return first < endTime && last >= startTime;
+	}
+
+	/**
+	 * Merges the events left in the given segments of a type into a new
+	 * segment file, which names them, and their own sources, as its sources.
+	 * The events removed from the merged segments after they were copied are
+	 * removed from the new one when it replaces them (see
+	 * {@link #replaceBy}).
+	 *
+	 * @param path the file to be created
+	 * @param merged the segments to be merged, of a single type
+	 * @return the mapped segment
+	 * @throws UncheckedIOException if the file can not be written
+	 */
+	static HistorySegment merge(Path path, List<HistorySegment> merged) {
+		int total = 0;
+		int sourceCount = 0;
+		for (HistorySegment segment : merged) {
+			total += segment.size();
+			sourceCount += 1 + segment.sources.length;
+		}
+		long[] timestamps = new long[total];
+		long[] sources = new long[sourceCount];
+		int count = 0;
+		int source = 0;
+		for (HistorySegment segment : merged) {
+			count = segment.copyLive(timestamps, count);
+			sources[source++] = segment.sequence();
+			System.arraycopy(segment.sources, 0, sources, source, segment.sources.length);
+			source += segment.sources.length;
+		}
+		Arrays.sort(timestamps, 0, count);
+		return write(path, merged.get(0).type, timestamps, count, false, sources);
+	}
+
+	/**
+	 * Copies the timestamps of the events that were not removed.
+	 *
+	 * @return the position after the last one copied
+	 */
+	private synchronized int copyLive(long[] timestamps, int position) {
+		long[] decoded = new long[BLOCK_SIZE];
+		for (int block = 0; block < blockCount; block++) {
+			int size = decode(block, decoded);
+			for (int i = 0; i < size; i++) {
+				if (!isRemoved(block * BLOCK_SIZE + i)) {
+					timestamps[position++] = decoded[i];
+				}
+			}
+		}
+		copied = new long[(count + 63) / 64];
+		AtomicLongArray bits = tombstones;
+		for (int i = 0; bits != null && i < copied.length; i++) {
+			copied[i] = bits.get(i);
+		}
+		copiedRemovedCount = removedCount;
+		return position;
+	}
+
+	/**
+	 * Forwards the removals of this segment, from now on, to the segment its
+	 * events were merged into, and removes from it the events removed here
+	 * since they were copied.
+	 *
+	 * @param merged the segment that replaces this one
+	 * @throws UncheckedIOException if the removals can not be recorded
+	 */
+	synchronized void replaceBy(HistorySegment merged) {
+		replacement = merged;
+		long[] removedBefore = copied;
+		copied = null;
+		if (removedBefore == null || removedCount == copiedRemovedCount) {
+			return;
+		}
+		long[] decoded = new long[BLOCK_SIZE];
+		for (int block = 0; block < blockCount; block++) {
+			boolean decodedBlock = false;
+			for (int ordinal = block * BLOCK_SIZE; ordinal < Math.min(count, (block + 1) * BLOCK_SIZE); ordinal++) {
+				if (isRemoved(ordinal) && (removedBefore[ordinal >>> 6] & (1L << ordinal)) == 0) {
+					if (!decodedBlock) {
+						decode(block, decoded);
+						decodedBlock = true;
+					}
+					merged.removeTimestamp(decoded[ordinal - block * BLOCK_SIZE]);
+				}
+			}
+		}
+	}
+
+	private synchronized boolean markRemoved(int ordinal) {
+		AtomicLongArray bits = tombstones;
+		if (bits == null) {
+			bits = new AtomicLongArray((count + 63) / 64);
+			tombstones = bits;
+		}
+		long word = bits.get(ordinal >>> 6);
+		long mask = 1L << ordinal;
+		if ((word & mask) != 0) {
+			return false;
+		}
+		bits.set(ordinal >>> 6, word | mask);
+		removedCount++;
+		return true;
+	}
+
+	private boolean isRemoved(int ordinal) {
+		AtomicLongArray bits = tombstones;
+		return bits != null && (bits.get(ordinal >>> 6) & (1L << ordinal)) != 0;
+	}
+
+	/**
+	 * Deletes the files of the segment. The mapping itself is released when
+	 * the segment is garbage collected; readers that still use it are not
+	 * affected.
+	 */
+	synchronized void delete() {
+		deleted = true;
+		try {
+			if (tombstoneChannel != null) {
+				tombstoneChannel.close();
+				tombstoneChannel = null;
+			}
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(tombstonePath);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns a cursor over the timestamps of the segment from
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the cursor, placed before its first timestamp
+	 */
+	TimestampCursor cursor(long startTime, long endTime) {
+		return cursor(startTime, endTime, null);
+	}
+
+	/**
+	 * Returns a cursor over the timestamps of the segment from
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive, placing the
+	 * given one there if it is a cursor of segments, so it is not allocated
+	 * again.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @param reuse a cursor that is no longer used, or null
+	 * @return the cursor, placed before its first timestamp
+	 */
+	TimestampCursor cursor(long startTime, long endTime, TimestampCursor reuse) {
+		Cursor cursor = reuse instanceof Cursor ? (Cursor) reuse : new Cursor();
+		cursor.reset(this, startTime, endTime);
+		return cursor;
+	}
+
+	/**
+	 * Returns a cursor over the timestamps of the segment from
+	 * {@code startTime}, inclusive, to {@code endTime}, exclusive, in
+	 * descending order. The varints of a block can only be read forwards, so
+	 * the cursor decodes a block at a time and walks it backwards.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the cursor, placed before its highest timestamp
+	 */
+	TimestampCursor descendingCursor(long startTime, long endTime) {
+		return new DescendingCursor(this, startTime, endTime);
+	}
+
+	/**
+	 * Counts the events of the segment from {@code startTime}, inclusive, to
+	 * {@code endTime}, exclusive. The ends of the range are located through
+	 * the index, decoding a block each, and the removed events between them
+	 * are counted in the tombstone bitmap a word at a time.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the number of events in the range that were not removed
+	 */
+	int count(long startTime, long endTime) {
+		int from = rank(startTime);
+		int to = rank(endTime);
+		return to <= from ? 0 : to - from - removedBetween(from, to);
+	}
+
+	/**
+	 * Counts the events in the range of the histogram into its buckets. When
+	 * the buckets hold many blocks each, they are counted as ranges, by their
+	 * ends; otherwise the range is walked.
+	 *
+	 * @param histogram the histogram to be filled
+	 */
+	void histogram(TimestampHistogram histogram) {
+		int from = rank(histogram.startTime());
+		int to = rank(histogram.endTime());
+		if (to <= from) {
+			return;
+		}
+		if ((to - from) / histogram.buckets() > BLOCK_SIZE) {
+			for (int bucket = 0; bucket < histogram.buckets(); bucket++) {
+				int next = rank(histogram.bucketEnd(bucket));
+				histogram.add(bucket, next - from - removedBetween(from, next));
+				from = next;
+			}
+			return;
+		}
+		Cursor cursor = new Cursor(this, histogram.startTime(), histogram.endTime());
+		while (cursor.hasNext()) {
+			histogram.add(cursor.next());
+		}
+	}
+
+	/**
+	 * Returns the number of timestamps of the segment lower than the given
+	 * one, removed or not: the ordinal of the first one equal or greater.
+	 */
+	private int rank(long timestamp) {
+		if (count == 0) {
+			return 0;
+		}
+		int block = lastBlockBefore(timestamp);
+		int ordinal = block * BLOCK_SIZE;
+		int end = Math.min(count, ordinal + BLOCK_SIZE);
+		int position = blockOffset(block);
+		long current = blockFirst(block);
+		while (current < timestamp) {
+			if (++ordinal == end) {
+				// the next block starts at or after the timestamp
+				return ordinal;
+			}
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get(position++);
+				delta |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			current = DeltaEncoderDecoder.decode(delta, current);
+		}
+		return ordinal;
+	}
+
+	/** number of removed events from ordinal {@code from}, inclusive, to {@code to}, exclusive **/
+	private int removedBetween(int from, int to) {
+		AtomicLongArray bits = tombstones;
+		if (bits == null) {
+			return 0;
+		}
+		int removed = 0;
+		int ordinal = from;
+		while (ordinal < to) {
+			int span = Math.min(64 - (ordinal & 63), to - ordinal);
+			long word = bits.get(ordinal >>> 6) >>> (ordinal & 63);
+			if (span < 64) {
+				word &= (1L << span) - 1;
+			}
+			removed += Long.bitCount(word);
+			ordinal += span;
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the last block whose first timestamp is lower than the given
+	 * one, or the first block; equal timestamps may end a block and start the
+	 * next one.
+	 */
+	private int lastBlockBefore(long timestamp) {
+		int low = 0;
+		int high = blockCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (blockFirst(mid) < timestamp) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private long blockFirst(int block) {
+		return buffer.getLong(indexStart + block * INDEX_ENTRY_SIZE);
+	}
+
+	private int blockOffset(int block) {
+		return buffer.getInt(indexStart + block * INDEX_ENTRY_SIZE + 8);
+	}
+
+	/**
+	 * Decodes the timestamps of a block.
+	 *
+	 * @return the number of timestamps of the block
+	 */
+	private int decode(int block, long[] timestamps) {
+		int size = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+		int position = blockOffset(block);
+		long timestamp = blockFirst(block);
+		timestamps[0] = timestamp;
+		for (int i = 1; i < size; i++) {
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get(position++);
+				delta |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			timestamp = DeltaEncoderDecoder.decode(delta, timestamp);
+			timestamps[i] = timestamp;
+		}
+		return size;
+	}
+
+	/**
+	 * Walks a range of the segment, decoding the timestamps from the mapped
+	 * buffer. Removed events are skipped. It can be placed again over another
+	 * segment.
+	 */
+	static final class Cursor implements TimestampCursor {
+		private HistorySegment owner;
+		private long endTime;
+		private int ordinal;
+		private int position;
+		private long timestamp;
+		private boolean hasNext;
+		private int currentOrdinal;
+		private long currentTimestamp;
+
+		private Cursor() {
+		}
+
+		/**
+		 * @return the segment the cursor is placed on
+		 */
+		HistorySegment segment() {
+			return owner;
+		}
+
+		private Cursor(HistorySegment owner, long startTime, long endTime) {
+			reset(owner, startTime, endTime);
+		}
+
+		private void reset(HistorySegment owner, long startTime, long endTime) {
+			this.owner = owner;
+			this.endTime = endTime;
+			hasNext = false;
+			currentOrdinal = -1;
+			if (owner.count == 0) {
+				return;
+			}
+			load(owner.lastBlockBefore(startTime));
+			while (hasNext && timestamp < startTime) {
+				advance();
+			}
+			skipRemoved();
+		}
+
+		private void load(int block) {
+			ordinal = block * BLOCK_SIZE;
+			position = owner.blockOffset(block);
+			timestamp = owner.blockFirst(block);
+			hasNext = timestamp < endTime;
+		}
+
+		private void advance() {
+			int next = ordinal + 1;
+			if (next >= owner.count) {
+				hasNext = false;
+				return;
+			}
+			if (next % BLOCK_SIZE == 0) {
+				load(next / BLOCK_SIZE);
+				return;
+			}
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = owner.buffer.get(position++);
+				delta |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			ordinal = next;
+			timestamp = DeltaEncoderDecoder.decode(delta, timestamp);
+			hasNext = timestamp < endTime;
+		}
+
+		private void skipRemoved() {
+			while (hasNext && owner.isRemoved(ordinal)) {
+				advance();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public long peek() {
+			return timestamp;
+		}
+
+		@Override
+		public long next() {
+			long current = timestamp;
+			currentOrdinal = ordinal;
+			currentTimestamp = current;
+			advance();
+			skipRemoved();
+			return current;
+		}
+
+		@Override
+		public boolean remove() {
+			return owner.remove(currentOrdinal, currentTimestamp);
+		}
+
+		@Override
+		public String type() {
+			return owner.type;
+		}
+	}
+
+	/**
+	 * Walks a range of the segment backwards, a decoded block at a time.
+	 * Removed events are skipped.
+	 */
+	static final class DescendingCursor implements TimestampCursor {
+		private final HistorySegment owner;
+		private final long startTime;
+		private final long[] decoded = new long[BLOCK_SIZE];
+		private int block;
+		/** position of the next timestamp in the decoded block, -1 if none **/
+		private int index = -1;
+		private int currentOrdinal = -1;
+		private long currentTimestamp;
+
+		/**
+		 * @return the segment the cursor walks
+		 */
+		HistorySegment segment() {
+			return owner;
+		}
+
+		private DescendingCursor(HistorySegment owner, long startTime, long endTime) {
+			this.owner = owner;
+			this.startTime = startTime;
+			if (owner.count == 0) {
+				return;
+			}
+			block = owner.lastBlockBefore(endTime);
+			int size = owner.decode(block, decoded);
+			index = AppendLog.lowerBound(decoded, size, endTime) - 1;
+			skipRemoved();
+		}
+
+		private void back() {
+			index--;
+			if (index < 0 && block > 0) {
+				block--;
+				index = owner.decode(block, decoded) - 1;
+			}
+		}
+
+		private void skipRemoved() {
+			while (hasNext() && owner.isRemoved(block * BLOCK_SIZE + index)) {
+				back();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index >= 0 && decoded[index] >= startTime;
+		}
+
+		@Override
+		public long peek() {
+			return decoded[index];
+		}
+
+		@Override
+		public long next() {
+			long current = decoded[index];
+			currentOrdinal = block * BLOCK_SIZE + index;
+			currentTimestamp = current;
+			back();
+			skipRemoved();
+			return current;
+		}
+
+		@Override
+		public boolean remove() {
+			return owner.remove(currentOrdinal, currentTimestamp);
+		}
+
+		@Override
+		public String type() {
+			return owner.type;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package net.intelie.challenges;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An iterator over the events of the main map of a type that pass an
+ * {@link AttributeFilter}, found through the {@link AttributeIndex} of its
+ * attributes.
+ *
+ * <p>
+ * The chunks of the first indexed attribute of the filter are walked in time
+ * order, and the chunk of each other indexed attribute with the same number
+ * is ANDed into them, word by word; a chunk missing from any of them is
+ * skipped whole. Only the timestamps left set are looked up in the skip list,
+ * and their events are checked against the whole filter, as the index may
+ * hold timestamps of removed or replaced events and the filter may also
+ * compare attributes that are not indexed. A query thus costs the chunks of
+ * the first attribute in the range plus the timestamps of its matches, rather
+ * than the events of the range.
+ *
+ * <p>
+ * Like the skip list, the iterator is weakly consistent.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class IndexedEventIterator implements EventIterator {
+
+	private static final int WORDS = AttributeIndex.CHUNK_SIZE / 64;
+
+	private final EventStore store;
+	private final ConcurrentSkipListMap<Long, Event> events;
+	private final AttributeFilter filter;
+	private final long startTime;
+	private final long endTime;
+
+	private Iterator<Map.Entry<Long, AtomicLongArray>> chunks;
+	private final List<ConcurrentNavigableMap<Long, AtomicLongArray>> others;
+
+	/** bitmap of the current chunk, ANDed across the indexed attributes **/
+	private final long[] words = new long[WORDS];
+	private long chunkStart;
+	private int word = WORDS;
+	private long bits;
+
+	/** value stored at the current timestamp, and the next of its events **/
+	private Event stored;
+	private int next;
+	private Event current;
+
+	/**
+	 * @param store the store of the events, for removals
+	 * @param events the main map of the type
+	 * @param chunks the chunks of the indexed attributes of the filter, in
+	 * the range, at least one
+	 * @param filter the filter the events must pass
+	 */
+	IndexedEventIterator(EventStore store, ConcurrentSkipListMap<Long, Event> events,
+			List<ConcurrentNavigableMap<Long, AtomicLongArray>> chunks, AttributeFilter filter, long startTime,
+			long endTime) {
+		this.store = store;
+		this.events = events;
+		this.filter = filter;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.chunks = chunks.get(0).entrySet().iterator();
+		this.others = new ArrayList<>(chunks.subList(1, chunks.size()));
+	}
+
+	@Override
+	public boolean moveNext() {
+		while (true) {
+			if (stored != null) {
+				int count = EventBucket.count(stored);
+				while (next < count) {
+					Event event = count == 1 ? stored : ((EventBucket) stored).get(next);
+					next++;
+					if (filter.test(event)) {
+						current = event;
+						return true;
+					}
+				}
+				stored = null;
+			}
+			if (!nextTimestamp()) {
+				current = null;
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next timestamp set in the bitmaps, in the range, and reads
+	 * the value stored for it.
+	 *
+	 * @return {@code false} if there are no timestamps left
+	 */
+	private boolean nextTimestamp() {
+		while (true) {
+			while (bits == 0) {
+				if (++word < WORDS) {
+					bits = words[word];
+				} else if (!nextChunk()) {
+					return false;
+				}
+			}
+			long timestamp = chunkStart + word * 64 + Long.numberOfTrailingZeros(bits);
+			bits &= bits - 1;
+			if (timestamp >= startTime && timestamp < endTime) {
+				stored = events.get(timestamp);
+				next = 0;
+				if (stored != null) {
+					return true;
+				}
+			}
+		}
+	}
+
+	private boolean nextChunk() {
+		while (chunks.hasNext()) {
+			Map.Entry<Long, AtomicLongArray> chunk = chunks.next();
+			Long key = chunk.getKey();
+			AtomicLongArray first = chunk.getValue();
+			for (int i = 0; i < WORDS; i++) {
+				words[i] = first.get(i);
+			}
+			boolean empty = false;
+			for (ConcurrentNavigableMap<Long, AtomicLongArray> other : others) {
+				AtomicLongArray bitmap = other.get(key);
+				if (bitmap == null) {
+					empty = true;
+					break;
+				}
+				for (int i = 0; i < WORDS; i++) {
+					words[i] &= bitmap.get(i);
+				}
+			}
+			if (!empty) {
+				chunkStart = AttributeIndex.chunkStart(key);
+				word = -1;
+				bits = 0;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Event current() {
+		if (current == null) {
+			throw new IllegalStateException();
+		}
+		return current;
+	}
+
+	/**
+	 * Removes the current event from the store, by a query of its timestamp.
+	 */
+	@Override
+	public void remove() {
+		if (current == null) {
+			throw new IllegalStateException();
+		}
+		ReversedEventIterator.remove(store, current);
+	}
+
+	@Override
+	public void close() throws Exception {
+		chunks = Collections.emptyIterator();
+		word = WORDS;
+		bits = 0;
+		stored = null;
+		current = null;
+	}
+}
@@ -0,0 +1,55 @@
+package net.intelie.challenges;
+
+/**
+ * An iterator that stops after a given number of events of another one, for
+ * the queries with a limit.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class LimitedEventIterator implements EventIterator {
+
+	private final EventIterator iterator;
+	private final int limit;
+	private int count;
+	private boolean hasCurrent;
+
+	/**
+	 * @param iterator the iterator to be limited
+	 * @param limit the maximum number of events, not negative
+	 */
+	LimitedEventIterator(EventIterator iterator, int limit) {
+		this.iterator = iterator;
+		this.limit = limit;
+	}
+
+	@Override
+	public boolean moveNext() {
+		hasCurrent = count < limit && iterator.moveNext();
+		if (hasCurrent) {
+			count++;
+		}
+		return hasCurrent;
+	}
+
+	@Override
+	public Event current() {
+		if (!hasCurrent) {
+			throw new IllegalStateException();
+		}
+		return iterator.current();
+	}
+
+	@Override
+	public void remove() {
+		if (!hasCurrent) {
+			throw new IllegalStateException();
+		}
+		iterator.remove();
+	}
+
+	@Override
+	public void close() throws Exception {
+		iterator.close();
+	}
+}
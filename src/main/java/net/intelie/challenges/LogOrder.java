@@ -0,0 +1,126 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The locks that keep the {@link WriteAheadLog} of a
+ * {@link ConcurrentEventStore} in the order its changes are applied.
+ *
+ * <p>
+ * The skip lists are changed without locks, so two changes of the same
+ * timestamp could be applied in one order and logged in the other, and the
+ * replay would then rebuild another store: an insert overlapping a removed
+ * range, for instance, kept by one and dropped by the other. A change is
+ * instead logged and applied under a lock: the lock of its timestamp, one of
+ * a fixed set of stripes, or every stripe of its type for a change of a
+ * whole range, such as a removed range or a move to the history. The changes
+ * of different stripes still run in parallel, and their order in the log does
+ * not matter, as they touch different timestamps.
+ *
+ * <p>
+ * The stripes are split in groups, and the type picks the group of its
+ * timestamps by hashing its name, so a change of a range of a type only
+ * takes the stripes of its group, and a long retention sweep or range
+ * removal does not stall the writers of the types of other groups. Only a
+ * checkpoint, which marks the log for every type, takes every stripe.
+ *
+ * <p>
+ * The stripes are always taken in ascending order, so a batch that takes
+ * several of them does not deadlock with a change of a range.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class LogOrder {
+
+	/** number of stripes, one per bit of a mask **/
+	private static final int STRIPES = 64;
+
+	/** number of stripes of a group, the stripes of a type **/
+	private static final int GROUP_STRIPES = 8;
+
+	/** mask of every stripe **/
+	static final long ALL = -1L;
+
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+	LogOrder() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Takes the stripe of the given timestamp of a type.
+	 *
+	 * @return the mask of the stripe, to unlock it with
+	 */
+	long lock(String type, long timestamp) {
+		long mask = 1L << stripe(type, timestamp);
+		lock(mask);
+		return mask;
+	}
+
+	/**
+	 * Takes every stripe of a type, for a change of a range of its timestamps.
+	 *
+	 * @return the mask of the stripes, to unlock them with
+	 */
+	long lock(String type) {
+		long mask = mask(type);
+		lock(mask);
+		return mask;
+	}
+
+	/**
+	 * Takes the stripes of the timestamps of the given events.
+	 *
+	 * @return the mask of the stripes, to unlock them with
+	 */
+	long lock(Event[] events) {
+		long mask = 0;
+		for (Event event : events) {
+			mask |= 1L << stripe(event.type(), event.timestamp());
+		}
+		lock(mask);
+		return mask;
+	}
+
+	/**
+	 * Takes the stripes of the given mask, in ascending order.
+	 */
+	void lock(long mask) {
+		for (long left = mask; left != 0; left &= left - 1) {
+			stripes[Long.numberOfTrailingZeros(left)].lock();
+		}
+	}
+
+	/**
+	 * Releases the stripes of the given mask.
+	 */
+	void unlock(long mask) {
+		for (long left = mask; left != 0; left &= left - 1) {
+			stripes[Long.numberOfTrailingZeros(left)].unlock();
+		}
+	}
+
+	/**
+	 * @return the mask of the stripes of the group of a type
+	 */
+	static long mask(String type) {
+		return ((1L << GROUP_STRIPES) - 1) << (group(type) * GROUP_STRIPES);
+	}
+
+	/**
+	 * @return the stripe of a timestamp of a type, in the group of the type
+	 */
+	static int stripe(String type, long timestamp) {
+		long hash = (timestamp + type.hashCode()) * 0x9E3779B97F4A7C15L;
+		return group(type) * GROUP_STRIPES + (int) (hash >>> (64 - Integer.numberOfTrailingZeros(GROUP_STRIPES)));
+	}
+
+	private static int group(String type) {
+		long hash = type.hashCode() * 0xC2B2AE3D27D4EB4FL;
+		return (int) (hash >>> (64 - Integer.numberOfTrailingZeros(STRIPES / GROUP_STRIPES)));
+	}
+}
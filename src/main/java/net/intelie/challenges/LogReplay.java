@@ -0,0 +1,358 @@
+package net.intelie.challenges;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongPredicate;
+
+/**
+ * Rebuilds the event maps of a {@link ConcurrentEventStore} from its
+ * {@link WriteAheadLog}.
+ *
+ * <p>
+ * The log is read sequentially, and its records are only collected, per type,
+ * in primitive arrays, with the attributes of the records that have them in
+ * an array of their own. The skip list of each type is built afterwards, the
+ * types in parallel. A type without removals, the usual case, is sorted and
+ * copied to its skip list in linear time, as a batch of
+ * {@link ConcurrentEventStore#insertAll(Event[])}; otherwise its records are
+ * applied one by one, in the order they were logged. The attributes of the
+ * rebuilt events are in heap arrays, to be copied off the heap by the store.
+ *
+ * <p>
+ * A log cut by a checkpoint starts with the snapshot of the checkpoint, whose
+ * events are collected as insertions before the records that follow it.
+ *
+ * <p>
+ * A move to history segments took the events below its limit that had no
+ * attributes, and left the others in the main map. The records of a type with
+ * attributes are thus applied up to the limit of a move, and only the entries
+ * left with attributes are kept, as insertions.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class LogReplay implements WriteAheadLog.Replayer {
+
+	/** sequence numbers of the segments found, null without a history
+	 * directory **/
+	private final Set<Long> segments;
+
+	/** segments of the moves that were not completed **/
+	private final Set<Long> orphans = new HashSet<>();
+
+	/** segments of the moves whose events are replayed from the log, and
+	 * the segments these were merged into **/
+	private final Set<Long> replayedMoves = new HashSet<>();
+
+	private final Map<String, TypeLog> types = new HashMap<>();
+
+	/** whether events with the same timestamp are all kept **/
+	private final boolean keepDuplicates;
+
+	/**
+	 * @param segments the sequence numbers of the history segments found,
+	 * with the ones they replaced, or null if there is no history directory.
+	 * The events of a move whose segments were all found are dropped, as the
+	 * segments already hold them.
+	 * @param keepDuplicates whether events with the same timestamp are all kept
+	 */
+	LogReplay(Set<Long> segments, boolean keepDuplicates) {
+		this.segments = segments;
+		this.keepDuplicates = keepDuplicates;
+	}
+
+	@Override
+	public void insert(String type, long timestamp, Attributes attributes) {
+		types.computeIfAbsent(type, TypeLog::new).add(timestamp, false, attributes);
+	}
+
+	@Override
+	public void remove(String type, long timestamp, Attributes attributes) {
+		types.computeIfAbsent(type, TypeLog::new).add(timestamp, true, attributes);
+	}
+
+	@Override
+	public void removeAll(String type) {
+		types.remove(type);
+	}
+
+	@Override
+	public void movedToHistory(String type, long limit, long firstSegment, int count) {
+		if (segments == null) {
+			return;
+		}
+		boolean complete = true;
+		for (long segment = firstSegment; segment < firstSegment + count; segment++) {
+			complete &= segments.contains(segment);
+		}
+		if (!complete) {
+			// the move was interrupted, or one of its segments was removed
+			// since: its events are replayed, and the segments left are dropped
+			for (long segment = firstSegment; segment < firstSegment + count; segment++) {
+				replayedMoves.add(segment);
+				if (segments.contains(segment)) {
+					orphans.add(segment);
+				}
+			}
+			return;
+		}
+		TypeLog log = types.get(type);
+		if (log != null) {
+			log.dropMoved(limit, keepDuplicates);
+		}
+	}
+
+	@Override
+	public void removeBefore(String type, long timestamp) {
+		removeRange(type, Long.MIN_VALUE, timestamp);
+	}
+
+	@Override
+	public void removeRange(String type, long startTime, long endTime) {
+		TypeLog log = types.get(type);
+		if (log != null) {
+			log.dropRange(startTime, endTime);
+		}
+	}
+
+	@Override
+	public void removeFromSegment(String type, long timestamp, long segment) {
+		// only the events of the moves replayed from the log are removed
+		// here; a segment that is kept holds the removal itself, and the events
+		// of one moved before a checkpoint are in neither the log nor the 
+		// snapshot
+		if (replayedMoves.contains(segment)) {
+			types.computeIfAbsent(type, TypeLog::new).add(timestamp, true, null);
+		}
+	}
+
+	@Override
+	public void compactedSegments(String type, long target, long[] sources) {
+		// the merged segment was dropped since, as the segments it replaced
+		// were: the removals recorded against it are replayed too
+		for (long source : sources) {
+			if (replayedMoves.contains(source)) {
+				replayedMoves.add(target);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void checkpoint(Path snapshot) {
+		types.clear();
+		for (StoreSnapshot.TypeImage image : StoreSnapshot.read(snapshot, true)) {
+			TypeLog log = types.computeIfAbsent(image.type, TypeLog::new);
+			if (image.events != null) {
+				for (Event stored : image.events.values()) {
+					for (Event event : EventBucket.events(stored)) {
+						log.add(event.timestamp(), false, event.encodedAttributes());
+					}
+				}
+			}
+			if (image.history != null) {
+				for (Map.Entry<Long, Event> entry : image.history.entrySet()) {
+					long timestamp = DeltaEncoderDecoder.decode(entry.getKey(), image.reference);
+					for (Event event : EventBucket.events(entry.getValue())) {
+						log.add(timestamp, false, event.encodedAttributes());
+					}
+				}
+			}
+			if (image.blocks != null) {
+				for (long timestamp : image.blocks.timestamps()) {
+					log.add(timestamp, false, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the sequence numbers of the segments found whose move was not
+	 * replayed, to be deleted
+	 */
+	Set<Long> orphans() {
+		return orphans;
+	}
+
+	/**
+	 * Builds the skip lists of the replayed types, in parallel.
+	 *
+	 * @return the non-empty skip lists, indexed by type
+	 */
+	Map<String, ConcurrentSkipListMap<Long, Event>> build() {
+		Map<String, ConcurrentSkipListMap<Long, Event>> maps = new ConcurrentHashMap<>();
+		types.values().parallelStream().forEach(log -> {
+			ConcurrentSkipListMap<Long, Event> events = log.build(keepDuplicates);
+			if (!events.isEmpty()) {
+				maps.put(log.type, events);
+			}
+		});
+		return maps;
+	}
+
+	/**
+	 * The records of a type: the timestamps, which of them are removals, and
+	 * their attributes.
+	 */
+	private static final class TypeLog {
+		private final String type;
+		private long[] timestamps = new long[16];
+		private int size;
+		/** positions of the removals, null while there is none **/
+		private BitSet removals;
+		/** attributes of the records, null while no record has any **/
+		private Attributes[] attributes;
+
+		TypeLog(String type) {
+			this.type = type;
+		}
+
+		void add(long timestamp, boolean removal, Attributes recorded) {
+			if (size == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+			}
+			if (removal) {
+				if (removals == null) {
+					removals = new BitSet();
+				}
+				removals.set(size);
+			}
+			if (recorded != null && attributes == null) {
+				attributes = new Attributes[timestamps.length];
+			}
+			if (attributes != null) {
+				if (attributes.length < timestamps.length) {
+					attributes = Arrays.copyOf(attributes, timestamps.length);
+				}
+				attributes[size] = recorded;
+			}
+			timestamps[size++] = timestamp;
+		}
+
+		/** drops the records of timestamps in the given range **/
+		void dropRange(long startTime, long endTime) {
+			BitSet kept = removals == null ? null : new BitSet();
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				if (timestamps[i] < startTime || timestamps[i] >= endTime) {
+					if (kept != null && removals.get(i)) {
+						kept.set(count);
+					}
+					if (attributes != null) {
+						attributes[count] = attributes[i];
+					}
+					timestamps[count++] = timestamps[i];
+				}
+			}
+			if (attributes != null) {
+				Arrays.fill(attributes, count, size, null);
+			}
+			size = count;
+			removals = (kept == null || kept.isEmpty()) ? null : kept;
+		}
+
+		/**
+		 * Drops the records of the events a move to the history took: those
+		 * below the given limit, but for the entries with attributes, which
+		 * the move left in the main map. The records of the range are applied
+		 * in order, and these entries are recorded again as insertions.
+		 */
+		void dropMoved(long limit, boolean keepDuplicates) {
+			if (attributes == null) {
+				dropRange(Long.MIN_VALUE, limit);
+				return;
+			}
+			ConcurrentSkipListMap<Long, Event> range = apply(timestamp -> timestamp < limit, keepDuplicates);
+			dropRange(Long.MIN_VALUE, limit);
+			for (Event stored : range.values()) {
+				if (ConcurrentEventStore.hasAttributes(stored)) {
+					for (Event event : EventBucket.events(stored)) {
+						add(event.timestamp(), false, event.encodedAttributes());
+					}
+				}
+			}
+		}
+
+		ConcurrentSkipListMap<Long, Event> build(boolean keepDuplicates) {
+			if (removals == null && attributes == null) {
+				long[] sorted = Arrays.copyOf(timestamps, size);
+				Arrays.sort(sorted);
+				List<Event> run = new ArrayList<>(size);
+				for (long timestamp : sorted) {
+					run.add(new Event(type, timestamp));
+				}
+				return new ConcurrentSkipListMap<>(EventBatch.toSortedMap(run, keepDuplicates));
+			}
+			if (removals == null) {
+				// a stable sort keeps the events of a timestamp in the order
+				// they were logged, so the last one replaces the others
+				List<Event> run = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					run.add(new Event(type, timestamps[i], attributes[i]));
+				}
+				run.sort(Comparator.comparingLong(Event::timestamp));
+				return new ConcurrentSkipListMap<>(EventBatch.toSortedMap(run, keepDuplicates));
+			}
+			return apply(timestamp -> true, keepDuplicates);
+		}
+
+		/**
+		 * Applies the records of the timestamps that pass the given predicate
+		 * one by one, in the order they were logged.
+		 */
+		private ConcurrentSkipListMap<Long, Event> apply(LongPredicate applied, boolean keepDuplicates) {
+			ConcurrentSkipListMap<Long, Event> events = new ConcurrentSkipListMap<>();
+			for (int i = 0; i < size; i++) {
+				long timestamp = timestamps[i];
+				if (!applied.test(timestamp)) {
+					continue;
+				}
+				Attributes recorded = attributes == null ? null : attributes[i];
+				if (removals == null || !removals.get(i)) {
+					Event event = new Event(type, timestamp, recorded);
+					if (keepDuplicates) {
+						events.merge(timestamp, event, EventBucket::merge);
+					} else {
+						events.put(timestamp, event);
+					}
+					continue;
+				}
+				Event stored = events.get(timestamp);
+				Event remaining = (stored instanceof EventBucket)
+						? EventBucket.without(stored, removed((EventBucket) stored, recorded))
+						: null;
+				if (remaining == null) {
+					events.remove(timestamp);
+				} else {
+					events.put(timestamp, remaining);
+				}
+			}
+			return events;
+		}
+
+		/**
+		 * Returns the event of the bucket a removal record stands for: the
+		 * first one with the same attributes. The events that have the same
+		 * attributes are alike, so any of them can go.
+		 */
+		private static Event removed(EventBucket bucket, Attributes recorded) {
+			for (int i = 0; i < bucket.size(); i++) {
+				Attributes stored = bucket.get(i).encodedAttributes();
+				if (stored == null ? recorded == null : recorded != null && stored.sameRecord(recorded)) {
+					return bucket.get(i);
+				}
+			}
+			return bucket.get(0);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package net.intelie.challenges;
+
+import java.util.List;
+
+/**
+ * Iterator that merges iterators sorted by timestamp, such as those of the
+ * types of a multi-type query, into a single one in time order.
+ *
+ * <p>
+ * Each iterator is kept positioned at its next event, the head, and a binary
+ * min-heap of the iterators is ordered by the timestamps of their heads; equal
+ * timestamps come in the order the iterators were given. Moving to the next
+ * event advances only the iterator of the current one and sifts it down the
+ * heap, in O(log k) for k iterators. The heap is made of primitive arrays
+ * allocated once, so the merge itself allocates nothing per event, and events
+ * are never buffered beyond the heads.
+ *
+ * <p>
+ * The iterators are only advanced when the merge needs their next event, so
+ * {@link #remove()} is delegated to the iterator of the current event, which
+ * is still positioned at it.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class MergingEventIterator implements EventIterator {
+
+	private EventIterator[] iterators;
+
+	/** head event of each iterator **/
+	private Event[] heads;
+
+	/** timestamp of the head of each iterator, copied for the comparisons **/
+	private long[] keys;
+
+	/** indexes of the iterators with a head, as a min-heap of their keys **/
+	private int[] heap;
+	private int heapSize;
+
+	private boolean started;
+
+	/**
+	 * @param iterators the iterators to be merged, each sorted by timestamp
+	 */
+	MergingEventIterator(List<EventIterator> iterators) {
+		this.iterators = iterators.toArray(new EventIterator[iterators.size()]);
+		this.heads = new Event[this.iterators.length];
+		this.keys = new long[this.iterators.length];
+		this.heap = new int[this.iterators.length];
+	}
+
+	/**
+	 * Move the iterator to the next event, if there is one.
+	 *
+	 * @return {@code true} if the iterator was moved to the next event,
+	 * {@code false} otherwise
+	 */
+
+	@Override
+	public boolean moveNext() {
+		if (heap == null) {
+			return false;
+		}
+		if (!started) {
+			started = true;
+			for (int i = 0; i < iterators.length; i++) {
+				if (advance(i)) {
+					heap[heapSize++] = i;
+				}
+			}
+			for (int i = heapSize / 2 - 1; i >= 0; i--) {
+				siftDown(i);
+			}
+		} else if (heapSize > 0) {
+			if (!advance(heap[0])) {
+				heap[0] = heap[--heapSize];
+			}
+			siftDown(0);
+		}
+		return heapSize > 0;
+	}
+
+	/** moves the given iterator to its next event, returning whether it has one **/
+	private boolean advance(int index) {
+		if (!iterators[index].moveNext()) {
+			heads[index] = null;
+			return false;
+		}
+		Event head = iterators[index].current();
+		heads[index] = head;
+		keys[index] = head.timestamp();
+		return true;
+	}
+
+	private void siftDown(int position) {
+		int index = heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!before(heap[child], index)) {
+				break;
+			}
+			heap[position] = heap[child];
+			position = child;
+		}
+		heap[position] = index;
+	}
+
+	/** whether the head of iterator a comes before the head of iterator b **/
+	private boolean before(int a, int b) {
+		return keys[a] < keys[b] || (keys[a] == keys[b] && a < b);
+	}
+
+	/**
+	 * Returns the current event of the iteration.
+	 *
+	 * @return the current event
+	 * @throws IllegalStateException if {@link #moveNext} was never called
+	 *                               or its last result was {@code false}.
+	 */
+
+	@Override
+	public Event current() {
+		if (heap == null || !started || heapSize == 0) {
+			throw new IllegalStateException();
+		}
+		return heads[heap[0]];
+	}
+
+	/**
+	 * Removes the current event of the iteration from its store.
+	 *
+	 * @throws IllegalStateException if {@link #moveNext} was never called
+	 *                               or its last result was {@code false}.
+	 */
+
+	@Override
+	public void remove() {
+		if (heap == null || !started || heapSize == 0) {
+			throw new IllegalStateException();
+		}
+		iterators[heap[0]].remove();
+	}
+
+	@Override
+	public void close() throws Exception {
+		if (iterators == null) {
+			return;
+		}
+		Exception failure = null;
+		for (EventIterator iterator : iterators) {
+			try {
+				iterator.close();
+			} catch (Exception e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		iterators = null;
+		heads = null;
+		keys = null;
+		heap = null;
+		heapSize = 0;
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package net.intelie.challenges;
+
+/**
+ * An {@link EventCursor} over the iterators of {@link EventStore#query}, for
+ * the stores that do not walk their storage directly. It allocates what the
+ * queries of the store allocate. The query of a range is closed when the
+ * cursor reaches its end or is placed over another range.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class QueryEventCursor implements EventCursor {
+
+	private final EventStore store;
+	private String type;
+	private EventIterator iterator;
+	private Event current;
+
+	QueryEventCursor(EventStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public void reset(String type, long startTime, long endTime) {
+		if (type == null || startTime >= endTime) {
+			throw new IllegalArgumentException("invalid query arguments: " + startTime + " : " + endTime);
+		}
+		closeQuery();
+		this.type = type;
+		current = null;
+		try {
+			iterator = store.query(type, startTime, endTime);
+		} catch (IllegalArgumentException e) {
+			// no events of the type
+			iterator = null;
+		}
+	}
+
+	@Override
+	public boolean moveNext() {
+		if (iterator != null && iterator.moveNext()) {
+			current = iterator.current();
+			return true;
+		}
+		current = null;
+		closeQuery();
+		return false;
+	}
+
+	private void closeQuery() {
+		EventIterator it = iterator;
+		if (it == null) {
+			return;
+		}
+		iterator = null;
+		try {
+			it.close();
+		} catch (Exception e) {
+			throw new IllegalStateException("could not close the query of " + type, e);
+		}
+	}
+
+	@Override
+	public long timestamp() {
+		if (current == null) {
+			throw new IllegalStateException();
+		}
+		return current.timestamp();
+	}
+
+	@Override
+	public String type() {
+		return type;
+	}
+}
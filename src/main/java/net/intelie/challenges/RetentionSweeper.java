@@ -0,0 +1,216 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A background service that enforces a retention policy on a
+ * {@link ConcurrentEventStore}, removing the events older than the retention
+ * of their type.
+ *
+ * <p>
+ * A retention is set per type, and a default one may apply to the types
+ * without their own. Every {@code intervalMillis} the sweeper truncates each
+ * such type at the current time minus its retention, with
+ * {@link ConcurrentEventStore#removeBefore}, which drops the history by whole
+ * blocks and segments. The timestamps of the events are compared to the
+ * clock, which is {@link System#currentTimeMillis()} unless another one is
+ * given.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public final class RetentionSweeper implements AutoCloseable {
+
+	/** retention of the types without one: none, they are kept forever **/
+	public static final long FOREVER = Long.MAX_VALUE;
+
+	private final ConcurrentEventStore store;
+	private final LongSupplier clock;
+	private final ScheduledExecutorService scheduler;
+
+	private final ConcurrentHashMap<String, Long> retentions = new ConcurrentHashMap<>();
+	private volatile long defaultRetention = FOREVER;
+
+	/** serializes the runs **/
+	private final Object runLock = new Object();
+
+	private final LongAdder removedEvents = new LongAdder();
+	private final LongAdder runs = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/** failure of the last background run, null if it succeeded **/
+	private volatile RuntimeException failure;
+
+	/**
+	 * Starts sweeping the store, measuring the age of the events against
+	 * {@link System#currentTimeMillis()}. No type has a retention yet.
+	 *
+	 * @param store the store to be swept
+	 * @param intervalMillis interval between runs, or zero to run only by
+	 * {@link #runOnce()}
+	 * @throws NullPointerException if the store is null
+	 * @throws IllegalArgumentException if the interval is negative
+	 */
+	public RetentionSweeper(ConcurrentEventStore store, long intervalMillis) {
+		this(store, intervalMillis, System::currentTimeMillis);
+	}
+
+	/**
+	 * Starts sweeping the store, measuring the age of the events against the
+	 * given clock.
+	 *
+	 * @param clock the current time, in the unit of the timestamps
+	 * @see #RetentionSweeper(ConcurrentEventStore, long)
+	 */
+	RetentionSweeper(ConcurrentEventStore store, long intervalMillis, LongSupplier clock) {
+		if (store == null || clock == null) {
+			throw new NullPointerException();
+		}
+		if (intervalMillis < 0) {
+			throw new IllegalArgumentException("invalid sweep interval: " + intervalMillis);
+		}
+		this.store = store;
+		this.clock = clock;
+		if (intervalMillis > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "retention-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduler.scheduleWithFixedDelay(this::backgroundRun, intervalMillis, intervalMillis,
+					TimeUnit.MILLISECONDS);
+		} else {
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Sets how long the events of a type are kept.
+	 *
+	 * @param type the type of the events
+	 * @param retention the retention, in the unit of the timestamps, or
+	 * {@link #FOREVER}
+	 * @throws NullPointerException if the type is null
+	 * @throws IllegalArgumentException if the retention is negative
+	 */
+	public void setRetention(String type, long retention) {
+		if (type == null) {
+			throw new NullPointerException();
+		}
+		checkRetention(retention);
+		retentions.put(type, retention);
+	}
+
+	/**
+	 * Removes the retention of a type, which then follows the default one.
+	 *
+	 * @param type the type of the events
+	 * @throws NullPointerException if the type is null
+	 */
+	public void clearRetention(String type) {
+		retentions.remove(type);
+	}
+
+	/**
+	 * Sets how long the events of the types without a retention of their
+	 * own are kept.
+	 *
+	 * @param retention the retention, in the unit of the timestamps, or
+	 * {@link #FOREVER}
+	 * @throws IllegalArgumentException if the retention is negative
+	 */
+	public void setDefaultRetention(long retention) {
+		checkRetention(retention);
+		defaultRetention = retention;
+	}
+
+	private static void checkRetention(long retention) {
+		if (retention < 0) {
+			throw new IllegalArgumentException("invalid retention: " + retention);
+		}
+	}
+
+	/**
+	 * Removes the events of every type older than its retention.
+	 *
+	 * @return the number of events removed
+	 * @throws java.io.UncheckedIOException if the removals of segment events
+	 * can not be recorded
+	 */
+	public long runOnce() {
+		synchronized (runLock) {
+			long now = clock.getAsLong();
+			long removed = 0;
+			for (String type : store.types()) {
+				long retention = retentions.getOrDefault(type, defaultRetention);
+				if (retention == FOREVER || now < Long.MIN_VALUE + retention) {
+					continue;
+				}
+				long typeRemoved = store.removeBefore(type, now - retention);
+				removed += typeRemoved;
+				removedEvents.add(typeRemoved);
+			}
+			runs.increment();
+			return removed;
+		}
+	}
+
+	private void backgroundRun() {
+		try {
+			runOnce();
+			failure = null;
+		} catch (RuntimeException e) {
+			// a failed run must not cancel the next ones
+			failures.increment();
+			failure = e;
+		}
+	}
+
+	/**
+	 * @return the number of events removed
+	 */
+	public long getRemovedEvents() {
+		return removedEvents.sum();
+	}
+
+	/**
+	 * @return the number of completed runs
+	 */
+	public long getRuns() {
+		return runs.sum();
+	}
+
+	/**
+	 * @return the number of background runs that failed
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * @return the failure of the last background run, or null if it succeeded
+	 */
+	public RuntimeException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Stops the background runs, waiting for the current one to finish.
+	 */
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package net.intelie.challenges;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The last events of an ascending iterator, in reverse order, for the stores
+ * that can not walk their events backwards.
+ *
+ * <p>
+ * The ascending iterator is read to its end when the iterator is created,
+ * keeping only the last {@code limit} events in a bounded queue: it costs
+ * O(n) time, but only O(limit) memory, and closed once it is read. The
+ * events are removed from the store by a query of their timestamp.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class ReversedEventIterator implements EventIterator {
+
+	private final EventStore store;
+	private Iterator<Event> events;
+	private Event current;
+
+	/**
+	 * @param store the store the events are removed from
+	 * @param ascending the events, in ascending order of timestamp, closed
+	 * once they are read
+	 * @param limit the maximum number of events, not negative
+	 * @throws IllegalStateException if the ascending iterator can not be closed
+	 */
+	ReversedEventIterator(EventStore store, EventIterator ascending, int limit) {
+		this.store = store;
+		ArrayDeque<Event> tail = new ArrayDeque<>(Math.min(limit, 16));
+		try (EventIterator it = ascending) {
+			if (limit > 0) {
+				while (it.moveNext()) {
+					if (tail.size() == limit) {
+						tail.pollFirst();
+					}
+					tail.addLast(it.current());
+				}
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("could not close the reversed query", e);
+		}
+		events = tail.descendingIterator();
+	}
+
+	@Override
+	public boolean moveNext() {
+		current = events != null && events.hasNext() ? events.next() : null;
+		return current != null;
+	}
+
+	@Override
+	public Event current() {
+		if (current == null) {
+			throw new IllegalStateException();
+		}
+		return current;
+	}
+
+	/**
+	 * Removes the current event from the store, see {@link #remove(EventStore, Event)}.
+	 */
+	@Override
+	public void remove() {
+		if (current == null) {
+			throw new IllegalStateException();
+		}
+		remove(store, current);
+	}
+
+	/**
+	 * Removes an event returned by a query from the store: the same event
+	 * object if the store keeps it, otherwise an event of the same timestamp,
+	 * which can not be told apart from it.
+	 *
+	 * @param store the store of the event
+	 * @param event the event, whose timestamp is lower than Long.MAX_VALUE as
+	 * it was in the range of a query
+	 * @throws IllegalStateException if a query of the timestamp can not be
+	 * closed
+	 */
+	static void remove(EventStore store, Event event) {
+		String type = event.type();
+		long timestamp = event.timestamp();
+		EventIterator query;
+		try {
+			query = store.query(type, timestamp, timestamp + 1);
+		} catch (IllegalArgumentException e) {
+			// no events of the type left
+			return;
+		}
+		try {
+			boolean found = false;
+			try (EventIterator it = query) {
+				while (it.moveNext()) {
+					if (it.current() == event) {
+						it.remove();
+						return;
+					}
+					found = true;
+				}
+			}
+			if (found) {
+				try (EventIterator it = store.query(type, timestamp, timestamp + 1)) {
+					if (it.moveNext()) {
+						it.remove();
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("could not close the query of " + type, e);
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		events = null;
+		current = null;
+	}
+}
@@ -0,0 +1,66 @@
+package net.intelie.challenges;
+
+/**
+ * The iterator of a snapshot query (see
+ * {@link ConcurrentEventStore#querySnapshot}), which releases the snapshot
+ * of its type when it is closed, so the changes kept for it can be dropped.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class SnapshotEventIterator implements EventIterator {
+
+	private final EventIterator iterator;
+	private final TypeState state;
+	private final long snapshot;
+	private boolean closed;
+
+	/**
+	 * @param iterator the iterator over the tiers as of the snapshot
+	 * @param state the state of the type the snapshot was opened on
+	 * @param snapshot the sequence number of the snapshot
+	 */
+	SnapshotEventIterator(EventIterator iterator, TypeState state, long snapshot) {
+		this.iterator = iterator;
+		this.state = state;
+		this.snapshot = snapshot;
+	}
+
+	@Override
+	public boolean moveNext() {
+		return !closed && iterator.moveNext();
+	}
+
+	@Override
+	public Event current() {
+		if (closed) {
+			throw new IllegalStateException();
+		}
+		return iterator.current();
+	}
+
+	@Override
+	public void remove() {
+		if (closed) {
+			throw new IllegalStateException();
+		}
+		iterator.remove();
+	}
+
+	/**
+	 * Closes the iterator and releases its snapshot; closing it again does
+	 * nothing.
+	 */
+	@Override
+	public void close() throws Exception {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			iterator.close();
+		} finally {
+			state.closeSnapshot(snapshot);
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package net.intelie.challenges;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * The changes made to the skip lists of a type while snapshot queries of the
+ * type are open, so each of them reads the skip lists as they were when it
+ * was opened (see {@link ConcurrentEventStore#querySnapshot}).
+ *
+ * <p>
+ * Each change of a timestamp pushes a {@link Change} on the chain of that
+ * timestamp, newest first, and takes the next sequence number of the type
+ * once it is applied, recording the value it replaced. A snapshot takes the
+ * current sequence number when it is opened; the changes with a higher one
+ * happened after it, so it reads a timestamp changed since as the value
+ * replaced by the first of those changes, and any other timestamp from the
+ * skip list itself. Writers never wait for the snapshots. A change only waits
+ * for the previous change of the same timestamp to be applied, so the
+ * changes of a timestamp are applied in the order of their chain and of
+ * their sequence numbers; a snapshot that meets a change being applied waits
+ * for it.
+ *
+ * <p>
+ * A change is pushed before it is applied, so a snapshot that reads a
+ * timestamp from the skip list and then finds no chain for it has read a
+ * value no change has touched since the snapshot was opened. The changes
+ * that every open snapshot already sees are dropped as snapshots are closed,
+ * and the whole log once the last one is closed.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class SnapshotLog {
+
+	/** sequence number of a change not applied yet **/
+	private static final long PENDING = Long.MIN_VALUE;
+
+	/** sequence of the changes of the type, shared with the later logs **/
+	private final AtomicLong sequence;
+
+	/** the newest change of each timestamp **/
+	private final ConcurrentSkipListMap<Long, Change> changes = new ConcurrentSkipListMap<>();
+
+	/** sequence numbers of the open snapshots, with their counts; guarded by
+	 * the lock of the {@link TypeState} **/
+	private final TreeMap<Long, Integer> open = new TreeMap<>();
+
+	SnapshotLog(AtomicLong sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Applies a change to a timestamp of the given skip list.
+	 *
+	 * @param map the skip list
+	 * @param key the timestamp
+	 * @param change computes the new value from the stored one, null meaning
+	 * none; it may return the stored value to leave it as it is
+	 * @return the value that was stored, or null
+	 */
+	Event change(ConcurrentSkipListMap<Long, Event> map, long key, UnaryOperator<Event> change) {
+		Change node = push(map, key);
+		Event before = null;
+		try {
+			Change older = node.older;
+			while (older != null && older.sequence == PENDING) {
+				Thread.yield();
+			}
+			// the writes of the timestamp are serialized by now, but a value is
+			// still only swapped for the one read, in case of an unrecorded one
+			while (true) {
+				before = map.get(key);
+				Event after = change.apply(before);
+				boolean swapped = (after == before)
+						|| (before == null ? map.putIfAbsent(key, after) == null
+								: after == null ? map.remove(key, before) : map.replace(key, before, after));
+				if (swapped) {
+					return before;
+				}
+			}
+		} finally {
+			node.before = before;
+			node.sequence = sequence.incrementAndGet();
+		}
+	}
+
+	private Change push(ConcurrentSkipListMap<Long, Event> map, long key) {
+		while (true) {
+			Change head = changes.get(key);
+			Change node = new Change(map, head);
+			if (head == null ? changes.putIfAbsent(key, node) == null : changes.replace(key, head, node)) {
+				return node;
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of a timestamp of the given skip list as seen by the
+	 * snapshot with the given sequence number.
+	 *
+	 * @param live the value read from the skip list by the snapshot, before
+	 * this call, or null if it was not read
+	 * @return the value, or null if the snapshot sees none
+	 */
+	Event valueAt(ConcurrentSkipListMap<Long, Event> map, long key, long snapshot, Event live) {
+		while (true) {
+			Change head = changes.get(key);
+			if (head == null && live != null) {
+				return live;
+			}
+			Change first = null;
+			boolean pending = false;
+			for (Change change = head; change != null; change = change.older) {
+				long changed = change.sequence;
+				if (changed == PENDING) {
+					pending = true;
+					break;
+				}
+				if (changed <= snapshot) {
+					break;
+				}
+				if (change.map == map) {
+					first = change;
+				}
+			}
+			if (pending) {
+				Thread.yield();
+				continue;
+			}
+			if (first != null) {
+				return first.before;
+			}
+			// no change since the snapshot: the skip list is read again, unless
+			// a change was pushed meanwhile
+			Event current = map.get(key);
+			if (changes.get(key) == head) {
+				return current;
+			}
+		}
+	}
+
+	/**
+	 * Returns the values of the given range of a skip list as seen by the
+	 * snapshot with the given sequence number: the values of the skip list,
+	 * and the values of the timestamps changed since, merged in time order.
+	 * The range is read from the moment of the call.
+	 */
+	Iterator<Event> values(ConcurrentSkipListMap<Long, Event> map, long startTime, long endTime, long snapshot) {
+		return new Values(map, startTime, endTime, false, snapshot);
+	}
+
+	/**
+	 * Returns every value of a skip list as seen by the snapshot with the
+	 * given sequence number, including the one at {@link Long#MAX_VALUE},
+	 * which no range reaches.
+	 */
+	Iterator<Event> values(ConcurrentSkipListMap<Long, Event> map, long snapshot) {
+		return new Values(map, Long.MIN_VALUE, Long.MAX_VALUE, true, snapshot);
+	}
+
+	/**
+	 * Registers a snapshot with the given sequence number.
+	 */
+	void open(long snapshot) {
+		open.merge(snapshot, 1, Integer::sum);
+	}
+
+	/**
+	 * Releases a snapshot, and drops the changes that the remaining ones
+	 * already see.
+	 *
+	 * @return whether no snapshot is left open
+	 */
+	boolean close(long snapshot) {
+		Integer count = open.get(snapshot);
+		if (count == null) {
+			return open.isEmpty();
+		}
+		if (count == 1) {
+			open.remove(snapshot);
+		} else {
+			open.put(snapshot, count - 1);
+		}
+		if (open.isEmpty()) {
+			return true;
+		}
+		prune(open.firstKey());
+		return false;
+	}
+
+	/**
+	 * Drops the changes applied before the given sequence number. A chain
+	 * applied entirely before it is removed, the others are cut after their
+	 * first change applied before it.
+	 */
+	private void prune(long oldest) {
+		for (Map.Entry<Long, Change> entry : changes.entrySet()) {
+			Change head = entry.getValue();
+			long changed = head.sequence;
+			if (changed != PENDING && changed <= oldest) {
+				changes.remove(entry.getKey(), head);
+				continue;
+			}
+			for (Change change = head; change != null; change = change.older) {
+				changed = change.sequence;
+				if (changed != PENDING && changed <= oldest) {
+					change.older = null;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of timestamps with changes kept
+	 */
+	int size() {
+		return changes.size();
+	}
+
+	/**
+	 * A change of a timestamp of a skip list, with the value it replaced.
+	 */
+	private static final class Change {
+		final ConcurrentSkipListMap<Long, Event> map;
+		/** the previous change of the timestamp, dropped once no snapshot
+		 * needs it **/
+		volatile Change older;
+		volatile Event before;
+		/** written last, once the change is applied **/
+		volatile long sequence = PENDING;
+
+		Change(ConcurrentSkipListMap<Long, Event> map, Change older) {
+			this.map = map;
+			this.older = older;
+		}
+	}
+
+	private final class Values implements Iterator<Event> {
+		private final ConcurrentSkipListMap<Long, Event> map;
+		private final long endTime;
+		private final boolean endInclusive;
+		private final long snapshot;
+		private final Iterator<Map.Entry<Long, Event>> live;
+		private Map.Entry<Long, Event> liveHead;
+		/** lowest timestamp not read yet **/
+		private long position;
+		/** whether the last timestamp there is was read **/
+		private boolean exhausted;
+		private Event next;
+
+		Values(ConcurrentSkipListMap<Long, Event> map, long startTime, long endTime, boolean endInclusive,
+				long snapshot) {
+			this.map = map;
+			this.endTime = endTime;
+			this.endInclusive = endInclusive;
+			this.snapshot = snapshot;
+			this.live = map.subMap(startTime, true, endTime, endInclusive).entrySet().iterator();
+			this.position = startTime;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null) {
+				if (exhausted) {
+					return false;
+				}
+				if (liveHead == null && live.hasNext()) {
+					liveHead = live.next();
+				}
+				// the changed timestamps are looked up after the skip list is
+				// read, rather than walked, so a timestamp the iterator of the
+				// skip list passed over as removed is found changed here
+				Long changed = changes.ceilingKey(position);
+				if (changed != null && (changed > endTime || (changed == endTime && !endInclusive))) {
+					changed = null;
+				}
+				if (liveHead == null && changed == null) {
+					return false;
+				}
+				long key = (liveHead == null) ? changed
+						: (changed == null) ? liveHead.getKey() : Math.min(liveHead.getKey(), changed);
+				Event stored = null;
+				if (liveHead != null && liveHead.getKey() == key) {
+					stored = liveHead.getValue();
+					liveHead = null;
+				}
+				exhausted = key == Long.MAX_VALUE;
+				position = key + 1;
+				next = valueAt(map, key, snapshot, stored);
+			}
+			return true;
+		}
+
+		@Override
+		public Event next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Event value = next;
+			next = null;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package net.intelie.challenges;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes and reads snapshot files of a {@link ConcurrentEventStore}.
+ *
+ * <p>
+ * A snapshot is a sequence of sections, one per type, followed by a CRC32 of
+ * the whole file. A section holds the type and three columns of timestamps:
+ * the main one, the history map one (with its reference timestamp) and the
+ * history blocks one. The last two are preceded by a flag telling whether
+ * they are present. A column is its number of timestamps, the first one in 8
+ * bytes and the others as variable-length deltas against the previous one,
+ * as the keys of a skip list are already sorted. Events with the same
+ * timestamp repeat it, with a delta of zero. The columns of the skip lists
+ * are followed by the attributes of their events: a flag telling whether any
+ * event has attributes and, if so, a flag per event followed by the encoded
+ * record of its attributes (see {@link Attributes}) when it has them. The
+ * snapshots of the first version have no attributes, and are still read.
+ *
+ * <p>
+ * Each section starts with its length, so a reader can take the sections of
+ * the file without decoding them, and then decode and build the skip lists of
+ * the types in parallel. A column is read into a sorted run of events and
+ * copied to its skip list in linear time.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class StoreSnapshot {
+
+	private static final int MAGIC = 0x45565350; // "EVSP"
+	private static final int VERSION = 2;
+	/** the last version without attributes **/
+	private static final int VERSION_WITHOUT_ATTRIBUTES = 1;
+
+	private StoreSnapshot() {
+	}
+
+	/**
+	 * Writes a snapshot of the given tiers. The file is written under a
+	 * temporary name, forced to disk and then renamed.
+	 *
+	 * @param file the snapshot file
+	 * @param events the events of the main maps, in ascending order of
+	 * timestamp, indexed by type
+	 * @param history the events of the history maps, in ascending order of
+	 * their delta-encoded timestamps, indexed by type
+	 * @param references the reference timestamps of the history, indexed by type
+	 * @param blocks the timestamps of the compressed history, indexed by type
+	 * @throws UncheckedIOException if the file can not be written
+	 */
+	static void write(Path file, Map<String, List<Event>> events, Map<String, List<Event>> history,
+			Map<String, Long> references, Map<String, long[]> blocks) {
+		Set<String> types = new LinkedHashSet<>(events.keySet());
+		types.addAll(history.keySet());
+		types.addAll(blocks.keySet());
+		write(file, types, type -> {
+			List<Event> mainEvents = events.getOrDefault(type, Collections.emptyList());
+			Long reference = references.get(type);
+			List<Event> historyEvents = (reference == null) ? Collections.emptyList()
+					: history.getOrDefault(type, Collections.emptyList());
+			long[] typeBlocks = blocks.get(type);
+			return section(type, timestamps(mainEvents), mainEvents, timestamps(historyEvents), historyEvents,
+					reference, typeBlocks == null ? new long[0] : typeBlocks);
+		});
+	}
+
+	/**
+	 * Writes a snapshot whose types only have a main column, made of the
+	 * given events, as the checkpoints of a {@link WriteAheadLog} do. The
+	 * file is written as by the other {@code write}.
+	 *
+	 * @param file the snapshot file
+	 * @param runs the events of each type, in ascending order of timestamp
+	 * @throws UncheckedIOException if the file can not be written
+	 */
+	static void write(Path file, Map<String, List<Event>> runs) {
+		write(file, runs, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+	}
+
+	/**
+	 * Writes the sections of the given types, each encoded as it is written.
+	 */
+	private static void write(Path file, Set<String> types, Function<String, ByteBuffer> sections) {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(
+					new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (String type : types) {
+				ByteBuffer section = sections.apply(type);
+				if (section != null) {
+					out.writeInt(section.remaining());
+					out.write(section.array(), 0, section.remaining());
+				}
+			}
+			out.writeInt(0);
+			out.writeLong(crc.getValue());
+			out.flush();
+			channel.force(true);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try {
+			Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Encodes the section of a type, or returns null if it has no events. The
+	 * columns of the skip lists come with their events, in the same order.
+	 */
+	private static ByteBuffer section(String type, long[] main, List<Event> mainEvents, long[] historical,
+			List<Event> historyEvents, Long reference, long[] compressed) {
+		if (main.length == 0 && historical.length == 0 && compressed.length == 0) {
+			return null;
+		}
+		byte[] name = type.getBytes(StandardCharsets.UTF_8);
+		int size = 10 + name.length + columnSize(main) + attributesSize(mainEvents) + 1 + 8 + columnSize(historical)
+				+ attributesSize(historyEvents) + 1 + columnSize(compressed);
+		ByteBuffer section = ByteBuffer.allocate(size);
+		DeltaEncoderDecoder.putVarLong(section, name.length);
+		section.put(name);
+		putColumn(section, main);
+		putAttributes(section, mainEvents);
+		section.put((byte) (historical.length == 0 ? 0 : 1));
+		if (historical.length > 0) {
+			section.putLong(reference);
+			putColumn(section, historical);
+			putAttributes(section, historyEvents);
+		}
+		section.put((byte) (compressed.length == 0 ? 0 : 1));
+		if (compressed.length > 0) {
+			putColumn(section, compressed);
+		}
+		section.flip();
+		return section;
+	}
+
+	/**
+	 * @return the timestamps of the given events, in the same order
+	 */
+	private static long[] timestamps(List<Event> events) {
+		long[] timestamps = new long[events.size()];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = events.get(i).timestamp();
+		}
+		return timestamps;
+	}
+
+	private static int attributesSize(List<Event> events) {
+		int size = 1;
+		for (Event event : events) {
+			Attributes attributes = event.encodedAttributes();
+			if (attributes != null) {
+				size += attributes.encodedSize();
+			}
+		}
+		return size == 1 ? size : size + events.size();
+	}
+
+	private static void putAttributes(ByteBuffer section, List<Event> events) {
+		boolean any = false;
+		for (Event event : events) {
+			any |= event.encodedAttributes() != null;
+		}
+		section.put((byte) (any ? 1 : 0));
+		if (!any) {
+			return;
+		}
+		for (Event event : events) {
+			Attributes attributes = event.encodedAttributes();
+			section.put((byte) (attributes == null ? 0 : 1));
+			if (attributes != null) {
+				attributes.copyTo(section);
+			}
+		}
+	}
+
+	/**
+	 * Reads the attributes of a column of the given number of events.
+	 *
+	 * @return the attributes of the events, null where they have none, or
+	 * null if none has any
+	 */
+	private static Attributes[] getAttributes(ByteBuffer section, int count) {
+		if (section.get() == 0) {
+			return null;
+		}
+		Attributes[] attributes = new Attributes[count];
+		for (int i = 0; i < count; i++) {
+			if (section.get() != 0) {
+				attributes[i] = Attributes.read(section);
+			}
+		}
+		return attributes;
+	}
+
+	private static int columnSize(long[] keys) {
+		int size = 5;
+		for (int i = 0; i < keys.length; i++) {
+			size += (i == 0) ? 8 : DeltaEncoderDecoder.varLongSize(DeltaEncoderDecoder.encode(keys[i], keys[i - 1]));
+		}
+		return size;
+	}
+
+	private static void putColumn(ByteBuffer section, long[] keys) {
+		DeltaEncoderDecoder.putVarLong(section, keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			if (i == 0) {
+				section.putLong(keys[0]);
+			} else {
+				DeltaEncoderDecoder.putVarLong(section, DeltaEncoderDecoder.encode(keys[i], keys[i - 1]));
+			}
+		}
+	}
+
+	private static long[] getColumn(ByteBuffer section) {
+		long[] keys = new long[(int) DeltaEncoderDecoder.getVarLong(section)];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = (i == 0) ? section.getLong()
+					: DeltaEncoderDecoder.decode(DeltaEncoderDecoder.getVarLong(section), keys[i - 1]);
+		}
+		return keys;
+	}
+
+	/**
+	 * Reads a snapshot, building the skip lists of the types in parallel.
+	 *
+	 * @param file the snapshot file
+	 * @param keepDuplicates whether events with the same timestamp are all kept
+	 * @return the images of the types
+	 * @throws UncheckedIOException if the file can not be read
+	 * @throws IllegalStateException if the file is not a valid snapshot
+	 */
+	static List<TypeImage> read(Path file, boolean keepDuplicates) {
+		List<byte[]> sections = new ArrayList<>();
+		boolean withAttributes;
+		try (InputStream stream = Files.newInputStream(file)) {
+			CRC32 crc = new CRC32();
+			DataInputStream in = new DataInputStream(
+					new CheckedInputStream(new BufferedInputStream(stream, 1 << 16), crc));
+			int version = in.readInt() == MAGIC ? in.readInt() : -1;
+			if (version != VERSION && version != VERSION_WITHOUT_ATTRIBUTES) {
+				throw new IllegalStateException("not a snapshot: " + file);
+			}
+			withAttributes = version != VERSION_WITHOUT_ATTRIBUTES;
+			int length;
+			while ((length = in.readInt()) > 0) {
+				byte[] section = new byte[length];
+				in.readFully(section);
+				sections.add(section);
+			}
+			long expected = crc.getValue();
+			if (length != 0 || in.readLong() != expected) {
+				throw new IllegalStateException("corrupted snapshot: " + file);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return sections.parallelStream()
+				.map(section -> decode(ByteBuffer.wrap(section), withAttributes, keepDuplicates))
+				.collect(Collectors.toList());
+	}
+
+	private static TypeImage decode(ByteBuffer section, boolean withAttributes, boolean keepDuplicates) {
+		byte[] name = new byte[(int) DeltaEncoderDecoder.getVarLong(section)];
+		section.get(name);
+		String type = new String(name, StandardCharsets.UTF_8);
+		long[] main = getColumn(section);
+		ConcurrentSkipListMap<Long, Event> events = build(type, main,
+				withAttributes ? getAttributes(section, main.length) : null, keepDuplicates);
+		ConcurrentSkipListMap<Long, Event> history = null;
+		Long reference = null;
+		if (section.get() != 0) {
+			reference = section.getLong();
+			long[] historical = getColumn(section);
+			history = build(type, historical, withAttributes ? getAttributes(section, historical.length) : null,
+					keepDuplicates);
+		}
+		HistoryBlocks blocks = null;
+		if (section.get() != 0) {
+			long[] compressed = getColumn(section);
+			blocks = new HistoryBlocks(type);
+			blocks.addAll(compressed, compressed.length);
+		}
+		return new TypeImage(type, events, history, reference, blocks);
+	}
+
+	/**
+	 * Builds the skip list of a column; the attributes, null if there are
+	 * none, stay in the heap arrays they were read into.
+	 */
+	private static ConcurrentSkipListMap<Long, Event> build(String type, long[] keys, Attributes[] attributes,
+			boolean keepDuplicates) {
+		if (keys.length == 0) {
+			return null;
+		}
+		List<Event> run = new ArrayList<>(keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			run.add(new Event(type, keys[i], attributes == null ? null : attributes[i]));
+		}
+		return new ConcurrentSkipListMap<>(EventBatch.toSortedMap(run, keepDuplicates));
+	}
+
+	/**
+	 * The restored maps of a type. The history map is keyed, as in the store,
+	 * by timestamps delta-encoded against the reference.
+	 */
+	static final class TypeImage {
+		final String type;
+		/** main map, null if empty **/
+		final ConcurrentSkipListMap<Long, Event> events;
+		/** history map, null if empty **/
+		final ConcurrentSkipListMap<Long, Event> history;
+		/** reference timestamp of the history, null if there is no history **/
+		final Long reference;
+		/** compressed history, null if empty **/
+		final HistoryBlocks blocks;
+
+		TypeImage(String type, ConcurrentSkipListMap<Long, Event> events,
+				ConcurrentSkipListMap<Long, Event> history, Long reference, HistoryBlocks blocks) {
+			this.type = type;
+			this.events = events;
+			this.history = history;
+			this.reference = reference;
+			this.blocks = blocks;
+		}
+	}
+}
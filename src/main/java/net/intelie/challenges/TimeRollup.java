@@ -0,0 +1,238 @@
+package net.intelie.challenges;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * The number of events of a single type per second, minute and hour, kept up
+ * to date as the events are inserted and removed, so the events of a range
+ * are counted in O(buckets) instead of O(events).
+ *
+ * <p>
+ * The timestamps are taken as milliseconds. Each resolution is a
+ * {@link ConcurrentSkipListMap} from the index of a bucket (the timestamp
+ * divided by the resolution, rounded down) to a {@link LongAdder}, so
+ * concurrent writers of a same bucket do not contend on a single counter. Only
+ * the buckets with events exist. Events usually arrive in time order, so each
+ * resolution keeps a reference to the last bucket it added to, and most
+ * insertions skip the lookup in the skip list.
+ *
+ * <p>
+ * A range is counted with the coarsest buckets that fit in it, the finer ones
+ * filling its ends: at most 59 minutes and 59 seconds on each side of the
+ * hours. The parts of the range that do not fill a second are counted by the
+ * given exact counter, from the storage of the type.
+ *
+ * <p>
+ * A range removal drops the buckets inside the range and counts the buckets
+ * at its ends again: a second from the storage, a minute from its seconds and
+ * an hour from its minutes. The counts are exact unless a range removal races
+ * with insertions into the same range.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class TimeRollup {
+
+	/** widths of the buckets, in milliseconds, from the finest **/
+	static final long[] RESOLUTIONS = { 1000L, 60 * 1000L, 60 * 60 * 1000L };
+
+	private final Level[] levels;
+
+	TimeRollup() {
+		levels = new Level[RESOLUTIONS.length];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = new Level(RESOLUTIONS[i]);
+		}
+	}
+
+	/**
+	 * Counts events inserted, or removed if the delta is negative.
+	 *
+	 * @param timestamp the timestamp of the events
+	 * @param delta the number of events
+	 */
+	void add(long timestamp, long delta) {
+		for (Level level : levels) {
+			level.add(timestamp, delta);
+		}
+	}
+
+	/**
+	 * Counts the events from {@code startTime}, inclusive, to {@code endTime},
+	 * exclusive.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @param exact counts the events of a range shorter than a second
+	 * @return the number of events in the range
+	 */
+	long count(long startTime, long endTime, LongBinaryOperator exact) {
+		return count(levels.length - 1, startTime, endTime, exact);
+	}
+
+	private long count(int level, long startTime, long endTime, LongBinaryOperator exact) {
+		if (level < 0) {
+			return exact.applyAsLong(startTime, endTime);
+		}
+		Level current = levels[level];
+		long first = current.ceilIndex(startTime);
+		long last = current.floorIndex(endTime);
+		if (first >= last) {
+			return count(level - 1, startTime, endTime, exact);
+		}
+		long from = current.start(first);
+		long to = current.start(last);
+		long count = current.sum(first, last);
+		if (startTime < from) {
+			count += count(level - 1, startTime, from, exact);
+		}
+		if (to < endTime) {
+			count += count(level - 1, to, endTime, exact);
+		}
+		return count;
+	}
+
+	/**
+	 * Accounts for the removal of the events from {@code startTime},
+	 * inclusive, to {@code endTime}, exclusive, which must already be removed
+	 * from the storage.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @param exact counts the events left in a range shorter than a second
+	 */
+	void removeRange(long startTime, long endTime, LongBinaryOperator exact) {
+		for (int i = 0; i < levels.length; i++) {
+			Level level = levels[i];
+			long first = level.ceilIndex(startTime);
+			long last = level.floorIndex(endTime);
+			if (first < last) {
+				ConcurrentNavigableMap<Long, LongAdder> inside = level.buckets.subMap(first, last);
+				for (Map.Entry<Long, LongAdder> bucket : inside.entrySet()) {
+					inside.remove(bucket.getKey(), bucket.getValue());
+				}
+			}
+			// the buckets at the ends, cut by the range
+			long startIndex = level.floorIndex(startTime);
+			boolean startCut = startIndex != first;
+			if (startCut) {
+				recount(i, startIndex, exact);
+			}
+			if (last != level.ceilIndex(endTime) && !(startCut && last == startIndex)) {
+				recount(i, last, exact);
+			}
+			level.recent = null;
+		}
+	}
+
+	/** counts a bucket again, from the storage or from the finer buckets **/
+	private void recount(int level, long index, LongBinaryOperator exact) {
+		Level current = levels[level];
+		long from = current.start(index);
+		long to = current.start(index + 1);
+		long count;
+		if (level == 0) {
+			count = exact.applyAsLong(from, to);
+		} else {
+			Level finer = levels[level - 1];
+			count = finer.sum(finer.floorIndex(from), finer.floorIndex(to));
+		}
+		LongAdder adder = current.buckets.get(index);
+		if (count == 0) {
+			if (adder != null) {
+				current.buckets.remove(index, adder);
+			}
+		} else if (adder == null) {
+			current.buckets.computeIfAbsent(index, key -> new LongAdder()).add(count);
+		} else {
+			adder.add(count - adder.sum());
+		}
+	}
+
+	/**
+	 * @param resolution the width of the buckets, one of {@link #RESOLUTIONS}
+	 * @return the number of buckets of that width with events
+	 */
+	int buckets(long resolution) {
+		for (Level level : levels) {
+			if (level.resolution == resolution) {
+				return level.buckets.size();
+			}
+		}
+		throw new IllegalArgumentException("unknown resolution: " + resolution);
+	}
+
+	/**
+	 * The buckets of one resolution.
+	 */
+	private static final class Level {
+		final long resolution;
+		final ConcurrentSkipListMap<Long, LongAdder> buckets = new ConcurrentSkipListMap<>();
+
+		/** the last bucket added to, if it was not dropped since **/
+		volatile Bucket recent;
+
+		Level(long resolution) {
+			this.resolution = resolution;
+		}
+
+		void add(long timestamp, long delta) {
+			Bucket bucket = recent;
+			if (bucket == null || timestamp < bucket.startTime || timestamp > bucket.lastTime) {
+				long index = floorIndex(timestamp);
+				bucket = new Bucket(start(index), start(index + 1) - 1,
+						buckets.computeIfAbsent(index, key -> new LongAdder()));
+				recent = bucket;
+			}
+			bucket.adder.add(delta);
+		}
+
+		/** sum of the buckets from index {@code first}, inclusive, to {@code last}, exclusive **/
+		long sum(long first, long last) {
+			long sum = 0;
+			for (LongAdder adder : buckets.subMap(first, last).values()) {
+				sum += adder.sum();
+			}
+			return sum;
+		}
+
+		long floorIndex(long timestamp) {
+			return Math.floorDiv(timestamp, resolution);
+		}
+
+		long ceilIndex(long timestamp) {
+			return floorIndex(timestamp) + (Math.floorMod(timestamp, resolution) == 0 ? 0 : 1);
+		}
+
+		/** first timestamp of a bucket, saturated at the ends of the long range **/
+		long start(long index) {
+			if (index < Long.MIN_VALUE / resolution) {
+				return Long.MIN_VALUE;
+			}
+			if (index > Long.MAX_VALUE / resolution) {
+				return Long.MAX_VALUE;
+			}
+			return index * resolution;
+		}
+	}
+
+	/**
+	 * A bucket with its bounds, so the timestamps that fall in it are found
+	 * without a division.
+	 */
+	private static final class Bucket {
+		final long startTime;
+		final long lastTime;
+		final LongAdder adder;
+
+		Bucket(long startTime, long lastTime, LongAdder adder) {
+			this.startTime = startTime;
+			this.lastTime = lastTime;
+			this.adder = adder;
+		}
+	}
+}
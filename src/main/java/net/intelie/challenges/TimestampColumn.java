@@ -0,0 +1,595 @@
+package net.intelie.challenges;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The sorted timestamps of a single event type, kept in primitive
+ * {@code long[]} chunks.
+ *
+ * <p>
+ * Each chunk holds up to {@link #CHUNK_CAPACITY} timestamps in ascending order
+ * and the chunks themselves are ordered, so the column as a whole is one sorted
+ * sequence. A timestamp costs 8 bytes plus a small share of the chunk header,
+ * instead of the boxed key, node, index nodes and {@link Event} object of a
+ * skip list entry.
+ *
+ * <p>
+ * Appending a timestamp greater or equal to the last one (the common case for
+ * event streams) only writes to the tail chunk. Out-of-order timestamps are
+ * placed by binary searching the chunk and then the position inside it, which
+ * costs O(log n) plus a shift of at most one chunk. A full chunk is split in
+ * two halves, so a shift never moves more than {@code CHUNK_CAPACITY} values.
+ * Chunks start small and double until they reach their capacity, which keeps
+ * rare types cheap.
+ *
+ * <p>
+ * Equal timestamps are kept, in insertion order. Positions are therefore
+ * addressed by a timestamp and a rank among the equal ones, which stays
+ * meaningful when other threads shift the arrays.
+ *
+ * <p>
+ * A read-write lock guards the column: writers of a type are serialized while
+ * readers run in parallel. Iterators copy small batches of timestamps under the
+ * read lock, so the lock is taken once per batch and not once per event.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class TimestampColumn {
+
+	/** maximum number of timestamps in a chunk **/
+	static final int CHUNK_CAPACITY = 1024;
+
+	private static final int INITIAL_CHUNK_LENGTH = 16;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private Chunk[] chunks = new Chunk[4];
+	private int chunkCount;
+	private long size;
+
+	/** incremented on every change, so positions can be validated **/
+	private long modCount;
+
+	/** set when the column is detached from its store **/
+	private boolean retired;
+
+	/**
+	 * Inserts a timestamp after the ones equal to it.
+	 *
+	 * @param timestamp the timestamp to be inserted
+	 * @return {@code false} if the column was retired and nothing was inserted
+	 */
+	boolean insert(long timestamp) {
+		lock.writeLock().lock();
+		try {
+			if (retired) {
+				return false;
+			}
+			if (chunkCount == 0) {
+				addChunk(0, new Chunk(INITIAL_CHUNK_LENGTH));
+			}
+			Chunk last = chunks[chunkCount - 1];
+			if (last.size == 0 || timestamp >= last.last()) {
+				// fast path: in-order timestamp goes to the tail
+				if (last.size == CHUNK_CAPACITY) {
+					last = new Chunk(INITIAL_CHUNK_LENGTH);
+					addChunk(chunkCount, last);
+				}
+				last.add(last.size, timestamp);
+			} else {
+				insertOutOfOrder(timestamp);
+			}
+			size++;
+			modCount++;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Inserts sorted timestamps under a single acquisition of the lock. If the
+	 * first one is not lower than the last timestamp of the column, the whole
+	 * run is appended with array copies, filling chunks to their capacity.
+	 * 
+	 * @param timestamps the timestamps, in ascending order
+	 * @param length the number of timestamps to be inserted
+	 * @return {@code false} if the column was retired and nothing was inserted
+	 */
+	boolean insertAll(long[] timestamps, int length) {
+		lock.writeLock().lock();
+		try {
+			if (retired) {
+				return false;
+			}
+			if (length == 0) {
+				return true;
+			}
+			if (chunkCount == 0) {
+				addChunk(0, new Chunk(Math.min(Math.max(length, INITIAL_CHUNK_LENGTH), CHUNK_CAPACITY)));
+			}
+			Chunk last = chunks[chunkCount - 1];
+			if (last.size == 0 || timestamps[0] >= last.last()) {
+				append(timestamps, 0, length);
+			} else {
+				for (int i = 0; i < length; i++) {
+					last = chunks[chunkCount - 1];
+					if (timestamps[i] >= last.last()) {
+						// the rest of the run is past the tail
+						append(timestamps, i, length);
+						break;
+					}
+					insertOutOfOrder(timestamps[i]);
+				}
+			}
+			size += length;
+			modCount++;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void append(long[] timestamps, int from, int to) {
+		while (from < to) {
+			Chunk last = chunks[chunkCount - 1];
+			if (last.size == CHUNK_CAPACITY) {
+				last = new Chunk(Math.min(Math.max(to - from, INITIAL_CHUNK_LENGTH), CHUNK_CAPACITY));
+				addChunk(chunkCount, last);
+			}
+			from += last.append(timestamps, from, to - from);
+		}
+	}
+
+	private void insertOutOfOrder(long timestamp) {
+		int index = chunkFor(timestamp);
+		Chunk chunk = chunks[index];
+		int offset = chunk.upperBound(timestamp);
+
+		if (chunk.size == CHUNK_CAPACITY) {
+			Chunk right = chunk.splitHalf();
+			addChunk(index + 1, right);
+			if (offset > chunk.size) {
+				offset -= chunk.size;
+				chunk = right;
+			}
+		}
+		chunk.add(offset, timestamp);
+	}
+
+	/**
+	 * Removes the timestamp at the given rank among the ones equal to it.
+	 *
+	 * @param timestamp the timestamp to be removed
+	 * @param rank the number of equal timestamps that precede it
+	 * @return {@code true} if a timestamp was removed
+	 */
+	boolean remove(long timestamp, int rank) {
+		lock.writeLock().lock();
+		try {
+			Position position = new Position();
+			seek(position, timestamp, rank);
+			if (position.chunk >= chunkCount) {
+				return false;
+			}
+			Chunk chunk = chunks[position.chunk];
+			if (position.offset >= chunk.size || chunk.timestamps[position.offset] != timestamp) {
+				return false;
+			}
+			chunk.remove(position.offset);
+			if (chunk.size == 0 && chunkCount > 1) {
+				removeChunk(position.chunk);
+			}
+			size--;
+			modCount++;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the timestamps from {@code startTime}, inclusive, to
+	 * {@code endTime}, exclusive, under a single acquisition of the lock. The
+	 * chunks inside the range are dropped whole, and only the chunks at its
+	 * ends are shifted.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the number of timestamps removed
+	 */
+	long removeRange(long startTime, long endTime) {
+		lock.writeLock().lock();
+		try {
+			Position from = new Position();
+			seek(from, startTime, 0);
+			Position to = new Position();
+			seek(to, endTime, 0);
+			long removed = 0;
+			if (from.chunk == to.chunk) {
+				if (from.chunk < chunkCount) {
+					removed = chunks[from.chunk].remove(from.offset, to.offset);
+				}
+			} else {
+				removed = chunks[from.chunk].remove(from.offset, chunks[from.chunk].size);
+				for (int i = from.chunk + 1; i < to.chunk; i++) {
+					removed += chunks[i].size;
+					chunks[i].size = 0;
+				}
+				if (to.chunk < chunkCount) {
+					removed += chunks[to.chunk].remove(0, to.offset);
+				}
+			}
+			if (removed == 0) {
+				return 0;
+			}
+			// drops the emptied chunks, keeping one for the appends
+			int count = 0;
+			for (int i = 0; i < chunkCount; i++) {
+				if (chunks[i].size > 0 || (count == 0 && i == chunkCount - 1)) {
+					chunks[count++] = chunks[i];
+				}
+			}
+			Arrays.fill(chunks, count, chunkCount, null);
+			chunkCount = count;
+			size -= removed;
+			modCount++;
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the column as detached from its store: later inserts are refused,
+	 * so they can be redirected to the column that replaced it.
+	 */
+	void retire() {
+		lock.writeLock().lock();
+		try {
+			retired = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of timestamps in the column
+	 */
+	long size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts the timestamps from {@code startTime}, inclusive, to
+	 * {@code endTime}, exclusive. The ends of the range are binary searched
+	 * and the chunks between them are counted by their size.
+	 *
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 * @return the number of timestamps in the range
+	 */
+	long count(long startTime, long endTime) {
+		lock.readLock().lock();
+		try {
+			if (chunkCount == 0) {
+				return 0;
+			}
+			Position from = new Position();
+			seek(from, startTime, 0);
+			Position to = new Position();
+			seek(to, endTime, 0);
+			if (from.chunk == to.chunk) {
+				return to.offset - from.offset;
+			}
+			long count = chunks[from.chunk].size - from.offset;
+			for (int i = from.chunk + 1; i < to.chunk; i++) {
+				count += chunks[i].size;
+			}
+			return count + to.offset;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts the timestamps in the range of the histogram into its buckets,
+	 * under a single acquisition of the read lock. A chunk that falls in a
+	 * single bucket is counted by its size.
+	 *
+	 * @param histogram the histogram to be filled
+	 */
+	void histogram(TimestampHistogram histogram) {
+		lock.readLock().lock();
+		try {
+			if (chunkCount == 0) {
+				return;
+			}
+			Position from = new Position();
+			seek(from, histogram.startTime(), 0);
+			for (int i = from.chunk; i < chunkCount; i++) {
+				Chunk chunk = chunks[i];
+				if (chunk.size == 0) {
+					continue;
+				}
+				if (chunk.timestamps[0] >= histogram.endTime()) {
+					break;
+				}
+				histogram.addSorted(chunk.timestamps, chunk.size);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Copies the next timestamps lower than {@code endTime} into {@code dst},
+	 * continuing from the given position.
+	 *
+	 * <p>
+	 * If the column changed since the position was last used, it is located
+	 * again from the last timestamp it copied (or its start timestamp), so
+	 * concurrent changes never make a reader fail or repeat events.
+	 *
+	 * @param position where to continue from; updated to the next timestamp
+	 * @param endTime the exclusive upper bound of the timestamps
+	 * @param dst where the timestamps are copied to
+	 * @return the number of timestamps copied, zero if the range is exhausted
+	 */
+	int read(Position position, long endTime, long[] dst) {
+		lock.readLock().lock();
+		try {
+			if (position.modCount != modCount) {
+				if (position.started) {
+					seek(position, position.lastTimestamp, position.lastRank + 1);
+				} else {
+					seek(position, position.startTime, 0);
+				}
+				position.modCount = modCount;
+			}
+
+			int count = 0;
+			while (count < dst.length && position.chunk < chunkCount) {
+				Chunk chunk = chunks[position.chunk];
+				if (position.offset >= chunk.size) {
+					position.chunk++;
+					position.offset = 0;
+					continue;
+				}
+				long timestamp = chunk.timestamps[position.offset];
+				if (timestamp >= endTime) {
+					break;
+				}
+				if (position.started && timestamp == position.lastTimestamp) {
+					position.lastRank++;
+				} else {
+					position.lastRank = 0;
+				}
+				position.started = true;
+				position.lastTimestamp = timestamp;
+				position.offset++;
+				dst[count++] = timestamp;
+			}
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Moves the position to the first timestamp equal or greater than
+	 * {@code timestamp}, then skips up to {@code skip} timestamps equal to it.
+	 * The position is never left at the end of a chunk: it moves to the start
+	 * of the next one, or past the last chunk.
+	 */
+	private void seek(Position position, long timestamp, int skip) {
+		int index = chunkCount == 0 ? 0 : chunkFor(timestamp);
+		int offset = 0;
+		if (index < chunkCount) {
+			offset = chunks[index].lowerBound(timestamp);
+			// the first equal timestamp might be at the end of a previous chunk
+			while (offset == 0 && index > 0 && chunks[index - 1].size > 0
+					&& chunks[index - 1].last() >= timestamp) {
+				index--;
+				offset = chunks[index].lowerBound(timestamp);
+			}
+		}
+
+		while (skip > 0 && index < chunkCount) {
+			Chunk chunk = chunks[index];
+			if (offset >= chunk.size) {
+				index++;
+				offset = 0;
+				continue;
+			}
+			if (chunk.timestamps[offset] != timestamp) {
+				break;
+			}
+			offset++;
+			skip--;
+		}
+		// the skip may end at the end of a chunk, and the lower bound may be
+		// past the live part of a chunk shrunk by a removal
+		while (index < chunkCount && offset >= chunks[index].size) {
+			index++;
+			offset = 0;
+		}
+		position.chunk = index;
+		position.offset = offset;
+	}
+
+	/**
+	 * Returns the index of the last chunk whose first timestamp is lower or
+	 * equal to the given one, or zero if there is none.
+	 */
+	private int chunkFor(long timestamp) {
+		int low = 0;
+		int high = chunkCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			Chunk chunk = chunks[mid];
+			if (chunk.size > 0 && chunk.timestamps[0] <= timestamp) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void addChunk(int index, Chunk chunk) {
+		if (chunkCount == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunkCount * 2);
+		}
+		System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+		chunks[index] = chunk;
+		chunkCount++;
+	}
+
+	private void removeChunk(int index) {
+		System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+		chunks[--chunkCount] = null;
+	}
+
+	/**
+	 * A reader position in the column. It is owned by a single iterator and
+	 * only touched by the column while the iterator holds the read lock.
+	 */
+	static final class Position {
+		private final long startTime;
+		private int chunk;
+		private int offset;
+		private long modCount = -1;
+		private boolean started;
+		private long lastTimestamp;
+		private int lastRank;
+
+		Position(long startTime) {
+			this.startTime = startTime;
+		}
+
+		private Position() {
+			this(0);
+		}
+
+		/**
+		 * Accounts for the removal of a timestamp the position already went
+		 * past, so an equal timestamp that follows it is not skipped.
+		 *
+		 * @param timestamp the removed timestamp
+		 */
+		void removed(long timestamp) {
+			if (started && timestamp == lastTimestamp) {
+				lastRank--;
+			}
+		}
+	}
+
+	/**
+	 * A sorted run of timestamps. Its array grows up to {@link #CHUNK_CAPACITY}.
+	 */
+	private static final class Chunk {
+		private long[] timestamps;
+		private int size;
+
+		Chunk(int length) {
+			this.timestamps = new long[length];
+		}
+
+		long last() {
+			return timestamps[size - 1];
+		}
+
+		void add(int offset, long timestamp) {
+			if (size == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, Math.min(size * 2, CHUNK_CAPACITY));
+			}
+			System.arraycopy(timestamps, offset, timestamps, offset + 1, size - offset);
+			timestamps[offset] = timestamp;
+			size++;
+		}
+
+		/**
+		 * Copies as many of the given timestamps as fit in the chunk to its end.
+		 *
+		 * @return the number of timestamps copied
+		 */
+		int append(long[] source, int from, int length) {
+			int count = Math.min(length, CHUNK_CAPACITY - size);
+			if (size + count > timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, Math.min(Math.max(size + count, size * 2), CHUNK_CAPACITY));
+			}
+			System.arraycopy(source, from, timestamps, size, count);
+			size += count;
+			return count;
+		}
+
+		void remove(int offset) {
+			System.arraycopy(timestamps, offset + 1, timestamps, offset, size - offset - 1);
+			size--;
+		}
+
+		/**
+		 * Removes the timestamps from offset {@code from}, inclusive, to
+		 * {@code to}, exclusive.
+		 *
+		 * @return the number of timestamps removed
+		 */
+		int remove(int from, int to) {
+			System.arraycopy(timestamps, to, timestamps, from, size - to);
+			size -= to - from;
+			return to - from;
+		}
+
+		/**
+		 * Moves the upper half of this chunk to a new chunk.
+		 *
+		 * @return the new chunk
+		 */
+		Chunk splitHalf() {
+			int half = size / 2;
+			Chunk right = new Chunk(CHUNK_CAPACITY);
+			System.arraycopy(timestamps, half, right.timestamps, 0, size - half);
+			right.size = size - half;
+			size = half;
+			return right;
+		}
+
+		/** index of the first timestamp equal or greater than the given one **/
+		int lowerBound(long timestamp) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (timestamps[mid] < timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/** index of the first timestamp greater than the given one **/
+		int upperBound(long timestamp) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (timestamps[mid] <= timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+}
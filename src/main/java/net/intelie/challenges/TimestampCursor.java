@@ -0,0 +1,41 @@
+package net.intelie.challenges;
+
+/**
+ * A cursor over a sorted range of timestamps of a single type, as kept by the
+ * history tiers of {@link ConcurrentEventStore}, which do not store
+ * {@link Event} objects.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+interface TimestampCursor {
+
+	/**
+	 * @return the type of the events of the cursor
+	 */
+	String type();
+
+	/**
+	 * @return whether there is a timestamp left in the range
+	 */
+	boolean hasNext();
+
+	/**
+	 * @return the next timestamp, without moving to it
+	 */
+	long peek();
+
+	/**
+	 * Moves to the next timestamp.
+	 *
+	 * @return the timestamp moved to
+	 */
+	long next();
+
+	/**
+	 * Removes the timestamp last returned by {@link #next()}.
+	 *
+	 * @return {@code true} if the timestamp was removed by this call
+	 */
+	boolean remove();
+}
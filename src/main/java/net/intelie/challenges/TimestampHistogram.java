@@ -0,0 +1,141 @@
+package net.intelie.challenges;
+
+/**
+ * Counts of timestamps in buckets of a fixed width, as returned by
+ * {@link EventStore#histogram}.
+ *
+ * <p>
+ * The buckets split the range from {@code startTime}, inclusive, to
+ * {@code endTime}, exclusive, the first one starting at {@code startTime}; the
+ * last one ends at {@code endTime} and may be narrower than the others. The
+ * offsets of the timestamps are taken as unsigned numbers, so a range wider
+ * than {@link Long#MAX_VALUE} is also split correctly.
+ *
+ * <p>
+ * The stores feed it sorted runs of timestamps (a decoded block, a chunk of a
+ * column), which are counted by bucket rather than by timestamp.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class TimestampHistogram {
+
+	private final long startTime;
+	private final long endTime;
+	private final long bucketWidth;
+	private final long[] counts;
+
+	/**
+	 * @param startTime the start of the first bucket (inclusive)
+	 * @param endTime the end of the last bucket (exclusive)
+	 * @param bucketWidth the width of the buckets
+	 * @throws IllegalArgumentException if {@code startTime} is greater or
+	 * equal to {@code endTime}, if the width is not positive or if there
+	 * would be more buckets than an array holds
+	 */
+	TimestampHistogram(long startTime, long endTime, long bucketWidth) {
+		if (startTime >= endTime || bucketWidth <= 0) {
+			throw new IllegalArgumentException("invalid histogram arguments: " + startTime + " : " + endTime
+					+ " : " + bucketWidth);
+		}
+		long span = endTime - startTime;
+		long buckets = Long.divideUnsigned(span, bucketWidth)
+				+ (Long.remainderUnsigned(span, bucketWidth) == 0 ? 0 : 1);
+		if (buckets < 0 || buckets > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("too many buckets of width " + bucketWidth);
+		}
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.bucketWidth = bucketWidth;
+		this.counts = new long[(int) buckets];
+	}
+
+	long startTime() {
+		return startTime;
+	}
+
+	long endTime() {
+		return endTime;
+	}
+
+	/**
+	 * @return the number of buckets
+	 */
+	int buckets() {
+		return counts.length;
+	}
+
+	/**
+	 * @param timestamp a timestamp in the range of the histogram
+	 * @return the index of its bucket
+	 */
+	int bucket(long timestamp) {
+		long offset = timestamp - startTime;
+		return (int) (offset >= 0 ? offset / bucketWidth : Long.divideUnsigned(offset, bucketWidth));
+	}
+
+	/**
+	 * @param bucket the index of a bucket
+	 * @return the end of the bucket (exclusive)
+	 */
+	long bucketEnd(int bucket) {
+		if (bucket == counts.length - 1) {
+			return endTime;
+		}
+		return startTime + (bucket + 1) * bucketWidth;
+	}
+
+	/**
+	 * Counts a timestamp, which must be in the range of the histogram.
+	 */
+	void add(long timestamp) {
+		counts[bucket(timestamp)]++;
+	}
+
+	/**
+	 * Adds to the count of a bucket.
+	 */
+	void add(int bucket, long count) {
+		counts[bucket] += count;
+	}
+
+	/**
+	 * Counts the timestamps of a sorted run that are in the range of the
+	 * histogram. The run is split at the ends of the buckets by binary
+	 * searches, so each bucket it covers is counted at once.
+	 *
+	 * @param timestamps the timestamps, in ascending order
+	 * @param size the number of timestamps
+	 */
+	void addSorted(long[] timestamps, int size) {
+		int from = timestamps[0] < startTime ? lowerBound(timestamps, 0, size, startTime) : 0;
+		int to = timestamps[size - 1] >= endTime ? lowerBound(timestamps, from, size, endTime) : size;
+		while (from < to) {
+			int bucket = bucket(timestamps[from]);
+			long bucketEnd = bucketEnd(bucket);
+			int next = timestamps[to - 1] < bucketEnd ? to : lowerBound(timestamps, from + 1, to, bucketEnd);
+			counts[bucket] += next - from;
+			from = next;
+		}
+	}
+
+	/** index of the first timestamp from {@code low} equal or greater than the given one **/
+	private static int lowerBound(long[] timestamps, int low, int high, long timestamp) {
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (timestamps[mid] < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the counts, indexed by bucket
+	 */
+	long[] counts() {
+		return counts;
+	}
+}
@@ -0,0 +1,77 @@
+package net.intelie.challenges;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The types of a {@link ConcurrentEventStore}, each with a dense {@code int}
+ * id given as it is first used, and its {@link TypeState}.
+ *
+ * <p>
+ * A type is looked up by name with a single hash lookup, or by id with an
+ * array access, which an application that resolved its ids once uses on the
+ * hot path. The states are registered under the lock of the registry and
+ * published through a volatile array, so a lookup never locks. Types are
+ * never unregistered: a removed type keeps its id and its empty state.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class TypeRegistry {
+
+	private final ConcurrentHashMap<String, TypeState> byName = new ConcurrentHashMap<>();
+
+	/** states indexed by id; the array is replaced when it grows **/
+	private volatile TypeState[] byId = new TypeState[16];
+
+	/** number of registered types; guarded by this **/
+	private int size;
+
+	/**
+	 * @return the state of the given type, or null if it was never used
+	 */
+	TypeState get(String type) {
+		return byName.get(type);
+	}
+
+	/**
+	 * @return the state of the given type id, or null if there is no such id
+	 */
+	TypeState get(int id) {
+		TypeState[] states = byId;
+		return id >= 0 && id < states.length ? states[id] : null;
+	}
+
+	/**
+	 * @return the state of the given type, registered if it was never used
+	 */
+	TypeState state(String type) {
+		TypeState state = byName.get(type);
+		return state != null ? state : register(type);
+	}
+
+	private synchronized TypeState register(String type) {
+		TypeState state = byName.get(type);
+		if (state != null) {
+			return state;
+		}
+		TypeState[] states = byId;
+		if (size == states.length) {
+			states = Arrays.copyOf(states, size * 2);
+		}
+		state = new TypeState(type, size);
+		states[size++] = state;
+		//published by id first, so an id handed out is always found
+		byId = states;
+		byName.put(type, state);
+		return state;
+	}
+
+	/**
+	 * @return the states of the registered types, empty or not
+	 */
+	Collection<TypeState> states() {
+		return byName.values();
+	}
+}
@@ -0,0 +1,401 @@
+package net.intelie.challenges;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The storage of a type of a {@link ConcurrentEventStore}: the
+ * {@link TypeVersion} of its tiers, its rollup and the arena of its
+ * attributes.
+ *
+ * <p>
+ * The store used to keep each of these in a hash map of its own, keyed by the
+ * name of the type, so a query hashed the name once per tier. The state of a
+ * type is looked up once instead, by name or by the id given by the
+ * {@link TypeRegistry}. Its tiers are read together, from the version
+ * published in a single volatile field: a query reads the version once and
+ * works on it, so a migration or a removal of the type happening meanwhile
+ * is seen whole or not at all. A new version is published under the lock of
+ * the state, the rare case, and removing the type publishes an empty one. The
+ * state itself is never dropped, so the id of a type stays valid.
+ *
+ * <p>
+ * The writes to the skip lists of the type go through the state, so they are
+ * recorded in its {@link SnapshotLog} while snapshot queries are open. A
+ * writer that finds no log enters a gate first, and opening the first
+ * snapshot waits for the writers that entered it before the log was
+ * published, so none of them writes unrecorded after the snapshot is opened.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class TypeState {
+
+	final String type;
+	final int id;
+
+	/** the current tiers; replaced under the lock of the state **/
+	private volatile TypeVersion version = TypeVersion.EMPTY;
+	/** the rollup of the type, null if it has none; replaced under the lock
+	 * of the state **/
+	private volatile TimeRollup rollup;
+	/** the arena of the attributes, null until the first one is stored;
+	 * dropped only by {@link #clear()} **/
+	private volatile AttributeArena arena;
+
+	/** sequence number of the last recorded write **/
+	private final AtomicLong sequence = new AtomicLong();
+	/** the changes kept for the open snapshots, null if none is open;
+	 * replaced under the lock of the state **/
+	private volatile SnapshotLog log;
+	/** gate the writers of the skip lists enter **/
+	private final WriterGate writers = new WriterGate();
+
+	/** gate the inserts of the type enter until they are handed over to the
+	 * subscriptions (see {@link ConcurrentEventStore#subscribe}) **/
+	final WriterGate inserts = new WriterGate();
+
+	/**
+	 * @param type the name of the type
+	 * @param id the id of the type in the registry
+	 */
+	TypeState(String type, int id) {
+		this.type = type;
+		this.id = id;
+	}
+
+	/**
+	 * @return the current tiers of the type
+	 */
+	TypeVersion version() {
+		return version;
+	}
+
+	/**
+	 * @return the main skip list, created if the type has none
+	 */
+	ConcurrentSkipListMap<Long, Event> main() {
+		ConcurrentSkipListMap<Long, Event> events = version.main;
+		return events != null ? events : createMain(new ConcurrentSkipListMap<>());
+	}
+
+	/**
+	 * Sets the main skip list, unless the type already has one.
+	 *
+	 * @return the main skip list in effect
+	 */
+	synchronized ConcurrentSkipListMap<Long, Event> createMain(ConcurrentSkipListMap<Long, Event> events) {
+		if (version.main == null) {
+			version = version.withMain(events);
+		}
+		return version.main;
+	}
+
+	/**
+	 * Creates the history skip list, keyed by timestamps delta-encoded
+	 * against the given reference, if the type has none.
+	 *
+	 * @return the version in effect, which has a history skip list and its
+	 * reference timestamp
+	 */
+	synchronized TypeVersion history(long reference) {
+		if (version.history == null) {
+			version = version.withHistory(new ConcurrentSkipListMap<>(), reference);
+		}
+		return version;
+	}
+
+	/**
+	 * @return the history blocks, created if the type has none
+	 */
+	synchronized HistoryBlocks blocks() {
+		if (version.blocks == null) {
+			version = version.withBlocks(new HistoryBlocks(type));
+		}
+		return version.blocks;
+	}
+
+	/**
+	 * Appends the given segments to the history segments.
+	 */
+	synchronized void addSegments(Collection<HistorySegment> added) {
+		version = version.addSegments(added);
+	}
+
+	/**
+	 * Drops the given segments from the history segments, if they are there.
+	 */
+	synchronized void removeSegments(Collection<HistorySegment> removed) {
+		version = version.removeSegments(removed);
+	}
+
+	/**
+	 * Drops a segment from the history segments.
+	 *
+	 * @return whether it was there
+	 */
+	synchronized boolean removeSegment(HistorySegment removed) {
+		List<HistorySegment> segments = version.segments;
+		if (segments == null || !segments.contains(removed)) {
+			return false;
+		}
+		version = version.removeSegments(Collections.singletonList(removed));
+		return true;
+	}
+
+	/**
+	 * Puts a segment in the place of the segments merged into it, if they
+	 * are all still there.
+	 *
+	 * @return whether the segments were replaced
+	 */
+	synchronized boolean replaceSegments(Collection<HistorySegment> merged, HistorySegment added) {
+		TypeVersion replaced = version.replaceSegments(merged, added);
+		if (replaced == null) {
+			return false;
+		}
+		version = replaced;
+		return true;
+	}
+
+	/**
+	 * @return the rollup, created if the type has none
+	 */
+	TimeRollup rollup() {
+		TimeRollup current = rollup;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			if (rollup == null) {
+				rollup = new TimeRollup();
+			}
+			return rollup;
+		}
+	}
+
+	/**
+	 * @return the rollup, or null if the type has none
+	 */
+	TimeRollup existingRollup() {
+		return rollup;
+	}
+
+	/**
+	 * Replaces the rollup, as it is counted again from the tiers.
+	 *
+	 * @param replacement the new rollup, or null to drop it
+	 */
+	synchronized void replaceRollup(TimeRollup replacement) {
+		rollup = replacement;
+	}
+
+	/**
+	 * @return the arena of the attributes, created if the type has none
+	 */
+	AttributeArena arena() {
+		AttributeArena current = arena;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			if (arena == null) {
+				arena = new AttributeArena();
+			}
+			return arena;
+		}
+	}
+
+	/**
+	 * @return the arena of the attributes, or null if the type has none
+	 */
+	AttributeArena existingArena() {
+		return arena;
+	}
+
+	/**
+	 * Drops the history blocks, if they are still the given ones.
+	 */
+	synchronized void removeBlocks(HistoryBlocks expected) {
+		if (version.blocks == expected) {
+			version = version.withBlocks(null);
+		}
+	}
+
+	/**
+	 * Replaces the tiers held in the heap with the ones loaded from a
+	 * snapshot, keeping the segments.
+	 *
+	 * @param reference the reference timestamp of the history, or null to
+	 * keep the current one
+	 */
+	synchronized void restore(ConcurrentSkipListMap<Long, Event> main, ConcurrentSkipListMap<Long, Event> history,
+			Long reference, HistoryBlocks blocks) {
+		version = new TypeVersion(main, history, reference != null ? reference : version.reference, blocks,
+				version.segments);
+	}
+
+	/**
+	 * Drops every tier of the type, as it is removed.
+	 *
+	 * @return the segments that were dropped, to be deleted, or null
+	 */
+	synchronized List<HistorySegment> clear() {
+		List<HistorySegment> removed = version.segments;
+		version = TypeVersion.EMPTY;
+		rollup = null;
+		arena = null;
+		return removed;
+	}
+
+	/**
+	 * Stores an event, or a bucket of events of the same timestamp, in the
+	 * given skip list of the type.
+	 *
+	 * @param keepDuplicates whether an event with the same timestamp is kept
+	 * in a bucket with it, rather than replaced
+	 * @return whether the skip list grew by an event
+	 */
+	boolean put(ConcurrentSkipListMap<Long, Event> map, Event event, boolean keepDuplicates) {
+		int parity = writers.enter();
+		try {
+			return put(map, event, keepDuplicates, log);
+		} finally {
+			writers.exit(parity);
+		}
+	}
+
+	/**
+	 * Stores the values of a run, each an event or a bucket of events of the
+	 * same timestamp, in the given skip list, as {@link #put} does for each
+	 * of them. The gate is entered, and the log read, once for the whole run,
+	 * so a snapshot opened meanwhile waits for the run to be stored.
+	 *
+	 * @param values the values, one per timestamp, in ascending order
+	 * @param added receives the values that grew the skip list
+	 */
+	void putAll(ConcurrentSkipListMap<Long, Event> map, Collection<Event> values, boolean keepDuplicates,
+			List<Event> added) {
+		int parity = writers.enter();
+		try {
+			SnapshotLog changes = log;
+			for (Event value : values) {
+				if (put(map, value, keepDuplicates, changes)) {
+					added.add(value);
+				}
+			}
+		} finally {
+			writers.exit(parity);
+		}
+	}
+
+	private static boolean put(ConcurrentSkipListMap<Long, Event> map, Event event, boolean keepDuplicates,
+			SnapshotLog changes) {
+		if (changes != null) {
+			Event replaced = changes.change(map, event.timestamp(),
+					stored -> (stored == null || !keepDuplicates) ? event : EventBucket.merge(stored, event));
+			return keepDuplicates || replaced == null;
+		}
+		if (keepDuplicates) {
+			map.merge(event.timestamp(), event, EventBucket::merge);
+			return true;
+		}
+		return map.put(event.timestamp(), event) == null;
+	}
+
+	/**
+	 * Removes the value stored at a timestamp of the given skip list, if it is
+	 * still the given one.
+	 *
+	 * @return whether it was removed
+	 */
+	boolean remove(ConcurrentSkipListMap<Long, Event> map, long key, Event stored) {
+		int parity = writers.enter();
+		try {
+			SnapshotLog changes = log;
+			if (changes != null) {
+				return changes.change(map, key, current -> (current == stored) ? null : current) == stored;
+			}
+			return map.remove(key, stored);
+		} finally {
+			writers.exit(parity);
+		}
+	}
+
+	/**
+	 * Removes an event from the value stored at a timestamp of the given skip
+	 * list, which may be a bucket holding it.
+	 *
+	 * @return whether it was removed
+	 */
+	boolean removeEvent(ConcurrentSkipListMap<Long, Event> map, long key, Event event) {
+		int parity = writers.enter();
+		try {
+			SnapshotLog changes = log;
+			if (changes != null) {
+				boolean[] removed = new boolean[1];
+				changes.change(map, key, current -> {
+					Event remaining = (current == null) ? null : EventBucket.without(current, event);
+					removed[0] = remaining != current;
+					return remaining;
+				});
+				return removed[0];
+			}
+			while (true) {
+				Event current = map.get(key);
+				if (current == null) {
+					return false;
+				}
+				Event remaining = EventBucket.without(current, event);
+				if (remaining == current) {
+					return false;
+				}
+				if (remaining == null ? map.remove(key, current) : map.replace(key, current, remaining)) {
+					return true;
+				}
+			}
+		} finally {
+			writers.exit(parity);
+		}
+	}
+
+	/**
+	 * Opens a snapshot of the skip lists of the type, publishing a log if none
+	 * is open. The caller reads the tiers to snapshot under the same lock.
+	 *
+	 * @return the sequence number of the snapshot, to release it with
+	 */
+	synchronized long openSnapshot() {
+		SnapshotLog changes = log;
+		if (changes == null) {
+			changes = new SnapshotLog(sequence);
+			log = changes;
+			// the writers may have entered the gate before the log was
+			// published: every writer that entered before the log is gone
+			writers.await();
+		}
+		long snapshot = sequence.get();
+		changes.open(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Releases a snapshot, dropping the log once none is open.
+	 */
+	synchronized void closeSnapshot(long snapshot) {
+		SnapshotLog changes = log;
+		if (changes != null && changes.close(snapshot)) {
+			log = null;
+		}
+	}
+
+	/**
+	 * @return the changes kept for the open snapshots, or null if none is open
+	 */
+	SnapshotLog snapshotLog() {
+		return log;
+	}
+}
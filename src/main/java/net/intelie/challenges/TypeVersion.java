@@ -0,0 +1,100 @@
+package net.intelie.challenges;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The tiers of a type of a {@link ConcurrentEventStore} at a point in time:
+ * its main and history skip lists, the reference timestamp the keys of the
+ * history are delta-encoded against, its history blocks and its segments.
+ *
+ * <p>
+ * A version is immutable. A change of the tiers, such as a migration creating
+ * the history blocks, a new segment or the removal of the type, publishes a
+ * new version in the {@link TypeState} of the type, so a query reads the
+ * tiers with a single volatile read, and sees either all of them before the
+ * change or all of them after it. The tiers themselves are still changed in
+ * place by the writers, and read weakly consistently.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class TypeVersion {
+
+	/** the version of a type without events **/
+	static final TypeVersion EMPTY = new TypeVersion(null, null, null, null, null);
+
+	final ConcurrentSkipListMap<Long, Event> main;
+	final ConcurrentSkipListMap<Long, Event> history;
+	/** reference timestamp of the delta-encoded keys of the history map **/
+	final Long reference;
+	final HistoryBlocks blocks;
+	/** history segments, oldest first, in an unmodifiable list **/
+	final List<HistorySegment> segments;
+
+	TypeVersion(ConcurrentSkipListMap<Long, Event> main, ConcurrentSkipListMap<Long, Event> history,
+			Long reference, HistoryBlocks blocks, List<HistorySegment> segments) {
+		this.main = main;
+		this.history = history;
+		this.reference = reference;
+		this.blocks = blocks;
+		this.segments = segments;
+	}
+
+	/**
+	 * @return whether the type has events in any tier
+	 */
+	boolean isEmpty() {
+		return main == null && history == null && blocks == null && segments == null;
+	}
+
+	TypeVersion withMain(ConcurrentSkipListMap<Long, Event> main) {
+		return new TypeVersion(main, history, reference, blocks, segments);
+	}
+
+	TypeVersion withHistory(ConcurrentSkipListMap<Long, Event> history, Long reference) {
+		return new TypeVersion(main, history, reference, blocks, segments);
+	}
+
+	TypeVersion withBlocks(HistoryBlocks blocks) {
+		return new TypeVersion(main, history, reference, blocks, segments);
+	}
+
+	/**
+	 * @return a version with the given segments after the current ones
+	 */
+	TypeVersion addSegments(Collection<HistorySegment> added) {
+		List<HistorySegment> updated = (segments == null) ? new ArrayList<>() : new ArrayList<>(segments);
+		updated.addAll(added);
+		return new TypeVersion(main, history, reference, blocks, Collections.unmodifiableList(updated));
+	}
+
+	/**
+	 * @return a version without the given segments
+	 */
+	TypeVersion removeSegments(Collection<HistorySegment> removed) {
+		if (segments == null) {
+			return this;
+		}
+		List<HistorySegment> updated = new ArrayList<>(segments);
+		updated.removeAll(removed);
+		return new TypeVersion(main, history, reference, blocks, Collections.unmodifiableList(updated));
+	}
+
+	/**
+	 * @return a version where the given segment takes the place of the
+	 * segments merged into it, or null if any of them is not there
+	 */
+	TypeVersion replaceSegments(Collection<HistorySegment> merged, HistorySegment added) {
+		if (segments == null || !segments.containsAll(merged)) {
+			return null;
+		}
+		List<HistorySegment> updated = new ArrayList<>(segments);
+		updated.removeAll(merged);
+		updated.add(added);
+		return new TypeVersion(main, history, reference, blocks, Collections.unmodifiableList(updated));
+	}
+}
@@ -0,0 +1,720 @@
+package net.intelie.challenges;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file where a {@link ConcurrentEventStore} records its
+ * changes before applying them, so they can be replayed after a crash.
+ *
+ * <p>
+ * Records are appended to an in-memory buffer, and the buffer is written to
+ * the file as a single frame followed by one {@code fsync}. This is the group
+ * commit: the buffer is synced when it holds {@code syncRecords} records, by
+ * the thread that appended the last one, and every {@code syncIntervalMillis}
+ * by a background thread. An insert that returned may thus be lost in a crash
+ * if it was not synced yet; with {@code syncRecords} set to 1 every insert is
+ * synced before it returns, although concurrent inserts still share their
+ * syncs.
+ *
+ * <p>
+ * A frame is its payload length and CRC32 followed by the records. A record is
+ * an operation byte, the id of the type as a variable-length number and, for
+ * insertions and removals, the timestamp in 8 bytes (a removed range has
+ * two; a move to history segments also has the sequence numbers of its
+ * segments, a removal from a segment the number of the segment, and a merge
+ * of segments the numbers of the new segment and of the merged ones). The
+ * insertion or removal of an event with attributes has an
+ * operation of its own, and is followed by the encoded record of the
+ * attributes (see {@link Attributes}), which starts with its size, so the
+ * removal of an event of a bucket replays as the removal of that event. A
+ * type name is written
+ * once, in a record that defines its id the first time the type is used. A
+ * frame that was only partly written when the process died fails its length
+ * or checksum, and is cut from the file when the log is replayed.
+ *
+ * <p>
+ * A log must be replayed, by the store it is given to, before anything is
+ * appended to it. The log is not closed by the store.
+ *
+ * <p>
+ * The log would otherwise grow for the life of the store. A checkpoint (see
+ * {@link ConcurrentEventStore#checkpoint}) writes a snapshot of the store
+ * next to the log, in the format of {@link StoreSnapshot}, and replaces the
+ * log by one that starts with a record naming the snapshot, followed by the
+ * records appended since the snapshot was taken. The new log is written
+ * under a temporary name and renamed over the old one, so a crash leaves one
+ * or the other; the snapshot of the previous checkpoint is deleted once the
+ * new log is in place.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+public final class WriteAheadLog implements AutoCloseable {
+
+	private static final byte INSERT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte REMOVE_ALL = 3;
+	private static final byte TYPE = 4;
+	private static final byte HISTORY = 5;
+	private static final byte TRUNCATE = 6;
+	private static final byte RANGE = 7;
+	private static final byte INSERT_ATTRIBUTES = 8;
+	private static final byte REMOVE_ATTRIBUTES = 9;
+	private static final byte REMOVE_SEGMENT = 10;
+	private static final byte CHECKPOINT = 11;
+	private static final byte COMPACT = 12;
+
+	private static final int FRAME_HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 1 + 10 + 16;
+	private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+	private final Path file;
+	/** the open file; replaced by a checkpoint, guarded by writeLock **/
+	private FileChannel channel;
+	private final int syncRecords;
+	private final ScheduledExecutorService syncer;
+
+	/** ids of the types defined in the log; guarded by this **/
+	private final Map<String, Integer> typeIds = new HashMap<>();
+
+	/** records not written yet; guarded by this **/
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private int pendingRecords;
+	private boolean replayed;
+	private boolean closed;
+
+	/** serializes the writes, so the frames keep the order of the records **/
+	private final Object writeLock = new Object();
+	/** the buffer written last, reused as the next pending one; guarded by writeLock **/
+	private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+	private final CRC32 checksum = new CRC32();
+
+	/** number of the checkpoint the log starts from, zero if none; guarded by writeLock **/
+	private long checkpoint;
+	/** end of the records the next checkpoint covers, -1 if none is marked,
+	 * and the number of types defined before it; guarded by writeLock **/
+	private long markPosition = -1;
+	private int markTypes;
+
+	/** failure of a background sync, reported to the next writer **/
+	private volatile UncheckedIOException failure;
+
+	/**
+	 * Opens the log, creating its file if it does not exist.
+	 *
+	 * @param file the file of the log
+	 * @param syncRecords number of records that triggers a sync, or zero to
+	 * sync only by time
+	 * @param syncIntervalMillis interval between background syncs, or zero
+	 * to sync only by number of records
+	 * @throws IllegalArgumentException if both triggers are zero or any of
+	 * them is negative
+	 * @throws UncheckedIOException if the file can not be opened
+	 */
+	public WriteAheadLog(Path file, int syncRecords, long syncIntervalMillis) {
+		if (syncRecords < 0 || syncIntervalMillis < 0 || (syncRecords == 0 && syncIntervalMillis == 0)) {
+			throw new IllegalArgumentException("invalid sync policy: " + syncRecords + " : " + syncIntervalMillis);
+		}
+		this.file = file;
+		try {
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.syncRecords = syncRecords;
+		if (syncIntervalMillis > 0) {
+			syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "write-ahead-log-sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncer.scheduleWithFixedDelay(this::backgroundSync, syncIntervalMillis, syncIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		} else {
+			syncer = null;
+		}
+	}
+
+	/**
+	 * Reads the records of the log, in order, and cuts the file after the last
+	 * frame that was completely written.
+	 *
+	 * @param replayer receives the records
+	 * @throws IllegalStateException if the log was already replayed
+	 * @throws UncheckedIOException if the file can not be read
+	 */
+	synchronized void replay(Replayer replayer) {
+		if (replayed) {
+			throw new IllegalStateException("log already replayed");
+		}
+		List<String> types = new ArrayList<>();
+		try {
+			long size = channel.size();
+			long position = 0;
+			ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+			ByteBuffer payload = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			CRC32 crc = new CRC32();
+			while (position + FRAME_HEADER_SIZE <= size) {
+				frameHeader.clear();
+				readFully(frameHeader, position);
+				int length = frameHeader.getInt(0);
+				if (length <= 0 || position + FRAME_HEADER_SIZE + length > size) {
+					break;
+				}
+				if (payload.capacity() < length) {
+					payload = ByteBuffer.allocate(length);
+				}
+				payload.clear().limit(length);
+				readFully(payload, position + FRAME_HEADER_SIZE);
+				payload.flip();
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != frameHeader.getInt(4)) {
+					break;
+				}
+				payload.flip();
+				replayFrame(payload, types, replayer);
+				position += FRAME_HEADER_SIZE + length;
+			}
+			// a torn frame at the end is discarded, the next frames follow the last good one
+			channel.truncate(position);
+			channel.position(position);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (int id = 0; id < types.size(); id++) {
+			typeIds.put(types.get(id), id);
+		}
+		replayed = true;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of log");
+			}
+		}
+	}
+
+	private void replayFrame(ByteBuffer payload, List<String> types, Replayer replayer) {
+		while (payload.hasRemaining()) {
+			byte operation = payload.get();
+			int id = (int) DeltaEncoderDecoder.getVarLong(payload);
+			switch (operation) {
+			case TYPE:
+				byte[] name = new byte[(int) DeltaEncoderDecoder.getVarLong(payload)];
+				payload.get(name);
+				types.add(new String(name, StandardCharsets.UTF_8));
+				break;
+			case INSERT:
+				replayer.insert(types.get(id), payload.getLong(), null);
+				break;
+			case INSERT_ATTRIBUTES:
+				replayer.insert(types.get(id), payload.getLong(), Attributes.read(payload));
+				break;
+			case REMOVE:
+				replayer.remove(types.get(id), payload.getLong(), null);
+				break;
+			case REMOVE_ATTRIBUTES:
+				replayer.remove(types.get(id), payload.getLong(), Attributes.read(payload));
+				break;
+			case REMOVE_ALL:
+				replayer.removeAll(types.get(id));
+				break;
+			case HISTORY:
+				replayer.movedToHistory(types.get(id), payload.getLong(), DeltaEncoderDecoder.getVarLong(payload),
+						(int) DeltaEncoderDecoder.getVarLong(payload));
+				break;
+			case TRUNCATE:
+				replayer.removeBefore(types.get(id), payload.getLong());
+				break;
+			case RANGE:
+				replayer.removeRange(types.get(id), payload.getLong(), payload.getLong());
+				break;
+			case REMOVE_SEGMENT:
+				replayer.removeFromSegment(types.get(id), payload.getLong(), DeltaEncoderDecoder.getVarLong(payload));
+				break;
+			case COMPACT:
+				long target = DeltaEncoderDecoder.getVarLong(payload);
+				long[] sources = new long[(int) DeltaEncoderDecoder.getVarLong(payload)];
+				for (int i = 0; i < sources.length; i++) {
+					sources[i] = DeltaEncoderDecoder.getVarLong(payload);
+				}
+				replayer.compactedSegments(types.get(id), target, sources);
+				break;
+			case CHECKPOINT:
+				checkpoint = DeltaEncoderDecoder.getVarLong(payload);
+				replayer.checkpoint(checkpointFile(checkpoint));
+				break;
+			default:
+				throw new IllegalStateException("unknown log record: " + operation);
+			}
+		}
+	}
+
+	/**
+	 * Records the insertion of an event, with its attributes.
+	 *
+	 * @param event the event
+	 */
+	void insert(Event event) {
+		append(INSERT, event.type(), event.timestamp(), event.encodedAttributes());
+	}
+
+	/**
+	 * Records the insertion of a batch of events, counted as one record per
+	 * event by the sync policy.
+	 *
+	 * @param events the events
+	 */
+	void insertAll(Event[] events) {
+		boolean sync;
+		synchronized (this) {
+			for (Event event : events) {
+				put(INSERT, event.type(), event.timestamp(), event.encodedAttributes());
+			}
+			sync = added(events.length);
+		}
+		if (sync) {
+			sync();
+		}
+	}
+
+	/**
+	 * Records the removal of an event.
+	 *
+	 * @param type the type of the event
+	 * @param timestamp the timestamp of the event
+	 * @param attributes the attributes of the event, or null if it has none
+	 */
+	void remove(String type, long timestamp, Attributes attributes) {
+		append(REMOVE, type, timestamp, attributes);
+	}
+
+	/**
+	 * Records the removal of an event from a history segment, which keeps the
+	 * removal on its own; the record only counts if the segment is dropped,
+	 * and the events of its move are replayed from the log.
+	 *
+	 * @param type the type of the event
+	 * @param timestamp the timestamp of the event
+	 * @param segment the sequence number of the segment
+	 */
+	void removeFromSegment(String type, long timestamp, long segment) {
+		boolean sync;
+		synchronized (this) {
+			int id = typeId(type);
+			reserve(MAX_RECORD_SIZE + 10);
+			pending.put(REMOVE_SEGMENT);
+			DeltaEncoderDecoder.putVarLong(pending, id);
+			pending.putLong(timestamp);
+			DeltaEncoderDecoder.putVarLong(pending, segment);
+			sync = added(1);
+		}
+		if (sync) {
+			sync();
+		}
+	}
+
+	/**
+	 * Records the removal of all the events of a type.
+	 *
+	 * @param type the type of the events
+	 */
+	void removeAll(String type) {
+		boolean sync;
+		synchronized (this) {
+			int id = typeId(type);
+			reserve(MAX_RECORD_SIZE);
+			pending.put(REMOVE_ALL);
+			DeltaEncoderDecoder.putVarLong(pending, id);
+			sync = added(1);
+		}
+		if (sync) {
+			sync();
+		}
+	}
+
+	/**
+	 * Records that the events of a type lower than the given limit are being
+	 * moved to the given history segments, which are durable on their own.
+	 * The caller syncs the log before it writes the segments: the move is
+	 * only replayed if all of its segments are found, and otherwise its
+	 * events are replayed from the earlier records.
+	 *
+	 * @param type the type of the events
+	 * @param limit the history limit
+	 * @param firstSegment the sequence number of the first segment
+	 * @param segments the number of segments, numbered in sequence
+	 */
+	void movedToHistory(String type, long limit, long firstSegment, int segments) {
+		synchronized (this) {
+			int id = typeId(type);
+			reserve(MAX_RECORD_SIZE + 20);
+			pending.put(HISTORY);
+			DeltaEncoderDecoder.putVarLong(pending, id);
+			pending.putLong(limit);
+			DeltaEncoderDecoder.putVarLong(pending, firstSegment);
+			DeltaEncoderDecoder.putVarLong(pending, segments);
+			added(1);
+		}
+	}
+
+	/**
+	 * Records that history segments of a type are being merged into a new
+	 * one. The caller syncs the log before it writes the new segment: if the
+	 * new segment is dropped later, and the events of the merged ones are
+	 * replayed, the removals recorded against it are replayed with them.
+	 *
+	 * @param type the type of the events
+	 * @param target the sequence number of the new segment
+	 * @param sources the sequence numbers of the merged segments
+	 */
+	void compactedSegments(String type, long target, long[] sources) {
+		synchronized (this) {
+			int id = typeId(type);
+			reserve(MAX_RECORD_SIZE + 10 * (sources.length + 2));
+			pending.put(COMPACT);
+			DeltaEncoderDecoder.putVarLong(pending, id);
+			DeltaEncoderDecoder.putVarLong(pending, target);
+			DeltaEncoderDecoder.putVarLong(pending, sources.length);
+			for (long source : sources) {
+				DeltaEncoderDecoder.putVarLong(pending, source);
+			}
+			added(1);
+		}
+	}
+
+	/**
+	 * Records the removal of the events of a type lower than the given
+	 * timestamp.
+	 *
+	 * @param type the type of the events
+	 * @param timestamp the lowest timestamp kept
+	 */
+	void removeBefore(String type, long timestamp) {
+		append(TRUNCATE, type, timestamp, null);
+	}
+
+	/**
+	 * Records the removal of the events of a type in the given range.
+	 *
+	 * @param type the type of the events
+	 * @param startTime the start timestamp (inclusive)
+	 * @param endTime the end timestamp (exclusive)
+	 */
+	void removeRange(String type, long startTime, long endTime) {
+		boolean sync;
+		synchronized (this) {
+			int id = typeId(type);
+			reserve(MAX_RECORD_SIZE);
+			pending.put(RANGE);
+			DeltaEncoderDecoder.putVarLong(pending, id);
+			pending.putLong(startTime).putLong(endTime);
+			sync = added(1);
+		}
+		if (sync) {
+			sync();
+		}
+	}
+
+	private void append(byte operation, String type, long value, Attributes attributes) {
+		boolean sync;
+		synchronized (this) {
+			put(operation, type, value, attributes);
+			sync = added(1);
+		}
+		if (sync) {
+			sync();
+		}
+	}
+
+	/**
+	 * Appends a record with a single value and, if the given attributes are
+	 * not null, the operation that carries them; holds this.
+	 */
+	private void put(byte operation, String type, long value, Attributes attributes) {
+		int id = typeId(type);
+		if (attributes == null) {
+			reserve(MAX_RECORD_SIZE);
+			pending.put(operation);
+		} else {
+			reserve(MAX_RECORD_SIZE + attributes.encodedSize());
+			pending.put(operation == INSERT ? INSERT_ATTRIBUTES : REMOVE_ATTRIBUTES);
+		}
+		DeltaEncoderDecoder.putVarLong(pending, id);
+		pending.putLong(value);
+		if (attributes != null) {
+			attributes.copyTo(pending);
+		}
+	}
+
+	/** returns the id of the type, defining it first if needed; holds this **/
+	private int typeId(String type) {
+		if (!replayed || closed) {
+			throw new IllegalStateException(closed ? "log closed" : "log not replayed");
+		}
+		UncheckedIOException error = failure;
+		if (error != null) {
+			throw error;
+		}
+		Integer id = typeIds.get(type);
+		if (id == null) {
+			id = typeIds.size();
+			typeIds.put(type, id);
+			byte[] name = type.getBytes(StandardCharsets.UTF_8);
+			reserve(1 + 10 + 10 + name.length);
+			pending.put(TYPE);
+			DeltaEncoderDecoder.putVarLong(pending, id);
+			DeltaEncoderDecoder.putVarLong(pending, name.length);
+			pending.put(name);
+		}
+		return id;
+	}
+
+	/** grows the pending buffer if needed; holds this **/
+	private void reserve(int bytes) {
+		if (pending.remaining() < bytes) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+			pending.flip();
+			grown.put(pending);
+			pending = grown;
+		}
+	}
+
+	/** counts appended records and tells whether they trigger a sync; holds this **/
+	private boolean added(int records) {
+		pendingRecords += records;
+		return syncRecords > 0 && pendingRecords >= syncRecords;
+	}
+
+	/**
+	 * Writes the pending records to the file and forces them to the disk.
+	 * When it returns, every record appended before the call is durable.
+	 *
+	 * @throws UncheckedIOException if the records can not be written
+	 */
+	public void sync() {
+		synchronized (writeLock) {
+			ByteBuffer batch;
+			synchronized (this) {
+				if (pending.position() == 0) {
+					return;
+				}
+				batch = pending;
+				pending = spare;
+				pendingRecords = 0;
+			}
+			batch.flip();
+			try {
+				writeFrame(channel, batch);
+				channel.force(false);
+			} catch (IOException e) {
+				failure = new UncheckedIOException(e);
+				throw failure;
+			}
+			batch.clear();
+			spare = batch;
+		}
+	}
+
+	/** writes the given payload to the channel as a frame; holds writeLock **/
+	private void writeFrame(FileChannel target, ByteBuffer payload) throws IOException {
+		checksum.reset();
+		checksum.update(payload);
+		payload.flip();
+		header.clear();
+		header.putInt(payload.remaining()).putInt((int) checksum.getValue()).flip();
+		ByteBuffer[] frame = { header, payload };
+		while (payload.hasRemaining()) {
+			target.write(frame);
+		}
+	}
+
+	/**
+	 * Marks the end of the records the next checkpoint covers: the records
+	 * appended so far are synced, and the ones appended from now on are kept
+	 * by {@link #checkpoint()}. The caller holds every change back while it
+	 * marks the log and takes the snapshot of the checkpoint.
+	 *
+	 * @return the file the snapshot of the checkpoint is to be written to
+	 * @throws UncheckedIOException if the records can not be written
+	 */
+	Path mark() {
+		synchronized (writeLock) {
+			sync();
+			synchronized (this) {
+				if (closed) {
+					throw new IllegalStateException("log closed");
+				}
+				markTypes = typeIds.size();
+			}
+			try {
+				markPosition = channel.size();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return checkpointFile(checkpoint + 1);
+		}
+	}
+
+	/**
+	 * Completes the checkpoint marked by {@link #mark()}, once its snapshot is
+	 * written: the log is replaced by one made of the definitions of the
+	 * types known at the mark, the record of the checkpoint, and the frames
+	 * written since the mark, as they are. The records appended meanwhile
+	 * stay pending, and are written to the new log.
+	 *
+	 * @throws IllegalStateException if no checkpoint is marked
+	 * @throws UncheckedIOException if the new log can not be written
+	 */
+	void checkpoint() {
+		synchronized (writeLock) {
+			if (markPosition < 0) {
+				throw new IllegalStateException("no checkpoint marked");
+			}
+			String[] names = new String[markTypes];
+			synchronized (this) {
+				if (closed) {
+					throw new IllegalStateException("log closed");
+				}
+				for (Map.Entry<String, Integer> type : typeIds.entrySet()) {
+					if (type.getValue() < markTypes) {
+						names[type.getValue()] = type.getKey();
+					}
+				}
+			}
+			int size = 1 + 10 + 10;
+			for (String name : names) {
+				size += 1 + 10 + 10 + name.getBytes(StandardCharsets.UTF_8).length;
+			}
+			ByteBuffer head = ByteBuffer.allocate(size);
+			for (int id = 0; id < names.length; id++) {
+				byte[] name = names[id].getBytes(StandardCharsets.UTF_8);
+				head.put(TYPE);
+				DeltaEncoderDecoder.putVarLong(head, id);
+				DeltaEncoderDecoder.putVarLong(head, name.length);
+				head.put(name);
+			}
+			head.put(CHECKPOINT);
+			DeltaEncoderDecoder.putVarLong(head, 0);
+			DeltaEncoderDecoder.putVarLong(head, checkpoint + 1);
+			head.flip();
+
+			Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+			try {
+				try (FileChannel rewritten = FileChannel.open(temporary, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+					writeFrame(rewritten, head);
+					long end = channel.size();
+					for (long position = markPosition; position < end;) {
+						position += channel.transferTo(position, end - position, rewritten);
+					}
+					rewritten.force(false);
+				}
+				Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				FileChannel previous = channel;
+				channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+				previous.close();
+				if (checkpoint > 0) {
+					Files.deleteIfExists(checkpointFile(checkpoint));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			checkpoint++;
+			markPosition = -1;
+		}
+	}
+
+	/** returns the snapshot file of the checkpoint with the given number **/
+	private Path checkpointFile(long number) {
+		return file.resolveSibling(file.getFileName() + ".checkpoint." + number);
+	}
+
+	private void backgroundSync() {
+		try {
+			sync();
+		} catch (UncheckedIOException e) {
+			// already kept in failure, the writers report it
+		}
+	}
+
+	/**
+	 * Syncs the pending records and closes the file.
+	 *
+	 * @throws UncheckedIOException if the records can not be written
+	 */
+	@Override
+	public void close() {
+		if (syncer != null) {
+			syncer.shutdown();
+		}
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+			}
+			try {
+				sync();
+			} finally {
+				synchronized (this) {
+					closed = true;
+				}
+				try {
+					channel.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Receives the records of a log being replayed.
+	 */
+	interface Replayer {
+
+		/** receives an insertion; the attributes are null if there are none **/
+		void insert(String type, long timestamp, Attributes attributes);
+
+		/** receives a removal; the attributes are null if there are none **/
+		void remove(String type, long timestamp, Attributes attributes);
+
+		void removeAll(String type);
+
+		void movedToHistory(String type, long limit, long firstSegment, int segments);
+
+		void removeBefore(String type, long timestamp);
+
+		void removeRange(String type, long startTime, long endTime);
+
+		void removeFromSegment(String type, long timestamp, long segment);
+
+		void compactedSegments(String type, long target, long[] sources);
+
+		/** receives the snapshot of a checkpoint, which holds every record
+		 * logged before it **/
+		void checkpoint(Path snapshot);
+	}
+}
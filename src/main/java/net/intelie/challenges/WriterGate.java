@@ -0,0 +1,60 @@
+package net.intelie.challenges;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A gate the writers of a type pass through, so another thread can wait for
+ * the writers already in it without blocking the ones that come after.
+ *
+ * <p>
+ * A writer enters the side of the gate given by the current parity and
+ * leaves it by the same side; the counts of each side are striped, so the
+ * writers do not contend on them. {@link #await()} flips the parity twice
+ * and drains each side in turn, so every writer that entered before the
+ * call has left when it returns. It is meant for rare events, as the
+ * opening of the first snapshot of a type or the start of a subscription.
+ *
+ * @author Felipe Nogueira
+ *
+ */
+final class WriterGate {
+
+	/** parity of the side the writers enter **/
+	private volatile int epoch;
+	private final LongAdder[] entered = { new LongAdder(), new LongAdder() };
+	private final LongAdder[] exited = { new LongAdder(), new LongAdder() };
+
+	/**
+	 * Enters the gate.
+	 *
+	 * @return the side entered, to leave the gate by
+	 */
+	int enter() {
+		int parity = epoch & 1;
+		entered[parity].increment();
+		return parity;
+	}
+
+	/**
+	 * Leaves the gate by the side it was entered.
+	 */
+	void exit(int parity) {
+		exited[parity].increment();
+	}
+
+	/**
+	 * Waits for the writers that entered the gate before the call to leave
+	 * it. The writers that enter meanwhile are not waited for.
+	 */
+	synchronized void await() {
+		for (int flip = 0; flip < 2; flip++) {
+			int parity = epoch & 1;
+			epoch = parity ^ 1;
+			// exited is read before entered, so a writer counted in one and
+			// not in the other keeps the wait going
+			while (exited[parity].sum() != entered[parity].sum()) {
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class AppendOnlyEventStoreTest {
+
+	@Test
+	public void insertAndQueryTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		for (long i = 0; i < 5000; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.insert(new Event("other", 3l));
+
+		assertEquals(5000, store.size("type"));
+		assertEquals(range(1000, 3000), timestamps(store.query("type", 1000, 3000)));
+		assertEquals(list(3l), timestamps(store.query("other", 0, 10)));
+	}
+
+	@Test
+	public void outOfOrderTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		Random random = new Random(3);
+		List<Long> expected = new ArrayList<>();
+
+		// a stream with a share of late events, enough to fill the buffer
+		// several times
+		long clock = 0;
+		for (int i = 0; i < 20000; i++) {
+			clock += random.nextInt(3);
+			long timestamp = random.nextInt(10) == 0 ? clock - random.nextInt(5000) : clock;
+			expected.add(timestamp);
+			store.insert(new Event("type", timestamp));
+			if (i == 10000) {
+				store.mergeOutOfOrder();
+			}
+		}
+		Collections.sort(expected);
+
+		assertEquals(expected.size(), store.size("type"));
+		assertEquals(expected, timestamps(store.query("type", Long.MIN_VALUE, Long.MAX_VALUE)));
+
+		List<Long> window = new ArrayList<>();
+		for (Long timestamp : expected) {
+			if (timestamp >= 5000 && timestamp < 6000) {
+				window.add(timestamp);
+			}
+		}
+		assertEquals(window, timestamps(store.query("type", 5000, 6000)));
+	}
+
+	@Test
+	public void backgroundMergeTest() throws InterruptedException {
+		try (AppendOnlyEventStore store = new AppendOnlyEventStore(10)) {
+			for (long i = 100; i < 200; i++) {
+				store.insert(new Event("type", i));
+			}
+			store.insert(new Event("type", 50l));
+			store.insert(new Event("type", 60l));
+			// the late events are merged without a call or a full buffer
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (store.buffered("type") > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(0, store.buffered("type"));
+			assertEquals(list(50l, 60l, 100l), timestamps(store.query("type", 0, 101)));
+			assertEquals(null, store.getMergeFailure());
+		}
+		try {
+			new AppendOnlyEventStore(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void duplicatedTimestampsTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		store.insert(new Event("type", 10l));
+		store.insert(new Event("type", 10l));
+		store.insert(new Event("type", 5l));
+		store.insert(new Event("type", 5l));
+
+		assertEquals(list(5l, 5l, 10l, 10l), timestamps(store.query("type", 0, 20)));
+		store.mergeOutOfOrder();
+		assertEquals(list(5l, 5l, 10l, 10l), timestamps(store.query("type", 0, 20)));
+	}
+
+	@Test
+	public void iteratorRemoveTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		// sealed chunks, a tail and buffered late events
+		for (long i = 0; i < 3000; i += 2) {
+			store.insert(new Event("type", i));
+		}
+		store.insert(new Event("type", 11l));
+		store.insert(new Event("type", 2501l));
+
+		EventIterator it = store.query("type", 0, 3000);
+		while (it.moveNext()) {
+			if (it.current().timestamp() % 4 == 0 || it.current().timestamp() % 2 == 1) {
+				it.remove();
+			}
+		}
+
+		List<Long> expected = new ArrayList<>();
+		for (long i = 2; i < 3000; i += 4) {
+			expected.add(i);
+		}
+		assertEquals(expected, timestamps(store.query("type", 0, 3000)));
+		assertEquals(expected.size(), store.size("type"));
+
+		// appends keep working on top of the removals
+		store.insert(new Event("type", 3000l));
+		assertEquals(list(2998l, 3000l), timestamps(store.query("type", 2997, 3001)));
+	}
+
+	@Test
+	public void iteratorIllegalStateTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		store.insert(new Event("type", 1l));
+
+		EventIterator it = store.query("type", 0, 10);
+		try {
+			it.current();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(it.moveNext());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertFalse(it.moveNext());
+	}
+
+	@Test
+	public void insertAllTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		List<Long> expected = new ArrayList<>();
+		for (int b = 0; b < 3; b++) {
+			Event[] batch = new Event[2000];
+			for (int i = 0; i < batch.length; i++) {
+				// the last batch overlaps the previous ones
+				long timestamp = b == 2 ? i * 2 + 1 : b * 2000 + i;
+				batch[i] = new Event("type", timestamp);
+				expected.add(timestamp);
+			}
+			store.insertAll(batch);
+		}
+		Collections.sort(expected);
+
+		assertEquals(expected, timestamps(store.query("type", Long.MIN_VALUE, Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void attributesRejectedTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		Event attributed = new Event("type", 2l, Collections.singletonMap("v", 1));
+		try {
+			store.insert(attributed);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			store.insertAll(new Event[] { new Event("type", 1l), attributed });
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			store.insertAll(Arrays.asList(new Event("type", 1l), attributed));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		// none of the batch is inserted
+		assertEquals(0, store.size("type"));
+	}
+
+	@Test
+	public void removeAllTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		store.insert(new Event("type", 1l));
+		store.removeAll("type");
+
+		assertEquals(0, store.size("type"));
+		try {
+			store.query("type", 0, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		store.insert(new Event("type", 2l));
+		assertEquals(list(2l), timestamps(store.query("type", 0, 10)));
+	}
+
+	@Test
+	public void concurrentAppendAndQueryTest() throws InterruptedException {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		store.insert(new Event("type", 0l));
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		int writers = 4;
+		int perWriter = 20000;
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+
+		for (int w = 0; w < writers; w++) {
+			executor.execute(() -> {
+				Random random = new Random();
+				for (long i = 1; i <= perWriter; i++) {
+					// mostly in order, with some late events
+					long timestamp = random.nextInt(20) == 0 ? random.nextInt(perWriter) : i;
+					store.insert(new Event("type", timestamp));
+				}
+			});
+		}
+		for (int r = 0; r < 2; r++) {
+			executor.execute(() -> {
+				try {
+					for (int i = 0; i < 200; i++) {
+						long previous = Long.MIN_VALUE;
+						EventIterator it = store.query("type", 0, Long.MAX_VALUE);
+						while (it.moveNext()) {
+							long timestamp = it.current().timestamp();
+							assertTrue(timestamp >= previous);
+							previous = timestamp;
+						}
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(writers * perWriter + 1, store.size("type"));
+		assertEquals(writers * perWriter + 1, timestamps(store.query("type", 0, Long.MAX_VALUE)).size());
+	}
+
+	@Test
+	public void concurrentAppendWithMergesTest() throws InterruptedException {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		AtomicLong next = new AtomicLong();
+		int writers = 4;
+		int perWriter = 50000;
+		int batches = 500;
+
+		// the appends race for the tail while the batches and the merges
+		// replace it under the monitor
+		for (int w = 0; w < writers; w++) {
+			executor.execute(() -> {
+				for (int i = 0; i < perWriter; i++) {
+					store.insert(new Event("type", next.getAndIncrement()));
+				}
+			});
+		}
+		executor.execute(() -> {
+			for (int i = 0; i < batches; i++) {
+				store.insertAll(new Event[] { new Event("type", -i * 2 - 1), new Event("type", -i * 2 - 2) });
+				store.mergeOutOfOrder();
+			}
+		});
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		store.mergeOutOfOrder();
+		assertEquals(range(-batches * 2, writers * perWriter), timestamps(store.query("type", Long.MIN_VALUE,
+				Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void removeRangeTest() {
+		AppendOnlyEventStore store = new AppendOnlyEventStore();
+		for (long i = 0; i < 5000; i++) {
+			store.insert(new Event("type", i));
+		}
+		// the default of the interface, one removal per event
+		assertEquals(2000, store.removeRange("type", 1000, 3000));
+		assertEquals(3000, store.size("type"));
+		assertEquals(list(999l, 3000l), timestamps(store.query("type", 999, 3001)));
+		assertEquals(0, store.removeRange("none", 0, 10));
+		try {
+			store.removeRange("type", 10, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static List<Long> range(long start, long end) {
+		List<Long> list = new ArrayList<>();
+		for (long i = start; i < end; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+
+	private static List<Long> list(Long... timestamps) {
+		List<Long> list = new ArrayList<>();
+		Collections.addAll(list, timestamps);
+		return list;
+	}
+}
@@ -0,0 +1,162 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+public class AttributeIndexTest {
+
+	@Test
+	public void filteredQueryTest() {
+		for (boolean keepDuplicates : new boolean[] { false, true }) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, keepDuplicates);
+			ConcurrentEventStore unindexed = new ConcurrentEventStore(0, keepDuplicates);
+			store.createIndex("type", "host");
+			Random random = new Random(1);
+			List<Event> batch = new ArrayList<>();
+			for (int i = 0; i < 20000; i++) {
+				Event event = event(random.nextInt(50000) - 10000, "h" + random.nextInt(10), random.nextInt(3));
+				if (i % 2 == 0) {
+					store.insert(event);
+					unindexed.insert(event);
+				} else {
+					batch.add(event);
+				}
+			}
+			store.insertAll(batch);
+			unindexed.insertAll(batch);
+			// indexed after the events were stored
+			store.createIndex("type", "status");
+
+			for (long[] range : new long[][] { { -10000, 40000 }, { 1000, 1025 }, { 1023, 1024 }, { -5, 5 },
+					{ Long.MIN_VALUE, Long.MAX_VALUE } }) {
+				for (AttributeFilter filter : new AttributeFilter[] { new AttributeFilter("host", "h3"),
+						new AttributeFilter("host", "h3").and("status", 1), new AttributeFilter("status", 2),
+						new AttributeFilter("host", "none"), new AttributeFilter("other", 1) }) {
+					assertEquals(timestamps(unindexed.query("type", range[0], range[1], filter)),
+							timestamps(store.query("type", range[0], range[1], filter)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void removalsTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.createIndex("type", "host");
+		for (long i = 0; i < 5000; i++) {
+			store.insert(event(i, i % 2 == 0 ? "even" : "odd", 0));
+		}
+		AttributeFilter even = new AttributeFilter("host", "even");
+
+		// replaced events keep their stale bits, which are filtered out
+		store.insert(event(10, "odd", 0));
+		store.insert(new Event("type", 12));
+		EventIterator it = store.query("type", 0, 20, even);
+		assertEquals(list(0L, 2L, 4L, 6L, 8L, 14L, 16L, 18L), timestamps(it));
+
+		it = store.query("type", 0, 5000, even);
+		while (it.moveNext()) {
+			if (it.current().timestamp() < 1000) {
+				it.remove();
+			}
+		}
+		assertEquals(0, timestamps(store.query("type", 0, 1000, even)).size());
+		assertEquals(501, timestamps(store.query("type", 0, 1000, new AttributeFilter("host", "odd"))).size());
+
+		store.removeRange("type", 1000, 4096);
+		assertEquals(list(4096L, 4098L), timestamps(store.query("type", 0, 4100, even)));
+		store.insert(event(2000, "even", 0));
+		assertEquals(list(2000L, 4096L), timestamps(store.query("type", 0, 4097, even)));
+
+		// the index outlives the removal of the type
+		store.removeAll("type");
+		store.insert(event(7, "even", 0));
+		assertEquals(list(7L), timestamps(store.query("type", 0, 5000, even)));
+	}
+
+	@Test
+	public void numbersTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.createIndex("type", "code");
+		store.createIndex("type", "ratio");
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put("code", 500);
+		attributes.put("ratio", 0.5f);
+		store.insert(new Event("type", 1, attributes));
+		assertEquals(list(1L), timestamps(store.query("type", 0, 10, new AttributeFilter("code", 500L))));
+		assertEquals(list(1L), timestamps(store.query("type", 0, 10, new AttributeFilter("code", (short) 500))));
+		assertEquals(list(1L), timestamps(store.query("type", 0, 10, new AttributeFilter("ratio", 0.5))));
+		assertEquals(list(), timestamps(store.query("type", 0, 10, new AttributeFilter("code", "500"))));
+	}
+
+	@Test
+	public void otherStoresTest() {
+		Predicate<Event> odd = event -> event.timestamp() % 2 == 1;
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(), new ColumnarEventStore(),
+				new AppendOnlyEventStore() }) {
+			for (long i = 0; i < 10; i++) {
+				store.insert(new Event("type", i));
+			}
+			assertEquals(list(1L, 3L, 5L, 7L, 9L), timestamps(store.query("type", 0, 10, odd)));
+			// the stores that only keep timestamps have no attributes to match
+			assertEquals(list(), timestamps(store.query("type", 0, 10, new AttributeFilter("host", "h"))));
+			try {
+				store.query("type", 0, 10, (Predicate<Event>) null);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		try {
+			new AttributeFilter("host", new Object());
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void historyTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(100);
+		store.createIndex("type", "host");
+		for (long i = 0; i < 200; i++) {
+			store.insert(i < 50 ? new Event("type", i) : event(i, "h", 0));
+		}
+		store.encodeAndMoveToHistory("type");
+		assertTrue(store.getHistoryBlocks().containsKey("type"));
+		List<Long> found = timestamps(store.query("type", 0, 200, new AttributeFilter("host", "h")));
+		assertEquals(150, found.size());
+		assertEquals(Long.valueOf(50), found.get(0));
+	}
+
+	private static Event event(long timestamp, String host, int status) {
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put("host", host);
+		attributes.put("status", status);
+		return new Event("type", timestamp, attributes);
+	}
+
+	private static List<Long> list(Long... timestamps) {
+		List<Long> list = new ArrayList<>();
+		for (Long timestamp : timestamps) {
+			list.add(timestamp);
+		}
+		return list;
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+}
@@ -0,0 +1,148 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AttributesTest {
+
+	@Test
+	public void encodingTest() {
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put("host", "server-01");
+		values.put("cpu", 0.75);
+		values.put("pid", 4242);
+		values.put("bytes", Long.MAX_VALUE);
+		values.put("região", "são paulo");
+		Event event = new Event("type", 1, values);
+		Attributes attributes = event.attributes();
+
+		assertEquals(5, attributes.size());
+		assertEquals("host", attributes.name(0));
+		assertEquals("server-01", attributes.value(0));
+		assertEquals(0.75, attributes.value(1));
+		assertEquals(4242L, attributes.value(2));
+		assertEquals("região", attributes.name(4));
+		assertEquals("são paulo", attributes.get("região"));
+		assertEquals(Long.MAX_VALUE, attributes.getLong("bytes", 0));
+		assertEquals(4242.0, attributes.getDouble("pid", 0), 0);
+		assertEquals(0, attributes.getLong("cpu", -1));
+		assertEquals(-1, attributes.getLong("none", -1));
+		assertEquals("0.75", attributes.getString("cpu"));
+		assertNull(attributes.get("none"));
+		assertNull(attributes.get("hos"));
+		assertNull(attributes.get("hostname"));
+		try {
+			attributes.getLong("host", 0);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			attributes.name(5);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+
+		assertSame(Attributes.EMPTY, new Event("type", 1).attributes());
+		assertSame(Attributes.EMPTY, new Event("type", 1, Collections.emptyMap()).attributes());
+		assertEquals(0, Attributes.EMPTY.size());
+	}
+
+	@Test
+	public void invalidValuesTest() {
+		for (Object value : new Object[] { null, new Object(), 'c', new String(new char[70000]) }) {
+			try {
+				new Event("type", 1, Collections.singletonMap("name", value));
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		try {
+			new Event("type", 1, Collections.singletonMap(new String(new char[256]), 1));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void offHeapTest() {
+		for (boolean keepDuplicates : new boolean[] { false, true }) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, keepDuplicates);
+			Event inserted = new Event("type", 1, Collections.singletonMap("host", "a"));
+			assertFalse(inserted.attributes().isDirect());
+			store.insert(inserted);
+			store.insert(new Event("type", 2));
+			List<Event> batch = new ArrayList<>();
+			// enough payload for several slabs
+			for (int i = 3; i < 100000; i++) {
+				batch.add(new Event("type", i / 2 * 2 + 1, Collections.singletonMap("host", "host-" + i)));
+			}
+			store.insertAll(batch);
+
+			EventIterator it = store.query("type", 0, 4);
+			assertTrue(it.moveNext());
+			assertEquals("a", it.current().attributes().get("host"));
+			assertTrue(it.current().attributes().isDirect());
+			assertTrue(it.moveNext());
+			assertSame(Attributes.EMPTY, it.current().attributes());
+			assertTrue(it.moveNext());
+			assertEquals("host-3", it.current().attributes().get("host"));
+
+			it = store.query("type", 99999, 100000);
+			assertTrue(it.moveNext());
+			if (keepDuplicates) {
+				assertEquals("host-99998", it.current().attributes().get("host"));
+				assertTrue(it.moveNext());
+			}
+			Event last = it.current();
+			assertEquals("host-99999", last.attributes().get("host"));
+			assertTrue(last.attributes().isDirect());
+
+			// a view stays readable after its event is removed
+			it.remove();
+			TypeState state = store.state(store.typeId("type"));
+			assertNotNull(state.existingArena());
+			store.removeAll("type");
+			assertNull(state.existingArena());
+			assertEquals("host-99999", last.attributes().get("host"));
+		}
+	}
+
+	@Test
+	public void historyTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(100);
+		for (long i = 0; i < 100; i++) {
+			store.insert(i == 60 ? new Event("type", i, Collections.singletonMap("n", i)) : new Event("type", i));
+		}
+		// the history only keeps timestamps, so the move skips the attributes
+		store.encodeAndMoveToHistory("type");
+		assertEquals(1, store.getEvents().get("type").size());
+		assertEquals(99, store.getHistoryBlocks().get("type").size());
+		EventIterator it = store.query("type", 59, 62);
+		assertTrue(it.moveNext());
+		assertTrue(it.moveNext());
+		assertEquals(60L, it.current().attributes().get("n"));
+		assertTrue(it.moveNext());
+		assertFalse(it.moveNext());
+
+		// the history map keeps the attributes of the compressed events
+		Event compressed = store.createCompressedEvent(new Event("other", 15, Collections.singletonMap("n", 15)), 10);
+		store.insertInHistory(compressed, 15);
+		Event stored = store.getHistory().get("other").firstEntry().getValue();
+		assertEquals(5, stored.timestamp());
+		assertEquals(15L, stored.attributes().get("n"));
+		assertTrue(stored.attributes().isDirect());
+	}
+}
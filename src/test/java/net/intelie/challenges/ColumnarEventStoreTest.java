@@ -0,0 +1,352 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ColumnarEventStoreTest {
+
+	@Test
+	public void insertAndQueryTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		store.insert(new Event("typeA", 50l));
+		store.insert(new Event("typeA", 20l));
+		store.insert(new Event("typeA", 80l));
+		store.insert(new Event("typeB", 40l));
+
+		assertEquals(3, store.size("typeA"));
+		assertEquals(1, store.size("typeB"));
+		assertEquals(0, store.size("typeC"));
+
+		assertEquals(list(20l, 50l), timestamps(store.query("typeA", 20l, 80l)));
+		assertEquals(list(40l), timestamps(store.query("typeB", 0l, 100l)));
+	}
+
+	@Test
+	public void eventsSortingTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		Random random = new Random(42);
+		List<Long> expected = new ArrayList<>();
+
+		// enough events for many chunks to be split
+		for (int i = 0; i < 20 * TimestampColumn.CHUNK_CAPACITY; i++) {
+			long timestamp = random.nextInt(10000);
+			expected.add(timestamp);
+			store.insert(new Event("SortingTest", timestamp));
+		}
+		Collections.sort(expected);
+
+		assertEquals(expected, timestamps(store.query("SortingTest", Long.MIN_VALUE, Long.MAX_VALUE)));
+
+		List<Long> range = new ArrayList<>();
+		for (Long timestamp : expected) {
+			if (timestamp >= 1000 && timestamp < 2000) {
+				range.add(timestamp);
+			}
+		}
+		assertEquals(range, timestamps(store.query("SortingTest", 1000, 2000)));
+	}
+
+	@Test
+	public void duplicatedTimestampsTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		store.insert(new Event("type", 10l));
+		store.insert(new Event("type", 10l));
+		store.insert(new Event("type", 5l));
+		store.insert(new Event("type", 10l));
+
+		assertEquals(list(5l, 10l, 10l, 10l), timestamps(store.query("type", 0, 20)));
+	}
+
+	@Test
+	public void iteratorRemoveTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		for (long i = 0; i < 3000; i++) {
+			store.insert(new Event("type", i));
+		}
+
+		// removes the even timestamps, across many chunks
+		EventIterator it = store.query("type", 0, 3000);
+		while (it.moveNext()) {
+			if (it.current().timestamp() % 2 == 0) {
+				it.remove();
+			}
+		}
+
+		assertEquals(1500, store.size("type"));
+		it = store.query("type", 0, 3000);
+		while (it.moveNext()) {
+			assertEquals(1, it.current().timestamp() % 2);
+		}
+	}
+
+	@Test
+	public void iteratorRemoveDuplicatedTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		for (int i = 0; i < 5; i++) {
+			store.insert(new Event("type", 7l));
+		}
+		store.insert(new Event("type", 8l));
+
+		EventIterator it = store.query("type", 0, 10);
+		int visited = 0;
+		while (it.moveNext()) {
+			visited++;
+			if (visited % 2 == 1) {
+				it.remove();
+			}
+		}
+
+		assertEquals(6, visited);
+		assertEquals(list(7l, 7l, 8l), timestamps(store.query("type", 0, 10)));
+	}
+
+	@Test
+	public void iteratorIllegalStateTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		store.insert(new Event("type", 1l));
+
+		EventIterator it = store.query("type", 0, 10);
+		try {
+			it.current();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(it.moveNext());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertFalse(it.moveNext());
+		try {
+			it.current();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void attributesRejectedTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		Event attributed = new Event("type", 2l, Collections.singletonMap("v", 1));
+		try {
+			store.insert(attributed);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			store.insertAll(new Event[] { new Event("type", 1l), attributed });
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			store.insertAll(Arrays.asList(new Event("type", 1l), attributed));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		// none of the batch is inserted
+		assertEquals(0, store.size("type"));
+	}
+
+	@Test
+	public void removeAllTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		store.insert(new Event("type", 1l));
+		store.insert(new Event("type", 2l));
+		store.removeAll("type");
+
+		assertEquals(0, store.size("type"));
+		try {
+			store.query("type", 0, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		store.insert(new Event("type", 3l));
+		assertEquals(list(3l), timestamps(store.query("type", 0, 10)));
+	}
+
+	@Test
+	public void queryInvalidArgumentsTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		store.insert(new Event("type", 1l));
+		try {
+			store.query((String) null, 1, 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			store.query("type", 2, 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void concurrentInsertAndQueryTest() throws InterruptedException {
+		ColumnarEventStore store = new ColumnarEventStore();
+		store.insert(new Event("type", -1l));
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		int writers = 4;
+		int perWriter = 20000;
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+
+		for (int w = 0; w < writers; w++) {
+			int writer = w;
+			executor.execute(() -> {
+				for (long i = 0; i < perWriter; i++) {
+					store.insert(new Event("type", i * writers + writer));
+				}
+			});
+		}
+		for (int r = 0; r < 2; r++) {
+			executor.execute(() -> {
+				try {
+					for (int i = 0; i < 200; i++) {
+						long previous = Long.MIN_VALUE;
+						EventIterator it = store.query("type", -1, Long.MAX_VALUE);
+						while (it.moveNext()) {
+							long timestamp = it.current().timestamp();
+							assertTrue(timestamp > previous);
+							previous = timestamp;
+						}
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(writers * perWriter + 1, store.size("type"));
+	}
+
+	@Test
+	public void insertAllTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		Random random = new Random(7);
+		List<Long> expected = new ArrayList<>();
+
+		// in-order batches are appended, the last one falls in the middle
+		for (int b = 0; b < 3; b++) {
+			Event[] batch = new Event[3000];
+			for (int i = 0; i < batch.length; i++) {
+				long timestamp = b == 2 ? random.nextInt(6000) : b * 3000 + i;
+				batch[i] = new Event(i % 2 == 0 ? "type" : "other", timestamp);
+				if (i % 2 == 0) {
+					expected.add(timestamp);
+				}
+			}
+			store.insertAll(batch);
+		}
+		Collections.sort(expected);
+
+		assertEquals(4500, store.size("type"));
+		assertEquals(4500, store.size("other"));
+		assertEquals(expected, timestamps(store.query("type", Long.MIN_VALUE, Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void insertAllCollectionTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		store.insert(new Event("type", 5l));
+		store.insertAll(Arrays.asList(new Event("type", 9l), new Event("type", 2l), new Event("type", 5l)));
+
+		assertEquals(list(2l, 5l, 5l, 9l), timestamps(store.query("type", 0, 10)));
+	}
+
+	@Test
+	public void removeRangeTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		Random random = new Random(9);
+		List<Long> expected = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) {
+			long timestamp = random.nextInt(5000);
+			store.insert(new Event("type", timestamp));
+			expected.add(timestamp);
+		}
+		Collections.sort(expected);
+
+		for (int i = 0; i < 20; i++) {
+			long start = random.nextInt(5000);
+			long end = start + random.nextInt(1500) + 1;
+			int before = expected.size();
+			expected.removeIf(timestamp -> timestamp >= start && timestamp < end);
+			assertEquals(before - expected.size(), store.removeRange("type", start, end));
+			assertEquals(expected, timestamps(store.query("type", Long.MIN_VALUE, Long.MAX_VALUE)));
+		}
+		assertEquals(expected.size(), store.size("type"));
+
+		// the column stays usable once emptied
+		store.removeRange("type", Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(0, store.size("type"));
+		store.insert(new Event("type", 1l));
+		assertEquals(list(1l), timestamps(store.query("type", 0, 10)));
+		assertEquals(0, store.removeRange("none", 0, 10));
+	}
+
+	@Test
+	public void iteratorRemoveDuplicatedAcrossChunksTest() {
+		// the equal timestamps end exactly at the end of the first chunk
+		ColumnarEventStore store = new ColumnarEventStore();
+		for (int i = 0; i < TimestampColumn.CHUNK_CAPACITY - 1; i++) {
+			store.insert(new Event("type", 1l));
+		}
+		store.insert(new Event("type", 5l));
+		store.insert(new Event("type", 5l));
+
+		EventIterator it = store.query("type", 5, 6);
+		assertTrue(it.moveNext());
+		assertTrue(it.moveNext());
+		it.remove();
+		assertFalse(it.moveNext());
+		assertEquals(list(5l), timestamps(store.query("type", 5, 6)));
+		assertEquals(TimestampColumn.CHUNK_CAPACITY, store.size("type"));
+	}
+
+	@Test
+	public void iteratorRemoveAfterRangeRemovalTest() {
+		ColumnarEventStore store = new ColumnarEventStore();
+		for (long i = 0; i < 2 * TimestampColumn.CHUNK_CAPACITY; i++) {
+			store.insert(new Event("type", i));
+		}
+		EventIterator it = store.query("type", 1000, 1001);
+		assertTrue(it.moveNext());
+		// shrinks the first chunk, leaving the removed timestamps past its size
+		assertEquals(24, store.removeRange("type", 1000, 1024));
+		it.remove();
+
+		assertEquals(2 * TimestampColumn.CHUNK_CAPACITY - 24, store.size("type"));
+		assertEquals(list(999l, 1024l), timestamps(store.query("type", 999, 1025)));
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static List<Long> list(Long... timestamps) {
+		List<Long> list = new ArrayList<>();
+		Collections.addAll(list, timestamps);
+		return list;
+	}
+}
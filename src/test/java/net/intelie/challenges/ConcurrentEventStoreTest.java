@@ -6,11 +6,16 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -89,7 +94,7 @@ public class ConcurrentEventStoreTest{
 	public void queryInvalidArgumentsTest() {
 		ConcurrentEventStore store = new ConcurrentEventStore();
 		try{
-			store.query(null, 1, 2);
+			store.query((String) null, 1, 2);
 		} catch (IllegalArgumentException e) {
 			assertNotNull(e);
 		}
@@ -152,7 +157,29 @@ public class ConcurrentEventStoreTest{
 		Event event = store.getHistory().get("type").firstEntry().getValue();
 		assertNotNull(event);
 	}
-	
+
+	@Test
+	public void queryInsertedHistoryTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.insertInHistory(store.createCompressedEvent(new Event("type", 1000l), 990l), 1000l);
+		// compressed against another reference, encoded again against the first one
+		store.insertInHistory(store.createCompressedEvent(new Event("type", 1005l), 1005l), 1005l);
+		store.insert(new Event("type", 2000l));
+		assertEquals(Long.valueOf(990l), store.getFirstHistoricalTimestamp("type"));
+
+		EventIterator it = store.query("type", 0, 3000);
+		assertTrue(it.moveNext());
+		assertEquals(1000l, it.current().timestamp());
+		assertTrue(it.moveNext());
+		assertEquals(1005l, it.current().timestamp());
+		assertTrue(it.moveNext());
+		assertEquals(2000l, it.current().timestamp());
+		assertFalse(it.moveNext());
+		assertEquals(2, store.count("type", 1000, 1006));
+		assertEquals(3, store.count("type", 0, 3000));
+		assertTrue(Arrays.equals(new long[] { 1, 1, 0 }, store.histogram("type", 1000, 1015, 5)));
+	}
+
 	@Test
 	public void encondeAndMoveToHistoryTest() {
 		
@@ -168,17 +195,17 @@ public class ConcurrentEventStoreTest{
 		}
 		store.encodeAndMoveToHistory(type);
 		
-		Map<String, ConcurrentSkipListMap<Long, Event>> history = store.getHistory();
-		ConcurrentSkipListMap<Long, Event> historyEvents = history.get(type); 
+		HistoryBlocks historyEvents = store.getHistoryBlocks().get(type); 
 		assertNotNull(historyEvents);
+		assertTrue(store.getEvents().get(type).isEmpty());
 
-		Collection<Event> compressed = historyEvents.values();
-		int i = 0;
-		for (Event event : compressed) {
-			long compressedtime = i * increase;  
-			assertEquals(compressedtime, event.timestamp());
-			i++;
+		long[] timestamps = historyEvents.timestamps();
+		assertEquals(10, timestamps.length);
+		for (int i = 0; i < timestamps.length; i++) {
+			assertEquals(first + i * increase, timestamps[i]);
 		}
+		//regularly spaced timestamps take a byte each
+		assertEquals(9, historyEvents.encodedSize());
 	}
 	
 	@Test
@@ -193,7 +220,7 @@ public class ConcurrentEventStoreTest{
 		}
 		store.encodeAndMoveToHistory(type);
 		store.removeAll(type);
-		assertNull(store.getHistory().get(type));
+		assertNull(store.getHistoryBlocks().get(type));
 	}
 	
 	@Test
@@ -241,8 +268,263 @@ public class ConcurrentEventStoreTest{
 		
         executor.shutdown();
         executor.awaitTermination(60, TimeUnit.SECONDS);
-        assertEquals(max-1, store.getEvents().get("1").size());
+        //i and i*10 collide for the multiples of 10 lower than max
+        long distinct = 2 * (max - 1) - (max - 1) / 10;
+        assertEquals(distinct, store.getEvents().get("1").size());
     }
+
+	/** Tests related to duplicated timestamps **/
+	@Test
+	public void duplicatedTimestampsReplacedTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.insert(new Event("type", 10l));
+		store.insert(new Event("type", 10l));
+		
+		EventIterator it = store.query("type", 0, 20);
+		assertTrue(it.moveNext());
+		assertFalse(it.moveNext());
+	}
+	
+	@Test
+	public void duplicatedTimestampsKeptTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(10, true);
+		Event first = new Event("type", 50l);
+		Event second = new Event("type", 50l);
+		Event third = new Event("type", 50l);
+		
+		store.insert(first);
+		store.insert(new Event("type", 20l));
+		store.insert(second);
+		store.insert(third);
+		
+		//single events are stored as they are
+		assertTrue(store.getEvents().get("type").get(20l).getClass() == Event.class);
+		
+		EventIterator it = store.query("type", 20, 60);
+		assertTrue(it.moveNext());
+		assertEquals(20l, it.current().timestamp());
+		assertTrue(it.moveNext());
+		assertTrue(it.current() == first);
+		assertTrue(it.moveNext());
+		assertTrue(it.current() == second);
+		it.remove();
+		assertTrue(it.moveNext());
+		assertTrue(it.current() == third);
+		assertFalse(it.moveNext());
+		
+		it = store.query("type", 50, 60);
+		assertTrue(it.moveNext());
+		assertTrue(it.current() == first);
+		it.remove();
+		assertTrue(it.moveNext());
+		assertTrue(it.current() == third);
+		assertFalse(it.moveNext());
+		
+		//a single event is left, so the bucket is gone
+		assertTrue(store.getEvents().get("type").get(50l) == third);
+	}
 	
+	@Test
+	public void duplicatedTimestampsHistoryTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(20, true);
+		store.insert(new Event("type", 5l));
+		store.insert(new Event("type", 5l));
+		store.insert(new Event("type", 7l));
+		store.insert(new Event("type", 30l));
+		store.encodeAndMoveToHistory("type");
+		
+		assertEquals(3, store.getHistoryBlocks().get("type").size());
+		
+		EventIterator it = store.query("type", 0, 40);
+		long[] expected = {5l, 5l, 7l, 30l};
+		for (long timestamp : expected) {
+			assertTrue(it.moveNext());
+			assertEquals(timestamp, it.current().timestamp());
+		}
+		assertFalse(it.moveNext());
+	}
+	
+	@Test
+	public void concurrentDuplicatedTimestampsTest() throws InterruptedException {
+		ConcurrentEventStore store = new ConcurrentEventStore(10, true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		int perThread = 10000;
+		
+		for (int t = 0; t < 4; t++) {
+			executor.execute(() -> {
+				for (long i = 0; i < perThread; i++) {
+					store.insert(new Event("type", i % 100));
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		
+		int count = 0;
+		EventIterator it = store.query("type", 0, 100);
+		while (it.moveNext()) {
+			count++;
+		}
+		assertEquals(4 * perThread, count);
+		assertEquals(100, store.getEvents().get("type").size());
+	}
+
+	/** Tests related to batch insertion **/
+	@Test
+	public void insertAllTest() {
+		ConcurrentEventStore batched = new ConcurrentEventStore();
+		ConcurrentEventStore sequential = new ConcurrentEventStore();
+		Random random = new Random(7);
+		
+		List<Event> batch = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			batch.add(new Event("type" + random.nextInt(5), random.nextInt(2000)));
+		}
+		//the first half creates the types, the second one goes to existing maps
+		batched.insertAll(batch.subList(0, 2500));
+		batched.insertAll(batch.subList(2500, 5000).toArray(new Event[0]));
+		for (Event event : batch) {
+			sequential.insert(event);
+		}
+		
+		assertEquals(sequential.getEvents().keySet(), batched.getEvents().keySet());
+		for (String type : sequential.getEvents().keySet()) {
+			ConcurrentSkipListMap<Long, Event> expected = sequential.getEvents().get(type);
+			ConcurrentSkipListMap<Long, Event> actual = batched.getEvents().get(type);
+			assertEquals(expected.keySet(), actual.keySet());
+			for (Long timestamp : expected.keySet()) {
+				//the last event of a timestamp wins, as in sequential inserts
+				assertTrue(expected.get(timestamp) == actual.get(timestamp));
+			}
+		}
+	}
+	
+	@Test
+	public void insertAllDuplicatesTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(10, true);
+		store.insert(new Event("type", 1l));
+		store.insertAll(Arrays.asList(new Event("type", 3l), new Event("type", 1l),
+				new Event("type", 3l), new Event("other", 3l), new Event("other", 3l)));
+		
+		int count = 0;
+		EventIterator it = store.query("type", 0, 10);
+		while (it.moveNext()) {
+			count++;
+		}
+		assertEquals(4, count);
+		
+		it = store.query("other", 0, 10);
+		assertTrue(it.moveNext());
+		assertTrue(it.moveNext());
+		assertFalse(it.moveNext());
+	}
+	
+	@Test
+	public void insertAllMergesBucketsTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(10, true);
+		Event first = new Event("type", 1l);
+		Event second = new Event("type", 1l);
+		store.insert(first);
+		store.insert(second);
+		Event third = new Event("type", 1l);
+		Event fourth = new Event("type", 1l);
+		store.insertAll(new Event[] { third, new Event("type", 2l), fourth });
+		
+		//the events of the batch follow the stored ones, in the order of the batch
+		Event[] events = EventBucket.events(store.getEvents().get("type").get(1l));
+		assertEquals(4, events.length);
+		assertTrue(events[0] == first && events[1] == second && events[2] == third && events[3] == fourth);
+		assertEquals(5, store.count("type", 0, 10));
+	}
+	
+	@Test
+	public void removeRangeTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(500, true);
+		for (long i = 0; i < 1000; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.insert(new Event("type", 600l));
+		store.encodeAndMoveToHistory("type");
+
+		// across the history blocks and the main map, a bucket counting twice
+		assertEquals(501, store.removeRange("type", 250, 750));
+		assertEquals(500, store.getEvents().get("type").size() + store.getHistoryBlocks().get("type").size());
+		EventIterator it = store.query("type", 0, 1000);
+		long count = 0;
+		while (it.moveNext()) {
+			long timestamp = it.current().timestamp();
+			assertTrue(timestamp < 250 || timestamp >= 750);
+			count++;
+		}
+		assertEquals(500, count);
+		assertEquals(0, store.removeRange("type", 250, 750));
+		assertEquals(0, store.removeRange("none", 250, 750));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void removeRangeInvalidArgumentsTest() {
+		new ConcurrentEventStore().removeRange("type", 10, 10);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void insertAllNullEventTest() {
+		new ConcurrentEventStore().insertAll(new Event[] {new Event("type", 1l), null});
+	}
+
+	@Test
+	public void attributesKeptTest() {
+		// unlike the timestamp-only stores, every insert keeps the attributes
+		EventStore store = new ConcurrentEventStore();
+		store.insert(new Event("type", 1l, Collections.singletonMap("v", 1)));
+		store.insertAll(new Event[] { new Event("type", 2l, Collections.singletonMap("v", 2)) });
+		store.insertAll(Arrays.asList(new Event("type", 3l, Collections.singletonMap("v", 3))));
+
+		EventIterator it = store.query("type", 0, 10);
+		for (int v = 1; v <= 3; v++) {
+			assertTrue(it.moveNext());
+			assertEquals((long) v, it.current().attributes().get("v"));
+		}
+		assertFalse(it.moveNext());
+	}
+
+	@Test
+	public void concurrentInsertAndRemoveAllTest() throws InterruptedException {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		CountDownLatch removalsDone = new CountDownLatch(1);
+		int writers = 4;
+		int perWriter = 20000;
+		
+		executor.execute(() -> {
+			for (int i = 0; i < 2000; i++) {
+				store.removeAll("hot");
+			}
+			removalsDone.countDown();
+		});
+		for (int w = 0; w < writers; w++) {
+			long writer = w;
+			executor.execute(() -> {
+				for (long i = 0; i < perWriter; i++) {
+					store.insert(new Event("hot", i * writers + writer));
+				}
+				try {
+					removalsDone.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				//inserted after the last removal, so they must not be lost
+				for (long i = perWriter; i < 2 * perWriter; i++) {
+					store.insert(new Event("hot", i * writers + writer));
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		
+		ConcurrentSkipListMap<Long, Event> events = store.getEvents().get("hot");
+		for (long i = perWriter * writers; i < 2 * perWriter * writers; i++) {
+			assertNotNull(events.get(i));
+		}
+	}
 
 }
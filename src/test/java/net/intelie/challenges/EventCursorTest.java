@@ -0,0 +1,154 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventCursorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void storesTest() throws IOException {
+		ConcurrentEventStore blocks = new ConcurrentEventStore(50000, true);
+		ConcurrentEventStore segments = new ConcurrentEventStore(50000, false, folder.newFolder().toPath());
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(), new ConcurrentEventStore(0, true),
+				blocks, segments, new ColumnarEventStore(), new AppendOnlyEventStore() }) {
+			Random random = new Random(1);
+			for (int i = 0; i < 20000; i++) {
+				store.insert(new Event(i % 2 == 0 ? "a" : "b", random.nextInt(100000)));
+			}
+			for (ConcurrentEventStore history : new ConcurrentEventStore[] { blocks, segments }) {
+				if (store == history) {
+					history.encodeAndMoveToHistory("a");
+					history.encodeAndMoveToHistory("b");
+					// late events of the history range stay in the main map
+					history.insert(new Event("a", 100));
+					history.insert(new Event("a", 40000));
+				}
+			}
+			EventCursor cursor = store.cursor();
+			for (long[] range : new long[][] { { 0, 100000 }, { 25000, 75000 }, { 49990, 50010 }, { 50000, 50001 },
+					{ Long.MIN_VALUE, Long.MAX_VALUE } }) {
+				for (String type : new String[] { "a", "b", "none" }) {
+					cursor.reset(type, range[0], range[1]);
+					assertEquals(type, cursor.type());
+					assertArrayEquals(timestamps(store, type, range[0], range[1]), timestamps(cursor));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void removalsTest() throws IOException {
+		ConcurrentEventStore store = new ConcurrentEventStore(100, false, folder.newFolder().toPath());
+		for (long i = 0; i < 200; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.encodeAndMoveToHistory("type");
+		EventCursor cursor = store.cursor();
+		cursor.reset("type", 0, 200);
+		assertTrue(cursor.moveNext());
+		assertEquals(0, cursor.timestamp());
+
+		// removals ahead of the cursor are seen, in the segments and in the main
+		// map, past the few timestamps each tier has already read
+		store.removeRange("type", 2, 50);
+		store.removeRange("type", 110, 150);
+		long[] timestamps = timestamps(cursor);
+		assertEquals(111, timestamps.length);
+		assertEquals(1, timestamps[0]);
+		assertEquals(50, timestamps[1]);
+		assertEquals(109, timestamps[60]);
+		assertEquals(150, timestamps[61]);
+	}
+
+	@Test
+	public void resetClosesQueryTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore() {
+			@Override
+			public EventIterator query(String type, long startTime, long endTime) {
+				return querySnapshot(type, startTime, endTime);
+			}
+		};
+		for (long i = 0; i < 10; i++) {
+			store.insert(new Event("type", i));
+		}
+		TypeState state = store.state(store.typeId("type"));
+		EventCursor cursor = new QueryEventCursor(store);
+		cursor.reset("type", 0, 10);
+		assertTrue(cursor.moveNext());
+		// the query of the first range is closed by the reset, the second one
+		// at its end
+		cursor.reset("type", 5, 7);
+		assertTrue(cursor.moveNext());
+		assertTrue(cursor.moveNext());
+		assertFalse(cursor.moveNext());
+		assertNull(state.snapshotLog());
+	}
+
+	@Test
+	public void invalidStateTest() {
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(), new ColumnarEventStore() }) {
+			store.insert(new Event("type", 1));
+			EventCursor cursor = store.cursor();
+			try {
+				cursor.timestamp();
+				fail();
+			} catch (IllegalStateException e) {
+			}
+			try {
+				cursor.reset(null, 0, 10);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				cursor.reset("type", 10, 10);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			cursor.reset("type", 0, 10);
+			assertTrue(cursor.moveNext());
+			assertFalse(cursor.moveNext());
+			try {
+				cursor.timestamp();
+				fail();
+			} catch (IllegalStateException e) {
+			}
+		}
+	}
+
+	private static long[] timestamps(EventStore store, String type, long startTime, long endTime) {
+		List<Long> timestamps = new ArrayList<>();
+		try {
+			EventIterator it = store.query(type, startTime, endTime);
+			while (it.moveNext()) {
+				timestamps.add(it.current().timestamp());
+			}
+		} catch (IllegalArgumentException e) {
+			// no events of the type
+		}
+		return timestamps.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	private static long[] timestamps(EventCursor cursor) {
+		List<Long> timestamps = new ArrayList<>();
+		while (cursor.moveNext()) {
+			timestamps.add(cursor.timestamp());
+		}
+		return timestamps.stream().mapToLong(Long::longValue).toArray();
+	}
+}
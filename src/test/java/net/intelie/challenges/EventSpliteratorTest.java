@@ -0,0 +1,133 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class EventSpliteratorTest {
+
+	@Test
+	public void storesTest() {
+		ConcurrentEventStore history = new ConcurrentEventStore(50000);
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(0, true), history,
+				new ColumnarEventStore(), new AppendOnlyEventStore() }) {
+			Random random = new Random(1);
+			for (int i = 0; i < 20000; i++) {
+				store.insert(new Event("type", random.nextInt(100000)));
+			}
+			store.insert(new Event("other", 10l));
+			if (store == history) {
+				history.encodeAndMoveToHistory("type");
+			}
+			for (long[] range : new long[][] { { 0, 100000 }, { 25000, 75000 }, { 49990, 50010 },
+					{ Long.MIN_VALUE, Long.MAX_VALUE } }) {
+				long[] expected = timestamps(store.query("type", range[0], range[1]));
+				assertArrayEquals(expected,
+						store.queryStream("type", range[0], range[1]).mapToLong(Event::timestamp).toArray());
+				assertArrayEquals(expected, store.queryStream("type", range[0], range[1]).parallel()
+						.mapToLong(Event::timestamp).toArray());
+			}
+			assertEquals(1, store.queryStream("other", 0, 100).parallel().count());
+			assertEquals(0, store.queryStream("none", 0, 100).parallel().count());
+		}
+	}
+
+	@Test
+	public void splitTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		for (long i = 0; i < 4096; i++) {
+			store.insert(new Event("type", i));
+		}
+		Spliterator<Event> suffix = store.queryStream("type", 0, 8192).spliterator();
+		assertEquals(4096, suffix.estimateSize());
+		Spliterator<Event> prefix = suffix.trySplit();
+		assertEquals(4096, prefix.estimateSize());
+		assertEquals(0, suffix.estimateSize());
+		assertNull(suffix.trySplit());
+
+		Spliterator<Event> second = prefix.trySplit();
+		assertEquals(2048, prefix.estimateSize());
+		assertEquals(2048, second.estimateSize());
+		List<Event> events = new ArrayList<>();
+		second.tryAdvance(events::add);
+		assertEquals(0, events.get(0).timestamp());
+		// advanced parts are not split again
+		assertNull(second.trySplit());
+		second.forEachRemaining(events::add);
+		prefix.forEachRemaining(events::add);
+		assertEquals(4096, events.size());
+		assertEquals(4095, events.get(4095).timestamp());
+		assertEquals(0, second.estimateSize());
+		assertNull(prefix.trySplit());
+
+		// without a counter the estimate is halved
+		Spliterator<Event> unknown = new EventSpliterator(store, "type", 0, 8192, null);
+		assertEquals(Long.MAX_VALUE, unknown.estimateSize());
+		assertEquals(Long.MAX_VALUE / 2, unknown.trySplit().estimateSize());
+		assertEquals(Long.MAX_VALUE - Long.MAX_VALUE / 2, unknown.estimateSize());
+	}
+
+	@Test
+	public void closeReleasesQueriesTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore() {
+			@Override
+			public EventIterator query(String type, long startTime, long endTime) {
+				return querySnapshot(type, startTime, endTime);
+			}
+		};
+		for (long i = 0; i < 10000; i++) {
+			store.insert(new Event("type", i));
+		}
+		TypeState state = store.state(store.typeId("type"));
+
+		// a stream read to its end closes its queries as it goes
+		assertEquals(10000, store.queryStream("type", 0, 10000).parallel().count());
+		assertNull(state.snapshotLog());
+
+		// a stream cut short closes them when it is closed
+		try (Stream<Event> stream = store.queryStream("type", 0, 10000)) {
+			assertEquals(0, stream.findFirst().get().timestamp());
+			assertNotNull(state.snapshotLog());
+		}
+		assertNull(state.snapshotLog());
+		try (Stream<Event> stream = store.queryStream("type", 0, 10000).parallel()) {
+			assertEquals(1, stream.filter(event -> event.timestamp() == 1).findAny().get().timestamp());
+		}
+		assertNull(state.snapshotLog());
+	}
+
+	@Test
+	public void invalidArgumentsTest() {
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(), new ColumnarEventStore(),
+				new AppendOnlyEventStore() }) {
+			try {
+				store.queryStream(null, 0, 10);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				store.queryStream("type", 10, 10);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	private static long[] timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps.stream().mapToLong(Long::longValue).toArray();
+	}
+}
@@ -0,0 +1,216 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EventSubscriptionTest {
+
+	@Test
+	public void replayThenLiveTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		for (long i = 0; i < 10; i++) {
+			store.insert(new Event("type", i));
+			store.insert(new Event("other", i));
+		}
+		EventSubscription subscription = store.subscribe("type", 5, 100);
+		assertEquals(Arrays.asList(5L, 6L, 7L, 8L, 9L), timestamps(subscription));
+
+		// inserted events are returned in insertion order, from the timestamp on
+		store.insert(new Event("type", 20));
+		store.insert(new Event("type", 3));
+		store.insert(new Event("other", 30));
+		store.insert(new Event("type", 15));
+		store.insertAll(Arrays.asList(new Event("type", 40), new Event("other", 41), new Event("type", 30)));
+		assertEquals(Arrays.asList(20L, 15L, 30L, 40L), timestamps(subscription));
+		assertFalse(subscription.moveNext());
+		subscription.close();
+	}
+
+	@Test
+	public void subscribeBeforeInsertsTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		EventSubscription subscription = store.subscribe("type", Long.MIN_VALUE, 100);
+		assertFalse(subscription.moveNext());
+		store.insert(new Event("type", 1));
+		assertTrue(subscription.moveNext());
+		assertEquals(1, subscription.current().timestamp());
+		subscription.remove();
+		assertEquals(0, store.count("type", 0, 10));
+		subscription.close();
+	}
+
+	@Test
+	public void overflowTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		EventSubscription subscription = store.subscribe("type", 0, 10);
+		// a full buffer does not block the inserts, which are all stored
+		for (long i = 0; i < 25; i++) {
+			store.insert(new Event("type", i));
+		}
+		assertEquals(25, store.count("type", 0, 100));
+		assertEquals(15, subscription.dropped());
+		List<Long> timestamps = timestamps(subscription);
+		assertEquals(10, timestamps.size());
+		assertEquals(Long.valueOf(9), timestamps.get(9));
+
+		// room again once the consumer caught up
+		store.insert(new Event("type", 50));
+		assertEquals(Arrays.asList(50L), timestamps(subscription));
+		assertEquals(15, subscription.dropped());
+		subscription.close();
+	}
+
+	@Test
+	public void awaitTest() throws InterruptedException {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		EventSubscription subscription = store.subscribe("type", 0, 100);
+		assertFalse(subscription.await(10, TimeUnit.MILLISECONDS));
+
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				return;
+			}
+			store.insert(new Event("type", 7));
+		});
+		producer.start();
+		assertTrue(subscription.await(10, TimeUnit.SECONDS));
+		assertTrue(subscription.moveNext());
+		assertEquals(7, subscription.current().timestamp());
+		producer.join();
+
+		// closing wakes up a waiting consumer
+		Thread closer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				return;
+			}
+			subscription.close();
+		});
+		closer.start();
+		assertFalse(subscription.await(10, TimeUnit.SECONDS));
+		closer.join();
+	}
+
+	@Test
+	public void closeTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		EventSubscription subscription = store.subscribe("type", 0, 100);
+		store.insert(new Event("type", 1));
+		subscription.close();
+		assertFalse(subscription.moveNext());
+		store.insert(new Event("type", 2));
+		assertFalse(subscription.moveNext());
+		assertEquals(0, subscription.dropped());
+		try {
+			subscription.current();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void insertsDuringSubscribeTest() throws InterruptedException {
+		for (int round = 0; round < 20; round++) {
+			ConcurrentEventStore store = new ConcurrentEventStore();
+			Thread writer = new Thread(() -> {
+				for (long i = 0; i < 20000; i++) {
+					store.insert(new Event("type", i));
+				}
+			});
+			writer.start();
+			while (store.count("type", 0, 20000) < 100 * round) {
+				Thread.yield();
+			}
+			EventSubscription subscription = store.subscribe("type", 0, 20000);
+			writer.join();
+			// every event is returned once, by the replay or from the buffer
+			List<Long> timestamps = timestamps(subscription);
+			assertEquals(0, subscription.dropped());
+			assertEquals(20000, timestamps.size());
+			assertEquals(20000, new HashSet<>(timestamps).size());
+			subscription.close();
+		}
+	}
+
+	@Test
+	public void replayReleasesItsSnapshotTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		for (long i = 0; i < 10; i++) {
+			store.insert(new Event("type", i));
+		}
+		TypeState state = store.state(store.typeId("type"));
+		EventSubscription subscription = store.subscribe("type", 0, 100);
+		assertNotNull(state.snapshotLog());
+		assertEquals(10, timestamps(subscription).size());
+		// closed once it is over
+		assertNull(state.snapshotLog());
+		subscription.close();
+
+		subscription = store.subscribe("type", 0, 100);
+		assertTrue(subscription.moveNext());
+		subscription.close();
+		assertNull(state.snapshotLog());
+		assertFalse(subscription.moveNext());
+	}
+
+	@Test
+	public void removeReplayedEventTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(100, true);
+		store.insert(new Event("type", 1, Collections.singletonMap("a", 1)));
+		store.insert(new Event("type", 1));
+		store.insert(new Event("type", 2));
+		store.encodeAndMoveToHistory("type");
+		EventSubscription subscription = store.subscribe("type", 0, 100);
+
+		// the event with attributes is removed itself, the others, moved to
+		// the history, as events alike
+		long left = 3;
+		while (subscription.moveNext()) {
+			subscription.remove();
+			assertEquals(--left, store.count("type", 0, 100));
+			subscription.remove();
+			assertEquals(left, store.count("type", 0, 100));
+		}
+		assertEquals(0, left);
+		subscription.close();
+	}
+
+	@Test
+	public void invalidArgumentsTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		try {
+			store.subscribe(null, 0, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			store.subscribe("type", 0, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+}
@@ -0,0 +1,171 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistoryBlocksTest {
+
+	@Test
+	public void roundTripTest() {
+		// gaps of every size, runs of equal timestamps and the extreme values
+		Random random = new Random(11);
+		long[] timestamps = new long[5000];
+		timestamps[0] = Long.MIN_VALUE;
+		long clock = -1000;
+		for (int i = 1; i < timestamps.length - 1; i++) {
+			clock += random.nextInt(4) == 0 ? 0 : (long) (random.nextDouble() * (1L << random.nextInt(40)));
+			timestamps[i] = clock;
+		}
+		timestamps[timestamps.length - 1] = Long.MAX_VALUE;
+
+		HistoryBlocks blocks = new HistoryBlocks("type");
+		blocks.addAll(timestamps, timestamps.length);
+		assertEquals("type", blocks.type());
+		assertEquals(timestamps.length, blocks.size());
+		assertArrayEquals(timestamps, blocks.timestamps());
+	}
+
+	@Test
+	public void cursorRangeTest() {
+		Random random = new Random(7);
+		long[] timestamps = new long[3000];
+		long clock = 0;
+		for (int i = 0; i < timestamps.length; i++) {
+			clock += random.nextInt(3);
+			timestamps[i] = clock;
+		}
+		HistoryBlocks blocks = new HistoryBlocks("type");
+		blocks.addAll(timestamps, timestamps.length);
+
+		for (int i = 0; i < 50; i++) {
+			long start = timestamps[random.nextInt(timestamps.length)] - random.nextInt(3);
+			long end = start + random.nextInt(3000);
+			List<Long> expected = new ArrayList<>();
+			for (long timestamp : timestamps) {
+				if (timestamp >= start && timestamp < end) {
+					expected.add(timestamp);
+				}
+			}
+			assertEquals(expected, timestamps(blocks.cursor(start, end)));
+		}
+		assertEquals(timestamps.length, timestamps(blocks.cursor(Long.MIN_VALUE, Long.MAX_VALUE)).size());
+		assertFalse(blocks.cursor(clock + 1, Long.MAX_VALUE).hasNext());
+		assertFalse(new HistoryBlocks("empty").cursor(Long.MIN_VALUE, Long.MAX_VALUE).hasNext());
+	}
+
+	@Test
+	public void overlappingAddAllTest() {
+		HistoryBlocks blocks = new HistoryBlocks("type");
+		blocks.addAll(range(0, 3000, 2), 1500);
+		// odd timestamps fall inside the existing blocks
+		blocks.addAll(range(1, 3000, 2), 1500);
+		blocks.addAll(new long[] { 10, 10 }, 2);
+		blocks.addAll(new long[] { 5000 }, 1);
+
+		long[] expected = new long[3003];
+		long[] all = range(0, 3000, 1);
+		System.arraycopy(all, 0, expected, 0, 11);
+		expected[11] = 10;
+		expected[12] = 10;
+		System.arraycopy(all, 11, expected, 13, all.length - 11);
+		expected[3002] = 5000;
+		assertArrayEquals(expected, blocks.timestamps());
+	}
+
+	@Test
+	public void removeTest() {
+		HistoryBlocks blocks = new HistoryBlocks("type");
+		blocks.addAll(range(0, 2048, 1), 2048);
+		blocks.addAll(new long[] { 2048 }, 1);
+
+		TimestampCursor cursor = blocks.cursor(0, Long.MAX_VALUE);
+		while (cursor.hasNext()) {
+			if (cursor.next() % 2 == 0) {
+				cursor.remove();
+			}
+		}
+		assertArrayEquals(range(1, 2048, 2), blocks.timestamps());
+		assertFalse(blocks.remove(2));
+		assertFalse(blocks.remove(5000));
+		assertTrue(blocks.remove(1));
+		assertEquals(1023, blocks.size());
+	}
+
+	@Test
+	public void removeBeforeTest() {
+		HistoryBlocks blocks = new HistoryBlocks("type");
+		blocks.addAll(range(0, 5000, 1), 5000);
+
+		// four whole blocks and part of the fifth
+		assertEquals(4500, blocks.removeRange(Long.MIN_VALUE, 4500));
+		assertArrayEquals(range(4500, 5000, 1), blocks.timestamps());
+		assertEquals(4500, timestamps(blocks.cursor(0, 4501)).get(0).longValue());
+		assertEquals(0, blocks.removeRange(Long.MIN_VALUE, 4500));
+		assertEquals(500, blocks.removeRange(Long.MIN_VALUE, Long.MAX_VALUE));
+		assertEquals(0, blocks.size());
+	}
+
+	@Test
+	public void removeRangeTest() {
+		Random random = new Random(5);
+		long[] timestamps = new long[6000];
+		long clock = 0;
+		for (int i = 0; i < timestamps.length; i++) {
+			clock += random.nextInt(3);
+			timestamps[i] = clock;
+		}
+		HistoryBlocks blocks = new HistoryBlocks("type");
+		blocks.addAll(timestamps, timestamps.length);
+		List<Long> expected = new ArrayList<>();
+		for (long timestamp : timestamps) {
+			expected.add(timestamp);
+		}
+
+		for (int i = 0; i < 20; i++) {
+			long start = random.nextInt((int) clock);
+			long end = start + random.nextInt(2000) + 1;
+			int before = expected.size();
+			expected.removeIf(timestamp -> timestamp >= start && timestamp < end);
+			assertEquals(before - expected.size(), blocks.removeRange(start, end));
+			assertEquals(expected, timestamps(blocks.cursor(Long.MIN_VALUE, Long.MAX_VALUE)));
+		}
+		assertEquals(expected.size(), blocks.size());
+	}
+
+	@Test
+	public void encodedSizeTest() {
+		HistoryBlocks blocks = new HistoryBlocks("type");
+		long[] timestamps = range(1_600_000_000_000L, 1_600_000_000_000L + 100_000 * 1000, 1000);
+		blocks.addAll(timestamps, timestamps.length);
+		// the first timestamp of a block is in its header and its first delta
+		// takes two bytes; every other timestamp, a zero delta-of-delta, one
+		assertEquals(timestamps.length, blocks.encodedSize());
+		assertEquals(timestamps.length, blocks.size());
+	}
+
+	private static long[] range(long from, long to, long step) {
+		long[] range = new long[(int) ((to - from + step - 1) / step)];
+		for (int i = 0; i < range.length; i++) {
+			range[i] = from + i * step;
+		}
+		return range;
+	}
+
+	private static List<Long> timestamps(TimestampCursor cursor) {
+		List<Long> timestamps = new ArrayList<>();
+		while (cursor.hasNext()) {
+			long peeked = cursor.peek();
+			assertEquals(peeked, cursor.next());
+			timestamps.add(peeked);
+		}
+		return timestamps;
+	}
+}
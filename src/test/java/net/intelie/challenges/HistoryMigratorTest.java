@@ -0,0 +1,267 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HistoryMigratorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void slidingCutoffTest() {
+		AtomicLong clock = new AtomicLong(1000);
+		ConcurrentEventStore store = new ConcurrentEventStore(0);
+		for (long i = 0; i < 1000; i++) {
+			store.insert(new Event("a", i));
+			store.insert(new Event("b", i * 2));
+		}
+		try (HistoryMigrator migrator = new HistoryMigrator(store, 500, 0, 64, clock::get)) {
+			assertEquals(Long.MIN_VALUE, migrator.getCutoff());
+
+			assertEquals(500 + 250, migrator.runOnce());
+			assertEquals(500, migrator.getCutoff());
+			assertEquals(500, store.getHistoryTimestampLimit());
+			assertEquals(500, store.getEvents().get("a").firstKey().longValue());
+			assertEquals(500, store.getHistoryBlocks().get("a").size());
+			assertEquals(250, store.getHistoryBlocks().get("b").size());
+			assertEquals(0, migrator.getLag());
+
+			// the cutoff slides with the clock
+			clock.set(1200);
+			assertEquals(200 + 100, migrator.runOnce());
+			assertEquals(700, store.getEvents().get("a").firstKey().longValue());
+			assertEquals(1050, migrator.getMigratedEntries());
+			assertEquals(2, migrator.getRuns());
+
+			// queries see both sides of the cutoff
+			assertEquals(range(690, 710), timestamps(store.query("a", 690, 710)));
+		}
+	}
+
+	@Test
+	public void lagTest() {
+		AtomicLong clock = new AtomicLong(100);
+		ConcurrentEventStore store = new ConcurrentEventStore(0);
+		try (HistoryMigrator migrator = new HistoryMigrator(store, 10, 0, 8, clock::get)) {
+			migrator.runOnce();
+			assertEquals(0, migrator.getLag());
+			// a late event, older than the cutoff, is a lag until the next run
+			store.insert(new Event("late", 30));
+			store.insert(new Event("late", 95));
+			assertEquals(60, migrator.getLag());
+			migrator.runOnce();
+			assertEquals(0, migrator.getLag());
+			assertEquals(list(30, 95), timestamps(store.query("late", 0, 100)));
+
+			// an event with attributes stays in the main map, and the ones
+			// after it are still moved
+			store.insert(new Event("late", 40, Collections.singletonMap("v", 1)));
+			store.insert(new Event("late", 50));
+			assertEquals(40, migrator.getLag());
+			assertEquals(1, migrator.runOnce());
+			assertEquals(0, migrator.getLag());
+			assertEquals(list(40, 95), new ArrayList<>(store.getEvents().get("late").keySet()));
+		}
+	}
+
+	@Test
+	public void cutoffNeverGoesBackTest() {
+		AtomicLong clock = new AtomicLong(Long.MIN_VALUE + 5);
+		ConcurrentEventStore store = new ConcurrentEventStore(50);
+		try (HistoryMigrator migrator = new HistoryMigrator(store, 10, 0, 8, clock::get)) {
+			migrator.runOnce();
+			assertEquals(50, migrator.getCutoff());
+			assertEquals(50, store.getHistoryTimestampLimit());
+		}
+	}
+
+	@Test
+	public void batchesWithLogTest() throws Exception {
+		Path directory = folder.newFolder().toPath();
+		Path logFile = folder.newFile().toPath();
+		AtomicLong clock = new AtomicLong(1000);
+		try (WriteAheadLog log = new WriteAheadLog(logFile, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, directory, log);
+			for (long i = 0; i < 1000; i++) {
+				store.insert(new Event("type", i));
+			}
+			try (HistoryMigrator migrator = new HistoryMigrator(store, 100, 0, 200, clock::get)) {
+				assertEquals(900, migrator.runOnce());
+				// one segment per batch, the first four merged after the moves
+				assertEquals(4, migrator.getCompactedSegments());
+			}
+			assertEquals(2, store.getSegments().get("type").size());
+		}
+		try (WriteAheadLog log = new WriteAheadLog(logFile, 1, 0)) {
+			ConcurrentEventStore reopened = new ConcurrentEventStore(900, false, directory, log);
+			assertEquals(100, reopened.getEvents().get("type").size());
+			assertEquals(range(0, 1000), timestamps(reopened.query("type", 0, 1000)));
+		}
+	}
+
+	@Test
+	public void backgroundRunTest() throws InterruptedException {
+		ConcurrentEventStore store = new ConcurrentEventStore(0);
+		long now = System.currentTimeMillis();
+		store.insert(new Event("type", now - 60000));
+		store.insert(new Event("type", now + 60000));
+		try (HistoryMigrator migrator = new HistoryMigrator(store, 1000, 1, 16)) {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (migrator.getMigratedEntries() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, migrator.getMigratedEntries());
+			assertTrue(migrator.getRuns() > 0);
+			assertEquals(0, migrator.getFailures());
+			assertNull(migrator.getFailure());
+		}
+		assertEquals(1, store.getEvents().get("type").size());
+	}
+
+	@Test
+	public void insertDuringMoveTest() throws Exception {
+		for (boolean keepDuplicates : new boolean[] { false, true }) {
+			for (boolean segments : new boolean[] { false, true }) {
+				ConcurrentEventStore store = segments
+						? new ConcurrentEventStore(0, keepDuplicates, folder.newFolder().toPath())
+						: new ConcurrentEventStore(0, keepDuplicates);
+				for (long i = 0; i < 20000; i++) {
+					store.insert(new Event("type", i));
+				}
+				store.advanceHistoryTimestampLimit(20000);
+				AtomicBoolean done = new AtomicBoolean();
+				AtomicReference<Throwable> failure = new AtomicReference<>();
+				Thread writer = new Thread(() -> {
+					try {
+						Random random = new Random(3);
+						while (!done.get()) {
+							store.insert(new Event("type", random.nextInt(20000)));
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				});
+				writer.start();
+				try {
+					for (int round = 0; round < 100; round++) {
+						store.moveToHistory("type", 20000, 500);
+						Thread.yield();
+					}
+				} finally {
+					done.set(true);
+					writer.join();
+				}
+				assertNull(failure.get());
+				// the values a writer changed during a move are in a single tier
+				EventIterator it = store.query("type", 0, 20000);
+				long queried = 0;
+				while (it.moveNext()) {
+					queried++;
+				}
+				assertEquals(store.count("type", 0, 20000), queried);
+			}
+		}
+	}
+
+	@Test
+	public void removeDuringMoveTest() throws Exception {
+		for (boolean segments : new boolean[] { false, true }) {
+			ConcurrentEventStore store = segments ? new ConcurrentEventStore(0, false, folder.newFolder().toPath())
+					: new ConcurrentEventStore(0);
+			for (long i = 0; i < 50000; i++) {
+				store.insert(new Event("type", i));
+			}
+			store.advanceHistoryTimestampLimit(50000);
+			AtomicBoolean done = new AtomicBoolean();
+			AtomicLong front = new AtomicLong();
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			// the removals hit the batch being moved
+			Thread writer = new Thread(() -> {
+				try {
+					Random random = new Random(3);
+					while (!done.get()) {
+						long timestamp = front.get() + random.nextInt(500);
+						store.removeRange("type", timestamp, timestamp + 1);
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			});
+			writer.start();
+			try {
+				ConcurrentSkipListMap<Long, Event> events = store.getEvents().get("type");
+				do {
+					Long first = events.ceilingKey(Long.MIN_VALUE);
+					front.set(first == null ? 0 : first);
+				} while (store.moveToHistory("type", 50000, 500) > 0);
+			} finally {
+				done.set(true);
+				writer.join();
+			}
+			assertNull(failure.get());
+			// the seconds a removal counts again are never counted mid-move
+			EventIterator it = store.query("type", 0, 50000);
+			long queried = 0;
+			while (it.moveNext()) {
+				queried++;
+			}
+			assertEquals(queried, store.count("type", 0, 50000));
+		}
+	}
+
+	@Test
+	public void invalidPolicyTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		try {
+			new HistoryMigrator(store, 10, 0, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new HistoryMigrator(store, -1, 0, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static List<Long> range(long from, long to) {
+		List<Long> range = new ArrayList<>();
+		for (long i = from; i < to; i++) {
+			range.add(i);
+		}
+		return range;
+	}
+
+	private static List<Long> list(long... timestamps) {
+		List<Long> list = new ArrayList<>();
+		for (long timestamp : timestamps) {
+			list.add(timestamp);
+		}
+		return list;
+	}
+}
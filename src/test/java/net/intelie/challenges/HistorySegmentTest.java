@@ -0,0 +1,328 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HistorySegmentTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void cursorRangeTest() throws IOException {
+		// several blocks, with gaps of every size and runs of equal timestamps
+		Random random = new Random(7);
+		long[] timestamps = new long[1000];
+		long clock = -500;
+		for (int i = 0; i < timestamps.length; i++) {
+			clock += random.nextInt(4) == 0 ? 0 : (long) (random.nextDouble() * (1L << random.nextInt(40)));
+			timestamps[i] = clock;
+		}
+		HistorySegment segment = HistorySegment.write(segmentPath(), "type", timestamps, timestamps.length);
+		assertEquals("type", segment.type());
+		assertEquals(timestamps.length, segment.size());
+
+		for (int i = 0; i < 50; i++) {
+			long start = timestamps[random.nextInt(timestamps.length)];
+			long end = start + (long) (random.nextDouble() * (1L << random.nextInt(40))) + 1;
+			List<Long> expected = new ArrayList<>();
+			for (long timestamp : timestamps) {
+				if (timestamp >= start && timestamp < end) {
+					expected.add(timestamp);
+				}
+			}
+			assertEquals(expected, timestamps(segment.cursor(start, end)));
+		}
+		assertEquals(timestamps.length, timestamps(segment.cursor(Long.MIN_VALUE, Long.MAX_VALUE)).size());
+	}
+
+	@Test
+	public void removeTest() throws IOException {
+		Path path = segmentPath();
+		HistorySegment segment = HistorySegment.write(path, "type", range(0, 300), 300);
+
+		TimestampCursor cursor = segment.cursor(0, 300);
+		while (cursor.hasNext()) {
+			if (cursor.next() % 2 == 0) {
+				cursor.remove();
+			}
+		}
+		assertEquals(150, segment.size());
+		assertEquals(list(127, 129), timestamps(segment.cursor(126, 130)));
+
+		// the removals survive a new mapping of the file
+		HistorySegment reopened = HistorySegment.open(path);
+		assertEquals(150, reopened.size());
+		assertEquals(list(127, 129), timestamps(reopened.cursor(126, 130)));
+	}
+
+	@Test
+	public void tornTombstoneTest() throws IOException {
+		Path path = segmentPath();
+		HistorySegment segment = HistorySegment.write(path, "type", range(0, 300), 300);
+		assertEquals(10, segment.removeRange(0, 10));
+		// a crash cut the next record short
+		Path tombstones = path.resolveSibling(path.getFileName() + ".del");
+		Files.write(tombstones, new byte[] { 0, 0 }, StandardOpenOption.APPEND);
+
+		HistorySegment reopened = HistorySegment.open(path);
+		assertEquals(290, reopened.size());
+		TimestampCursor cursor = reopened.cursor(20, 21);
+		cursor.next();
+		cursor.remove();
+		assertEquals(list(19, 21), timestamps(reopened.cursor(19, 22)));
+
+		// the torn record was cut before the new one was appended
+		assertEquals(11 * 4, Files.size(tombstones));
+		assertEquals(289, HistorySegment.open(path).size());
+		reopened.delete();
+		assertFalse(Files.exists(tombstones));
+	}
+
+	@Test
+	public void removeRangeTest() throws IOException {
+		Path path = segmentPath();
+		HistorySegment segment = HistorySegment.write(path, "type", range(0, 300), 300);
+		assertTrue(segment.within(0, 300));
+		assertFalse(segment.within(1, 300));
+
+		assertEquals(100, segment.removeRange(100, 200));
+		assertEquals(0, segment.removeRange(100, 200));
+		assertEquals(200, segment.size());
+		assertEquals(list(99, 200), timestamps(segment.cursor(99, 201)));
+		assertFalse(segment.within(0, 200));
+
+		assertEquals(100, segment.removeRange(0, 100));
+		// only the events left count
+		assertTrue(segment.within(150, 300));
+
+		HistorySegment reopened = HistorySegment.open(path);
+		assertEquals(100, reopened.size());
+		assertEquals(list(200, 201), timestamps(reopened.cursor(0, 202)));
+	}
+
+	@Test
+	public void storeMovesHistoryToSegmentsTest() throws IOException {
+		File directory = folder.newFolder();
+		ConcurrentEventStore store = new ConcurrentEventStore(1000, false, directory.toPath());
+		for (long i = 0; i < 1500; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.encodeAndMoveToHistory("type");
+
+		assertEquals(500, store.getEvents().get("type").size());
+		assertEquals(1, store.getSegments().get("type").size());
+		assertTrue(store.getHistory().isEmpty());
+
+		// a late event in the main map is merged in order with the history
+		store.insert(new Event("type", 10l));
+		List<Long> expected = new ArrayList<>();
+		for (long i = 5; i < 1005; i++) {
+			expected.add(i);
+			if (i == 10) {
+				expected.add(i);
+			}
+		}
+		assertEquals(expected, timestamps(store.query("type", 5, 1005)));
+		assertEquals(list(1200, 1201), timestamps(store.query("type", 1200, 1202)));
+	}
+
+	@Test
+	public void storeReloadsSegmentsTest() throws IOException {
+		File directory = folder.newFolder();
+		ConcurrentEventStore store = new ConcurrentEventStore(1000, false, directory.toPath());
+		for (long i = 0; i < 1000; i++) {
+			store.insert(new Event("type", i));
+			store.insert(new Event("other", i));
+		}
+		store.encodeAndMoveToHistory("type");
+		store.encodeAndMoveToHistory("other");
+
+		EventIterator it = store.query("type", 100, 200);
+		while (it.moveNext()) {
+			it.remove();
+		}
+
+		ConcurrentEventStore restarted = new ConcurrentEventStore(1000, false, directory.toPath());
+		assertEquals(list(99, 200), timestamps(restarted.query("type", 99, 201)));
+		assertEquals(900, timestamps(restarted.query("type", 0, 1000)).size());
+		assertEquals(1000, timestamps(restarted.query("other", 0, 1000)).size());
+
+		// new segments do not overwrite the reloaded ones
+		restarted.insert(new Event("type", 150l));
+		restarted.encodeAndMoveToHistory("type");
+		assertEquals(2, restarted.getSegments().get("type").size());
+		assertEquals(list(150), timestamps(restarted.query("type", 100, 200)));
+	}
+
+	@Test
+	public void storeReopenedWithLowerLimitTest() throws IOException {
+		File directory = folder.newFolder();
+		ConcurrentEventStore store = new ConcurrentEventStore(1000, false, directory.toPath());
+		for (long i = 100; i < 1000; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.encodeAndMoveToHistory("type");
+
+		// the limit is raised above the reloaded history, so a range starting
+		// above the limit given to the store still finds it
+		ConcurrentEventStore restarted = new ConcurrentEventStore(10, false, directory.toPath());
+		assertEquals(1000, restarted.getHistoryTimestampLimit());
+		assertEquals(500, restarted.count("type", 500, 2000));
+		assertEquals(900, restarted.count("type", 0, 2000));
+		assertEquals(range(500, 1000).length, timestamps(restarted.query("type", 500, 2000)).size());
+	}
+
+	@Test
+	public void storeRemoveAllDeletesSegmentsTest() throws IOException {
+		File directory = folder.newFolder();
+		ConcurrentEventStore store = new ConcurrentEventStore(1000, false, directory.toPath());
+		store.insert(new Event("type", 1l));
+		store.encodeAndMoveToHistory("type");
+		assertEquals(1, directory.list().length);
+
+		store.removeAll("type");
+		assertEquals(0, directory.list().length);
+		assertFalse(store.getSegments().containsKey("type"));
+		assertTrue(new ConcurrentEventStore(1000, false, directory.toPath()).getSegments().isEmpty());
+	}
+
+	@Test
+	public void mergeTest() throws IOException {
+		Path directory = folder.newFolder().toPath();
+		HistorySegment first = HistorySegment.write(directory.resolve("0" + HistorySegment.SUFFIX), "type",
+				range(0, 100), 100);
+		HistorySegment second = HistorySegment.write(directory.resolve("1" + HistorySegment.SUFFIX), "type",
+				range(50, 150), 100);
+		assertEquals(10, first.removeRange(0, 10));
+		assertTrue(first.overlaps(99, 200));
+		assertFalse(first.overlaps(100, 200));
+		assertFalse(second.overlaps(0, 50));
+
+		TimestampCursor stale = second.cursor(140, 150);
+		Path path = directory.resolve("2" + HistorySegment.SUFFIX);
+		HistorySegment merged = HistorySegment.merge(path, Arrays.asList(first, second));
+		assertEquals(190, merged.size());
+		assertArrayEquals(new long[] { 0, 1 }, merged.sources());
+		assertTrue(merged.overlaps(149, 150));
+
+		// a removal made after the copy reaches the merged segment with the
+		// replacement, and the later ones are forwarded to it
+		assertEquals(10, first.removeRange(10, 20));
+		first.replaceBy(merged);
+		second.replaceBy(merged);
+		assertEquals(180, merged.size());
+		stale.next();
+		assertTrue(stale.remove());
+		assertEquals(1, second.removeRange(145, 146));
+		assertEquals(178, merged.size());
+		assertEquals(list(141, 142, 143, 144, 146), timestamps(merged.cursor(141, 147)));
+
+		HistorySegment reopened = HistorySegment.open(path);
+		assertArrayEquals(new long[] { 0, 1 }, reopened.sources());
+		assertEquals(178, reopened.size());
+	}
+
+	@Test
+	public void storeCompactsSegmentsTest() throws IOException {
+		File directory = folder.newFolder();
+		ConcurrentEventStore store = new ConcurrentEventStore(1000, false, directory.toPath());
+		for (long i = 0; i < 1000; i++) {
+			store.insert(new Event("type", i));
+		}
+		while (store.moveToHistory("type", 1000, 100) > 0) {
+		}
+		assertEquals(10, store.getSegments().get("type").size());
+
+		// two groups of four small segments are merged, then the segments left
+		// are too few
+		assertEquals(8, store.compactSegments("type"));
+		assertEquals(4, store.getSegments().get("type").size());
+		assertEquals(4, directory.list().length);
+		assertEquals(1000, store.count("type", 0, 1000));
+		assertEquals(range(0, 1000).length, timestamps(store.query("type", 0, 1000)).size());
+		assertEquals(list(399, 400), timestamps(store.query("type", 399, 401)));
+
+		assertEquals(100, store.removeRange("type", 100, 200));
+		ConcurrentEventStore restarted = new ConcurrentEventStore(1000, false, directory.toPath());
+		assertEquals(900, restarted.count("type", 0, 1000));
+		assertEquals(list(99, 200), timestamps(restarted.query("type", 99, 201)));
+	}
+
+	@Test
+	public void supersededSegmentsAreDeletedTest() throws IOException {
+		File directory = folder.newFolder();
+		ConcurrentEventStore store = new ConcurrentEventStore(1000, false, directory.toPath());
+		for (long i = 0; i < 400; i++) {
+			store.insert(new Event("type", i));
+		}
+		while (store.moveToHistory("type", 1000, 100) > 0) {
+		}
+		Path saved = folder.newFolder().toPath();
+		for (File file : directory.listFiles()) {
+			Files.copy(file.toPath(), saved.resolve(file.getName()));
+		}
+		assertEquals(4, store.compactSegments("type"));
+
+		// the process died before the merged segments were deleted
+		for (File file : saved.toFile().listFiles()) {
+			Files.copy(file.toPath(), directory.toPath().resolve(file.getName()));
+		}
+		ConcurrentEventStore restarted = new ConcurrentEventStore(1000, false, directory.toPath());
+		assertEquals(1, restarted.getSegments().get("type").size());
+		assertEquals(1, directory.list().length);
+		assertEquals(400, restarted.count("type", 0, 1000));
+	}
+
+	private Path segmentPath() throws IOException {
+		return folder.newFolder().toPath().resolve("0" + HistorySegment.SUFFIX);
+	}
+
+	private static List<Long> timestamps(TimestampCursor cursor) {
+		List<Long> timestamps = new ArrayList<>();
+		while (cursor.hasNext()) {
+			timestamps.add(cursor.next());
+		}
+		return timestamps;
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static long[] range(long start, long end) {
+		long[] range = new long[(int) (end - start)];
+		for (int i = 0; i < range.length; i++) {
+			range[i] = start + i;
+		}
+		return range;
+	}
+
+	private static List<Long> list(long... timestamps) {
+		List<Long> list = new ArrayList<>();
+		for (long timestamp : timestamps) {
+			list.add(timestamp);
+		}
+		return list;
+	}
+}
@@ -100,10 +100,7 @@ public class IteratorTest {
 		store.insert(new Event(type, 90l));
 		
 		store.encodeAndMoveToHistory(type);
-		Collection<Event> events = store.getHistory().get(type).values();
-		for (Event event : events) {
-			System.out.println(event.timestamp());
-		}
+		assertEquals(3, store.getHistoryBlocks().get(type).size());
 
 		EventIterator it =  store.query(type, 20, 81);
 		
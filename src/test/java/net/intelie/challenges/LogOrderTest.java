@@ -0,0 +1,53 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LogOrderTest {
+
+	@Test
+	public void timestampsTakeStripesOfTheirTypeTest() {
+		for (String type : new String[] { "a", "b", "type", "other" }) {
+			long mask = LogOrder.mask(type);
+			assertEquals(8, Long.bitCount(mask));
+			for (long timestamp = -1000; timestamp < 1000; timestamp++) {
+				assertNotEquals(0, mask & (1L << LogOrder.stripe(type, timestamp)));
+			}
+		}
+	}
+
+	@Test
+	public void rangeOfATypeDoesNotBlockOtherTypesTest() throws Exception {
+		String removed = "removed";
+		String inserted = null;
+		for (int i = 0; inserted == null; i++) {
+			if ((LogOrder.mask("inserted-" + i) & LogOrder.mask(removed)) == 0) {
+				inserted = "inserted-" + i;
+			}
+		}
+		String type = inserted;
+		LogOrder order = new LogOrder();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		// the stripes of a range removal of a type are held meanwhile
+		long locked = order.lock(removed);
+		try {
+			Future<?> inserts = executor.submit(() -> {
+				for (long timestamp = 0; timestamp < 10000; timestamp++) {
+					order.unlock(order.lock(type, timestamp));
+				}
+				order.unlock(order.lock(new Event[] { new Event(type, 1l), new Event(type, 2l) }));
+			});
+			inserts.get(10, TimeUnit.SECONDS);
+		} finally {
+			order.unlock(locked);
+			executor.shutdown();
+		}
+	}
+}
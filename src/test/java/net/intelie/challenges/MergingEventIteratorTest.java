@@ -0,0 +1,115 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MergingEventIteratorTest {
+
+	@Test
+	public void mergeWithHistoryTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(500);
+		Random random = new Random(1);
+		List<String> expected = new ArrayList<>();
+		for (long i = 0; i < 1000; i++) {
+			String type = "type-" + random.nextInt(5);
+			store.insert(new Event(type, i));
+			if (i >= 100 && i < 900 && !type.equals("type-4")) {
+				expected.add(type + "@" + i);
+			}
+		}
+		for (int t = 0; t < 5; t++) {
+			store.encodeAndMoveToHistory("type-" + t);
+		}
+
+		List<String> types = Arrays.asList("type-0", "type-1", "type-2", "type-3", "type-1", "missing");
+		assertEquals(expected, events(store.query(types, 100, 900)));
+	}
+
+	@Test
+	public void equalTimestampsTest() {
+		for (EventStore store : Arrays.asList(new ColumnarEventStore(), new AppendOnlyEventStore())) {
+			for (long i = 0; i < 100; i++) {
+				store.insert(new Event("b", i / 10));
+				store.insert(new Event("a", i / 10));
+			}
+			List<String> merged = events(store.query(Arrays.asList("a", "b"), 0, 10));
+			assertEquals(200, merged.size());
+			// equal timestamps follow the order of the types
+			assertEquals(Collections.nCopies(10, "a@0"), merged.subList(0, 10));
+			assertEquals(Collections.nCopies(10, "b@0"), merged.subList(10, 20));
+		}
+	}
+
+	@Test
+	public void removeTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		for (long i = 0; i < 100; i++) {
+			store.insert(new Event(i % 2 == 0 ? "even" : "odd", i));
+		}
+		EventIterator it = store.query(Arrays.asList("even", "odd"), 0, 100);
+		while (it.moveNext()) {
+			if (it.current().timestamp() % 4 < 2) {
+				it.remove();
+			}
+		}
+		assertEquals(25, store.getEvents().get("even").size());
+		assertEquals(25, store.getEvents().get("odd").size());
+		assertEquals(50, events(store.query(Arrays.asList("even", "odd"), 0, 100)).size());
+	}
+
+	@Test
+	public void emptyTest() throws Exception {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		EventIterator it = store.query(Collections.<String>emptyList(), 0, 10);
+		assertFalse(it.moveNext());
+		try {
+			it.current();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		it.close();
+		assertFalse(it.moveNext());
+		assertFalse(store.query(Arrays.asList("missing"), 0, 10).moveNext());
+	}
+
+	@Test
+	public void failureClosesQueriesTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore() {
+			@Override
+			public EventIterator query(String type, long startTime, long endTime) {
+				return querySnapshot(type, startTime, endTime);
+			}
+		};
+		store.insert(new Event("a", 1l));
+		try {
+			store.query(Arrays.asList("a", null), 0, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		// the snapshot of the query of the first type was released
+		assertNull(store.state(store.typeId("a")).snapshotLog());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidArgumentsTest() {
+		new ConcurrentEventStore().query(Arrays.asList("type"), 10, 0);
+	}
+
+	private static List<String> events(EventIterator it) {
+		List<String> events = new ArrayList<>();
+		while (it.moveNext()) {
+			events.add(it.current().type() + "@" + it.current().timestamp());
+		}
+		return events;
+	}
+}
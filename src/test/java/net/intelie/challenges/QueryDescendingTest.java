@@ -0,0 +1,194 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QueryDescendingTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void storesTest() throws IOException {
+		ConcurrentEventStore blocks = new ConcurrentEventStore(50000, true);
+		ConcurrentEventStore segments = new ConcurrentEventStore(50000, false, folder.newFolder().toPath());
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(0, true), blocks, segments,
+				new ColumnarEventStore(), new AppendOnlyEventStore() }) {
+			Random random = new Random(1);
+			for (int i = 0; i < 20000; i++) {
+				store.insert(new Event("type", random.nextInt(100000)));
+			}
+			for (ConcurrentEventStore history : new ConcurrentEventStore[] { blocks, segments }) {
+				if (store == history) {
+					history.encodeAndMoveToHistory("type");
+					// late events of the history range stay in the main map
+					history.insert(new Event("type", 100));
+					history.insert(new Event("type", 40000));
+					history.insert(new Event("type", 49999));
+				}
+			}
+			for (long[] range : new long[][] { { 0, 100000 }, { 25000, 75000 }, { 49990, 50010 }, { 50000, 50001 },
+					{ Long.MIN_VALUE, Long.MAX_VALUE } }) {
+				List<Long> expected = timestamps(store.query("type", range[0], range[1]));
+				Collections.reverse(expected);
+				assertEquals(expected, timestamps(store.queryDescending("type", range[0], range[1])));
+				for (int limit : new int[] { 0, 1, 100, 5000 }) {
+					assertEquals(expected.subList(0, Math.min(limit, expected.size())),
+							timestamps(store.queryDescending("type", range[0], range[1], limit)));
+					Collections.reverse(expected);
+					assertEquals(expected.subList(0, Math.min(limit, expected.size())),
+							timestamps(store.query("type", range[0], range[1], limit)));
+					Collections.reverse(expected);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void removeTest() throws IOException {
+		ConcurrentEventStore segments = new ConcurrentEventStore(100, false, folder.newFolder().toPath());
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(100), segments,
+				new ConcurrentEventStore(0, true), new ColumnarEventStore(), new AppendOnlyEventStore() }) {
+			for (long i = 0; i < 200; i++) {
+				store.insert(new Event("type", i));
+			}
+			if (store instanceof ConcurrentEventStore) {
+				((ConcurrentEventStore) store).encodeAndMoveToHistory("type");
+			}
+			// the latest 150 events, across the main map and the history
+			EventIterator it = store.queryDescending("type", 0, 200, 150);
+			while (it.moveNext()) {
+				if (it.current().timestamp() % 2 == 0) {
+					it.remove();
+				}
+			}
+			List<Long> left = timestamps(store.query("type", 0, 200));
+			assertEquals(125, left.size());
+			assertEquals(Long.valueOf(49), left.get(49));
+			assertEquals(Long.valueOf(51), left.get(50));
+			assertEquals(Long.valueOf(199), left.get(124));
+			assertEquals(125, store.count("type", 0, 200));
+		}
+	}
+
+	@Test
+	public void duplicatesTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(0, true);
+		List<Event> events = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			events.add(new Event("type", i / 3));
+		}
+		store.insertAll(events);
+		List<Event> descending = new ArrayList<>();
+		EventIterator it = store.queryDescending("type", 0, 10);
+		while (it.moveNext()) {
+			descending.add(it.current());
+		}
+		Collections.reverse(descending);
+		assertArrayEquals(events.toArray(), descending.toArray());
+	}
+
+	@Test
+	public void invalidArgumentsTest() {
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(), new ColumnarEventStore(),
+				new AppendOnlyEventStore() }) {
+			store.insert(new Event("type", 1));
+			try {
+				store.queryDescending("type", 0, 10, -1);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				store.query("type", 0, 10, -1);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				store.queryDescending("type", 10, 10);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			assertFalse(store.queryDescending("type", 0, 10, 0).moveNext());
+		}
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	@Test
+	public void defaultClosesItsQueriesTest() throws Exception {
+		ConcurrentEventStore delegate = new ConcurrentEventStore();
+		for (long i = 0; i < 10; i++) {
+			delegate.insert(new Event("type", i));
+		}
+		AtomicInteger open = new AtomicInteger();
+		EventStore store = new EventStore() {
+			@Override
+			public void insert(Event event) {
+				delegate.insert(event);
+			}
+
+			@Override
+			public void removeAll(String type) {
+				delegate.removeAll(type);
+			}
+
+			@Override
+			public EventIterator query(String type, long startTime, long endTime) {
+				EventIterator it = delegate.query(type, startTime, endTime);
+				open.incrementAndGet();
+				return new EventIterator() {
+					@Override
+					public boolean moveNext() {
+						return it.moveNext();
+					}
+
+					@Override
+					public Event current() {
+						return it.current();
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+					}
+
+					@Override
+					public void close() throws Exception {
+						open.decrementAndGet();
+						it.close();
+					}
+				};
+			}
+		};
+		try (EventIterator it = store.queryDescending("type", 0, 10, 3)) {
+			// the ascending query is read and closed up front
+			assertEquals(0, open.get());
+			while (it.moveNext()) {
+				it.remove();
+				assertEquals(0, open.get());
+			}
+		}
+		assertEquals(Arrays.asList(6L, 5L, 4L, 3L, 2L, 1L, 0L), timestamps(store.queryDescending("type", 0, 10)));
+		assertEquals(0, open.get());
+	}
+}
@@ -0,0 +1,154 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RetentionSweeperTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void removeBeforeInHeapTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(5000, true);
+		for (long i = 0; i < 10000; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.insert(new Event("type", 7000l));
+		store.encodeAndMoveToHistory("type");
+		// a late event, left in the main map below the limit
+		store.insert(new Event("type", 10l));
+
+		assertEquals(3001, store.removeBefore("type", 3000));
+		assertEquals(2000, store.getHistoryBlocks().get("type").size());
+		assertEquals(range(3000, 3010), timestamps(store.query("type", 0, 3010)));
+
+		assertEquals(4002, store.removeBefore("type", 7001));
+		assertEquals(0, store.getHistoryBlocks().get("type").size());
+		assertEquals(range(7001, 10000), timestamps(store.query("type", 0, 10000)));
+		assertEquals(0, store.removeBefore("type", 7001));
+		assertEquals(0, store.removeBefore("none", 7001));
+	}
+
+	@Test
+	public void removeBeforeInSegmentsTest() throws IOException {
+		Path directory = folder.newFolder().toPath();
+		ConcurrentEventStore store = new ConcurrentEventStore(1000, false, directory);
+		for (long i = 0; i < 1000; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.encodeAndMoveToHistory("type");
+		store.insert(new Event("type", 1l));
+		store.encodeAndMoveToHistory("type");
+		assertEquals(2, store.getSegments().get("type").size());
+
+		// the segment of the late event is dropped whole
+		assertEquals(501, store.removeBefore("type", 500));
+		assertEquals(1, store.getSegments().get("type").size());
+		assertEquals(2, countFiles(directory));
+		assertEquals(range(500, 1000), timestamps(store.query("type", 0, 1000)));
+
+		// the truncation survives a restart, through the tombstones
+		ConcurrentEventStore reopened = new ConcurrentEventStore(1000, false, directory);
+		assertEquals(range(500, 1000), timestamps(reopened.query("type", 0, 1000)));
+	}
+
+	@Test
+	public void removeBeforeWithLogTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			for (long i = 0; i < 100; i++) {
+				store.insert(new Event("type", i));
+			}
+			assertEquals(50, store.removeBefore("type", 50));
+			store.insert(new Event("type", 10l));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			List<Long> expected = range(50, 100);
+			expected.add(0, 10l);
+			assertEquals(expected, timestamps(store.query("type", 0, 100)));
+		}
+	}
+
+	@Test
+	public void sweepTest() {
+		AtomicLong clock = new AtomicLong(1000);
+		ConcurrentEventStore store = new ConcurrentEventStore(0);
+		for (long i = 0; i < 1000; i++) {
+			store.insert(new Event("short", i));
+			store.insert(new Event("long", i));
+			store.insert(new Event("kept", i));
+		}
+		try (RetentionSweeper sweeper = new RetentionSweeper(store, 0, clock::get)) {
+			sweeper.setRetention("short", 100);
+			sweeper.setRetention("long", 500);
+			sweeper.setRetention("kept", RetentionSweeper.FOREVER);
+			assertEquals(900 + 500, sweeper.runOnce());
+			assertEquals(900, store.getEvents().get("short").firstKey().longValue());
+			assertEquals(500, store.getEvents().get("long").firstKey().longValue());
+			assertEquals(1000, store.getEvents().get("kept").size());
+
+			// types without a retention follow the default one
+			sweeper.clearRetention("kept");
+			sweeper.setDefaultRetention(200);
+			clock.set(1100);
+			assertEquals(100 + 100 + 900, sweeper.runOnce());
+			assertEquals(900, store.getEvents().get("kept").firstKey().longValue());
+			assertTrue(store.getEvents().get("short").isEmpty());
+			assertEquals(2500, sweeper.getRemovedEvents());
+			assertEquals(2, sweeper.getRuns());
+		}
+	}
+
+	@Test
+	public void invalidRetentionTest() {
+		try (RetentionSweeper sweeper = new RetentionSweeper(new ConcurrentEventStore(), 0)) {
+			try {
+				sweeper.setRetention("type", -1);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				sweeper.setDefaultRetention(-1);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			assertNull(sweeper.getFailure());
+		}
+	}
+
+	private static long countFiles(Path directory) throws IOException {
+		return Files.list(directory).count();
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static List<Long> range(long from, long to) {
+		List<Long> range = new ArrayList<>();
+		for (long i = from; i < to; i++) {
+			range.add(i);
+		}
+		return range;
+	}
+}
@@ -0,0 +1,247 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotQueryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writesAfterOpenAreNotSeenTest() throws Exception {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		List<Event> inserted = new ArrayList<>();
+		for (long i = 0; i < 10; i++) {
+			Event event = new Event("type", i);
+			inserted.add(event);
+			store.insert(event);
+		}
+		EventIterator snapshot = store.querySnapshot("type", 0, 100);
+
+		store.insert(new Event("type", 50));
+		store.insert(new Event("type", 3));
+		store.removeRange("type", 5, 7);
+		EventIterator it = store.query("type", 8, 9);
+		assertTrue(it.moveNext());
+		it.remove();
+		store.removeAll("type");
+		store.insert(new Event("type", 4));
+
+		// the replaced, removed and detached events are read as they were
+		List<Event> seen = events(snapshot);
+		assertEquals(inserted.size(), seen.size());
+		for (int i = 0; i < seen.size(); i++) {
+			assertSame(inserted.get(i), seen.get(i));
+		}
+		snapshot.close();
+		assertEquals(1, store.count("type", 0, 100));
+	}
+
+	@Test
+	public void snapshotSeesWritesBeforeOpenTest() throws Exception {
+		ConcurrentEventStore store = new ConcurrentEventStore(Long.MIN_VALUE, true);
+		store.insert(new Event("type", 1));
+		EventIterator first = store.querySnapshot("type", 0, 10);
+		store.insert(new Event("type", 1));
+		store.insert(new Event("type", 2));
+		EventIterator second = store.querySnapshot("type", 0, 10);
+		store.insert(new Event("type", 1));
+		store.removeRange("type", 2, 3);
+
+		// the duplicates put in a bucket meanwhile are only seen by the later
+		assertEquals(1, events(first).size());
+		assertEquals(3, events(second).size());
+		first.close();
+		second.close();
+		assertEquals(3, store.count("type", 0, 10));
+	}
+
+	@Test
+	public void batchAfterOpenIsNotSeenTest() throws Exception {
+		ConcurrentEventStore store = new ConcurrentEventStore(Long.MIN_VALUE, true);
+		store.insert(new Event("type", 1));
+		EventIterator snapshot = store.querySnapshot("type", 0, 10);
+		// the batch goes in through the log of the open snapshot
+		store.insertAll(new Event[] { new Event("type", 3), new Event("type", 1), new Event("type", 2) });
+
+		assertEquals(1, events(snapshot).size());
+		snapshot.close();
+		assertEquals(4, events(store.query("type", 0, 10)).size());
+		assertEquals(4, store.count("type", 0, 10));
+	}
+
+	@Test
+	public void migrationIsSeenFromOneTierTest() throws Exception {
+		for (boolean segments : new boolean[] { false, true }) {
+			ConcurrentEventStore store = segments
+					? new ConcurrentEventStore(100, false, folder.newFolder().toPath())
+					: new ConcurrentEventStore(100);
+			for (long i = 0; i < 200; i++) {
+				store.insert(new Event("type", i));
+			}
+			EventIterator before = store.querySnapshot("type", 0, 1000);
+			store.encodeAndMoveToHistory("type");
+			EventIterator after = store.querySnapshot("type", 0, 1000);
+			store.removeRange("type", 150, 160);
+
+			assertEquals(timestamps(0, 200), timestamps(before));
+			assertEquals(timestamps(0, 200), timestamps(after));
+			before.close();
+			after.close();
+		}
+	}
+
+	@Test
+	public void closeReleasesChangesTest() throws Exception {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.insert(new Event("type", 0));
+		TypeState state = store.state(store.typeId("type"));
+		assertNull(state.snapshotLog());
+
+		EventIterator first = store.querySnapshot("type", 0, 100);
+		for (long i = 1; i < 10; i++) {
+			store.insert(new Event("type", i));
+		}
+		EventIterator second = store.querySnapshot("type", 0, 100);
+		store.insert(new Event("type", 50));
+		SnapshotLog log = state.snapshotLog();
+		assertNotNull(log);
+		assertEquals(10, log.size());
+
+		// the changes the second snapshot already sees are dropped with the first
+		first.close();
+		first.close();
+		assertFalse(first.moveNext());
+		assertEquals(1, log.size());
+		assertEquals(10, events(second).size());
+
+		second.close();
+		assertNull(state.snapshotLog());
+		try {
+			second.current();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		store.insert(new Event("type", 60));
+		assertEquals(12, store.count("type", 0, 100));
+	}
+
+	@Test
+	public void removeThroughSnapshotTest() throws Exception {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		for (long i = 0; i < 10; i++) {
+			store.insert(new Event("type", i));
+		}
+		EventIterator snapshot = store.querySnapshot("type", 0, 10);
+		store.insert(new Event("type", 5));
+		while (snapshot.moveNext()) {
+			// the replaced event is no longer in the store, the others are removed
+			snapshot.remove();
+		}
+		snapshot.close();
+		assertEquals(timestamps(5, 6), timestamps(store.query("type", 0, 10)));
+		assertEquals(1, store.count("type", 0, 10));
+	}
+
+	@Test
+	public void invalidArgumentsTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.insert(new Event("type", 0));
+		for (Runnable invalid : new Runnable[] { () -> store.querySnapshot(null, 0, 10),
+				() -> store.querySnapshot("type", 10, 10), () -> store.querySnapshot("other", 0, 10) }) {
+			try {
+				invalid.run();
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		// a failed open leaves no snapshot behind
+		assertNull(store.state(store.typeId("type")).snapshotLog());
+	}
+
+	@Test
+	public void consistentScanWithConcurrentWriterTest() throws Exception {
+		// the writer slides a window of 1000 events, moving its oldest ones to
+		// the history, so the store always holds one contiguous window
+		ConcurrentEventStore store = new ConcurrentEventStore(0);
+		for (long i = 0; i < 1000; i++) {
+			store.insert(new Event("type", i));
+		}
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			try {
+				for (long next = 1000; !done.get(); next++) {
+					store.insert(new Event("type", next));
+					store.removeRange("type", next - 1000, next - 999);
+					if (next % 50 == 0) {
+						store.advanceHistoryTimestampLimit(next - 500);
+						store.moveToHistory("type", next - 500, 100);
+					}
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		writer.start();
+		try {
+			for (int round = 0; round < 50; round++) {
+				EventIterator snapshot = store.querySnapshot("type", 0, Long.MAX_VALUE);
+				List<Long> seen = new ArrayList<>();
+				while (snapshot.moveNext()) {
+					seen.add(snapshot.current().timestamp());
+					if (seen.size() % 100 == 0) {
+						Thread.yield();
+					}
+				}
+				snapshot.close();
+				assertTrue(seen.size() == 1000 || seen.size() == 1001);
+				assertEquals(timestamps(seen.get(0), seen.get(0) + seen.size()), seen);
+			}
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+		assertNull(failure.get());
+		assertNull(store.state(store.typeId("type")).snapshotLog());
+	}
+
+	private static List<Event> events(EventIterator it) {
+		List<Event> events = new ArrayList<>();
+		while (it.moveNext()) {
+			events.add(it.current());
+		}
+		return events;
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static List<Long> timestamps(long from, long to) {
+		List<Long> timestamps = new ArrayList<>();
+		for (long i = from; i < to; i++) {
+			timestamps.add(i);
+		}
+		return timestamps;
+	}
+}
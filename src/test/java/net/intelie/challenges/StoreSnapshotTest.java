@@ -0,0 +1,256 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StoreSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void snapshotAndRestoreTest() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		ConcurrentEventStore store = new ConcurrentEventStore(1000);
+		for (long i = 0; i < 2000; i++) {
+			store.insert(new Event("type", i * 3));
+		}
+		store.insert(new Event("other", Long.MIN_VALUE));
+		store.insert(new Event("other", Long.MAX_VALUE));
+		store.encodeAndMoveToHistory("type");
+		store.snapshot(file);
+
+		ConcurrentEventStore restored = new ConcurrentEventStore(1000);
+		restored.insert(new Event("type", 1l));
+		restored.insert(new Event("kept", 1l));
+		restored.restore(file);
+
+		assertEquals(timestamps(store.query("type", 0, 6000)), timestamps(restored.query("type", 0, 6000)));
+		assertEquals(1000 / 3 + 1, restored.getHistoryBlocks().get("type").size());
+		assertTrue(restored.getHistory().isEmpty());
+		assertEquals(list(Long.MIN_VALUE), timestamps(restored.query("other", Long.MIN_VALUE, Long.MAX_VALUE)));
+		assertTrue(restored.getEvents().get("other").containsKey(Long.MAX_VALUE));
+		assertEquals(list(1), timestamps(restored.query("kept", 0, 10)));
+	}
+
+	@Test
+	public void restoreRaisesHistoryLimitTest() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		ConcurrentEventStore store = new ConcurrentEventStore(1000);
+		for (long i = 0; i < 2000; i++) {
+			store.insert(new Event("type", i));
+		}
+		store.encodeAndMoveToHistory("type");
+		store.snapshot(file);
+
+		ConcurrentEventStore restored = new ConcurrentEventStore(10);
+		restored.restore(file);
+		assertEquals(1000, restored.getHistoryTimestampLimit());
+		assertEquals(1500, restored.count("type", 500, 3000));
+		assertEquals(timestamps(store.query("type", 500, 3000)), timestamps(restored.query("type", 500, 3000)));
+	}
+
+	@Test
+	public void attributesTest() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		ConcurrentEventStore store = new ConcurrentEventStore(0, true);
+		store.insert(new Event("type", 1l, Collections.singletonMap("host", "a")));
+		store.insert(new Event("type", 1l));
+		store.insert(new Event("type", 1l, Collections.singletonMap("host", "b")));
+		store.insert(new Event("type", 2l));
+		store.insert(new Event("type", 3l, Collections.singletonMap("host", "a")));
+		store.insert(new Event("plain", 1l));
+		store.snapshot(file);
+
+		ConcurrentEventStore restored = new ConcurrentEventStore(0, true);
+		restored.createIndex("type", "host");
+		restored.insert(new Event("type", 5l, Collections.singletonMap("host", "a")));
+		restored.restore(file);
+
+		List<Event> events = new ArrayList<>();
+		EventIterator it = restored.query("type", 0, 10);
+		while (it.moveNext()) {
+			events.add(it.current());
+		}
+		assertEquals(list(1, 1, 1, 2, 3), timestamps(restored.query("type", 0, 10)));
+		assertEquals("a", events.get(0).attributes().get("host"));
+		assertTrue(events.get(0).attributes().isDirect());
+		assertEquals(0, events.get(1).attributes().size());
+		assertEquals("b", events.get(2).attributes().get("host"));
+		assertEquals(0, events.get(3).attributes().size());
+		// the index holds the restored events, and no longer the replaced one
+		assertEquals(list(1, 3), timestamps(restored.query("type", 0, 10, new AttributeFilter("host", "a"))));
+		assertEquals(list(1), timestamps(restored.query("plain", 0, 10)));
+	}
+
+	@Test
+	public void duplicatesTest() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		ConcurrentEventStore store = new ConcurrentEventStore(0, true);
+		store.insert(new Event("type", 5l));
+		store.insert(new Event("type", 5l));
+		store.insert(new Event("type", 7l));
+		store.snapshot(file);
+
+		ConcurrentEventStore restored = new ConcurrentEventStore(0, true);
+		restored.restore(file);
+		assertEquals(list(5, 5, 7), timestamps(restored.query("type", 0, 10)));
+
+		// without duplicates, equal timestamps collapse as they would on insertion
+		ConcurrentEventStore collapsed = new ConcurrentEventStore(0, false);
+		collapsed.restore(file);
+		assertEquals(list(5, 7), timestamps(collapsed.query("type", 0, 10)));
+	}
+
+	@Test
+	public void snapshotWithWritersTest() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		for (long i = 0; i < 10000; i++) {
+			store.insert(new Event("type", i * 2));
+		}
+		AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			long i = 0;
+			while (!done.get()) {
+				store.insert(new Event("type", i++ * 2 + 1));
+				store.removeAll("transient");
+				store.insert(new Event("transient", i));
+			}
+		});
+		writer.start();
+		for (int i = 0; i < 5; i++) {
+			store.snapshot(file);
+		}
+		done.set(true);
+		writer.join();
+
+		ConcurrentEventStore restored = new ConcurrentEventStore();
+		restored.restore(file);
+		long evens = 0;
+		for (long timestamp : timestamps(restored.query("type", 0, Long.MAX_VALUE))) {
+			if (timestamp % 2 == 0) {
+				evens++;
+			}
+		}
+		assertEquals(10000, evens);
+	}
+
+	@Test
+	public void snapshotWithMigratorTest() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		ConcurrentEventStore store = new ConcurrentEventStore(0);
+		for (long i = 0; i < 10000; i++) {
+			store.insert(new Event("type", i * 2));
+		}
+		AtomicLong clock = new AtomicLong();
+		AtomicBoolean done = new AtomicBoolean();
+		// every third odd timestamp is removed right after it is inserted
+		Thread writer = new Thread(() -> {
+			for (long i = 0; !done.get(); i++) {
+				long timestamp = i * 2 + 1;
+				store.insert(new Event("type", timestamp));
+				if (i % 3 == 0) {
+					store.removeRange("type", timestamp, timestamp + 1);
+				}
+			}
+		});
+		try (HistoryMigrator migrator = new HistoryMigrator(store, 0, 1, 100, () -> clock.addAndGet(40))) {
+			writer.start();
+			for (int i = 0; i < 20; i++) {
+				store.snapshot(file);
+				ConcurrentEventStore restored = new ConcurrentEventStore();
+				restored.restore(file);
+				List<Long> timestamps = timestamps(restored.query("type", 0, Long.MAX_VALUE));
+				long evens = 0;
+				long lastOdd = -1;
+				for (int j = 0; j < timestamps.size(); j++) {
+					long timestamp = timestamps.get(j);
+					// an event in two tiers, or in none, breaks the sequence
+					assertTrue(j == 0 || timestamp > timestamps.get(j - 1));
+					if (timestamp % 2 == 0) {
+						evens++;
+						continue;
+					}
+					for (long missing = lastOdd + 2; missing < timestamp; missing += 2) {
+						assertEquals(0, (missing / 2) % 3);
+					}
+					lastOdd = timestamp;
+				}
+				assertEquals(10000, evens);
+				assertEquals(timestamps.size(), restored.count("type", 0, Long.MAX_VALUE));
+			}
+			done.set(true);
+			writer.join();
+		}
+		store.snapshot(file);
+		ConcurrentEventStore restored = new ConcurrentEventStore();
+		restored.restore(file);
+		assertEquals(store.count("type", 0, Long.MAX_VALUE), restored.count("type", 0, Long.MAX_VALUE));
+		assertEquals(timestamps(store.query("type", 0, Long.MAX_VALUE)),
+				timestamps(restored.query("type", 0, Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void corruptedSnapshotTest() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.insert(new Event("type", 1l));
+		store.snapshot(file);
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[bytes.length - 20] ^= 1;
+		Files.write(file, bytes);
+
+		try {
+			new ConcurrentEventStore().restore(file);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void restoreWithLogTest() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("snapshot");
+		new ConcurrentEventStore().snapshot(file);
+		try (WriteAheadLog log = new WriteAheadLog(folder.newFile().toPath(), 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			store.restore(file);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		ConcurrentEventStore empty = new ConcurrentEventStore();
+		empty.restore(file);
+		assertFalse(empty.getEvents().containsKey("type"));
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static List<Long> list(long... timestamps) {
+		List<Long> list = new ArrayList<>();
+		for (long timestamp : timestamps) {
+			list.add(timestamp);
+		}
+		return list;
+	}
+}
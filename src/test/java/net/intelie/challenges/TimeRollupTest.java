@@ -0,0 +1,162 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongBinaryOperator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TimeRollupTest {
+
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void countTest() {
+		long[] timestamps = timestamps(new Random(1), 20000, 5 * HOUR);
+		TimeRollup rollup = new TimeRollup();
+		for (long timestamp : timestamps) {
+			rollup.add(timestamp, 1);
+		}
+		assertEquals(5, rollup.buckets(HOUR));
+
+		Random random = new Random(2);
+		for (int i = 0; i < 200; i++) {
+			long startTime = random.nextInt((int) (6 * HOUR)) - HOUR;
+			long endTime = startTime + 1 + random.nextInt((int) (i % 2 == 0 ? 5000 : 3 * HOUR));
+			assertEquals(exact(timestamps).applyAsLong(startTime, endTime),
+					rollup.count(startTime, endTime, exact(timestamps)));
+		}
+		assertEquals(timestamps.length, rollup.count(Long.MIN_VALUE, Long.MAX_VALUE, exact(timestamps)));
+	}
+
+	@Test
+	public void removeRangeTest() {
+		long[] timestamps = timestamps(new Random(3), 20000, 5 * HOUR);
+		TimeRollup rollup = new TimeRollup();
+		for (long timestamp : timestamps) {
+			rollup.add(timestamp, 1);
+		}
+		long[][] ranges = { { 1500, 1700 }, { 2000, 2500 }, { 59_500, 61_000 }, { HOUR - 10, 2 * HOUR + 70_001 },
+				{ 4 * HOUR, 4 * HOUR + 60_000 }, { Long.MIN_VALUE, 1000 } };
+		for (long[] range : ranges) {
+			timestamps = without(timestamps, range[0], range[1]);
+			rollup.removeRange(range[0], range[1], exact(timestamps));
+			for (long startTime = 0; startTime < 5 * HOUR; startTime += 7 * 60_000 + 333) {
+				assertEquals(exact(timestamps).applyAsLong(startTime, startTime + HOUR),
+						rollup.count(startTime, startTime + HOUR, exact(timestamps)));
+			}
+		}
+		assertEquals(timestamps.length, rollup.count(Long.MIN_VALUE, Long.MAX_VALUE, exact(timestamps)));
+		assertEquals(4, rollup.buckets(HOUR));
+	}
+
+	@Test
+	public void storeTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(HOUR);
+		for (long i = 0; i < 3 * HOUR; i += 100) {
+			store.insert(new Event("type", i));
+		}
+		// replaced, not added
+		store.insert(new Event("type", 500l));
+		store.insertAll(new Event[] { new Event("type", 1000l), new Event("type", 1050l), new Event("other", 1l) });
+		assertEquals(3 * HOUR / 100 + 1, store.count("type", 0, 3 * HOUR));
+		assertEquals(1, store.count("other", 0, 3 * HOUR));
+
+		// moved events are still counted once
+		store.encodeAndMoveToHistory("type");
+		assertEquals(HOUR / 100 + 1, store.count("type", 0, HOUR));
+
+		EventIterator it = store.query("type", HOUR - 1000, HOUR + 1000);
+		while (it.moveNext()) {
+			it.remove();
+		}
+		assertEquals(3 * HOUR / 100 + 1 - 20, store.count("type", 0, 3 * HOUR));
+		assertEquals(HOUR / 100 + 1 - 10, store.count("type", 0, HOUR));
+
+		assertEquals(HOUR / 100, store.removeRange("type", HOUR + 1000, 2 * HOUR + 1000));
+		assertEquals(HOUR / 100 - 10, store.count("type", HOUR - 1000, 3 * HOUR));
+
+		store.removeAll("type");
+		assertEquals(0, store.count("type", 0, 3 * HOUR));
+		store.insert(new Event("type", 10l));
+		assertEquals(1, store.count("type", 0, 3 * HOUR));
+	}
+
+	@Test
+	public void duplicatesTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(0, true);
+		for (long i = 0; i < 10000; i++) {
+			store.insert(new Event("type", i / 4));
+		}
+		store.insertAll(new Event[] { new Event("type", 0l), new Event("type", 0l) });
+		assertEquals(10002, store.count("type", 0, 10000));
+		assertEquals(4002, store.count("type", 0, 1000));
+	}
+
+	@Test
+	public void rebuildTest() throws IOException {
+		Path directory = folder.newFolder().toPath();
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(HOUR, false, directory, log);
+			for (long i = 0; i < 2 * HOUR; i += 1000) {
+				store.insert(new Event("type", i));
+			}
+			store.encodeAndMoveToHistory("type");
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(HOUR, false, directory, log);
+			assertEquals(2 * HOUR / 1000, store.count("type", 0, 2 * HOUR));
+			assertEquals(HOUR / 1000, store.count("type", HOUR / 2, HOUR + HOUR / 2));
+		}
+
+		ConcurrentEventStore source = new ConcurrentEventStore(HOUR);
+		for (long i = 0; i < 2 * HOUR; i += 1000) {
+			source.insert(new Event("type", i));
+		}
+		source.encodeAndMoveToHistory("type");
+		Path snapshot = folder.newFile().toPath();
+		source.snapshot(snapshot);
+		ConcurrentEventStore restored = new ConcurrentEventStore(HOUR);
+		restored.insert(new Event("type", 5 * HOUR));
+		restored.restore(snapshot);
+		assertEquals(2 * HOUR / 1000, restored.count("type", 0, 6 * HOUR));
+	}
+
+	private static long[] timestamps(Random random, int count, long range) {
+		long[] timestamps = new long[count];
+		for (int i = 0; i < count; i++) {
+			timestamps[i] = (long) (random.nextDouble() * range);
+		}
+		Arrays.sort(timestamps);
+		return timestamps;
+	}
+
+	private static LongBinaryOperator exact(long[] timestamps) {
+		return (from, to) -> lowerBound(timestamps, to) - lowerBound(timestamps, from);
+	}
+
+	private static long[] without(long[] timestamps, long from, long to) {
+		return Arrays.stream(timestamps).filter(timestamp -> timestamp < from || timestamp >= to).toArray();
+	}
+
+	private static int lowerBound(long[] timestamps, long timestamp) {
+		int index = Arrays.binarySearch(timestamps, timestamp);
+		if (index < 0) {
+			return -index - 1;
+		}
+		while (index > 0 && timestamps[index - 1] == timestamp) {
+			index--;
+		}
+		return index;
+	}
+}
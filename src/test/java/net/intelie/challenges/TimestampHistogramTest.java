@@ -0,0 +1,187 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TimestampHistogramTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void bucketsTest() {
+		TimestampHistogram histogram = new TimestampHistogram(10, 35, 10);
+		assertEquals(3, histogram.buckets());
+		assertEquals(20, histogram.bucketEnd(0));
+		assertEquals(35, histogram.bucketEnd(2));
+		histogram.add(10);
+		histogram.add(19);
+		histogram.add(34);
+		histogram.addSorted(new long[] { 0, 20, 21, 29, 35, 40 }, 6);
+		histogram.addSorted(new long[] { 30, 31 }, 2);
+		assertArrayEquals(new long[] { 2, 3, 3 }, histogram.counts());
+
+		// wider than Long.MAX_VALUE
+		histogram = new TimestampHistogram(Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE / 2);
+		assertEquals(5, histogram.buckets());
+		histogram.add(Long.MIN_VALUE);
+		histogram.add(0);
+		histogram.add(Long.MAX_VALUE - 1);
+		assertArrayEquals(new long[] { 1, 0, 1, 0, 1 }, histogram.counts());
+	}
+
+	@Test
+	public void invalidArgumentsTest() {
+		long[][] arguments = { { 10, 10, 1 }, { 10, 20, 0 }, { 0, Long.MAX_VALUE, 1 } };
+		for (long[] argument : arguments) {
+			try {
+				new TimestampHistogram(argument[0], argument[1], argument[2]);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		try {
+			new ConcurrentEventStore().histogram(null, 0, 10, 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new ColumnarEventStore().count("type", 10, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void emptyTypeTest() {
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(), new ColumnarEventStore(),
+				new AppendOnlyEventStore() }) {
+			assertEquals(0, store.count("none", 0, 10));
+			assertArrayEquals(new long[2], store.histogram("none", 0, 10, 5));
+		}
+	}
+
+	@Test
+	public void defaultsCloseTheirQueryTest() {
+		ConcurrentEventStore delegate = new ConcurrentEventStore();
+		for (long i = 0; i < 10; i++) {
+			delegate.insert(new Event("type", i));
+		}
+		AtomicInteger open = new AtomicInteger();
+		EventStore store = new EventStore() {
+			@Override
+			public void insert(Event event) {
+				delegate.insert(event);
+			}
+
+			@Override
+			public void removeAll(String type) {
+				delegate.removeAll(type);
+			}
+
+			@Override
+			public EventIterator query(String type, long startTime, long endTime) {
+				EventIterator it = delegate.query(type, startTime, endTime);
+				open.incrementAndGet();
+				return new EventIterator() {
+					@Override
+					public boolean moveNext() {
+						return it.moveNext();
+					}
+
+					@Override
+					public Event current() {
+						return it.current();
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+					}
+
+					@Override
+					public void close() throws Exception {
+						open.decrementAndGet();
+						it.close();
+					}
+				};
+			}
+		};
+		assertEquals(10, store.count("type", 0, 10));
+		assertArrayEquals(new long[] { 5, 5 }, store.histogram("type", 0, 10, 5));
+		assertEquals(5, store.removeRange("type", 0, 5));
+		assertEquals(0, open.get());
+	}
+
+	@Test
+	public void storesTest() {
+		for (EventStore store : new EventStore[] { new ConcurrentEventStore(0, true), new ColumnarEventStore(),
+				new AppendOnlyEventStore() }) {
+			populate(store, 20000);
+			checkAggregations(store);
+		}
+	}
+
+	@Test
+	public void concurrentHistoryTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(10000, true);
+		populate(store, 20000);
+		store.encodeAndMoveToHistory("type");
+		assertEquals(store.getHistoryBlocks().get("type").size(), store.count("type", 0, 10000));
+		store.removeRange("type", 2000, 2500);
+		checkAggregations(store);
+	}
+
+	@Test
+	public void concurrentSegmentsTest() throws IOException {
+		ConcurrentEventStore store = new ConcurrentEventStore(10000, true, folder.newFolder().toPath());
+		populate(store, 20000);
+		store.encodeAndMoveToHistory("type");
+		// tombstones in the segment
+		store.removeRange("type", 2000, 2500);
+		EventIterator it = store.query("type", 3000, 4000);
+		while (it.moveNext()) {
+			if (it.current().timestamp() % 3 == 0) {
+				it.remove();
+			}
+		}
+		checkAggregations(store);
+	}
+
+	/** events of a single type, with duplicated and out of order timestamps **/
+	private static void populate(EventStore store, int events) {
+		Random random = new Random(1);
+		for (int i = 0; i < events; i++) {
+			long timestamp = i % 10 == 0 ? random.nextInt(events) : i;
+			store.insert(new Event("type", timestamp));
+		}
+	}
+
+	/** compares the aggregations with the events of queries **/
+	private static void checkAggregations(EventStore store) {
+		Random random = new Random(2);
+		for (int i = 0; i < 50; i++) {
+			long startTime = random.nextInt(22000) - 1000;
+			long endTime = startTime + 1 + random.nextInt(i % 2 == 0 ? 100 : 20000);
+			long bucketWidth = 1 + random.nextInt(i % 3 == 0 ? 10 : 5000);
+			long[] expected = new long[(int) ((endTime - startTime + bucketWidth - 1) / bucketWidth)];
+			long count = 0;
+			EventIterator it = store.query("type", startTime, endTime);
+			while (it.moveNext()) {
+				expected[(int) ((it.current().timestamp() - startTime) / bucketWidth)]++;
+				count++;
+			}
+			assertEquals(count, store.count("type", startTime, endTime));
+			assertArrayEquals(expected, store.histogram("type", startTime, endTime, bucketWidth));
+		}
+	}
+}
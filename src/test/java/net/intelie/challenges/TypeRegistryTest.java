@@ -0,0 +1,125 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TypeRegistryTest {
+
+	@Test
+	public void idsTest() {
+		TypeRegistry registry = new TypeRegistry();
+		assertNull(registry.get("type"));
+		assertNull(registry.get(0));
+		// the array of ids grows past its initial size
+		for (int i = 0; i < 100; i++) {
+			TypeState state = registry.state("type" + i);
+			assertEquals(i, state.id);
+			assertSame(state, registry.state(new String("type" + i)));
+			assertSame(state, registry.get(i));
+		}
+		assertNull(registry.get(100));
+		assertNull(registry.get(-1));
+		assertEquals(100, registry.states().size());
+	}
+
+	@Test
+	public void insertAndQueryByIdTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		store.insert(new Event("a", 1));
+		int a = store.typeId("a");
+		int b = store.typeId("b");
+		assertEquals(a, store.typeId("a"));
+		assertNotEquals(a, b);
+
+		store.insert(a, 2);
+		store.insert(b, 3);
+		assertEquals(Arrays.asList(1L, 2L), timestamps(store.query(a, 0, 10)));
+		assertEquals(Arrays.asList(1L, 2L), timestamps(store.query("a", 0, 10)));
+		assertEquals(Arrays.asList(3L), timestamps(store.query("b", 0, 10)));
+		EventIterator it = store.query(b, 0, 10);
+		assertTrue(it.moveNext());
+		assertEquals("b", it.current().type());
+		assertEquals(2, store.count("a", 0, 10));
+
+		// a removed type keeps its id
+		store.removeAll("a");
+		assertEquals(a, store.typeId("a"));
+		assertEquals(0, store.count("a", 0, 10));
+		try {
+			store.query(a, 0, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		store.insert(a, 5);
+		assertEquals(Arrays.asList(5L), timestamps(store.query("a", 0, 10)));
+	}
+
+	@Test
+	public void versionsTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore(100);
+		for (long i = 0; i < 200; i++) {
+			store.insert(new Event("type", i));
+		}
+		TypeState state = new TypeRegistry().state("type");
+		assertTrue(state.version().isEmpty());
+		assertSame(state.main(), state.version().main);
+
+		// a migration publishes the blocks in a new version, the former is kept whole
+		TypeVersion before = versionOf(store);
+		store.encodeAndMoveToHistory("type");
+		TypeVersion after = versionOf(store);
+		assertNull(before.blocks);
+		assertSame(before.main, after.main);
+		assertEquals(100, after.blocks.size());
+		assertEquals(100, after.main.size());
+
+		store.removeAll("type");
+		assertTrue(versionOf(store).isEmpty());
+		assertEquals(100, after.blocks.size());
+
+		HistorySegment segment = null;
+		TypeVersion empty = TypeVersion.EMPTY;
+		assertSame(empty, empty.removeSegments(Arrays.asList(segment)));
+		TypeVersion added = empty.addSegments(Arrays.asList(segment));
+		assertNull(empty.segments);
+		assertEquals(1, added.segments.size());
+		assertEquals(0, added.removeSegments(Arrays.asList(segment)).segments.size());
+		assertEquals(1, added.segments.size());
+	}
+
+	@Test
+	public void invalidArgumentsTest() {
+		ConcurrentEventStore store = new ConcurrentEventStore();
+		int id = store.typeId("type");
+		for (Runnable invalid : new Runnable[] { () -> store.typeId(null), () -> store.insert(id + 1, 0),
+				() -> store.insert(-1, 0), () -> store.query(id + 1, 0, 10), () -> store.query(id, 10, 10) }) {
+			try {
+				invalid.run();
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	private static TypeVersion versionOf(ConcurrentEventStore store) {
+		return store.state(store.typeId("type")).version();
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+}
@@ -0,0 +1,546 @@
+package net.intelie.challenges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replayTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			for (long i = 0; i < 100; i++) {
+				store.insert(new Event("type", i));
+			}
+			store.insertAll(new Event[] { new Event("batch", 2l), new Event("batch", 1l) });
+			store.insert(new Event("gone", 1l));
+			store.removeAll("gone");
+
+			EventIterator it = store.query("type", 10, 20);
+			while (it.moveNext()) {
+				it.remove();
+			}
+		}
+
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			assertEquals(90, timestamps(store.query("type", 0, 100)).size());
+			assertEquals(list(9, 20), timestamps(store.query("type", 9, 21)));
+			assertEquals(list(1, 2), timestamps(store.query("batch", 0, 10)));
+			assertFalse(store.getEvents().containsKey("gone"));
+
+			// the replayed log keeps growing
+			store.insert(new Event("gone", 5l));
+		}
+
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			assertEquals(list(5), timestamps(store.query("gone", 0, 10)));
+			assertEquals(90, timestamps(store.query("type", 0, 100)).size());
+		}
+	}
+
+	@Test
+	public void replayDuplicatesTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			store.insert(new Event("type", 1l));
+			store.insert(new Event("type", 1l));
+			store.insert(new Event("type", 1l));
+			EventIterator it = store.query("type", 0, 10);
+			it.moveNext();
+			it.remove();
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			assertEquals(list(1, 1), timestamps(store.query("type", 0, 10)));
+		}
+	}
+
+	@Test
+	public void replayAttributesTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			store.insert(new Event("type", 1l, Collections.singletonMap("host", "a")));
+			store.insert(new Event("type", 1l, Collections.singletonMap("host", "b")));
+			store.insert(new Event("type", 1l));
+			store.insertAll(new Event[] { new Event("type", 2l, Collections.singletonMap("code", 7)) });
+			store.insert(new Event("plain", 5l, Collections.singletonMap("v", 1)));
+			store.insert(new Event("plain", 4l, Collections.singletonMap("v", 2)));
+			store.insert(new Event("plain", 5l, Collections.singletonMap("v", 3)));
+			// the removal takes the event with the same attributes out of the bucket
+			EventIterator it = store.query("type", 0, 10);
+			it.moveNext();
+			it.remove();
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			List<Event> events = events(store.query("type", 0, 10));
+			assertEquals(3, events.size());
+			assertEquals("b", events.get(0).attributes().get("host"));
+			assertTrue(events.get(0).attributes().isDirect());
+			assertEquals(0, events.get(1).attributes().size());
+			assertEquals(7L, events.get(2).attributes().get("code"));
+
+			// without removals, the events of a timestamp keep the order of the log
+			events = events(store.query("plain", 0, 10));
+			assertEquals(list(4, 5, 5), timestamps(store.query("plain", 0, 10)));
+			assertEquals(2L, events.get(0).attributes().get("v"));
+			assertEquals(1L, events.get(1).attributes().get("v"));
+			assertEquals(3L, events.get(2).attributes().get("v"));
+		}
+	}
+
+	@Test
+	public void tornFrameTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			store.insert(new Event("type", 1l));
+			store.insert(new Event("type", 2l));
+		}
+		long size = Files.size(file);
+		// a frame that was cut in the middle of its payload
+		Files.write(file, new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 1, 0 }, StandardOpenOption.APPEND);
+
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			assertEquals(list(1, 2), timestamps(store.query("type", 0, 10)));
+			assertEquals(size, Files.size(file));
+			store.insert(new Event("type", 3l));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			assertEquals(list(1, 2, 3), timestamps(store.query("type", 0, 10)));
+		}
+	}
+
+	@Test
+	public void groupCommitTest() throws IOException, InterruptedException {
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 100, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			for (long i = 0; i < 99; i++) {
+				store.insert(new Event("type", i));
+			}
+			assertEquals(0, Files.size(file));
+			store.insert(new Event("type", 99l));
+			assertTrue(Files.size(file) > 0);
+		}
+
+		Path timed = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(timed, 0, 5)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			store.insert(new Event("type", 1l));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (Files.size(timed) == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertTrue(Files.size(timed) > 0);
+		}
+	}
+
+	@Test
+	public void concurrentInsertTest() throws IOException, InterruptedException {
+		Path file = folder.newFile().toPath();
+		int threads = 4;
+		int perThread = 5000;
+		try (WriteAheadLog log = new WriteAheadLog(file, 16, 10)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			for (int t = 0; t < threads; t++) {
+				String type = "type" + t;
+				executor.execute(() -> {
+					for (long i = 0; i < perThread; i++) {
+						store.insert(new Event(type, i));
+					}
+				});
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 16, 10)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			for (int t = 0; t < threads; t++) {
+				assertEquals(perThread, store.getEvents().get("type" + t).size());
+			}
+		}
+	}
+
+	@Test
+	public void movedHistoryIsNotReplayedTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		Path directory = folder.newFolder().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			for (long i = 0; i < 200; i++) {
+				store.insert(new Event("type", i));
+			}
+			store.encodeAndMoveToHistory("type");
+			store.insert(new Event("type", 50l));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			assertEquals(101, store.getEvents().get("type").size());
+			assertEquals(list(49, 50, 50, 51), timestamps(store.query("type", 49, 52)));
+		}
+	}
+
+	@Test
+	public void eventsWithAttributesStayAfterMoveTest() throws IOException {
+		for (boolean keepDuplicates : new boolean[] { false, true }) {
+			Path file = folder.newFile().toPath();
+			Path directory = folder.newFolder().toPath();
+			try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+				ConcurrentEventStore store = new ConcurrentEventStore(100, keepDuplicates, directory, log);
+				for (long i = 0; i < 200; i++) {
+					store.insert(new Event("type", i));
+				}
+				store.insert(new Event("type", 20l, Collections.singletonMap("v", 1)));
+				// without duplicates, an event with attributes replaced by one without
+				// is moved
+				store.insert(new Event("type", 30l, Collections.singletonMap("v", 2)));
+				store.insert(new Event("type", 30l));
+				store.encodeAndMoveToHistory("type");
+				assertEquals(keepDuplicates ? 102 : 101, store.getEvents().get("type").size());
+			}
+			try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+				ConcurrentEventStore store = new ConcurrentEventStore(100, keepDuplicates, directory, log);
+				assertEquals(keepDuplicates ? 102 : 101, store.getEvents().get("type").size());
+				List<Event> events = events(store.query("type", 20, 21));
+				assertEquals(keepDuplicates ? 2 : 1, events.size());
+				assertEquals(1L, events.get(events.size() - 1).attributes().get("v"));
+				assertEquals(keepDuplicates ? list(30, 30, 30) : list(30), timestamps(store.query("type", 30, 31)));
+				assertEquals(keepDuplicates ? 203 : 200, store.count("type", 0, 200));
+			}
+		}
+	}
+
+	@Test
+	public void interruptedMoveIsReplayedTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		Path directory = folder.newFolder().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			for (long i = 0; i < 200; i++) {
+				store.insert(new Event("type", i));
+			}
+			store.encodeAndMoveToHistory("type");
+			store.insert(new Event("type", 50l));
+		}
+		// the move was logged, but the process died while its segment was written
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+			for (Path segment : segments) {
+				Files.move(segment, segment.resolveSibling(segment.getFileName() + ".tmp"));
+			}
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			assertEquals(200, store.getEvents().get("type").size());
+			assertEquals(list(49, 50, 51), timestamps(store.query("type", 49, 52)));
+			assertTrue(store.getSegments().isEmpty());
+		}
+	}
+
+	@Test
+	public void droppedSegmentKeepsItsRemovalsTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		Path directory = folder.newFolder().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			for (long i = 0; i < 200; i++) {
+				store.insert(new Event("type", i));
+			}
+			store.encodeAndMoveToHistory("type");
+			EventIterator it = store.query("type", 0, 50);
+			while (it.moveNext()) {
+				it.remove();
+			}
+			// the segment only holds the range left, and is deleted with it
+			assertEquals(50, store.removeRange("type", 50, 100));
+			assertTrue(store.getSegments().get("type").isEmpty());
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			assertEquals(list(), timestamps(store.query("type", 0, 100)));
+			assertEquals(100, store.count("type", 0, 200));
+		}
+	}
+
+	@Test
+	public void compactedSegmentsKeepTheirRemovalsTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		Path directory = folder.newFolder().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(400, false, directory, log);
+			for (long i = 0; i < 400; i++) {
+				store.insert(new Event("type", i));
+			}
+			while (store.moveToHistory("type", 400, 100) > 0) {
+			}
+			EventIterator stale = store.query("type", 0, 10);
+			assertEquals(4, store.compactSegments("type"));
+			assertEquals(1, store.getSegments().get("type").size());
+
+			// the removals through the merged segments go to the new one
+			while (stale.moveNext()) {
+				stale.remove();
+			}
+			EventIterator it = store.query("type", 10, 20);
+			while (it.moveNext()) {
+				it.remove();
+			}
+			assertEquals(380, store.count("type", 0, 400));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(400, false, directory, log);
+			assertTrue(store.getEvents().isEmpty());
+			assertEquals(list(20, 21), timestamps(store.query("type", 0, 22)));
+
+			// the merged segment is dropped: the moves are replayed with the
+			// removals made through it
+			EventIterator it = store.query("type", 390, 400);
+			while (it.moveNext()) {
+				it.remove();
+			}
+			assertEquals(370, store.removeRange("type", 0, 390));
+			assertTrue(store.getSegments().get("type").isEmpty());
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(400, false, directory, log);
+			assertEquals(0, store.count("type", 0, 400));
+		}
+	}
+
+	@Test
+	public void removeRangeIsReplayedTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			for (long i = 0; i < 100; i++) {
+				store.insert(new Event("type", i));
+			}
+			assertEquals(50, store.removeRange("type", 20, 70));
+			store.insert(new Event("type", 30l));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, false, null, log);
+			assertEquals(list(19, 30, 70), timestamps(store.query("type", 19, 71)));
+			assertEquals(51, store.getEvents().get("type").size());
+		}
+	}
+
+	@Test
+	public void concurrentChangesAreReplayedInOrderTest() throws IOException, InterruptedException {
+		Path file = folder.newFile().toPath();
+		List<Long> live;
+		try (WriteAheadLog log = new WriteAheadLog(file, 64, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			ExecutorService executor = Executors.newFixedThreadPool(3);
+			for (int t = 0; t < 2; t++) {
+				executor.execute(() -> {
+					for (int i = 0; i < 20000; i++) {
+						store.insert(new Event("type", ThreadLocalRandom.current().nextLong(20)));
+					}
+				});
+			}
+			executor.execute(() -> {
+				for (int i = 0; i < 500; i++) {
+					store.removeRange("type", 0, 10);
+					EventIterator it = store.query("type", 10, 20);
+					while (it.moveNext()) {
+						if (ThreadLocalRandom.current().nextBoolean()) {
+							it.remove();
+						}
+					}
+				}
+			});
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+			live = timestamps(store.query("type", 0, 20));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 64, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			assertEquals(live, timestamps(store.query("type", 0, 20)));
+		}
+	}
+
+	@Test
+	public void checkpointTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		long logged;
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			for (long i = 0; i < 1000; i++) {
+				store.insert(new Event("type", i / 2, Collections.singletonMap("v", i)));
+			}
+			store.insert(new Event("gone", 1l));
+			store.removeAll("gone");
+			assertEquals(500, store.removeRange("type", 0, 250));
+			logged = Files.size(file);
+
+			store.checkpoint();
+			assertTrue(Files.size(file) < logged / 10);
+			assertTrue(Files.exists(checkpoint(file, 1)));
+			store.insert(new Event("type", 600l));
+			EventIterator it = store.query("type", 250, 251);
+			it.moveNext();
+			it.remove();
+
+			store.checkpoint();
+			assertFalse(Files.exists(checkpoint(file, 1)));
+			assertTrue(Files.exists(checkpoint(file, 2)));
+			store.insert(new Event("other", 1l));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			List<Event> events = events(store.query("type", 0, 1000));
+			assertEquals(500, events.size());
+			assertEquals(250, events.get(0).timestamp());
+			assertEquals(501L, events.get(0).attributes().get("v"));
+			assertEquals(999L, events.get(498).attributes().get("v"));
+			assertEquals(600, events.get(499).timestamp());
+			assertEquals(list(1), timestamps(store.query("other", 0, 10)));
+			assertFalse(store.getEvents().containsKey("gone"));
+
+			// the log goes on from the checkpoint
+			store.insert(new Event("type", 700l));
+			store.checkpoint();
+			assertTrue(Files.exists(checkpoint(file, 3)));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			assertEquals(501, store.count("type", 0, 1000));
+		}
+	}
+
+	@Test
+	public void checkpointWithHistoryTest() throws IOException {
+		Path file = folder.newFile().toPath();
+		Path directory = folder.newFolder().toPath();
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			for (long i = 0; i < 200; i++) {
+				store.insert(new Event("type", i));
+			}
+			store.encodeAndMoveToHistory("type");
+			EventIterator it = store.query("type", 0, 10);
+			while (it.moveNext()) {
+				it.remove();
+			}
+			store.checkpoint();
+			// the segment is dropped once its move is no longer in the log
+			assertEquals(10, store.removeRange("type", 90, 100));
+			assertEquals(80, store.removeRange("type", 0, 90));
+			store.insert(new Event("type", 5l));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 1, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(100, false, directory, log);
+			assertEquals(list(5, 100), timestamps(store.query("type", 0, 101)));
+			assertEquals(101, store.count("type", 0, 200));
+		}
+	}
+
+	@Test
+	public void concurrentCheckpointTest() throws IOException, InterruptedException {
+		Path file = folder.newFile().toPath();
+		List<Long> live;
+		try (WriteAheadLog log = new WriteAheadLog(file, 64, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			ExecutorService executor = Executors.newFixedThreadPool(2);
+			AtomicBoolean done = new AtomicBoolean();
+			executor.execute(() -> {
+				for (int i = 0; i < 50000; i++) {
+					store.insert(new Event("type", ThreadLocalRandom.current().nextLong(1000)));
+				}
+				done.set(true);
+			});
+			executor.execute(() -> {
+				while (!done.get()) {
+					store.removeRange("type", 0, 10);
+					store.checkpoint();
+				}
+			});
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+			live = timestamps(store.query("type", 0, 1000));
+		}
+		try (WriteAheadLog log = new WriteAheadLog(file, 64, 0)) {
+			ConcurrentEventStore store = new ConcurrentEventStore(0, true, null, log);
+			assertEquals(live, timestamps(store.query("type", 0, 1000)));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void checkpointWithoutLogTest() {
+		new ConcurrentEventStore().checkpoint();
+	}
+
+	@Test
+	public void notReplayedTest() throws IOException {
+		try (WriteAheadLog log = new WriteAheadLog(folder.newFile().toPath(), 1, 0)) {
+			log.insert(new Event("type", 1l));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPolicyTest() throws IOException {
+		new WriteAheadLog(folder.newFile().toPath(), 0, 0);
+	}
+
+	private static List<Event> events(EventIterator it) {
+		List<Event> events = new ArrayList<>();
+		while (it.moveNext()) {
+			events.add(it.current());
+		}
+		return events;
+	}
+
+	private static List<Long> timestamps(EventIterator it) {
+		List<Long> timestamps = new ArrayList<>();
+		while (it.moveNext()) {
+			timestamps.add(it.current().timestamp());
+		}
+		return timestamps;
+	}
+
+	private static Path checkpoint(Path file, long number) {
+		return file.resolveSibling(file.getFileName() + ".checkpoint." + number);
+	}
+
+	private static List<Long> list(long... timestamps) {
+		List<Long> list = new ArrayList<>();
+		for (long timestamp : timestamps) {
+			list.add(timestamp);
+		}
+		return list;
+	}
+}